@@ -43,6 +43,12 @@ public class DummyRowLog implements RowLog {
         throw new RuntimeException(failMessage);
     }
 
+    @Override
+    public List<RowLogMessage> putMessages(List<byte[]> rowKeys, List<byte[]> payloads, List<Put> puts)
+            throws RowLogException {
+        throw new RuntimeException(failMessage);
+    }
+
     @Override
     public boolean processMessage(RowLogMessage message, RowLock rowLock) throws RowLogException {
         throw new RuntimeException(failMessage);
@@ -15,10 +15,12 @@
  */
 package org.lilyproject.indexer.batchbuild;
 
+import static org.lilyproject.util.hbase.LilyHBaseSchema.getBlobTextTable;
 import static org.lilyproject.util.hbase.LilyHBaseSchema.getRecordTable;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -38,6 +40,7 @@ import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.lilyproject.client.HBaseConnections;
 import org.lilyproject.client.LilyClient;
+import org.lilyproject.indexer.engine.ContentExtractor;
 import org.lilyproject.indexer.engine.IndexLocker;
 import org.lilyproject.indexer.engine.Indexer;
 import org.lilyproject.indexer.engine.IndexerMetrics;
@@ -53,11 +56,18 @@ import org.lilyproject.mapreduce.RecordMapper;
 import org.lilyproject.mapreduce.RecordWritable;
 import org.lilyproject.repository.api.BlobManager;
 import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.IdRecord;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RecordId;
 import org.lilyproject.repository.api.Repository;
+import org.lilyproject.repository.api.RepositoryException;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.api.Scope;
 import org.lilyproject.repository.api.TypeManager;
 import org.lilyproject.repository.impl.HBaseRepository;
 import org.lilyproject.repository.impl.HBaseTypeManager;
+import org.lilyproject.repository.impl.IdRecordImpl;
 import org.lilyproject.repository.impl.id.IdGeneratorImpl;
 import org.lilyproject.rowlock.HBaseRowLocker;
 import org.lilyproject.rowlock.RowLocker;
@@ -77,7 +87,10 @@ public class IndexingMapper extends RecordMapper<ImmutableBytesWritable, Result>
     private IndexLocker indexLocker;
     private ZooKeeperItf zk;
     private Repository repository;
+    private TypeManager typeManager;
+    private boolean enableLocking;
     private ThreadPoolExecutor executor;
+    private ContentExtractor contentExtractor;
     private Log log = LogFactory.getLog(getClass());
     private HBaseTableFactory hbaseTableFactory;
 
@@ -98,7 +111,7 @@ public class IndexingMapper extends RecordMapper<ImmutableBytesWritable, Result>
             int zkSessionTimeout = getIntProp("org.lilyproject.indexer.batchbuild.zooKeeperSessionTimeout", null, jobConf);
             zk = ZkUtil.connect(zkConnectString, zkSessionTimeout);
             hbaseTableFactory = new HBaseTableFactoryImpl(conf);
-            TypeManager typeManager = new HBaseTypeManager(idGenerator, conf, zk, hbaseTableFactory);
+            typeManager = new HBaseTypeManager(idGenerator, conf, zk, hbaseTableFactory);
 
             RowLog wal = new DummyRowLog("The write ahead log should not be called from within MapReduce jobs.");
             
@@ -136,20 +149,32 @@ public class IndexingMapper extends RecordMapper<ImmutableBytesWritable, Result>
             SolrClientConfig solrConfig = new SolrClientConfig();
             solrConfig.setRequestWriter(jobConf.get("org.lilyproject.indexer.batchbuild.requestwriter", null));
             solrConfig.setResponseParser(jobConf.get("org.lilyproject.indexer.batchbuild.responseparser", null));
+            solrConfig.setUpdateBufferSize(getIntProp("org.lilyproject.indexer.batchbuild.updatebuffersize",
+                    solrConfig.getUpdateBufferSize(), jobConf));
+            solrConfig.setUpdateBufferDelay(getIntProp("org.lilyproject.indexer.batchbuild.updatebufferdelay",
+                    (int)solrConfig.getUpdateBufferDelay(), jobConf));
 
             String indexName = "batchjob"; // we should pass on the real index name.
 
             SolrShardManager solrShardMgr = new SolrShardManager(indexName, solrShards, shardSelector, httpClient,
                     solrConfig);
 
-            boolean enableLocking = Boolean.parseBoolean(jobConf.get("org.lilyproject.indexer.batchbuild.enableLocking"));
+            enableLocking = Boolean.parseBoolean(jobConf.get("org.lilyproject.indexer.batchbuild.enableLocking"));
 
-            indexLocker = new IndexLocker(zk, enableLocking);
+            IndexLocker.Mode lockMode = IndexLocker.Mode.valueOf(
+                    jobConf.get("org.lilyproject.indexer.batchbuild.lockMode", IndexLocker.Mode.ZOOKEEPER.name()));
 
-            indexer = new Indexer(indexName, indexerConf, repository, solrShardMgr, indexLocker,
-                    new IndexerMetrics(indexName));
+            indexLocker = new IndexLocker(zk, enableLocking, lockMode);
 
             int workers = getIntProp("org.lilyproject.indexer.batchbuild.threads", 5, jobConf);
+
+            // Shares the extracted text cache table with the incremental indexers
+            contentExtractor = new ContentExtractor(workers, ContentExtractor.DEFAULT_TIMEOUT,
+                    ContentExtractor.DEFAULT_WRITE_LIMIT, ContentExtractor.DEFAULT_CACHE_SIZE,
+                    getBlobTextTable(hbaseTableFactory));
+
+            indexer = new Indexer(indexName, indexerConf, repository, solrShardMgr, indexLocker,
+                    contentExtractor, new IndexerMetrics(indexName));
             
             executor = new ThreadPoolExecutor(workers, workers, 10, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1000));
             executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
@@ -184,6 +209,8 @@ public class IndexingMapper extends RecordMapper<ImmutableBytesWritable, Result>
             log.error("Executor did not finish outstanding work within the foreseen timeout.");
         }
 
+        Closer.close(contentExtractor);
+        Closer.close(indexLocker);
         Closer.close(connectionManager);
         Closer.close(repository);
         super.cleanup(context);
@@ -193,15 +220,38 @@ public class IndexingMapper extends RecordMapper<ImmutableBytesWritable, Result>
     @Override
     public void map(RecordIdWritable recordIdWritable, RecordWritable recordWritable, Context context)
             throws IOException, InterruptedException {
-        executor.submit(new MappingTask(recordIdWritable.getRecordId(), context));
+        executor.submit(new MappingTask(recordIdWritable.getRecordId(), recordWritable.getRecord(), context));
+    }
+
+    /**
+     * Converts the record as read by the scan to an IdRecord, the record is not read again.
+     */
+    private IdRecord toIdRecord(Record record) throws RepositoryException, InterruptedException {
+        Map<SchemaId, QName> idToQNameMapping = new HashMap<SchemaId, QName>();
+        for (QName fieldName : record.getFields().keySet()) {
+            idToQNameMapping.put(typeManager.getFieldTypeByName(fieldName).getId(), fieldName);
+        }
+
+        Map<Scope, SchemaId> recordTypeIds = new EnumMap<Scope, SchemaId>(Scope.class);
+        for (Scope scope : Scope.values()) {
+            QName recordTypeName = record.getRecordTypeName(scope);
+            if (recordTypeName != null) {
+                recordTypeIds.put(scope,
+                        typeManager.getRecordTypeByName(recordTypeName, record.getRecordTypeVersion(scope)).getId());
+            }
+        }
+
+        return new IdRecordImpl(record, idToQNameMapping, recordTypeIds);
     }
 
     public class MappingTask implements Runnable {
         private RecordId recordId;
+        private Record record;
         private Context context;
 
-        private MappingTask(RecordId recordId, Context context) {
+        private MappingTask(RecordId recordId, Record record, Context context) {
             this.recordId = recordId;
+            this.record = record;
             this.context = context;
         }
 
@@ -211,7 +261,13 @@ public class IndexingMapper extends RecordMapper<ImmutableBytesWritable, Result>
             try {
                 indexLocker.lock(recordId);
                 locked = true;
-                indexer.index(recordId);
+                if (enableLocking) {
+                    // The scanned record might have been updated and indexed in the meantime, read it again now
+                    // that we have the lock so that we don't overwrite newer indexed data with older.
+                    indexer.index(recordId);
+                } else {
+                    indexer.index(toIdRecord(record));
+                }
             } catch (Throwable t) {
                 context.getCounter(IndexBatchBuildCounters.NUM_FAILED_RECORDS).increment(1);
 
@@ -0,0 +1,456 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
+import org.lilyproject.repository.api.Blob;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.Repository;
+import org.lilyproject.util.concurrent.CustomThreadFactory;
+import org.lilyproject.util.hbase.LilyHBaseSchema.BlobTextCf;
+import org.lilyproject.util.hbase.LilyHBaseSchema.BlobTextColumn;
+import org.lilyproject.util.io.Closer;
+
+/**
+ * Extracts the text of blobs using Tika, for the index fields that have content extraction enabled.
+ *
+ * <p>The extraction is done by a bounded pool of extraction threads: the blobs of one index field are
+ * extracted in parallel, and an indexing thread waits at most the configured timeout for them. A blob
+ * whose extraction did not finish in time is left out of the index field.
+ *
+ * <p>Since blobs are immutable, the extracted text is cached by blob key: in memory, and optionally in
+ * the HBase blob text table, which is shared by all indexers and survives restarts. Indexing a record
+ * again after an update that did not touch its blob fields hence does not parse the blobs again.
+ *
+ * <p>One ContentExtractor can be shared by the indexers of all indexes.
+ */
+public class ContentExtractor {
+    public static final int DEFAULT_THREADS = 4;
+    public static final long DEFAULT_TIMEOUT = 60000L;
+    public static final int DEFAULT_WRITE_LIMIT = 500 * 1000; // Tika default: 100K
+    public static final int DEFAULT_CACHE_SIZE = 20 * 1000 * 1000;
+
+    /**
+     * Maximum number of extractions waiting for an extraction thread, per thread.
+     */
+    private static final int MAX_QUEUED_PER_THREAD = 4;
+
+    private final Parser tikaParser = new AutoDetectParser();
+    private final ThreadPoolExecutor executor;
+    private final Semaphore pending;
+    private final long timeout;
+    private final int writeLimit;
+    private final HTableInterface textTable;
+    private final TextCache cache;
+    private final ConcurrentMap<CacheKey, FutureTask<String>> inProgress =
+            new ConcurrentHashMap<CacheKey, FutureTask<String>>();
+
+    private Log log = LogFactory.getLog(getClass());
+
+    /**
+     * Creates a ContentExtractor with default settings, which only caches in memory.
+     */
+    public ContentExtractor() {
+        this(DEFAULT_THREADS, DEFAULT_TIMEOUT, DEFAULT_WRITE_LIMIT, DEFAULT_CACHE_SIZE, null);
+    }
+
+    /**
+     * @param threads the number of extraction threads
+     * @param timeout the maximum time (in ms) an indexing thread waits for the blobs of one index field
+     * @param writeLimit the maximum number of characters extracted from one blob
+     * @param cacheSize the maximum number of characters kept in the in-memory cache, 0 disables it
+     * @param textTable the HBase table in which the extracted text is stored, optional
+     */
+    public ContentExtractor(int threads, long timeout, int writeLimit, int cacheSize, HTableInterface textTable) {
+        this.timeout = timeout;
+        this.writeLimit = writeLimit;
+        this.textTable = textTable;
+        this.cache = new TextCache(cacheSize);
+        this.pending = new Semaphore(threads * (1 + MAX_QUEUED_PER_THREAD));
+
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new CustomThreadFactory("content-extractor", null, true));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+        Closer.close(textTable);
+    }
+
+    /**
+     * Extracts the text of the given blobs.
+     *
+     * @return the extracted texts, in the order of the blobs. Blobs without text, for which the extraction failed
+     *         or did not finish within the timeout are left out.
+     */
+    public List<String> extract(List<BlobValue> blobValues, Repository repository, IndexerMetrics metrics)
+            throws InterruptedException {
+
+        List<FutureTask<String>> tasks = new ArrayList<FutureTask<String>>(blobValues.size());
+        List<String> texts = new ArrayList<String>(blobValues.size());
+
+        for (BlobValue blobValue : blobValues) {
+            CacheKey key = CacheKey.create(blobValue.blob);
+            String text = key != null ? getCachedText(key) : null;
+            if (text != null) {
+                metrics.contentCacheHits.inc();
+                tasks.add(null);
+                texts.add(text);
+            } else {
+                metrics.contentExtractions.inc();
+                tasks.add(submit(key, blobValue, repository));
+                texts.add(null);
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        List<String> result = new ArrayList<String>(blobValues.size());
+        for (int i = 0; i < blobValues.size(); i++) {
+            String text = texts.get(i);
+            FutureTask<String> task = tasks.get(i);
+            if (task != null) {
+                text = waitFor(task, deadline, blobValues.get(i), metrics);
+            }
+            if (text != null && text.length() > 0) {
+                result.add(text);
+            }
+        }
+
+        return result;
+    }
+
+    private String waitFor(FutureTask<String> task, long deadline, BlobValue blobValue, IndexerMetrics metrics)
+            throws InterruptedException {
+        try {
+            return task.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            metrics.contentExtractionTimeouts.inc();
+            log.warn("Blob extraction did not finish within " + timeout + " ms. Field '" +
+                    blobValue.fieldType.getName() + "', record '" + blobValue.record.getId() + "'.");
+            // Other indexing threads might be waiting for the same extraction, hence we do not cancel it
+            return null;
+        } catch (ExecutionException e) {
+            log.error("Error extracting blob content. Field '" + blobValue.fieldType.getName() + "', record '"
+                    + blobValue.record.getId() + "'.", e.getCause());
+            return null;
+        } catch (CancellationException e) {
+            // The extraction could not be started by the indexing thread which submitted it, see submit
+            log.warn("Blob extraction was not started. Field '" + blobValue.fieldType.getName() + "', record '" +
+                    blobValue.record.getId() + "'.");
+            return null;
+        }
+    }
+
+    private FutureTask<String> submit(final CacheKey key, final BlobValue blobValue, final Repository repository)
+            throws InterruptedException {
+        if (key != null) {
+            FutureTask<String> task = inProgress.get(key);
+            if (task != null) {
+                // Another indexing thread is already extracting this blob
+                return task;
+            }
+        }
+
+        // Bounds the number of queued extractions: indexing threads wait here when the extraction
+        // threads do not keep up. The permit is taken before the task is made visible to other indexing
+        // threads, so that an interrupted thread does not leave them a task which will never run.
+        pending.acquire();
+
+        final FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                try {
+                    return extract(key, blobValue, repository);
+                } finally {
+                    if (key != null) {
+                        inProgress.remove(key);
+                    }
+                    pending.release();
+                }
+            }
+        });
+
+        if (key != null) {
+            FutureTask<String> existingTask = inProgress.putIfAbsent(key, task);
+            if (existingTask != null) {
+                pending.release();
+                return existingTask;
+            }
+        }
+
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The extractor has been stopped. Other indexing threads might have picked up the task already,
+            // cancelling it makes sure they do not wait for it.
+            if (key != null) {
+                inProgress.remove(key, task);
+            }
+            pending.release();
+            task.cancel(false);
+            throw e;
+        }
+
+        return task;
+    }
+
+    /**
+     * Performs the extraction, runs in an extraction thread.
+     */
+    private String extract(CacheKey key, BlobValue blobValue, Repository repository) throws Exception {
+        Blob blob = blobValue.blob;
+
+        WriteOutContentHandler woh = new WriteOutContentHandler(writeLimit);
+        BodyContentHandler ch = new BodyContentHandler(woh);
+
+        InputStream is = null;
+        try {
+            is = new InterruptibleInputStream(repository.getInputStream(blobValue.record,
+                    blobValue.fieldType.getName(), blobValue.indexes));
+
+            Metadata metadata = new Metadata();
+            metadata.add(Metadata.CONTENT_TYPE, blob.getMediaType());
+            if (blob.getName() != null)
+                metadata.add(Metadata.RESOURCE_NAME_KEY, blob.getName());
+
+            tikaParser.parse(is, ch, metadata, new ParseContext());
+        } catch (Throwable t) {
+            if (woh.isWriteLimitReached(t)) {
+                // ok, we'll just add use the partial result
+                if (log.isInfoEnabled()) {
+                    log.info("Blob extraction: write limit reached. Field '" + blobValue.fieldType.getName() +
+                            "', record '" + blobValue.record.getId() + "'.");
+                }
+            } else if (t instanceof TikaException) {
+                // The blob can not be parsed, trying again later will not help, so we remember it has no text
+                log.error("Error extracting blob content. Field '" + blobValue.fieldType.getName() + "', record '"
+                        + blobValue.record.getId() + "'.", t);
+                putCachedText(key, "");
+                return null;
+            } else {
+                throw t instanceof Exception ? (Exception)t : new RuntimeException(t);
+            }
+        } finally {
+            Closer.close(is);
+        }
+
+        String text = ch.toString();
+        putCachedText(key, text);
+        return text;
+    }
+
+    private String getCachedText(CacheKey key) {
+        String text = cache.get(key);
+        if (text != null || textTable == null)
+            return text;
+
+        try {
+            Get get = new Get(key.digest);
+            get.addColumn(BlobTextCf.DATA.bytes, BlobTextColumn.TEXT.bytes);
+            Result result = textTable.get(get);
+            byte[] value = result.getValue(BlobTextCf.DATA.bytes, BlobTextColumn.TEXT.bytes);
+            if (value != null) {
+                text = Bytes.toString(value);
+                cache.put(key, text);
+            }
+        } catch (IOException e) {
+            // Not fatal, the blob will be extracted again
+            log.error("Error reading extracted blob text from the blob text table.", e);
+        }
+        return text;
+    }
+
+    private void putCachedText(CacheKey key, String text) {
+        if (key == null)
+            return;
+
+        cache.put(key, text);
+
+        if (textTable != null) {
+            try {
+                Put put = new Put(key.digest);
+                put.add(BlobTextCf.DATA.bytes, BlobTextColumn.TEXT.bytes, Bytes.toBytes(text));
+                textTable.put(put);
+            } catch (IOException e) {
+                log.error("Error storing extracted blob text in the blob text table.", e);
+            }
+        }
+    }
+
+    /**
+     * A blob value of a record from which the text should be extracted.
+     */
+    public static final class BlobValue {
+        private final Blob blob;
+        private final Record record;
+        private final FieldType fieldType;
+        private final int[] indexes;
+
+        /**
+         * @param indexes the position of the blob within LIST or PATH values, see
+         *                {@link Repository#getInputStream(Record, org.lilyproject.repository.api.QName, int...)}
+         */
+        public BlobValue(Blob blob, Record record, FieldType fieldType, int[] indexes) {
+            this.blob = blob;
+            this.record = record;
+            this.fieldType = fieldType;
+            this.indexes = indexes;
+        }
+    }
+
+    /**
+     * Identifies the text of a blob: a digest of the blob key and of the blob properties that are used by
+     * the content type detection of Tika.
+     */
+    private static final class CacheKey {
+        private final byte[] digest;
+        private final int hash;
+
+        private CacheKey(byte[] digest) {
+            this.digest = digest;
+            this.hash = Arrays.hashCode(digest);
+        }
+
+        /**
+         * @return null if the blob has no key yet
+         */
+        static CacheKey create(Blob blob) {
+            if (blob.getValue() == null)
+                return null;
+
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            md.update(blob.getValue());
+            md.update((byte)0);
+            md.update(Bytes.toBytes(String.valueOf(blob.getMediaType())));
+            md.update((byte)0);
+            md.update(Bytes.toBytes(String.valueOf(blob.getName())));
+            return new CacheKey(md.digest());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof CacheKey && Arrays.equals(digest, ((CacheKey)obj).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * LRU cache of extracted texts, limited to a total number of characters.
+     */
+    private static final class TextCache {
+        private final int maxSize;
+        private int size;
+        private final Map<CacheKey, String> texts = new LinkedHashMap<CacheKey, String>(16, 0.75f, true);
+
+        TextCache(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        synchronized String get(CacheKey key) {
+            return texts.get(key);
+        }
+
+        synchronized void put(CacheKey key, String text) {
+            if (text.length() > maxSize)
+                return;
+
+            String oldText = texts.put(key, text);
+            size += text.length() - (oldText != null ? oldText.length() : 0);
+
+            while (size > maxSize) {
+                Map.Entry<CacheKey, String> eldest = texts.entrySet().iterator().next();
+                size -= eldest.getValue().length();
+                texts.remove(eldest.getKey());
+            }
+        }
+    }
+
+    /**
+     * Stops the parsing by Tika at the next read once the extraction thread is interrupted, which happens
+     * when the ContentExtractor is stopped. Most parsers do not check for interruption themselves.
+     */
+    private static final class InterruptibleInputStream extends FilterInputStream {
+        InterruptibleInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkInterrupted();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkInterrupted();
+            return super.read(b, off, len);
+        }
+
+        private void checkInterrupted() throws IOException {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new IOException("Blob extraction interrupted.");
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.lilyproject.repository.api.IdRecord;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RecordNotFoundException;
+import org.lilyproject.repository.api.Repository;
+import org.lilyproject.repository.api.RepositoryException;
+import org.lilyproject.repository.api.VersionNotFoundException;
+
+/**
+ * Caches the records read when evaluating dereference values, keyed by record ID and version.
+ *
+ * <p>A cache is used for one batch of indexing work: the index updater uses one cache for all the events of
+ * a batch of messages it processes, see {@link IndexUpdater#processMessages}. The same linked records are then
+ * typically needed for several index fields, vtags and events. It should not be kept longer, since the cached
+ * records are not updated when they change in the repository.
+ *
+ * <p>The cache also remembers which records do not exist, and holds at most maxSize entries, the least
+ * recently used entries are evicted first. This class is not thread safe.
+ */
+public class DerefCache {
+    private final Map<Key, IdRecord> records;
+    private final IndexerMetrics metrics;
+
+    public DerefCache(final int maxSize, IndexerMetrics metrics) {
+        this.metrics = metrics;
+        this.records = new LinkedHashMap<Key, IdRecord>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, IdRecord> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Reads the last versions of the given records which are not yet in the cache, using one multi-get.
+     */
+    public void prefetch(Collection<RecordId> recordIds, Repository repository)
+            throws RepositoryException, InterruptedException {
+        Set<RecordId> toRead = new LinkedHashSet<RecordId>();
+        for (RecordId recordId : recordIds) {
+            if (!records.containsKey(new Key(recordId, null))) {
+                toRead.add(recordId);
+            }
+        }
+
+        if (toRead.isEmpty()) {
+            return;
+        }
+
+        metrics.derefCacheMisses.inc(toRead.size());
+
+        List<IdRecord> readRecords = repository.readWithIds(new ArrayList<RecordId>(toRead), null);
+        for (IdRecord record : readRecords) {
+            records.put(new Key(record.getId(), null), record);
+            toRead.remove(record.getId());
+        }
+
+        // The remaining records do not exist
+        for (RecordId recordId : toRead) {
+            records.put(new Key(recordId, null), null);
+        }
+    }
+
+    /**
+     * Returns the last version of a record, or null if it does not exist.
+     */
+    public IdRecord getRecord(RecordId recordId, Repository repository)
+            throws RepositoryException, InterruptedException {
+        return get(recordId, null, repository);
+    }
+
+    /**
+     * Returns the given version of a record, or null if the record or version does not exist.
+     */
+    public IdRecord getRecord(RecordId recordId, long version, Repository repository)
+            throws RepositoryException, InterruptedException {
+        return get(recordId, version, repository);
+    }
+
+    private IdRecord get(RecordId recordId, Long version, Repository repository)
+            throws RepositoryException, InterruptedException {
+        Key key = new Key(recordId, version);
+        if (records.containsKey(key)) {
+            metrics.derefCacheHits.inc();
+            return records.get(key);
+        }
+
+        metrics.derefCacheMisses.inc();
+
+        IdRecord record;
+        try {
+            record = repository.readWithIds(recordId, version, null);
+        } catch (RecordNotFoundException e) {
+            record = null;
+        } catch (VersionNotFoundException e) {
+            record = null;
+        }
+        records.put(key, record);
+        return record;
+    }
+
+    private static final class Key {
+        private final RecordId recordId;
+        /**
+         * Null for the last version.
+         */
+        private final Long version;
+
+        private Key(RecordId recordId, Long version) {
+            this.recordId = recordId;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key)obj;
+            return recordId.equals(other.recordId) &&
+                    (version == null ? other.version == null : version.equals(other.version));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * recordId.hashCode() + (version == null ? 0 : version.hashCode());
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.IdRecord;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RecordNotFoundException;
+import org.lilyproject.repository.api.Repository;
+import org.lilyproject.rowlog.api.CoalescingRowLogMessageListener;
+import org.lilyproject.rowlog.api.RowLogMessage;
+import org.lilyproject.util.concurrent.CustomThreadFactory;
+import org.lilyproject.util.repo.RecordEvent;
+import org.lilyproject.util.repo.VTaggedRecord;
+
+import static org.lilyproject.util.repo.RecordEvent.Type.DELETE;
+import static org.lilyproject.util.repo.RecordEvent.Type.INDEX;
+
+/**
+ * Updates several indexes from one message queue subscription.
+ *
+ * <p>When each index has its own subscription, each {@link IndexUpdater} parses the same event and reads the same
+ * record. This listener does this only once for all indexes, and then hands the event to the
+ * {@link IndexUpdater}s of the indexes. Each index updater still keeps its own metrics.
+ *
+ * <p>For create and update events, the record is read while holding the index lock on it, and the indexes are
+ * updated from it before the lock is released. Since the lock belongs to the thread which took it, this part is
+ * done serially by the calling thread, for one index after the other. Only the update of the denormalized data,
+ * which does not need the lock, is done in parallel, as are delete and reindex events, for which each index
+ * updater reads the record itself if needed. All index updaters should use the index locker of this class.
+ *
+ * <p>Index updaters can be added and removed while messages are being processed. Removing an index updater
+ * waits for the messages it is processing to be done.
+ *
+ * <p>Unlike a subscription of its own, the shared subscription does not keep the messages of an index whose
+ * index updater is not running yet. Therefore, as long as one of the indexes which this node should update
+ * has no index updater yet, for example while it is being started, the messages are not processed but left
+ * on the queue, to be processed later or by another node.
+ */
+public class FanOutIndexUpdater implements CoalescingRowLogMessageListener {
+    /**
+     * The message queue subscription shared by the indexes which are updated through a FanOutIndexUpdater.
+     */
+    public static final String SUBSCRIPTION_ID = "IndexUpdaterFanOut";
+
+    private final Repository repository;
+    private final IdGenerator idGenerator;
+    private final IndexLocker indexLocker;
+    private final Set<String> expectedIndexes;
+    private final List<IndexUpdater> indexUpdaters = new CopyOnWriteArrayList<IndexUpdater>();
+    private final ReadWriteLock indexUpdatersLock = new ReentrantReadWriteLock();
+    private final ThreadPoolExecutor executor;
+
+    private Log log = LogFactory.getLog(getClass());
+
+    /**
+     * @param indexLocker the index locker, which should also be used by the index updaters and their indexers
+     * @param expectedIndexes the names of the indexes which should be updated through the shared subscription on
+     *                        this node, kept up to date by the caller as the indexer model changes
+     * @param threads the number of threads running the index updaters, shared by all messages being processed
+     */
+    public FanOutIndexUpdater(Repository repository, IndexLocker indexLocker, Set<String> expectedIndexes,
+            int threads) {
+        this.repository = repository;
+        this.idGenerator = repository.getIdGenerator();
+        this.indexLocker = indexLocker;
+        this.expectedIndexes = expectedIndexes;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new CustomThreadFactory("fanout-index-updater", null, true));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public void addIndexUpdater(IndexUpdater indexUpdater) {
+        indexUpdatersLock.writeLock().lock();
+        try {
+            indexUpdaters.add(indexUpdater);
+        } finally {
+            indexUpdatersLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes an index updater, once the messages it is processing are done.
+     */
+    public void removeIndexUpdater(IndexUpdater indexUpdater) {
+        indexUpdatersLock.writeLock().lock();
+        try {
+            indexUpdaters.remove(indexUpdater);
+        } finally {
+            indexUpdatersLock.writeLock().unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return indexUpdaters.isEmpty();
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public boolean processMessage(RowLogMessage msg) throws InterruptedException {
+        final RecordEvent event;
+        final RecordId recordId;
+        try {
+            event = new RecordEvent(msg.getPayload(), idGenerator);
+            recordId = idGenerator.fromBytes(msg.getRowKey());
+        } catch (Exception e) {
+            log.error("Failure in FanOutIndexUpdater. Failed before/while reading payload.", e);
+            return true;
+        }
+
+        indexUpdatersLock.readLock().lock();
+        try {
+            if (!allExpectedIndexesRegistered()) {
+                return false;
+            }
+            processEvent(recordId, event, null);
+        } finally {
+            indexUpdatersLock.readLock().unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Processes the events of the messages merged in the same way as {@link IndexUpdater#processMessages}, and
+     * as there, each index updater caches the records read to evaluate dereference values for all events.
+     */
+    @Override
+    public boolean processMessages(List<RowLogMessage> msgs) throws InterruptedException {
+        RecordId recordId;
+        List<RecordEvent> events = new ArrayList<RecordEvent>(msgs.size());
+        try {
+            recordId = idGenerator.fromBytes(msgs.get(0).getRowKey());
+            for (RowLogMessage msg : msgs) {
+                events.add(new RecordEvent(msg.getPayload(), idGenerator));
+            }
+        } catch (Exception e) {
+            log.error("Failure in FanOutIndexUpdater. Failed before/while reading payload.", e);
+            return true;
+        }
+
+        indexUpdatersLock.readLock().lock();
+        try {
+            if (!allExpectedIndexesRegistered()) {
+                return false;
+            }
+            // The events are processed one after the other, so each cache is used by one thread at a time
+            Map<IndexUpdater, DerefCache> derefCaches = new HashMap<IndexUpdater, DerefCache>();
+            for (RecordEvent event : RecordEventCoalescer.coalesce(events)) {
+                processEvent(recordId, event, derefCaches);
+            }
+        } finally {
+            indexUpdatersLock.readLock().unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Should be called while holding the read lock on the index updaters.
+     */
+    private boolean allExpectedIndexesRegistered() {
+        for (String indexName : expectedIndexes) {
+            boolean registered = false;
+            for (IndexUpdater indexUpdater : indexUpdaters) {
+                if (indexUpdater.getIndexName().equals(indexName)) {
+                    registered = true;
+                    break;
+                }
+            }
+            if (!registered) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Index updater for index " + indexName + " not running yet, leaving message on queue.");
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Should be called while holding the read lock on the index updaters.
+     *
+     * @param derefCaches the caches of the index updaters for the batch of messages, null if the event is
+     *                    not part of a batch
+     */
+    private void processEvent(final RecordId recordId, final RecordEvent event,
+            Map<IndexUpdater, DerefCache> derefCaches) throws InterruptedException {
+        List<IndexUpdater> targets = new ArrayList<IndexUpdater>(indexUpdaters.size());
+        for (IndexUpdater indexUpdater : indexUpdaters) {
+            // Reindex events are meant for one index only
+            if (event.getType() != INDEX || indexUpdater.getIndexName().equals(event.getIndexName())) {
+                targets.add(indexUpdater);
+            }
+        }
+
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        if (event.getType() == INDEX || event.getType() == DELETE) {
+            // Nothing to share, the index updaters read the record themselves if needed
+            processEvents(targets, recordId, event, derefCaches);
+            return;
+        }
+
+        IdRecord record;
+        final VTaggedRecord[] vtRecords = new VTaggedRecord[targets.size()];
+        try {
+            indexLocker.lock(recordId);
+        } catch (IndexLockException e) {
+            // Let each index updater try itself, so that the failure is accounted for in the metrics of each index
+            log.warn("Failure in FanOutIndexUpdater taking index lock on record '" + recordId + "'.", e);
+            processEvents(targets, recordId, event, derefCaches);
+            return;
+        }
+        try {
+            try {
+                record = repository.readWithIds(recordId, null, null);
+            } catch (RecordNotFoundException e) {
+                // The record has been deleted in the meantime, as in IndexUpdater.processEvent we do nothing:
+                // the delete event will remove it from the indexes.
+                return;
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                log.warn("Failure in FanOutIndexUpdater reading record '" + recordId + "'.", e);
+                record = null;
+            }
+
+            if (record != null) {
+                for (int i = 0; i < targets.size(); i++) {
+                    IndexUpdater indexUpdater = targets.get(i);
+                    vtRecords[i] = indexUpdater.processLockedCreateUpdate(recordId, event, record,
+                            getDerefCache(derefCaches, indexUpdater));
+                }
+            }
+        } finally {
+            indexLocker.unlockLogFailure(recordId);
+        }
+
+        if (record == null) {
+            // Let each index updater try itself, so that the failure is accounted for in the metrics of each index
+            processEvents(targets, recordId, event, derefCaches);
+            return;
+        }
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(targets.size());
+        for (int i = 0; i < targets.size(); i++) {
+            final IndexUpdater indexUpdater = targets.get(i);
+            final VTaggedRecord vtRecord = vtRecords[i];
+            if (vtRecord == null) {
+                // The update of this index failed, which has been logged and counted by its index updater
+                continue;
+            }
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws InterruptedException {
+                    indexUpdater.processDenormalizedData(recordId, event, vtRecord);
+                    return null;
+                }
+            });
+        }
+        dispatch(recordId, tasks);
+    }
+
+    private void processEvents(List<IndexUpdater> targets, final RecordId recordId, final RecordEvent event,
+            Map<IndexUpdater, DerefCache> derefCaches) throws InterruptedException {
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(targets.size());
+        for (final IndexUpdater indexUpdater : targets) {
+            final DerefCache derefCache = getDerefCache(derefCaches, indexUpdater);
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws InterruptedException {
+                    indexUpdater.processEvent(recordId, event, derefCache);
+                    return null;
+                }
+            });
+        }
+        dispatch(recordId, tasks);
+    }
+
+    private DerefCache getDerefCache(Map<IndexUpdater, DerefCache> derefCaches, IndexUpdater indexUpdater) {
+        if (derefCaches == null) {
+            return null;
+        }
+        DerefCache derefCache = derefCaches.get(indexUpdater);
+        if (derefCache == null) {
+            derefCache = indexUpdater.createDerefCache();
+            derefCaches.put(indexUpdater, derefCache);
+        }
+        return derefCache;
+    }
+
+    private void dispatch(RecordId recordId, List<Callable<Object>> tasks) throws InterruptedException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        if (tasks.size() == 1) {
+            try {
+                tasks.get(0).call();
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                log.error("Failure in FanOutIndexUpdater. Record '" + recordId + "'.", e);
+            }
+            return;
+        }
+
+        List<Future<Object>> futures = new ArrayList<Future<Object>>(tasks.size());
+        try {
+            for (Callable<Object> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+
+            boolean interrupted = false;
+            for (Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // The IndexUpdater methods handle all errors except for interruption
+                    if (e.getCause() instanceof InterruptedException) {
+                        interrupted = true;
+                    } else {
+                        log.error("Failure in FanOutIndexUpdater. Record '" + recordId + "'.", e.getCause());
+                    }
+                }
+            }
+
+            if (interrupted) {
+                // Don't consider the message as processed
+                throw new InterruptedException();
+            }
+        } catch (InterruptedException e) {
+            for (Future<Object> future : futures) {
+                future.cancel(true);
+            }
+            throw e;
+        }
+    }
+}
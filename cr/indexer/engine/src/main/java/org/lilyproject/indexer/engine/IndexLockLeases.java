@@ -0,0 +1,311 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.util.concurrent.CustomThreadFactory;
+import org.lilyproject.util.zookeeper.ZkUtil;
+import org.lilyproject.util.zookeeper.ZooKeeperItf;
+import org.lilyproject.util.zookeeper.ZooKeeperOperation;
+
+/**
+ * The lease based locking used by the {@link IndexLocker} in {@link IndexLocker.Mode#LEASE} mode.
+ *
+ * <p>The hash space of the record IDs is divided in a fixed number of partitions. To lock a record, an
+ * IndexLocker first needs to own the lease on the partition of the record, which is an ephemeral node in
+ * ZooKeeper. As long as it owns the lease, locking records of that partition is done with local striped locks,
+ * without any ZooKeeper round-trip.
+ *
+ * <p>A lease is kept at most leaseTime ms: after that, no new locks are granted on the partition, and as soon
+ * as the locks that are held are released the lease is given up, so that other lockers get their turn. The
+ * lease is not taken again for a short while, to give the other lockers (which poll for it) a chance to
+ * obtain it.
+ */
+class IndexLockLeases {
+    private static final String LEASE_PATH = "/lily/indexer/recordlease";
+
+    private final ZooKeeperItf zk;
+    private final int waitBetweenTries;
+    private final int maxWaitTime;
+    private final long leaseTime;
+    private final byte[] ownerToken = Bytes.toBytes(UUID.randomUUID().toString());
+    private final Lease[] leases;
+    private final ReentrantLock[] stripes;
+    private final ConcurrentMap<RecordId, Thread> lockOwners = new ConcurrentHashMap<RecordId, Thread>();
+    private final ScheduledExecutorService expirer;
+
+    private Log log = LogFactory.getLog(getClass());
+
+    public IndexLockLeases(ZooKeeperItf zk, int partitions, int stripes, long leaseTime, int waitBetweenTries,
+            int maxWaitTime) throws InterruptedException, KeeperException {
+        this.zk = zk;
+        this.leaseTime = leaseTime;
+        this.waitBetweenTries = waitBetweenTries;
+        this.maxWaitTime = maxWaitTime;
+
+        ZkUtil.createPath(zk, LEASE_PATH);
+
+        this.leases = new Lease[partitions];
+        for (int i = 0; i < partitions; i++) {
+            leases[i] = new Lease(LEASE_PATH + "/" + i);
+        }
+
+        this.stripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+
+        // Gives up the leases which expired while not being used
+        expirer = Executors.newSingleThreadScheduledExecutor(new CustomThreadFactory("index-lock-lease-expirer",
+                null, true));
+        expirer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (Lease lease : leases) {
+                    synchronized (lease) {
+                        if (lease.owned && lease.lockCount == 0 && lease.isExpired()) {
+                            giveUp(lease);
+                        }
+                    }
+                }
+            }
+        }, leaseTime, leaseTime, TimeUnit.MILLISECONDS);
+    }
+
+    public void lock(RecordId recordId) throws IndexLockException, InterruptedException, KeeperException {
+        Thread currentThread = Thread.currentThread();
+        if (lockOwners.get(recordId) == currentThread) {
+            // Same as for the ZooKeeper based lock: taking the lock again silently succeeds
+            return;
+        }
+
+        long deadline = System.currentTimeMillis() + maxWaitTime;
+        int hash = hash(recordId);
+        Lease lease = leases[hash % leases.length];
+
+        acquireLease(lease, recordId, deadline);
+
+        boolean locked = false;
+        try {
+            ReentrantLock stripe = stripes[hash % stripes.length];
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0 || !stripe.tryLock(remaining, TimeUnit.MILLISECONDS)) {
+                throw timeout(recordId);
+            }
+            // Holding the stripe means no other thread holds the lock on any record of the stripe
+            lockOwners.put(recordId, currentThread);
+            locked = true;
+        } finally {
+            if (!locked) {
+                releaseLease(lease);
+            }
+        }
+    }
+
+    public void unlock(RecordId recordId) throws IndexLockException {
+        if (lockOwners.get(recordId) != Thread.currentThread()) {
+            throw new IndexLockException("You cannot remove the index lock for record " + recordId +
+                    " because it is not owned by the current thread.");
+        }
+
+        int hash = hash(recordId);
+        lockOwners.remove(recordId);
+        stripes[hash % stripes.length].unlock();
+        releaseLease(leases[hash % leases.length]);
+    }
+
+    public boolean hasLock(RecordId recordId) {
+        if (lockOwners.get(recordId) != Thread.currentThread()) {
+            return false;
+        }
+
+        Lease lease = leases[hash(recordId) % leases.length];
+        synchronized (lease) {
+            // If the session expired, the lease node is gone and someone else might have taken it
+            return lease.owned && lease.sessionId == zk.getSessionId();
+        }
+    }
+
+    public void close() {
+        expirer.shutdownNow();
+        for (Lease lease : leases) {
+            synchronized (lease) {
+                if (lease.owned) {
+                    giveUp(lease);
+                }
+            }
+        }
+    }
+
+    private void acquireLease(Lease lease, RecordId recordId, long deadline)
+            throws IndexLockException, InterruptedException, KeeperException {
+        while (true) {
+            synchronized (lease) {
+                if (lease.owned && lease.sessionId != zk.getSessionId()) {
+                    // The session expired, the ephemeral lease node was removed
+                    lease.owned = false;
+                }
+
+                if (lease.owned) {
+                    if (!lease.isExpired()) {
+                        lease.lockCount++;
+                        return;
+                    } else if (lease.lockCount == 0) {
+                        giveUp(lease);
+                    }
+                    // else: wait for the held locks to be released, the lease is then given up
+                } else if (System.currentTimeMillis() >= lease.notBefore && createLeaseNode(lease)) {
+                    lease.owned = true;
+                    lease.sessionId = zk.getSessionId();
+                    lease.acquiredAt = System.currentTimeMillis();
+                    lease.lockCount++;
+                    return;
+                }
+            }
+
+            if (System.currentTimeMillis() >= deadline) {
+                throw timeout(recordId);
+            }
+
+            Thread.sleep(waitBetweenTries);
+        }
+    }
+
+    private void releaseLease(Lease lease) {
+        synchronized (lease) {
+            lease.lockCount--;
+            if (lease.lockCount == 0 && lease.owned && lease.isExpired()) {
+                giveUp(lease);
+            }
+        }
+    }
+
+    private boolean createLeaseNode(final Lease lease) throws InterruptedException, KeeperException {
+        try {
+            zk.retryOperation(new ZooKeeperOperation<Object>() {
+                @Override
+                public Object execute() throws KeeperException, InterruptedException {
+                    zk.create(lease.path, ownerToken, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+                    return null;
+                }
+            });
+            return true;
+        } catch (KeeperException.NodeExistsException e) {
+            // ignore, see next
+        }
+
+        // In case of connection loss, we might have created the node without knowing it
+        return isOwnLeaseNode(lease);
+    }
+
+    private boolean isOwnLeaseNode(final Lease lease) throws InterruptedException, KeeperException {
+        return zk.retryOperation(new ZooKeeperOperation<Boolean>() {
+            @Override
+            public Boolean execute() throws KeeperException, InterruptedException {
+                try {
+                    Stat stat = new Stat();
+                    byte[] data = zk.getData(lease.path, false, stat);
+                    return stat.getEphemeralOwner() == zk.getSessionId() && Arrays.equals(data, ownerToken);
+                } catch (KeeperException.NoNodeException e) {
+                    return false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Gives up a lease, should be called while synchronized on the lease.
+     */
+    private void giveUp(final Lease lease) {
+        lease.owned = false;
+        lease.notBefore = System.currentTimeMillis() + 2 * waitBetweenTries;
+
+        // Same as for unlocking the ZooKeeper based lock: even if our thread is interrupted, we still want
+        // to remove the lease.
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (isOwnLeaseNode(lease)) {
+                    zk.retryOperation(new ZooKeeperOperation<Object>() {
+                        @Override
+                        public Object execute() throws KeeperException, InterruptedException {
+                            try {
+                                zk.delete(lease.path, -1);
+                            } catch (KeeperException.NoNodeException e) {
+                                // ok
+                            }
+                            return null;
+                        }
+                    });
+                }
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (KeeperException e) {
+                // Not fatal: the node is checked before being reused, and goes away with our session
+                log.error("Error giving up index lock lease " + lease.path, e);
+                break;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private IndexLockTimeoutException timeout(RecordId recordId) {
+        return new IndexLockTimeoutException("Failed to obtain an index lock for record " + recordId +
+                " within " + maxWaitTime + " ms.");
+    }
+
+    private static int hash(RecordId recordId) {
+        // Should give the same result in every JVM, since all lockers need to agree on the partition of a record
+        return Arrays.hashCode(recordId.toBytes()) & Integer.MAX_VALUE;
+    }
+
+    private final class Lease {
+        private final String path;
+        private boolean owned;
+        private long sessionId;
+        private long acquiredAt;
+        private long notBefore;
+        private int lockCount;
+
+        private Lease(String path) {
+            this.path = path;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - acquiredAt >= leaseTime;
+        }
+    }
+}
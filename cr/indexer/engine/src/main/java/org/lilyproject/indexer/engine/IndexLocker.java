@@ -59,8 +59,25 @@ import java.util.Arrays;
 // index lock for each record, which would lower chances of contention when having multiple
 // indexes defined. Will leave it like this though since I'd rather see the need for this locking
 // removed altogether.
+//
+// Update 2012: in the LEASE mode, taking a lock does not involve ZooKeeper for each record anymore. The hash space
+// of the record IDs is divided in partitions, and a locker needs to obtain a lease (= the ZooKeeper node) on a
+// partition, after which it can lock the records of that partition using local locks. See IndexLockLeases.
+// Since the two modes do not exclude each other, all indexers (including batch index builds) should use the
+// same mode.
 
 public class IndexLocker {
+    public enum Mode {
+        /**
+         * Locks each record by creating a node in ZooKeeper.
+         */
+        ZOOKEEPER,
+        /**
+         * Locks records using local locks, within the hash partitions on which a lease has been obtained.
+         */
+        LEASE
+    }
+
     private ZooKeeperItf zk;
     private int waitBetweenTries = 20;
     private int maxWaitTime = 20000;
@@ -68,15 +85,31 @@ public class IndexLocker {
      * Flag to allow globally disabling the index locking.
      */
     private boolean enabled = true;
+    private Mode mode = Mode.ZOOKEEPER;
+    private IndexLockLeases leases;
+
+    public static final int LEASE_PARTITIONS = 64;
+    private static final int LEASE_STRIPES = 1024;
+    private static final long LEASE_TIME = 5000L;
 
     private Log log = LogFactory.getLog(getClass());
 
     private static final String LOCK_PATH = "/lily/indexer/recordlock";        
 
     public IndexLocker(ZooKeeperItf zk, boolean enabled) throws InterruptedException, KeeperException {
+        this(zk, enabled, Mode.ZOOKEEPER);
+    }
+
+    public IndexLocker(ZooKeeperItf zk, boolean enabled, Mode mode) throws InterruptedException, KeeperException {
         this.zk = zk;
         this.enabled = enabled;
-        ZkUtil.createPath(zk, LOCK_PATH);
+        this.mode = mode;
+        if (enabled && mode == Mode.LEASE) {
+            leases = new IndexLockLeases(zk, LEASE_PARTITIONS, LEASE_STRIPES, LEASE_TIME, waitBetweenTries,
+                    maxWaitTime);
+        } else {
+            ZkUtil.createPath(zk, LOCK_PATH);
+        }
     }
 
     public IndexLocker(ZooKeeperItf zk, int waitBetweenTries, int maxWaitTime) throws InterruptedException, KeeperException {
@@ -104,6 +137,11 @@ public class IndexLocker {
         }
 
         try {
+            if (mode == Mode.LEASE) {
+                leases.lock(recordId);
+                return;
+            }
+
             long startTime = System.currentTimeMillis();
             final String lockPath = getPath(recordId);
 
@@ -170,6 +208,11 @@ public class IndexLocker {
             throw new RuntimeException("IndexLocker should not be used from within the ZooKeeper event thread.");
         }
 
+        if (mode == Mode.LEASE) {
+            leases.unlock(recordId);
+            return;
+        }
+
         final String lockPath = getPath(recordId);
 
         // The below loop is because, even if our thread is interrupted, we still want to remove the lock.
@@ -232,6 +275,10 @@ public class IndexLocker {
             throw new RuntimeException("IndexLocker should not be used from within the ZooKeeper event thread.");
         }
 
+        if (mode == Mode.LEASE) {
+            return leases.hasLock(recordId);
+        }
+
         final String lockPath = getPath(recordId);
 
         return zk.retryOperation(new ZooKeeperOperation<Boolean>() {
@@ -250,6 +297,15 @@ public class IndexLocker {
         });
     }
 
+    /**
+     * Gives up the leases obtained in {@link Mode#LEASE} mode, this has no effect in the other mode.
+     */
+    public void close() {
+        if (leases != null) {
+            leases.close();
+        }
+    }
+
     private String getPath(RecordId recordId) {
         return LOCK_PATH + "/" + recordId.toString();
     }
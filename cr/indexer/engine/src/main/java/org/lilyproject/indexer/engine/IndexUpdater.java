@@ -17,6 +17,8 @@ package org.lilyproject.indexer.engine;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
@@ -32,6 +34,7 @@ import org.lilyproject.indexer.model.indexerconf.IndexField;
 import org.lilyproject.indexer.model.sharding.ShardSelectorException;
 import org.lilyproject.linkindex.LinkIndex;
 import org.lilyproject.linkindex.LinkIndexException;
+import org.lilyproject.linkindex.ReferrerIterator;
 import org.lilyproject.repository.api.FieldType;
 import org.lilyproject.repository.api.IdGenerator;
 import org.lilyproject.repository.api.IdRecord;
@@ -41,11 +44,12 @@ import org.lilyproject.repository.api.Repository;
 import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.SchemaId;
 import org.lilyproject.repository.api.Scope;
+import org.lilyproject.rowlog.api.CoalescingRowLogMessageListener;
 import org.lilyproject.rowlog.api.RowLog;
 import org.lilyproject.rowlog.api.RowLogException;
 import org.lilyproject.rowlog.api.RowLogMessage;
-import org.lilyproject.rowlog.api.RowLogMessageListener;
 import org.lilyproject.util.ObjectUtils;
+import org.lilyproject.util.concurrent.RateLimiter;
 import org.lilyproject.util.repo.RecordEvent;
 import org.lilyproject.util.repo.VTaggedRecord;
 
@@ -88,7 +92,23 @@ import static org.lilyproject.util.repo.RecordEvent.Type.INDEX;
 /**
  * Updates the index in response to repository events.
  */
-public class IndexUpdater implements RowLogMessageListener {
+public class IndexUpdater implements CoalescingRowLogMessageListener {
+    /**
+     * The maximum number of referrers collected before the index messages for them are put, when updating
+     * denormalized data.
+     */
+    private static final int REINDEX_BATCH_SIZE = 1000;
+    /**
+     * Number of referrers read at once from the link index when searching the referrers of a record, which
+     * is also the number of records for which the next follow is searched at once.
+     */
+    private static final int REFERRER_PAGE_SIZE = 100;
+    /**
+     * Number of referrers for which permits are acquired at once from the reindex rate limiter. This is small
+     * since the wait happens while the link index is being read, see ReindexBatch.acquirePermits.
+     */
+    private static final int REINDEX_PERMIT_CHUNK = 10;
+
     private Repository repository;
     private LinkIndex linkIndex;
     private Indexer indexer;
@@ -96,6 +116,8 @@ public class IndexUpdater implements RowLogMessageListener {
     private ClassLoader myContextClassLoader;
     private IndexLocker indexLocker;
     private RowLog rowLog;
+    private RateLimiter reindexRateLimiter;
+    private boolean binaryRecordEvents = false;
 
     private Log log = LogFactory.getLog(getClass());
     private IdGenerator idGenerator;
@@ -106,6 +128,19 @@ public class IndexUpdater implements RowLogMessageListener {
     public IndexUpdater(Indexer indexer, Repository repository,
                         LinkIndex linkIndex, IndexLocker indexLocker, RowLog rowLog, IndexUpdaterMetrics metrics)
             throws RowLogException, IOException {
+        this(indexer, repository, linkIndex, indexLocker, rowLog, metrics, null);
+    }
+
+    /**
+     * @param rowLog this should be the message queue
+     * @param reindexRateLimiter optional, limits the rate at which the index messages for the referrers of
+     *                           updated records are put on the message queue, so that an update of a record
+     *                           with many referrers can not flood the message queue
+     */
+    public IndexUpdater(Indexer indexer, Repository repository, LinkIndex linkIndex, IndexLocker indexLocker,
+                        RowLog rowLog, IndexUpdaterMetrics metrics, RateLimiter reindexRateLimiter)
+            throws RowLogException, IOException {
+        this.reindexRateLimiter = reindexRateLimiter;
         this.indexer = indexer;
         this.repository = repository;
         this.idGenerator = repository.getIdGenerator();
@@ -118,22 +153,92 @@ public class IndexUpdater implements RowLogMessageListener {
         this.metrics = metrics;
     }
 
+    /**
+     * Sets whether the index messages for referrers are written in the binary record event format rather
+     * than as json. Only enable this once all nodes of the cluster can read the binary format.
+     */
+    public void setBinaryRecordEvents(boolean binaryRecordEvents) {
+        this.binaryRecordEvents = binaryRecordEvents;
+    }
+
     @Override
     public boolean processMessage(RowLogMessage msg) throws InterruptedException {
+        RecordEvent event;
+        RecordId recordId;
+        try {
+            event = new RecordEvent(msg.getPayload(), idGenerator);
+            recordId = idGenerator.fromBytes(msg.getRowKey());
+        } catch (Exception e) {
+            log.error("Failure in IndexUpdater. Failed before/while reading payload.", e);
+            metrics.errors.inc();
+            return true;
+        }
+
+        processEvent(recordId, event);
+        return true;
+    }
+
+    /**
+     * Updates the index once for all the given messages of a record, by merging their events, see
+     * {@link RecordEventCoalescer}. The records read to evaluate dereference values are cached for all the
+     * events of the messages.
+     */
+    @Override
+    public boolean processMessages(List<RowLogMessage> msgs) throws InterruptedException {
+        RecordId recordId;
+        try {
+            recordId = idGenerator.fromBytes(msgs.get(0).getRowKey());
+        } catch (Exception e) {
+            log.error("Failure in IndexUpdater. Failed before/while reading payload.", e);
+            metrics.errors.inc();
+            return true;
+        }
+
+        List<RecordEvent> events = new ArrayList<RecordEvent>(msgs.size());
+        for (RowLogMessage msg : msgs) {
+            try {
+                events.add(new RecordEvent(msg.getPayload(), idGenerator));
+            } catch (Exception e) {
+                log.error("Failure in IndexUpdater. Failed before/while reading payload of record '" + recordId +
+                        "'.", e);
+                metrics.errors.inc();
+            }
+        }
+
+        List<RecordEvent> coalescedEvents = RecordEventCoalescer.coalesce(events);
+        metrics.coalescedEvents.inc(events.size() - coalescedEvents.size());
+
+        DerefCache derefCache = createDerefCache();
+        for (RecordEvent event : coalescedEvents) {
+            processEvent(recordId, event, derefCache);
+        }
+        return true;
+    }
+
+    /**
+     * Updates the index for an event about a record.
+     */
+    public void processEvent(RecordId recordId, RecordEvent event) throws InterruptedException {
+        processEvent(recordId, event, null);
+    }
+
+    /**
+     * Same as {@link #processEvent(RecordId, RecordEvent)}, for one of the events of a batch of messages.
+     *
+     * @param derefCache the cache shared by the events of the batch, see {@link #createDerefCache()}, or null
+     *                   to use a cache for this event only
+     */
+    public void processEvent(RecordId recordId, RecordEvent event, DerefCache derefCache)
+            throws InterruptedException {
         long before = System.currentTimeMillis();
 
         // During the processing of this message, we switch the context class loader to the one
         // of the Kauri module to which the index updater belongs. This is necessary for Tika
         // to find its parser implementations.
 
-        RecordEvent event = null;
-        RecordId recordId = null;
-
         ClassLoader currentCL = Thread.currentThread().getContextClassLoader();
         try {
             Thread.currentThread().setContextClassLoader(myContextClassLoader);
-            event = new RecordEvent(msg.getPayload(), idGenerator);
-            recordId = idGenerator.fromBytes(msg.getRowKey());
 
             if (log.isDebugEnabled()) {
                 log.debug("Received message: " + event.toJson());
@@ -148,7 +253,7 @@ public class IndexUpdater implements RowLogMessageListener {
                                 indexer.vtagSetToNameString(event.getVtagsToIndex())));
                     }
 
-                    index(recordId, event.getVtagsToIndex());
+                    index(recordId, event.getVtagsToIndex(), derefCache);
                 }
             } else if (event.getType().equals(DELETE)) {
                 // For deleted records, we cannot determine the record type, so we do not know if there was
@@ -173,20 +278,21 @@ public class IndexUpdater implements RowLogMessageListener {
                 indexLocker.lock(recordId);
                 try {
                     try {
-                        // Read the vtags of the record. Note that while this algorithm is running, the record can
-                        // meanwhile undergo changes. However, we continuously work with the snapshot of the vtags
-                        // mappings read here. The processing of later events will bring the index up to date with
-                        // any new changes.
+                        // Read the vtags of the record. Note that while this algorithm is running, the record
+                        // can meanwhile undergo changes. However, we continuously work with the snapshot of the
+                        // vtags mappings read here. The processing of later events will bring the index up to
+                        // date with any new changes.
                         vtRecord = new VTaggedRecord(recordId, event, null, repository);
                     } catch (RecordNotFoundException e) {
                         // The record has been deleted in the meantime.
-                        // For now, we do nothing, when the delete event is received the record will be removed
-                        // from the index (as well as update of denormalized data).
-                        // TODO: we should process all outstanding messages for the record (up to delete) in one go
-                        return true;
+                        // We do nothing, when the delete event is received the record will be removed
+                        // from the index (as well as update of denormalized data). When the rowlog processor
+                        // coalesces messages, this event is usually dropped in favor of the delete event
+                        // already, see processMessages.
+                        return;
                     }
 
-                    handleRecordCreateUpdate(vtRecord);
+                    handleRecordCreateUpdate(vtRecord, derefCache);
                 } finally {
                     indexLocker.unlockLogFailure(recordId);
                 }
@@ -199,23 +305,90 @@ public class IndexUpdater implements RowLogMessageListener {
         } catch (InterruptedException e) {
             throw e;
         } catch (Exception e) {
-            if (recordId != null) {
-                String eventType = event != null && event.getType() != null ? event.getType().toString() : "(unknown)";
-                log.error("Failure in IndexUpdater. Record '" + recordId + "', event type " + eventType, e);
-                metrics.errors.inc();
-            } else {
-                log.error("Failure in IndexUpdater. Failed before/while reading payload.", e);
-                metrics.errors.inc();
+            logFailure(recordId, event, e);
+        } finally {
+            long after = System.currentTimeMillis();
+            metrics.updates.inc(after - before);
+            Thread.currentThread().setContextClassLoader(currentCL);
+        }
+    }
+
+    /**
+     * Updates the index for a create or update event from a record read by the {@link FanOutIndexUpdater}, which
+     * reads the record only once for all indexes. This is the part of {@link #processEvent} which is done while
+     * holding the index lock on the record: the caller should hold it, in the current thread, and call
+     * {@link #processDenormalizedData} once it released the lock.
+     *
+     * @param record the last version of the record, read with all fields while holding the index lock
+     * @param derefCache the cache shared by the events of a batch of messages, see {@link #createDerefCache()},
+     *                   or null to use a cache for this event only
+     * @return the record with its vtags, to pass on to processDenormalizedData, or null if the update failed
+     */
+    public VTaggedRecord processLockedCreateUpdate(RecordId recordId, RecordEvent event, IdRecord record,
+            DerefCache derefCache) throws InterruptedException {
+        long before = System.currentTimeMillis();
+        ClassLoader currentCL = Thread.currentThread().getContextClassLoader();
+        try {
+            Thread.currentThread().setContextClassLoader(myContextClassLoader);
+
+            if (log.isDebugEnabled()) {
+                log.debug("Received message: " + event.toJson());
             }
+
+            VTaggedRecord vtRecord = new VTaggedRecord(record, event, null, repository);
+            handleRecordCreateUpdate(vtRecord, derefCache);
+            return vtRecord;
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            logFailure(recordId, event, e);
+            return null;
         } finally {
             long after = System.currentTimeMillis();
             metrics.updates.inc(after - before);
             Thread.currentThread().setContextClassLoader(currentCL);
         }
-        return true;
     }
 
-    private void handleRecordCreateUpdate(VTaggedRecord vtRecord) throws Exception {
+    /**
+     * Updates the denormalized data for a create or update event, after
+     * {@link #processLockedCreateUpdate} updated the index.
+     */
+    public void processDenormalizedData(RecordId recordId, RecordEvent event, VTaggedRecord vtRecord)
+            throws InterruptedException {
+        ClassLoader currentCL = Thread.currentThread().getContextClassLoader();
+        try {
+            Thread.currentThread().setContextClassLoader(myContextClassLoader);
+            updateDenormalizedData(recordId, event, vtRecord.getUpdatedFieldsByScope(),
+                    vtRecord.getVTagsByVersion(), vtRecord.getModifiedVTags());
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            logFailure(recordId, event, e);
+        } finally {
+            Thread.currentThread().setContextClassLoader(currentCL);
+        }
+    }
+
+    private void logFailure(RecordId recordId, RecordEvent event, Exception e) {
+        String eventType = event.getType() != null ? event.getType().toString() : "(unknown)";
+        log.error("Failure in IndexUpdater. Record '" + recordId + "', event type " + eventType, e);
+        metrics.errors.inc();
+    }
+
+    public String getIndexName() {
+        return indexer.getIndexName();
+    }
+
+    /**
+     * Creates the cache to pass to {@link #processEvent(RecordId, RecordEvent, DerefCache)} for the events of
+     * one batch of messages.
+     */
+    public DerefCache createDerefCache() {
+        return indexer.createDerefCache();
+    }
+
+    private void handleRecordCreateUpdate(VTaggedRecord vtRecord, DerefCache derefCache) throws Exception {
         RecordEvent event = vtRecord.getRecordEvent();
         Map<Scope, Set<FieldType>> updatedFieldsByScope = vtRecord.getUpdatedFieldsByScope();
         Map<Long, Set<SchemaId>> vtagsByVersion = vtRecord.getVTagsByVersion();
@@ -336,7 +509,7 @@ public class IndexUpdater implements RowLogMessageListener {
             //
             // Index
             //
-            indexer.index(vtRecord, vtagsToIndex);
+            index(vtRecord, vtagsToIndex, derefCache);
         }
     }
 
@@ -346,9 +519,13 @@ public class IndexUpdater implements RowLogMessageListener {
                                         Set<SchemaId> changedVTagFields)
             throws RepositoryException, InterruptedException, LinkIndexException {
 
-        // This algorithm is designed to first collect all the reindex-work, and then to perform it.
+        // This algorithm is designed to first collect the reindex-work, and then to perform it.
         // Otherwise the same document would be indexed multiple times if it would become invalid
-        // because of different reasons (= different indexFields).
+        // because of different reasons (= different indexFields). To keep the memory use bounded for records
+        // with very many referrers, the referrers are streamed from the link index and the work is performed
+        // in batches, so a referrer found in different batches gets an index message per batch, and is indexed
+        // once for each of them. Only when the message queue processor hands out several messages of a row at
+        // once (maxCoalescedMessages > 1, which is not the default) are such messages merged into one reindex.
 
         //
         // Collect all the relevant IndexFields, and for each the relevant vtags
@@ -378,103 +555,183 @@ public class IndexUpdater implements RowLogMessageListener {
 
         //
         // Now search the referrers, that is: for each link field, find out which records point to the current record
-        // in a certain versioned view (= a certain vtag)
+        // in a certain versioned view (= a certain vtag), and add an index message to each of them: their actual
+        // indexing will be triggered by the message queue.
         //
 
-        // This map holds the referrer records to reindex, and for which versions (vtags) they need to be reindexed.
-        Map<RecordId, Set<SchemaId>> referrersAndVTags = new HashMap<RecordId, Set<SchemaId>>() {
-            @Override
-            public Set<SchemaId> get(Object key) {
-                if (!containsKey(key) && key instanceof RecordId) {
-                    put((RecordId) key, new HashSet<SchemaId>());
-                }
-                return super.get(key);
-            }
-        };
-
-        int searchedFollowCount = 0;
+        ReindexBatch reindexBatch = new ReindexBatch();
 
         // Run over the IndexFields
         for (Map.Entry<IndexField, Set<SchemaId>> entry : indexFieldsAndVTags.entrySet()) {
             IndexField indexField = entry.getKey();
             Set<SchemaId> referrerVTags = entry.getValue();
             DerefValue derefValue = (DerefValue) indexField.getValue();
+            List<DerefValue.Follow> follows = derefValue.getCrossRecordFollows();
 
             // Run over the version tags
             for (SchemaId referrerVtag : referrerVTags) {
-                List<DerefValue.Follow> follows = derefValue.getCrossRecordFollows();
-
-                Set<RecordId> referrers = new HashSet<RecordId>();
-                referrers.add(recordId);
-
-                for (int i = follows.size() - 1; i >= 0; i--) {
-                    searchedFollowCount++;
-                    DerefValue.Follow follow = follows.get(i);
-
-                    Set<RecordId> newReferrers = new HashSet<RecordId>();
-
-                    if (follow instanceof DerefValue.LinkFieldFollow) {
-                        final DerefValue.LinkFieldFollow linkFollowField = (DerefValue.LinkFieldFollow) follow;
-                        newReferrers.addAll(searchReferrersLinkFieldFollow(referrerVtag, referrers, linkFollowField));
-                    } else if (follow instanceof DerefValue.VariantFollow) {
-                        DerefValue.VariantFollow varFollow = (DerefValue.VariantFollow) follow;
-                        newReferrers.addAll(searchReferrersVariantFollow(referrers, varFollow));
-                    } else if (follow instanceof DerefValue.ForwardVariantFollow) {
-                        final DerefValue.ForwardVariantFollow forwardVarFollow =
-                                (DerefValue.ForwardVariantFollow) follow;
-                        newReferrers.addAll(searchReferrersForwardVariantFollow(referrers, forwardVarFollow));
-                    } else if (follow instanceof DerefValue.MasterFollow) {
-                        newReferrers.addAll(searchReferrersMasterFollow(referrers));
-                    } else {
-                        throw new RuntimeException("Unexpected implementation of DerefValue.Follow: " +
-                                follow.getClass().getName());
-                    }
-
-                    referrers = newReferrers;
-                }
-
-                for (RecordId referrer : referrers) {
-                    referrersAndVTags.get(referrer).add(referrerVtag);
-                }
+                searchReferrers(Collections.singleton(recordId), referrerVtag, follows, follows.size() - 1,
+                        reindexBatch);
             }
         }
 
+        reindexBatch.flush();
 
         if (log.isDebugEnabled()) {
             log.debug(String.format("Record %1$s: found %2$s records (times vtags) to be updated because they " +
-                    "might contain outdated denormalized data. Checked %3$s follow instances." +
-                    " The records are: %4$s", recordId,
-                    referrersAndVTags.size(), searchedFollowCount, referrersAndVTags.keySet()));
+                    "might contain outdated denormalized data. Checked %3$s follow instances.", recordId,
+                    reindexBatch.referrerCount, reindexBatch.searchedFollowCount));
         }
+    }
 
-        //
-        // Now add an index message to each of the found referrers, their actual indexing
-        // will be triggered by the message queue.
-        //
-        for (Map.Entry<RecordId, Set<SchemaId>> entry : referrersAndVTags.entrySet()) {
-            RecordId referrer = entry.getKey();
-            Set<SchemaId> vtagsToIndex = entry.getValue();
+    /**
+     * Searches the referrers of records by going through the follows backwards, starting from the given one,
+     * and adds the referrers found by the first follow to the reindex batch. The referrers are handled depth
+     * first, a limited number at a time, so that they do not need to be all kept in memory.
+     */
+    private void searchReferrers(Collection<RecordId> records, SchemaId referrerVtag, List<DerefValue.Follow> follows,
+                                 int followIndex, ReindexBatch reindexBatch)
+            throws RepositoryException, InterruptedException, LinkIndexException {
+        if (followIndex < 0) {
+            for (RecordId record : records) {
+                reindexBatch.add(record, referrerVtag);
+            }
+            return;
+        }
 
-            if (vtagsToIndex.isEmpty()) {
-                continue;
+        reindexBatch.searchedFollowCount += records.size();
+        DerefValue.Follow follow = follows.get(followIndex);
+
+        if (follow instanceof DerefValue.LinkFieldFollow) {
+            SchemaId linkField = ((DerefValue.LinkFieldFollow) follow).getOwnerFieldType().getId();
+            // Links are the only follow for which the number of referrers is unbounded, hence they are
+            // streamed, a page at a time. In link chains, the referrers of a page of records are looked up with
+            // one multi-record query, which also reads only a limited number of referrers per record up front.
+            List<RecordId> recordList = new ArrayList<RecordId>(records);
+            for (int i = 0; i < recordList.size(); i += REFERRER_PAGE_SIZE) {
+                List<RecordId> recordPage = recordList.subList(i, Math.min(i + REFERRER_PAGE_SIZE,
+                        recordList.size()));
+                ReferrerIterator linkReferrers = recordPage.size() == 1 ?
+                        linkIndex.getReferrersIterator(recordPage.get(0), referrerVtag, linkField) :
+                        linkIndex.getReferrersIterator(recordPage, referrerVtag, linkField);
+                try {
+                    List<RecordId> page;
+                    while (!(page = linkReferrers.next(REFERRER_PAGE_SIZE)).isEmpty()) {
+                        searchReferrers(page, referrerVtag, follows, followIndex - 1, reindexBatch);
+                    }
+                } finally {
+                    linkReferrers.close();
+                }
+            }
+            return;
+        }
+
+        Set<RecordId> referrers = records instanceof Set ? (Set<RecordId>) records : new HashSet<RecordId>(records);
+        Set<RecordId> newReferrers;
+        if (follow instanceof DerefValue.VariantFollow) {
+            DerefValue.VariantFollow varFollow = (DerefValue.VariantFollow) follow;
+            newReferrers = searchReferrersVariantFollow(referrers, varFollow);
+        } else if (follow instanceof DerefValue.ForwardVariantFollow) {
+            final DerefValue.ForwardVariantFollow forwardVarFollow =
+                    (DerefValue.ForwardVariantFollow) follow;
+            newReferrers = searchReferrersForwardVariantFollow(referrers, forwardVarFollow);
+        } else if (follow instanceof DerefValue.MasterFollow) {
+            newReferrers = searchReferrersMasterFollow(referrers);
+        } else {
+            throw new RuntimeException("Unexpected implementation of DerefValue.Follow: " +
+                    follow.getClass().getName());
+        }
+
+        searchReferrers(newReferrers, referrerVtag, follows, followIndex - 1, reindexBatch);
+    }
+
+    /**
+     * Collects the referrers to reindex, with for each the vtags for which they need to be reindexed. Each time
+     * {@link #REINDEX_BATCH_SIZE} referrers are collected, an index message is added to each of them.
+     */
+    private class ReindexBatch {
+        private final Map<RecordId, Set<SchemaId>> referrersAndVTags = new HashMap<RecordId, Set<SchemaId>>();
+        private int referrerCount;
+        private int searchedFollowCount;
+        /**
+         * The number of referrers added since permits were last acquired from the reindex rate limiter.
+         */
+        private int unacquiredPermits;
+
+        public void add(RecordId referrer, SchemaId vtag) throws InterruptedException {
+            Set<SchemaId> vtags = referrersAndVTags.get(referrer);
+            if (vtags == null) {
+                vtags = new HashSet<SchemaId>();
+                referrersAndVTags.put(referrer, vtags);
+                unacquiredPermits++;
+                if (unacquiredPermits >= REINDEX_PERMIT_CHUNK) {
+                    acquirePermits();
+                }
+            }
+            vtags.add(vtag);
+
+            if (referrersAndVTags.size() >= REINDEX_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        public void flush() throws InterruptedException {
+            if (referrersAndVTags.isEmpty()) {
+                return;
             }
 
-            RecordEvent payload = new RecordEvent();
-            payload.setType(INDEX);
-            payload.setIndexName(indexer.getIndexName());
-            for (SchemaId vtag : vtagsToIndex) {
-                payload.addVTagToIndex(vtag);
+            List<byte[]> rowKeys = new ArrayList<byte[]>(referrersAndVTags.size());
+            List<byte[]> payloads = new ArrayList<byte[]>(referrersAndVTags.size());
+            for (Map.Entry<RecordId, Set<SchemaId>> entry : referrersAndVTags.entrySet()) {
+                RecordEvent payload = new RecordEvent();
+                payload.setType(INDEX);
+                payload.setIndexName(indexer.getIndexName());
+                for (SchemaId vtag : entry.getValue()) {
+                    payload.addVTagToIndex(vtag);
+                }
+                rowKeys.add(entry.getKey().toBytes());
+                payloads.add(payload.toBytes(binaryRecordEvents));
             }
 
+            acquirePermits();
+
             // TODO how will this behave if the row was meanwhile deleted?
             try {
-                rowLog.putMessage(referrer.toBytes(), null, payload.toJsonBytes(), null);
+                // Puts the messages with one multi-put on the shards and one on the rows
+                rowLog.putMessages(rowKeys, payloads, null);
+            } catch (InterruptedException e) {
+                throw e;
             } catch (Exception e) {
-                // We failed to put the message: this is pretty important since it means the record's index
-                // won't get updated, therefore log as error, but after this we continue with the next one.
-                log.error("Error putting index message on queue of record " + referrer, e);
-                metrics.errors.inc();
+                log.warn("Error putting batch of " + rowKeys.size() + " index messages on queue, will put them " +
+                        "one by one.", e);
+                for (int i = 0; i < rowKeys.size(); i++) {
+                    try {
+                        rowLog.putMessage(rowKeys.get(i), null, payloads.get(i), null);
+                    } catch (Exception e2) {
+                        // We failed to put the message: this is pretty important since it means the record's
+                        // index won't get updated, therefore log as error, but after this we continue with the
+                        // next one.
+                        log.error("Error putting index message on queue of record " +
+                                idGenerator.fromBytes(rowKeys.get(i)), e2);
+                        metrics.errors.inc();
+                    }
+                }
+            }
+            metrics.reindexMessages.inc(rowKeys.size());
+            referrerCount += referrersAndVTags.size();
+            referrersAndVTags.clear();
+        }
+
+        /**
+         * Acquires the permits for the referrers added since the last call. Referrers are added while the link
+         * index scanners are open, so rather than waiting for the permits of a whole batch at once when flushing,
+         * they are acquired a few at a time: a long wait between two reads would let the scanner leases expire.
+         */
+        private void acquirePermits() throws InterruptedException {
+            if (reindexRateLimiter != null && unacquiredPermits > 0) {
+                metrics.reindexWaitTime.inc(reindexRateLimiter.acquire(unacquiredPermits));
             }
+            unacquiredPermits = 0;
         }
     }
 
@@ -541,19 +798,6 @@ public class IndexUpdater implements RowLogMessageListener {
         }
     }
 
-    private Set<RecordId> searchReferrersLinkFieldFollow(SchemaId referrerVtag, Set<RecordId> referrers,
-                                                         DerefValue.LinkFieldFollow linkFollowField)
-            throws LinkIndexException {
-        final SchemaId fieldId = linkFollowField.getOwnerFieldType().getId();
-
-        final HashSet<RecordId> result = new HashSet<RecordId>();
-        for (RecordId referrer : referrers) {
-            Set<RecordId> linkReferrers = linkIndex.getReferrers(referrer, referrerVtag, fieldId);
-            result.addAll(linkReferrers);
-        }
-        return result;
-    }
-
     private Set<RecordId> searchReferrersVariantFollow(Set<RecordId> referrers, DerefValue.VariantFollow varFollow)
             throws RepositoryException, InterruptedException {
         final HashSet<RecordId> result = new HashSet<RecordId>();
@@ -688,8 +932,9 @@ public class IndexUpdater implements RowLogMessageListener {
     /**
      * Index a record for all the specified vtags.
      */
-    private void index(RecordId recordId, Set<SchemaId> vtagsToIndex) throws RepositoryException, InterruptedException,
-            SolrClientException, ShardSelectorException, IndexLockException {
+    private void index(RecordId recordId, Set<SchemaId> vtagsToIndex, DerefCache derefCache)
+            throws RepositoryException, InterruptedException, SolrClientException, ShardSelectorException,
+            IndexLockException {
         boolean lockObtained = false;
         try {
             indexLocker.lock(recordId);
@@ -717,7 +962,7 @@ public class IndexUpdater implements RowLogMessageListener {
             // Only keep vtags which exist on the record
             vtagsToIndex.retainAll(vtRecord.getVTags().keySet());
 
-            indexer.index(vtRecord, vtagsToIndex);
+            index(vtRecord, vtagsToIndex, derefCache);
         } finally {
             if (lockObtained) {
                 indexLocker.unlockLogFailure(recordId);
@@ -725,6 +970,15 @@ public class IndexUpdater implements RowLogMessageListener {
         }
     }
 
+    private void index(VTaggedRecord vtRecord, Set<SchemaId> vtagsToIndex, DerefCache derefCache)
+            throws RepositoryException, InterruptedException, SolrClientException, ShardSelectorException {
+        if (derefCache != null) {
+            indexer.index(vtRecord, vtagsToIndex, derefCache);
+        } else {
+            indexer.index(vtRecord, vtagsToIndex);
+        }
+    }
+
     private void collectDerefIndexFields(Set<FieldType> fieldTypes, List<IndexField> indexFields) {
         for (FieldType fieldType : fieldTypes) {
             indexFields.addAll(indexer.getConf().getDerefIndexFields(fieldType.getId()));
@@ -43,6 +43,23 @@ public class IndexUpdaterMetrics implements Updater {
      * */
     public MetricsTimeVaryingLong errors = new MetricsTimeVaryingLong("errors", registry);
 
+    /**
+     * The number of events which were merged with other events of the same record, and hence did not need
+     * an index update of their own.
+     */
+    public MetricsTimeVaryingLong coalescedEvents = new MetricsTimeVaryingLong("coalescedEvents", registry);
+
+    /**
+     * The number of index messages put for referrers of updated records, whose denormalized data might be
+     * outdated.
+     */
+    public MetricsTimeVaryingLong reindexMessages = new MetricsTimeVaryingLong("reindexMessages", registry);
+
+    /**
+     * Time (in ms) spent waiting on the rate limit for putting the index messages of referrers.
+     */
+    public MetricsTimeVaryingLong reindexWaitTime = new MetricsTimeVaryingLong("reindexWaitTime", registry);
+
     public IndexUpdaterMetrics(String indexName) {
         this.indexName = indexName;
         context = MetricsUtil.getContext("indexUpdater");
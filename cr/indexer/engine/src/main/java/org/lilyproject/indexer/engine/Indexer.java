@@ -43,17 +43,30 @@ public class Indexer {
     private ValueEvaluator valueEvaluator;
     private IndexerMetrics metrics;
 
+    /**
+     * Maximum number of records held by a {@link DerefCache}, see {@link #createDerefCache()}.
+     */
+    static final int DEREF_CACHE_SIZE = 1000;
+
     private Log log = LogFactory.getLog(getClass());
 
+    /**
+     * Creates an Indexer with its own {@link ContentExtractor}, which only caches extracted text in memory.
+     */
     public Indexer(String indexName, IndexerConf conf, Repository repository, SolrShardManager solrShardMgr,
             IndexLocker indexLocker, IndexerMetrics metrics) {
+        this(indexName, conf, repository, solrShardMgr, indexLocker, new ContentExtractor(), metrics);
+    }
+
+    public Indexer(String indexName, IndexerConf conf, Repository repository, SolrShardManager solrShardMgr,
+            IndexLocker indexLocker, ContentExtractor contentExtractor, IndexerMetrics metrics) {
         this.indexName = indexName;
         this.conf = conf;
         this.repository = repository;
         this.solrShardMgr = solrShardMgr;
         this.indexLocker = indexLocker;
         this.typeManager = repository.getTypeManager();
-        this.valueEvaluator = new ValueEvaluator(conf);
+        this.valueEvaluator = new ValueEvaluator(conf, contentExtractor, metrics);
         this.metrics = metrics;
     }
 
@@ -65,6 +78,15 @@ public class Indexer {
         return indexName;
     }
 
+    /**
+     * Creates a cache for the records read to evaluate dereference values, which can be passed to
+     * {@link #index(VTaggedRecord, Set, DerefCache)} for all records indexed while processing one batch of
+     * messages.
+     */
+    public DerefCache createDerefCache() {
+        return new DerefCache(DEREF_CACHE_SIZE, metrics);
+    }
+
     /**
      * Performs a complete indexing of the given record, supposing the record is not yet indexed
      * (existing entries are not explicitly removed).
@@ -76,7 +98,26 @@ public class Indexer {
     public void index(RecordId recordId) throws RepositoryException, SolrClientException,
             ShardSelectorException, InterruptedException {
 
-        VTaggedRecord vtRecord = new VTaggedRecord(recordId, repository);
+        index(new VTaggedRecord(recordId, repository));
+    }
+
+    /**
+     * Same as {@link #index(RecordId)}, but for a record which has already been read, for example by a scan,
+     * which avoids reading the record again.
+     *
+     * <p>The record should be the last version of the record, and should contain at least the fields returned
+     * by {@link IndexerConf#getRecordFieldDependencies()}. Other versions of the record, as needed by the
+     * vtags, are still read from the repository.
+     *
+     * <p>This method requires you obtained the {@link IndexLocker} for the record.
+     */
+    public void index(IdRecord record) throws RepositoryException, SolrClientException,
+            ShardSelectorException, InterruptedException {
+        index(new VTaggedRecord(record, null, null, repository));
+    }
+
+    private void index(VTaggedRecord vtRecord) throws RepositoryException, SolrClientException,
+            ShardSelectorException, InterruptedException {
         IdRecord record = vtRecord.getRecord();
 
         IndexCase indexCase = conf.getIndexCase(record.getRecordTypeName(), record.getId().getVariantProperties());
@@ -100,37 +141,58 @@ public class Indexer {
      */
     protected void index(VTaggedRecord vtRecord, Set<SchemaId> vtagsToIndex)
             throws RepositoryException, ShardSelectorException, InterruptedException, SolrClientException {
+        // The linked records are typically the same for the different versions
+        index(vtRecord, vtagsToIndex, createDerefCache());
+    }
 
-        RecordId recordId = vtRecord.getId();
-
-        // One version might have multiple vtags, so to index we iterate the version numbers
-        // rather than the vtags
-        Map<Long, Set<SchemaId>> vtagsToIndexByVersion = getVtagsByVersion(vtagsToIndex, vtRecord.getVTags());
-        for (Map.Entry<Long, Set<SchemaId>> entry : vtagsToIndexByVersion.entrySet()) {
-            IdRecord version = null;
-            try {
-                version = vtRecord.getIdRecord(entry.getKey());
-            } catch (VersionNotFoundException e) {
-                // ok
-            } catch (RecordNotFoundException e) {
-                // ok
-            }
+    /**
+     * Same as {@link #index(VTaggedRecord, Set)}, but takes the linked records from the given cache, which
+     * can be shared with the indexing of other records of the same batch, see {@link #createDerefCache()}.
+     */
+    protected void index(VTaggedRecord vtRecord, Set<SchemaId> vtagsToIndex, DerefCache derefCache)
+            throws RepositoryException, ShardSelectorException, InterruptedException, SolrClientException {
 
-            if (version == null) {
-                // If the version does not exist, we pro-actively delete it, though the IndexUpdater should
-                // do this any way when it later receives a message about the delete.
-                for (SchemaId vtag : entry.getValue()) {
-                    verifyLock(recordId);
-                    solrShardMgr.getSolrClient(recordId).deleteById(getIndexId(recordId, vtag));
-                    metrics.deletesById.inc();
+        RecordId recordId = vtRecord.getId();
+        List<SolrUpdateBuffer.Update> updates = new ArrayList<SolrUpdateBuffer.Update>();
+        boolean submitted = false;
+        try {
+            // One version might have multiple vtags, so to index we iterate the version numbers
+            // rather than the vtags
+            Map<Long, Set<SchemaId>> vtagsToIndexByVersion = getVtagsByVersion(vtagsToIndex, vtRecord.getVTags());
+            for (Map.Entry<Long, Set<SchemaId>> entry : vtagsToIndexByVersion.entrySet()) {
+                IdRecord version = null;
+                try {
+                    version = vtRecord.getIdRecord(entry.getKey());
+                } catch (VersionNotFoundException e) {
+                    // ok
+                } catch (RecordNotFoundException e) {
+                    // ok
                 }
 
-                if (log.isDebugEnabled()) {
-                    log.debug(String.format("Record %1$s, version %2$s: does not exist, deleted index" +
-                            " entries for vtags %3$s", recordId, entry.getKey(), vtagSetToNameString(entry.getValue())));
+                if (version == null) {
+                    // If the version does not exist, we pro-actively delete it, though the IndexUpdater should
+                    // do this any way when it later receives a message about the delete.
+                    for (SchemaId vtag : entry.getValue()) {
+                        verifyLock(recordId);
+                        updates.add(solrShardMgr.getUpdateBuffer(recordId).deleteById(getIndexId(recordId, vtag)));
+                        metrics.deletesById.inc();
+                    }
+
+                    if (log.isDebugEnabled()) {
+                        log.debug(String.format("Record %1$s, version %2$s: does not exist, deleted index" +
+                                " entries for vtags %3$s", recordId, entry.getKey(),
+                                vtagSetToNameString(entry.getValue())));
+                    }
+                } else {
+                    index(version, entry.getKey(), entry.getValue(), updates, derefCache);
                 }
+            }
+            submitted = true;
+        } finally {
+            if (submitted) {
+                waitForCompletion(updates);
             } else {
-                index(version, entry.getKey(), entry.getValue());
+                cancelOrWaitForCompletion(updates);
             }
         }
     }
@@ -145,6 +207,27 @@ public class Indexer {
      */
     protected void index(IdRecord record, long version, Set<SchemaId> vtags) throws ShardSelectorException,
             RepositoryException, InterruptedException, SolrClientException {
+        List<SolrUpdateBuffer.Update> updates = new ArrayList<SolrUpdateBuffer.Update>();
+        boolean submitted = false;
+        try {
+            index(record, version, vtags, updates, createDerefCache());
+            submitted = true;
+        } finally {
+            if (submitted) {
+                waitForCompletion(updates);
+            } else {
+                cancelOrWaitForCompletion(updates);
+            }
+        }
+    }
+
+    /**
+     * @param updates to which the submitted Solr updates are added, the caller should wait for them before
+     *                releasing the index lock
+     */
+    private void index(IdRecord record, long version, Set<SchemaId> vtags, List<SolrUpdateBuffer.Update> updates,
+            DerefCache derefCache)
+            throws ShardSelectorException, RepositoryException, InterruptedException, SolrClientException {
 
         verifyLock(record.getId());
 
@@ -167,7 +250,8 @@ public class Indexer {
             // 1: evaluate the static index fields
             //
             for (IndexField indexField : conf.getIndexFields()) {
-                List<String> values = valueEvaluator.eval(indexField.getValue(), record, repository, vtag);
+                List<String> values = valueEvaluator.eval(indexField.getValue(), record, repository, vtag,
+                        derefCache);
                 if (values != null) {
                     for (String value : values) {
                         solrDoc.addField(indexField.getName(), value);
@@ -216,7 +300,7 @@ public class Indexer {
                 // because with deref-expressions we are never sure) that we did.
 
                 // There can be a previous entry in the index which we should try to delete
-                solrShardMgr.getSolrClient(record.getId()).deleteById(getIndexId(record.getId(), vtag));
+                updates.add(solrShardMgr.getUpdateBuffer(record.getId()).deleteById(getIndexId(record.getId(), vtag)));
                 metrics.deletesById.inc();
                 
                 if (log.isDebugEnabled()) {
@@ -239,7 +323,7 @@ public class Indexer {
             //    log.debug("Constructed Solr doc: " + solrDoc);
             //}
 
-            solrShardMgr.getSolrClient(record.getId()).add(solrDoc);
+            updates.add(solrShardMgr.getUpdateBuffer(record.getId()).add(solrDoc));
             metrics.adds.inc();
 
             if (log.isDebugEnabled()) {
@@ -302,7 +386,8 @@ public class Indexer {
     public void delete(RecordId recordId) throws SolrClientException, ShardSelectorException,
             InterruptedException {
         verifyLock(recordId);
-        solrShardMgr.getSolrClient(recordId).deleteByQuery("lily.id:" + ClientUtils.escapeQueryChars(recordId.toString()));
+        waitForCompletion(Collections.singletonList(solrShardMgr.getUpdateBuffer(recordId)
+                .deleteByQuery("lily.id:" + ClientUtils.escapeQueryChars(recordId.toString()))));
         metrics.deletesByQuery.inc();
     }
 
@@ -313,10 +398,52 @@ public class Indexer {
     public void delete(RecordId recordId, SchemaId vtag) throws SolrClientException, ShardSelectorException,
             InterruptedException {
         verifyLock(recordId);
-        solrShardMgr.getSolrClient(recordId).deleteById(getIndexId(recordId, vtag));
+        waitForCompletion(Collections.singletonList(
+                solrShardMgr.getUpdateBuffer(recordId).deleteById(getIndexId(recordId, vtag))));
         metrics.deletesByQuery.inc();
     }
 
+    /**
+     * Waits until the Solr updates for a record have been sent, they might have been buffered to be sent together
+     * with the updates of other records.
+     *
+     * <p>When interrupted, the updates are handled as by {@link #cancelOrWaitForCompletion}, since the
+     * caller will release the index lock on the record.
+     */
+    private void waitForCompletion(List<SolrUpdateBuffer.Update> updates) throws SolrClientException,
+            InterruptedException {
+        for (int i = 0; i < updates.size(); i++) {
+            try {
+                updates.get(i).waitForCompletion();
+            } catch (InterruptedException e) {
+                cancelOrWaitForCompletion(updates.subList(i, updates.size()));
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * For the updates of an indexing operation which failed or was interrupted: cancels the updates which are
+     * not being sent yet, and waits for the others, so that no update is sent after the index lock has been
+     * released. Failures to send are not thrown, the caller is already failing.
+     */
+    private void cancelOrWaitForCompletion(List<SolrUpdateBuffer.Update> updates) {
+        for (SolrUpdateBuffer.Update update : updates) {
+            if (update.cancel()) {
+                continue;
+            }
+            try {
+                update.waitForCompletion();
+            } catch (SolrClientException e) {
+                // ignore, see above
+            } catch (InterruptedException e) {
+                // A batch which is being sent does not depend on this thread, stop waiting for it
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
     private Map<Long, Set<SchemaId>> getVtagsByVersion(Set<SchemaId> vtagsToIndex, Map<SchemaId, Long> vtags) {
         Map<Long, Set<SchemaId>> result = new HashMap<Long, Set<SchemaId>>();
 
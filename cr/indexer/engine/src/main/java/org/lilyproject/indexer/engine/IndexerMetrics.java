@@ -44,6 +44,33 @@ public class IndexerMetrics implements Updater {
 
     public MetricsTimeVaryingLong deletesByQuery = new MetricsTimeVaryingLong("deletesByQuery", registry);
 
+    /**
+     * Records needed for dereferencing which were available without a read of their own: from the cache,
+     * or because they were read together with other records.
+     */
+    public MetricsTimeVaryingLong derefCacheHits = new MetricsTimeVaryingLong("derefCacheHits", registry);
+
+    /**
+     * Records needed for dereferencing which were read from the repository.
+     */
+    public MetricsTimeVaryingLong derefCacheMisses = new MetricsTimeVaryingLong("derefCacheMisses", registry);
+
+    /**
+     * Blobs whose text was taken from the extracted text cache.
+     */
+    public MetricsTimeVaryingLong contentCacheHits = new MetricsTimeVaryingLong("contentCacheHits", registry);
+
+    /**
+     * Blobs whose text had to be extracted.
+     */
+    public MetricsTimeVaryingLong contentExtractions = new MetricsTimeVaryingLong("contentExtractions", registry);
+
+    /**
+     * Blob extractions which did not finish within the timeout.
+     */
+    public MetricsTimeVaryingLong contentExtractionTimeouts =
+            new MetricsTimeVaryingLong("contentExtractionTimeouts", registry);
+
     public IndexerMetrics(String indexName) {
         this.indexName = indexName;
         context = MetricsUtil.getContext("indexer");
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.util.repo.RecordEvent;
+
+import static org.lilyproject.util.repo.RecordEvent.Type.CREATE;
+import static org.lilyproject.util.repo.RecordEvent.Type.DELETE;
+import static org.lilyproject.util.repo.RecordEvent.Type.INDEX;
+import static org.lilyproject.util.repo.RecordEvent.Type.UPDATE;
+
+/**
+ * Merges the events of one record into as few events as possible, so that the index is updated once for
+ * several changes to the record.
+ *
+ * <p>The rules are:
+ *
+ * <ul>
+ *     <li>the events before the last delete event are dropped: the delete removes the record from the index
+ *     and updates the denormalized data for all fields anyway.</li>
+ *     <li>successive create and update events are merged as long as they concern at most one version, since
+ *     the index updater determines the vtags to update based on a single created or updated version. The
+ *     updated fields are combined, as well as whether the record type changed.</li>
+ *     <li>the reindex events are merged per index, and come last since they reindex the current state of the
+ *     record.</li>
+ * </ul>
+ *
+ * The given events are not modified.
+ */
+public class RecordEventCoalescer {
+    private RecordEventCoalescer() {
+    }
+
+    /**
+     * @param events the events of one record, in the order in which they happened
+     */
+    public static List<RecordEvent> coalesce(List<RecordEvent> events) {
+        int start = 0;
+        for (int i = events.size() - 1; i >= 0; i--) {
+            if (events.get(i).getType() == DELETE) {
+                start = i;
+                break;
+            }
+        }
+
+        List<RecordEvent> result = new ArrayList<RecordEvent>();
+        Map<String, RecordEvent> reindexEvents = new LinkedHashMap<String, RecordEvent>();
+        RecordEvent merged = null;
+
+        for (RecordEvent event : events.subList(start, events.size())) {
+            if (event.getType() == INDEX) {
+                RecordEvent reindexEvent = reindexEvents.get(event.getIndexName());
+                if (reindexEvent == null) {
+                    reindexEvent = new RecordEvent();
+                    reindexEvent.setType(INDEX);
+                    reindexEvent.setIndexName(event.getIndexName());
+                    reindexEvents.put(event.getIndexName(), reindexEvent);
+                }
+                if (event.getVtagsToIndex() != null) {
+                    for (SchemaId vtag : event.getVtagsToIndex()) {
+                        reindexEvent.addVTagToIndex(vtag);
+                    }
+                }
+            } else if (event.getType() == CREATE || event.getType() == UPDATE) {
+                if (merged != null && !sameVersion(merged, event)) {
+                    result.add(merged);
+                    merged = null;
+                }
+                merged = merge(merged, event);
+            } else {
+                // The delete, or an event type we do not know how to merge
+                if (merged != null) {
+                    result.add(merged);
+                    merged = null;
+                }
+                result.add(event);
+            }
+        }
+
+        if (merged != null) {
+            result.add(merged);
+        }
+        result.addAll(reindexEvents.values());
+
+        return result;
+    }
+
+    private static boolean sameVersion(RecordEvent event1, RecordEvent event2) {
+        long version1 = getVersion(event1);
+        long version2 = getVersion(event2);
+        return version1 == -1 || version2 == -1 || version1 == version2;
+    }
+
+    private static long getVersion(RecordEvent event) {
+        return event.getVersionCreated() != -1 ? event.getVersionCreated() : event.getVersionUpdated();
+    }
+
+    private static RecordEvent merge(RecordEvent merged, RecordEvent event) {
+        RecordEvent result = new RecordEvent();
+        result.setType(event.getType());
+        result.setRecordTypeChanged(event.getRecordTypeChanged());
+        result.setVersionCreated(event.getVersionCreated());
+        result.setVersionUpdated(event.getVersionUpdated());
+        for (SchemaId field : event.getUpdatedFields()) {
+            result.addUpdatedField(field);
+        }
+
+        if (merged != null) {
+            if (merged.getType() == CREATE) {
+                result.setType(CREATE);
+                // A newly created record has no record type change
+                result.setRecordTypeChanged(false);
+            } else {
+                result.setRecordTypeChanged(result.getRecordTypeChanged() || merged.getRecordTypeChanged());
+            }
+
+            long version = getVersion(result) == -1 ? getVersion(merged) : getVersion(result);
+            if (version != -1) {
+                // A version created by one of the events is new to the index, even if later events updated it
+                boolean created = merged.getVersionCreated() != -1 || result.getVersionCreated() != -1;
+                result.setVersionCreated(created ? version : -1);
+                result.setVersionUpdated(created ? -1 : version);
+            }
+
+            for (SchemaId field : merged.getUpdatedFields()) {
+                result.addUpdatedField(field);
+            }
+        }
+
+        return result;
+    }
+}
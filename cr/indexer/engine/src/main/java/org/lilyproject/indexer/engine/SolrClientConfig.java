@@ -18,6 +18,8 @@ package org.lilyproject.indexer.engine;
 public class SolrClientConfig {
     private String requestWriter;
     private String responseParser;
+    private int updateBufferSize = 1;
+    private long updateBufferDelay = 20;
 
     public SolrClientConfig() {
 
@@ -38,4 +40,27 @@ public class SolrClientConfig {
     public void setResponseParser(String responseParser) {
         this.responseParser = responseParser;
     }
+
+    public int getUpdateBufferSize() {
+        return updateBufferSize;
+    }
+
+    /**
+     * The maximum number of updates sent to a Solr shard in one request, see {@link SolrUpdateBuffer}.
+     * A value of 1 or less disables the buffering.
+     */
+    public void setUpdateBufferSize(int updateBufferSize) {
+        this.updateBufferSize = updateBufferSize;
+    }
+
+    public long getUpdateBufferDelay() {
+        return updateBufferDelay;
+    }
+
+    /**
+     * The maximum time, in milliseconds, an update waits for other updates to join its request.
+     */
+    public void setUpdateBufferDelay(long updateBufferDelay) {
+        this.updateBufferDelay = updateBufferDelay;
+    }
 }
@@ -44,6 +44,8 @@ public class SolrShardManager {
     private HttpClient httpClient;
     private RequestWriter requestWriter;
     private ResponseParser responseParser;
+    private int updateBufferSize;
+    private long updateBufferDelay;
 
     public SolrShardManager(String indexName, Map<String, String> shards, ShardSelector selector, HttpClient httpClient,
             SolrClientConfig solrClientConfig) throws MalformedURLException {
@@ -55,6 +57,8 @@ public class SolrShardManager {
         this.shards = shards;
         this.selector = selector;
         this.httpClient = httpClient;
+        this.updateBufferSize = solrClientConfig.getUpdateBufferSize();
+        this.updateBufferDelay = solrClientConfig.getUpdateBufferDelay();
 
         if (solrClientConfig.getRequestWriter() != null) {
             try {
@@ -118,7 +122,8 @@ public class SolrShardManager {
             if (blockOnIOProblem) {
                 solrClient = RetryingSolrClient.wrap(solrClient, metrics);
             }
-            shardConnections.put(shard.getKey(), new SolrClientHandle(solrClient, metrics));
+            SolrUpdateBuffer updateBuffer = new SolrUpdateBuffer(solrClient, updateBufferSize, updateBufferDelay);
+            shardConnections.put(shard.getKey(), new SolrClientHandle(solrClient, updateBuffer, metrics));
         }
     }
 
@@ -127,12 +132,23 @@ public class SolrShardManager {
         return shardConnections.get(shardName).solrClient;
     }
 
+    /**
+     * Returns the buffer through which the updates for the given record should be sent to its shard, so that
+     * they can be combined with the updates of other records.
+     */
+    public SolrUpdateBuffer getUpdateBuffer(RecordId recordId) throws ShardSelectorException {
+        String shardName = selector.getShard(recordId);
+        return shardConnections.get(shardName).updateBuffer;
+    }
+
     private static final class SolrClientHandle {
         SolrClient solrClient;
+        SolrUpdateBuffer updateBuffer;
         SolrClientMetrics solrClientMetrics;
 
-        public SolrClientHandle(SolrClient solrClient, SolrClientMetrics metrics) {
+        public SolrClientHandle(SolrClient solrClient, SolrUpdateBuffer updateBuffer, SolrClientMetrics metrics) {
             this.solrClient = solrClient;
+            this.updateBuffer = updateBuffer;
             this.solrClientMetrics = metrics;
         }
     }
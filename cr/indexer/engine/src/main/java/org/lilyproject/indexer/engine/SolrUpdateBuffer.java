@@ -0,0 +1,245 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * Buffers the updates (adds and deletes) for one Solr shard, so that the updates done concurrently by the
+ * different indexing threads are sent to Solr in one request per batch rather than one request per document.
+ *
+ * <p>The buffer works like a group commit: the methods that submit an update return an {@link Update}, and the
+ * submitter should {@link Update#waitForCompletion() wait} for it before considering the update as done (e.g.
+ * before releasing the {@link IndexLocker} lock on the record, or before confirming a rowlog message). A batch
+ * is sent to Solr once it holds maxSize updates, or once its oldest update has waited maxDelay ms, by one of
+ * the threads waiting for it.
+ *
+ * <p>The updates are sent to Solr in the order they were submitted: consecutive adds are sent as one add request,
+ * consecutive deletes by id as one delete request, and only one batch per shard is sent at a time. Hence an
+ * update done by a thread holding the index lock on a record is still sent before any later update on that
+ * record.
+ *
+ * <p>If a batch fails, all updates in it fail, and they should be retried like any other failed update. A
+ * submitter which does not wait for its updates, e.g. because it failed or was interrupted, should
+ * {@link Update#cancel() cancel} them, otherwise they might only be sent once it released the index lock.
+ */
+public class SolrUpdateBuffer {
+    private final SolrClient solrClient;
+    private final int maxSize;
+    private final long maxDelay;
+    private Batch current = new Batch();
+    private boolean flushing = false;
+
+    /**
+     * @param maxSize the maximum number of updates in one batch, a value of 1 or less disables buffering
+     * @param maxDelay the maximum time (in ms) an update waits for more updates to join its batch
+     */
+    public SolrUpdateBuffer(SolrClient solrClient, int maxSize, long maxDelay) {
+        this.solrClient = solrClient;
+        this.maxSize = maxSize;
+        this.maxDelay = maxDelay;
+    }
+
+    public SolrClient getSolrClient() {
+        return solrClient;
+    }
+
+    public Update add(SolrInputDocument doc) throws SolrClientException, InterruptedException {
+        return submit(new Operation(OperationType.ADD, doc));
+    }
+
+    public Update deleteById(String id) throws SolrClientException, InterruptedException {
+        return submit(new Operation(OperationType.DELETE_BY_ID, id));
+    }
+
+    public Update deleteByQuery(String query) throws SolrClientException, InterruptedException {
+        return submit(new Operation(OperationType.DELETE_BY_QUERY, query));
+    }
+
+    private Update submit(Operation operation) throws SolrClientException, InterruptedException {
+        if (maxSize <= 1) {
+            execute(Collections.singletonList(operation));
+            return Update.DONE;
+        }
+
+        synchronized (this) {
+            if (current.operations.isEmpty()) {
+                current.createdAt = System.currentTimeMillis();
+            }
+            current.operations.add(operation);
+            if (current.operations.size() >= maxSize) {
+                notifyAll();
+            }
+            return new Update(this, current, operation);
+        }
+    }
+
+    private synchronized boolean cancel(Batch batch, Operation operation) {
+        // Once a batch is being sent, it is no longer the current batch
+        if (batch != current) {
+            return false;
+        }
+        batch.operations.remove(operation);
+        return true;
+    }
+
+    private void waitFor(Batch batch) throws SolrClientException, InterruptedException {
+        boolean flushBatch = false;
+        synchronized (this) {
+            while (!batch.done) {
+                if (batch == current && !flushing) {
+                    long remaining = batch.createdAt + maxDelay - System.currentTimeMillis();
+                    if (batch.operations.size() >= maxSize || remaining <= 0) {
+                        flushing = true;
+                        current = new Batch();
+                        flushBatch = true;
+                        break;
+                    }
+                    wait(remaining);
+                } else {
+                    // Either our batch is being sent by another thread, or it waits for the previous batch
+                    wait();
+                }
+            }
+        }
+
+        if (flushBatch) {
+            try {
+                execute(batch.operations);
+            } catch (SolrClientException e) {
+                batch.error = e;
+            } catch (Throwable t) {
+                batch.error = new SolrClientException(solrClient.getDescription(), t);
+            } finally {
+                synchronized (this) {
+                    batch.done = true;
+                    flushing = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        if (batch.error != null) {
+            throw batch.error;
+        }
+    }
+
+    /**
+     * Sends the operations to Solr, grouping consecutive operations of the same kind in one request.
+     */
+    private void execute(List<Operation> operations) throws SolrClientException, InterruptedException {
+        int i = 0;
+        while (i < operations.size()) {
+            Operation first = operations.get(i);
+            int end = i + 1;
+            if (first.type != OperationType.DELETE_BY_QUERY) {
+                while (end < operations.size() && operations.get(end).type == first.type) {
+                    end++;
+                }
+            }
+
+            switch (first.type) {
+                case ADD:
+                    if (end - i == 1) {
+                        solrClient.add((SolrInputDocument)first.argument);
+                    } else {
+                        List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>(end - i);
+                        for (Operation operation : operations.subList(i, end)) {
+                            docs.add((SolrInputDocument)operation.argument);
+                        }
+                        solrClient.add(docs);
+                    }
+                    break;
+                case DELETE_BY_ID:
+                    if (end - i == 1) {
+                        solrClient.deleteById((String)first.argument);
+                    } else {
+                        List<String> ids = new ArrayList<String>(end - i);
+                        for (Operation operation : operations.subList(i, end)) {
+                            ids.add((String)operation.argument);
+                        }
+                        solrClient.deleteById(ids);
+                    }
+                    break;
+                case DELETE_BY_QUERY:
+                    solrClient.deleteByQuery((String)first.argument);
+                    break;
+            }
+
+            i = end;
+        }
+    }
+
+    /**
+     * An update submitted to the buffer.
+     */
+    public static final class Update {
+        private static final Update DONE = new Update(null, null, null);
+
+        private final SolrUpdateBuffer buffer;
+        private final Batch batch;
+        private final Operation operation;
+
+        private Update(SolrUpdateBuffer buffer, Batch batch, Operation operation) {
+            this.buffer = buffer;
+            this.batch = batch;
+            this.operation = operation;
+        }
+
+        /**
+         * Waits until the update has been sent to Solr.
+         *
+         * @throws SolrClientException if sending the batch holding this update failed
+         */
+        public void waitForCompletion() throws SolrClientException, InterruptedException {
+            if (buffer != null) {
+                buffer.waitFor(batch);
+            }
+        }
+
+        /**
+         * Removes the update from its batch, if the batch is not being sent yet.
+         *
+         * @return true if the update will not be sent, false if it has been sent or is being sent
+         */
+        public boolean cancel() {
+            return buffer != null && buffer.cancel(batch, operation);
+        }
+    }
+
+    private enum OperationType { ADD, DELETE_BY_ID, DELETE_BY_QUERY }
+
+    private static final class Operation {
+        private final OperationType type;
+        private final Object argument;
+
+        Operation(OperationType type, Object argument) {
+            this.type = type;
+            this.argument = argument;
+        }
+    }
+
+    private static final class Batch {
+        private final List<Operation> operations = new ArrayList<Operation>();
+        private long createdAt;
+        private boolean done;
+        private SolrClientException error;
+    }
+}
@@ -15,24 +15,19 @@
  */
 package org.lilyproject.indexer.engine;
 
-import java.io.InputStream;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.google.common.primitives.Ints;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.tika.metadata.Metadata;
-import org.apache.tika.parser.AutoDetectParser;
-import org.apache.tika.parser.ParseContext;
-import org.apache.tika.parser.Parser;
-import org.apache.tika.sax.BodyContentHandler;
-import org.apache.tika.sax.WriteOutContentHandler;
 import org.lilyproject.indexer.model.indexerconf.DerefValue;
 import org.lilyproject.indexer.model.indexerconf.DerefValue.Follow;
 import org.lilyproject.indexer.model.indexerconf.DerefValue.LinkFieldFollow;
@@ -51,16 +46,14 @@ import org.lilyproject.repository.api.IdRecordScanner;
 import org.lilyproject.repository.api.Link;
 import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RecordId;
-import org.lilyproject.repository.api.RecordNotFoundException;
 import org.lilyproject.repository.api.RecordScan;
 import org.lilyproject.repository.api.Repository;
 import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.SchemaId;
 import org.lilyproject.repository.api.TypeManager;
-import org.lilyproject.repository.api.VersionNotFoundException;
 import org.lilyproject.repository.api.filter.RecordVariantFilter;
-import org.lilyproject.util.io.Closer;
 import org.lilyproject.util.repo.SystemFields;
+import org.lilyproject.util.repo.VTaggedRecord;
 import org.lilyproject.util.repo.VersionTag;
 
 /**
@@ -73,22 +66,28 @@ public class ValueEvaluator {
 
     private SystemFields systemFields;
 
-    private Parser tikaParser = new AutoDetectParser();
+    private ContentExtractor contentExtractor;
 
-    public ValueEvaluator(IndexerConf conf) {
+    private IndexerMetrics metrics;
+
+    public ValueEvaluator(IndexerConf conf, ContentExtractor contentExtractor, IndexerMetrics metrics) {
         this.conf = conf;
         this.systemFields = conf.getSystemFields();
+        this.contentExtractor = contentExtractor;
+        this.metrics = metrics;
     }
 
     /**
      * Evaluates a value for a given record & vtag.
      *
+     * @param derefCache the cache from which the records needed for dereferencing are taken, or to which they
+     *                   are added when they are read
      * @return null if there is no value
      */
-    public List<String> eval(Value valueDef, IdRecord record, Repository repository, SchemaId vtag)
-            throws RepositoryException, InterruptedException {
+    public List<String> eval(Value valueDef, IdRecord record, Repository repository, SchemaId vtag,
+                             DerefCache derefCache) throws RepositoryException, InterruptedException {
 
-        List<IndexValue> indexValues = evalValue(valueDef, record, repository, vtag);
+        List<IndexValue> indexValues = evalValue(valueDef, record, repository, vtag, derefCache);
         if (indexValues == null || indexValues.size() == 0)
             return null;
 
@@ -130,11 +129,12 @@ public class ValueEvaluator {
         return formatter.format(indexValues, repository);
     }
 
-    private List<String> extractContent(List<IndexValue> indexValues, Repository repository) {
+    private List<String> extractContent(List<IndexValue> indexValues, Repository repository)
+            throws InterruptedException {
         // At this point we can be sure the value will be a blob, this is validated during
         // the construction of the indexer conf.
 
-        List<String> result = new ArrayList<String>(indexValues.size());
+        List<ContentExtractor.BlobValue> blobValues = new ArrayList<ContentExtractor.BlobValue>(indexValues.size());
 
         Deque<Integer> indexes = new ArrayDeque<Integer>();
 
@@ -144,75 +144,35 @@ public class ValueEvaluator {
             if (indexValue.listIndex != null)
                 indexes.addLast(indexValue.listIndex);
 
-            extractContent(indexValue.value, indexes, indexValue.record, indexValue.fieldType, result, repository);
+            collectBlobValues(indexValue.value, indexes, indexValue.record, indexValue.fieldType, blobValues);
         }
 
+        List<String> result = contentExtractor.extract(blobValues, repository, metrics);
+
         return result.isEmpty() ? null : result;
     }
 
-    private void extractContent(Object value, Deque<Integer> indexes, Record record, FieldType fieldType,
-                                List<String> result, Repository repository) {
+    private void collectBlobValues(Object value, Deque<Integer> indexes, Record record, FieldType fieldType,
+                                   List<ContentExtractor.BlobValue> blobValues) {
 
         if (value instanceof List) { // this covers both LIST and PATH types
             List values = (List) value;
             for (int i = 0; i < values.size(); i++) {
                 indexes.addLast(i);
-                extractContent(values.get(i), indexes, record, fieldType, result, repository);
+                collectBlobValues(values.get(i), indexes, record, fieldType, blobValues);
                 indexes.removeLast();
             }
         } else {
-            extractContent(value, record, fieldType, Ints.toArray(indexes), result, repository);
+            blobValues.add(new ContentExtractor.BlobValue((Blob) value, record, fieldType, Ints.toArray(indexes)));
         }
     }
 
-    private void extractContent(Object value, Record record, FieldType fieldType, int[] indexes, List<String> result,
-                                Repository repository) {
-
-        Blob blob = (Blob) value;
-        InputStream is = null;
-
-        // TODO make write limit configurable
-        WriteOutContentHandler woh = new WriteOutContentHandler(500 * 1000); // 500K limit (Tika default: 100K)
-        BodyContentHandler ch = new BodyContentHandler(woh);
-
-        try {
-            is = repository.getInputStream(record, fieldType.getName(), indexes);
-
-            Metadata metadata = new Metadata();
-            metadata.add(Metadata.CONTENT_TYPE, blob.getMediaType());
-            if (blob.getName() != null)
-                metadata.add(Metadata.RESOURCE_NAME_KEY, blob.getName());
-
-            ParseContext parseContext = new ParseContext();
-
-            tikaParser.parse(is, ch, metadata, parseContext);
-        } catch (Throwable t) {
-            if (woh.isWriteLimitReached(t)) {
-                // ok, we'll just add use the partial result
-                if (log.isInfoEnabled()) {
-                    log.info("Blob extraction: write limit reached. Field '" + fieldType.getName() + "', record '"
-                            + record.getId() + "'.");
-                }
-            } else {
-                log.error("Error extracting blob content. Field '" + fieldType.getName() + "', record '"
-                        + record.getId() + "'.", t);
-                return;
-            }
-        } finally {
-            Closer.close(is);
-        }
-
-        String text = ch.toString();
-        if (text.length() > 0)
-            result.add(text);
-    }
-
-    private List<IndexValue> evalValue(Value value, IdRecord record, Repository repository, SchemaId vtag)
-            throws RepositoryException, InterruptedException {
+    private List<IndexValue> evalValue(Value value, IdRecord record, Repository repository, SchemaId vtag,
+                                       DerefCache cache) throws RepositoryException, InterruptedException {
         if (value instanceof FieldValue) {
             return evalFieldValue((FieldValue) value, record, repository);
         } else if (value instanceof DerefValue) {
-            return evalDerefValue((DerefValue) value, record, repository, vtag);
+            return evalDerefValue((DerefValue) value, record, repository, vtag, cache);
         } else {
             throw new RuntimeException("Unexpected type of value: " + value.getClass().getName());
         }
@@ -266,18 +226,21 @@ public class ValueEvaluator {
         return result;
     }
 
-    private List<IndexValue> evalDerefValue(DerefValue deref, IdRecord record, Repository repository, SchemaId vtag)
-            throws RepositoryException, InterruptedException {
+    private List<IndexValue> evalDerefValue(DerefValue deref, IdRecord record, Repository repository, SchemaId vtag,
+                                            DerefCache cache) throws RepositoryException, InterruptedException {
         FieldType fieldType = deref.getTargetFieldType();
 
         List<FollowRecord> records = new ArrayList<FollowRecord>();
         records.add(new FollowRecord(record, record));
 
         for (Follow follow : deref.getFollows()) {
+            // Read all the records to which the follow points, from all records at the current depth, at once
+            prefetch(follow, records, repository, cache);
+
             List<FollowRecord> linkedRecords = new ArrayList<FollowRecord>();
 
             for (FollowRecord item : records) {
-                List<FollowRecord> evalResult = evalFollow(deref, follow, item, repository, vtag);
+                List<FollowRecord> evalResult = evalFollow(deref, follow, item, repository, vtag, cache);
                 if (evalResult != null) {
                     linkedRecords.addAll(evalResult);
                 }
@@ -305,28 +268,61 @@ public class ValueEvaluator {
      * are no results (link doesn't exist, points to non-existing doc, etc.).
      */
     private List<FollowRecord> evalFollow(DerefValue deref, Follow follow, FollowRecord record, Repository repository,
-                                          SchemaId vtag) throws RepositoryException, InterruptedException {
+                                          SchemaId vtag, DerefCache cache)
+            throws RepositoryException, InterruptedException {
         if (follow instanceof LinkFieldFollow) {
-            List<IdRecord> records = evalLinkFieldFollow(deref, (LinkFieldFollow) follow, record, repository, vtag);
+            List<IdRecord> records = evalLinkFieldFollow(deref, (LinkFieldFollow) follow, record, repository, vtag,
+                    cache);
             return addContext(records);
         } else if (follow instanceof RecordFieldFollow) {
             List<IdRecord> records = evalRecordFieldFollow(deref, (RecordFieldFollow) follow, record, repository, vtag);
             return addContext(records, record.record);
         } else if (follow instanceof VariantFollow) {
-            List<IdRecord> records = evalVariantFollow((VariantFollow) follow, record, repository, vtag);
+            List<IdRecord> records = evalVariantFollow((VariantFollow) follow, record, repository, vtag, cache);
             return addContext(records);
         } else if (follow instanceof DerefValue.ForwardVariantFollow) {
             List<IdRecord> records = evalForwardVariantFollow((DerefValue.ForwardVariantFollow) follow, record,
                     repository, vtag);
             return addContext(records);
         } else if (follow instanceof MasterFollow) {
-            List<IdRecord> records = evalMasterFollow((MasterFollow) follow, record, repository, vtag);
+            List<IdRecord> records = evalMasterFollow((MasterFollow) follow, record, repository, vtag, cache);
             return addContext(records);
         } else {
             throw new RuntimeException("Unexpected type of follow: " + follow.getClass().getName());
         }
     }
 
+    /**
+     * Reads the records to which a follow points from each of the given records using one multi-get, so that
+     * they are available from the cache when evaluating the follow.
+     */
+    private void prefetch(Follow follow, List<FollowRecord> records, Repository repository, DerefCache cache)
+            throws RepositoryException, InterruptedException {
+        Set<RecordId> recordIds = new LinkedHashSet<RecordId>();
+        for (FollowRecord item : records) {
+            if (follow instanceof LinkFieldFollow) {
+                List<RecordId> linkedRecordIds = getLinkedRecordIds((LinkFieldFollow) follow, item, repository);
+                if (linkedRecordIds != null) {
+                    recordIds.addAll(linkedRecordIds);
+                }
+            } else if (follow instanceof VariantFollow) {
+                RecordId variantId = getVariantRecordId((VariantFollow) follow, item, repository);
+                if (variantId != null) {
+                    recordIds.add(variantId);
+                }
+            } else if (follow instanceof MasterFollow) {
+                if (!item.record.getId().isMaster()) {
+                    recordIds.add(item.record.getId().getMaster());
+                }
+            }
+        }
+
+        // A single record is read when evaluating the follow anyway
+        if (recordIds.size() > 1) {
+            cache.prefetch(recordIds, repository);
+        }
+    }
+
     private List<FollowRecord> addContext(List<IdRecord> records, IdRecord contextRecord) {
         if (records == null)
             return null;
@@ -354,9 +350,28 @@ public class ValueEvaluator {
     }
 
     private List<IdRecord> evalLinkFieldFollow(DerefValue deref, LinkFieldFollow follow, FollowRecord frecord,
-                                               Repository repository, SchemaId vtag)
+                                               Repository repository, SchemaId vtag, DerefCache cache)
             throws RepositoryException, InterruptedException {
 
+        List<RecordId> recordIds = getLinkedRecordIds(follow, frecord, repository);
+        if (recordIds == null) {
+            return null;
+        }
+
+        List<IdRecord> result = new ArrayList<IdRecord>(recordIds.size());
+        for (RecordId recordId : recordIds) {
+            IdRecord linkedRecord = resolveRecordId(recordId, vtag, repository, cache);
+            if (linkedRecord != null) {
+                result.add(linkedRecord);
+            }
+        }
+        return result.isEmpty() ? null : result;
+    }
+
+    /**
+     * Returns the IDs of the records to which the link field points, or null if the field is not present.
+     */
+    private List<RecordId> getLinkedRecordIds(LinkFieldFollow follow, FollowRecord frecord, Repository repository) {
         IdRecord record = frecord.record;
         FieldType fieldType = follow.getFieldType();
 
@@ -367,19 +382,14 @@ public class ValueEvaluator {
         Object value = record.getField(fieldType.getId());
         if (value instanceof Link) {
             RecordId recordId = ((Link) value).resolve(frecord.contextRecord, repository.getIdGenerator());
-            IdRecord linkedRecord = resolveRecordId(recordId, vtag, repository);
-            return linkedRecord == null ? null : Collections.singletonList(linkedRecord);
+            return Collections.singletonList(recordId);
         } else if (value instanceof List && ((List) value).size() > 0 && ((List) value).get(0) instanceof Link) {
             List list = (List) value;
-            List<IdRecord> result = new ArrayList<IdRecord>(list.size());
+            List<RecordId> result = new ArrayList<RecordId>(list.size());
             for (Object link : list) {
-                RecordId recordId = ((Link) link).resolve(frecord.contextRecord, repository.getIdGenerator());
-                IdRecord linkedRecord = resolveRecordId(recordId, vtag, repository);
-                if (linkedRecord != null) {
-                    result.add(linkedRecord);
-                }
+                result.add(((Link) link).resolve(frecord.contextRecord, repository.getIdGenerator()));
             }
-            return list.isEmpty() ? null : result;
+            return result;
         } else {
             throw new RuntimeException("A link dereference is used but type is not LINK or LIST<LINK>, value: " +
                     value);
@@ -409,24 +419,50 @@ public class ValueEvaluator {
         }
     }
 
-    private IdRecord resolveRecordId(RecordId recordId, SchemaId vtag, Repository repository)
+    /**
+     * Returns the version of the record corresponding to the vtag, or null if the record, the vtag or the version
+     * does not exist (it's ok for a link to point to a non-existing record).
+     */
+    private IdRecord resolveRecordId(RecordId recordId, SchemaId vtag, Repository repository, DerefCache cache)
             throws RepositoryException, InterruptedException {
-        try {
-            // TODO we could limit this to only load the field necessary for the next follow in case this is not
-            //      the last follow
-            return VersionTag.getIdRecord(recordId, vtag, repository);
-        } catch (RecordNotFoundException e) {
-            // It's ok for a link to point to a non-existing record
+        // TODO we could limit this to only load the field necessary for the next follow in case this is not
+        //      the last follow
+        IdRecord record = cache.getRecord(recordId, repository);
+        if (record == null) {
             return null;
-        } catch (VersionNotFoundException e) {
-            // It's ok for a link to point to a non-existing record
+        }
+
+        VTaggedRecord vtRecord = new VTaggedRecord(record, null, null, repository);
+        Long version = vtRecord.getVTags().get(vtag);
+        if (version == null) {
             return null;
+        } else if (version == 0L || version.equals(record.getVersion())) {
+            // Available from the last version, no need to read it
+            return vtRecord.getIdRecord(version);
+        } else {
+            return cache.getRecord(recordId, version, repository);
         }
     }
 
     private List<IdRecord> evalVariantFollow(VariantFollow follow, FollowRecord frecord, Repository repository,
-                                             SchemaId vtag) throws RepositoryException, InterruptedException {
+                                             SchemaId vtag, DerefCache cache)
+            throws RepositoryException, InterruptedException {
+
+        RecordId variantId = getVariantRecordId(follow, frecord, repository);
+        if (variantId == null) {
+            return null;
+        }
+
+        // It's ok that the variant does not exist
+        IdRecord lessDimensionedRecord = resolveRecordId(variantId, vtag, repository, cache);
+        return lessDimensionedRecord == null ? null : Collections.singletonList(lessDimensionedRecord);
+    }
 
+    /**
+     * Returns the ID of the variant to which the variant follow points, or null if the record does not have
+     * the dimensions to drop.
+     */
+    private RecordId getVariantRecordId(VariantFollow follow, FollowRecord frecord, Repository repository) {
         RecordId recordId = frecord.record.getId();
 
         Map<String, String> varProps = new HashMap<String, String>(recordId.getVariantProperties());
@@ -438,18 +474,7 @@ public class ValueEvaluator {
             varProps.remove(dimension);
         }
 
-        RecordId resolvedRecordId = repository.getIdGenerator().newRecordId(recordId.getMaster(), varProps);
-
-        try {
-            IdRecord lessDimensionedRecord = VersionTag.getIdRecord(resolvedRecordId, vtag, repository);
-            return lessDimensionedRecord == null ? null : Collections.singletonList(lessDimensionedRecord);
-        } catch (RecordNotFoundException e) {
-            // It's ok that the variant does not exist
-            return null;
-        } catch (VersionNotFoundException e) {
-            // It's ok that the variant does not exist
-            return null;
-        }
+        return repository.getIdGenerator().newRecordId(recordId.getMaster(), varProps);
     }
 
     private List<IdRecord> evalForwardVariantFollow(DerefValue.ForwardVariantFollow follow, FollowRecord frecord,
@@ -488,7 +513,7 @@ public class ValueEvaluator {
     }
 
     private List<IdRecord> evalMasterFollow(MasterFollow follow, FollowRecord frecord, Repository repository,
-                                            SchemaId vtag)
+                                            SchemaId vtag, DerefCache cache)
             throws RepositoryException, InterruptedException {
 
         if (frecord.record.getId().isMaster())
@@ -496,16 +521,9 @@ public class ValueEvaluator {
 
         RecordId masterId = frecord.record.getId().getMaster();
 
-        try {
-            IdRecord master = VersionTag.getIdRecord(masterId, vtag, repository);
-            return master == null ? null : Collections.singletonList(master);
-        } catch (RecordNotFoundException e) {
-            // It's ok that the master does not exist
-            return null;
-        } catch (VersionNotFoundException e) {
-            // It's ok that the master does not exist
-            return null;
-        }
+        // It's ok that the master does not exist
+        IdRecord master = resolveRecordId(masterId, vtag, repository, cache);
+        return master == null ? null : Collections.singletonList(master);
     }
 
     /**
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine.test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lilyproject.indexer.engine.ContentExtractor;
+import org.lilyproject.indexer.engine.ContentExtractor.BlobValue;
+import org.lilyproject.indexer.engine.IndexerMetrics;
+import org.lilyproject.repository.api.Blob;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.Repository;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ContentExtractorTest {
+    private static IndexerMetrics metrics;
+    private static Record record;
+    private static FieldType fieldType;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        metrics = new IndexerMetrics("contentextractortest");
+        record = proxy(Record.class, "getId", new IdGeneratorImpl().newRecordId());
+        fieldType = proxy(FieldType.class, "getName", new QName("ns", "blobfield"));
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        metrics.shutdown();
+    }
+
+    @Test
+    public void testCacheHit() throws Exception {
+        TestRepository repository = new TestRepository("blob1 text");
+        ContentExtractor extractor = new ContentExtractor();
+        try {
+            List<BlobValue> blobValues = Collections.singletonList(blobValue("blob1"));
+
+            long hits = metrics.contentCacheHits.getCurrentIntervalValue();
+            List<String> texts = extractor.extract(blobValues, repository.proxy, metrics);
+            assertEquals(1, texts.size());
+            assertTrue(texts.get(0).contains("blob1 text"));
+            assertEquals(hits, metrics.contentCacheHits.getCurrentIntervalValue());
+
+            // The second time, the text comes from the cache
+            assertEquals(texts, extractor.extract(blobValues, repository.proxy, metrics));
+            assertEquals(hits + 1, metrics.contentCacheHits.getCurrentIntervalValue());
+            assertEquals(1, repository.reads.get());
+        } finally {
+            extractor.stop();
+        }
+    }
+
+    @Test
+    public void testConcurrentExtractionsOfSameBlob() throws Exception {
+        final TestRepository repository = new TestRepository("blob2 text");
+        repository.block = new CountDownLatch(1);
+        final ContentExtractor extractor = new ContentExtractor();
+        try {
+            final List<BlobValue> blobValues = Collections.singletonList(blobValue("blob2"));
+            final List<List<String>> results = Collections.synchronizedList(new ArrayList<List<String>>());
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < 3; i++) {
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            results.add(extractor.extract(blobValues, repository.proxy, metrics));
+                        } catch (InterruptedException e) {
+                            // results will be incomplete
+                        }
+                    }
+                };
+                threads.add(thread);
+                thread.start();
+            }
+
+            // Give all threads the time to ask for the extraction before letting it finish
+            assertTrue(repository.started.await(10, TimeUnit.SECONDS));
+            Thread.sleep(500);
+            repository.block.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertEquals(3, results.size());
+            for (List<String> texts : results) {
+                assertEquals(1, texts.size());
+                assertTrue(texts.get(0).contains("blob2 text"));
+            }
+            // The blob has been extracted only once
+            assertEquals(1, repository.reads.get());
+        } finally {
+            extractor.stop();
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        TestRepository repository = new TestRepository("blob3 text");
+        repository.block = new CountDownLatch(1);
+        ContentExtractor extractor = new ContentExtractor(1, 200, ContentExtractor.DEFAULT_WRITE_LIMIT,
+                ContentExtractor.DEFAULT_CACHE_SIZE, null);
+        try {
+            List<BlobValue> blobValues = Collections.singletonList(blobValue("blob3"));
+
+            long timeouts = metrics.contentExtractionTimeouts.getCurrentIntervalValue();
+            long before = System.currentTimeMillis();
+            assertEquals(0, extractor.extract(blobValues, repository.proxy, metrics).size());
+            assertTrue(System.currentTimeMillis() - before < 5000);
+            assertEquals(timeouts + 1, metrics.contentExtractionTimeouts.getCurrentIntervalValue());
+
+            // The extraction is not cancelled by the timeout, its result ends up in the cache
+            repository.block.countDown();
+            long hits = metrics.contentCacheHits.getCurrentIntervalValue();
+            long waitUntil = System.currentTimeMillis() + 10000;
+            while (metrics.contentCacheHits.getCurrentIntervalValue() == hits) {
+                assertTrue("Extraction did not finish in time", System.currentTimeMillis() < waitUntil);
+                Thread.sleep(50);
+                extractor.extract(blobValues, repository.proxy, metrics);
+            }
+            assertEquals(1, repository.reads.get());
+        } finally {
+            extractor.stop();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testExtractAfterStop() throws Exception {
+        TestRepository repository = new TestRepository("blob4 text");
+        ContentExtractor extractor = new ContentExtractor(1, 200, ContentExtractor.DEFAULT_WRITE_LIMIT,
+                ContentExtractor.DEFAULT_CACHE_SIZE, null);
+        extractor.stop();
+
+        // More than the number of queued extractions: should a rejected extraction keep its permit, this blocks
+        for (int i = 0; i < 10; i++) {
+            try {
+                extractor.extract(Collections.singletonList(blobValue("blob4")), repository.proxy, metrics);
+                fail("Expected RejectedExecutionException");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+        }
+        assertEquals(0, repository.reads.get());
+    }
+
+    private BlobValue blobValue(String name) {
+        Blob blob = new Blob(Bytes.toBytes(name), "text/plain", (long)name.length(), name + ".txt");
+        return new BlobValue(blob, record, fieldType, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> clazz, final String methodName, final Object result) {
+        return (T)Proxy.newProxyInstance(ContentExtractorTest.class.getClassLoader(), new Class[] {clazz},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals(methodName)) {
+                            return result;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Returns the same text as content of all blobs, optionally waiting until it is unblocked.
+     */
+    private static class TestRepository implements InvocationHandler {
+        private final Repository proxy = (Repository)Proxy.newProxyInstance(
+                ContentExtractorTest.class.getClassLoader(), new Class[] {Repository.class}, this);
+        private final String text;
+        private final AtomicInteger reads = new AtomicInteger();
+        private final CountDownLatch started = new CountDownLatch(1);
+        private volatile CountDownLatch block;
+
+        TestRepository(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!method.getName().equals("getInputStream")) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+
+            reads.incrementAndGet();
+            started.countDown();
+            if (block != null) {
+                block.await();
+            }
+            return new ByteArrayInputStream(Bytes.toBytes(text));
+        }
+    }
+}
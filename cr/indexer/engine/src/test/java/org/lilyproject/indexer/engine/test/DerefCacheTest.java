@@ -0,0 +1,211 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lilyproject.indexer.engine.DerefCache;
+import org.lilyproject.indexer.engine.IndexerMetrics;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.IdRecord;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RecordNotFoundException;
+import org.lilyproject.repository.api.Repository;
+import org.lilyproject.repository.api.VersionNotFoundException;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DerefCacheTest {
+    private static IndexerMetrics metrics;
+    private static IdGenerator idGenerator;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        metrics = new IndexerMetrics("derefcachetest");
+        idGenerator = new IdGeneratorImpl();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        metrics.shutdown();
+    }
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        RecordId recordId = idGenerator.newRecordId();
+        TestRepository repository = new TestRepository(recordId);
+        DerefCache cache = new DerefCache(10, metrics);
+
+        long hits = metrics.derefCacheHits.getCurrentIntervalValue();
+        long misses = metrics.derefCacheMisses.getCurrentIntervalValue();
+
+        assertEquals(recordId, cache.getRecord(recordId, repository.proxy).getId());
+        assertEquals(recordId, cache.getRecord(recordId, repository.proxy).getId());
+        assertEquals(1, repository.reads.size());
+        assertEquals(hits + 1, metrics.derefCacheHits.getCurrentIntervalValue());
+        assertEquals(misses + 1, metrics.derefCacheMisses.getCurrentIntervalValue());
+
+        // Versions are cached separately from the last version
+        cache.getRecord(recordId, 1L, repository.proxy);
+        cache.getRecord(recordId, 1L, repository.proxy);
+        cache.getRecord(recordId, 2L, repository.proxy);
+        assertEquals(3, repository.reads.size());
+        assertEquals(hits + 2, metrics.derefCacheHits.getCurrentIntervalValue());
+        assertEquals(misses + 3, metrics.derefCacheMisses.getCurrentIntervalValue());
+    }
+
+    @Test
+    public void testNonExistingRecordsAreCached() throws Exception {
+        RecordId existing = idGenerator.newRecordId();
+        RecordId missing = idGenerator.newRecordId();
+        TestRepository repository = new TestRepository(existing);
+        repository.maxVersion = 1;
+        DerefCache cache = new DerefCache(10, metrics);
+
+        long hits = metrics.derefCacheHits.getCurrentIntervalValue();
+
+        assertNull(cache.getRecord(missing, repository.proxy));
+        assertNull(cache.getRecord(missing, repository.proxy));
+        assertNull(cache.getRecord(existing, 2L, repository.proxy));
+        assertNull(cache.getRecord(existing, 2L, repository.proxy));
+
+        // The repository was asked only once about each of them
+        assertEquals(2, repository.reads.size());
+        assertEquals(hits + 2, metrics.derefCacheHits.getCurrentIntervalValue());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        RecordId recordId1 = idGenerator.newRecordId();
+        RecordId recordId2 = idGenerator.newRecordId();
+        RecordId recordId3 = idGenerator.newRecordId();
+        TestRepository repository = new TestRepository(recordId1, recordId2, recordId3);
+        DerefCache cache = new DerefCache(2, metrics);
+
+        cache.getRecord(recordId1, repository.proxy);
+        cache.getRecord(recordId2, repository.proxy);
+        // Makes record 2 the least recently used one
+        cache.getRecord(recordId1, repository.proxy);
+        cache.getRecord(recordId3, repository.proxy);
+        assertEquals(3, repository.reads.size());
+
+        // Record 1 is still cached, record 2 has been evicted
+        cache.getRecord(recordId1, repository.proxy);
+        assertEquals(3, repository.reads.size());
+        cache.getRecord(recordId2, repository.proxy);
+        assertEquals(4, repository.reads.size());
+        assertEquals(recordId2, repository.reads.get(3));
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        RecordId recordId1 = idGenerator.newRecordId();
+        RecordId recordId2 = idGenerator.newRecordId();
+        RecordId missing = idGenerator.newRecordId();
+        TestRepository repository = new TestRepository(recordId1, recordId2);
+        DerefCache cache = new DerefCache(10, metrics);
+
+        cache.getRecord(recordId1, repository.proxy);
+        long misses = metrics.derefCacheMisses.getCurrentIntervalValue();
+
+        // Only the records which are not cached yet are read, with one multi-get
+        cache.prefetch(Arrays.asList(recordId1, recordId2, missing), repository.proxy);
+        assertEquals(1, repository.multiReads.size());
+        assertEquals(Arrays.asList(recordId2, missing), repository.multiReads.get(0));
+        assertEquals(misses + 2, metrics.derefCacheMisses.getCurrentIntervalValue());
+
+        // The prefetched records, including the one which does not exist, are now cached
+        int reads = repository.reads.size();
+        assertEquals(recordId2, cache.getRecord(recordId2, repository.proxy).getId());
+        assertNull(cache.getRecord(missing, repository.proxy));
+        assertEquals(reads, repository.reads.size());
+
+        cache.prefetch(Arrays.asList(recordId1, recordId2, missing), repository.proxy);
+        assertEquals(1, repository.multiReads.size());
+    }
+
+    private static IdRecord idRecord(final RecordId recordId) {
+        return (IdRecord)Proxy.newProxyInstance(DerefCacheTest.class.getClassLoader(), new Class[] {IdRecord.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getId")) {
+                            return recordId;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Returns records having only an ID for the given existing records, and keeps track of the reads.
+     */
+    private static class TestRepository implements InvocationHandler {
+        private final Repository proxy = (Repository)Proxy.newProxyInstance(
+                DerefCacheTest.class.getClassLoader(), new Class[] {Repository.class}, this);
+        private final Set<RecordId> existing;
+        private final List<RecordId> reads = new ArrayList<RecordId>();
+        private final List<List<RecordId>> multiReads = new ArrayList<List<RecordId>>();
+        private long maxVersion = Long.MAX_VALUE;
+
+        TestRepository(RecordId... existing) {
+            this.existing = new HashSet<RecordId>(Arrays.asList(existing));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!method.getName().equals("readWithIds")) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+
+            if (args[0] instanceof List) {
+                List<RecordId> recordIds = (List<RecordId>)args[0];
+                multiReads.add(new ArrayList<RecordId>(recordIds));
+                List<IdRecord> result = new ArrayList<IdRecord>();
+                for (RecordId recordId : recordIds) {
+                    if (existing.contains(recordId)) {
+                        result.add(idRecord(recordId));
+                    }
+                }
+                return result;
+            }
+
+            RecordId recordId = (RecordId)args[0];
+            Long version = (Long)args[1];
+            reads.add(recordId);
+            if (!existing.contains(recordId)) {
+                throw new RecordNotFoundException(recordId);
+            }
+            if (version != null && version > maxVersion) {
+                throw new VersionNotFoundException(recordId, version);
+            }
+            return idRecord(recordId);
+        }
+    }
+}
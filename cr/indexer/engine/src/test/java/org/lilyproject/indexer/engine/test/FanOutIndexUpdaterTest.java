@@ -0,0 +1,292 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lilyproject.hadooptestfw.TestHelper;
+import org.lilyproject.indexer.engine.DerefCache;
+import org.lilyproject.indexer.engine.FanOutIndexUpdater;
+import org.lilyproject.indexer.engine.IndexLocker;
+import org.lilyproject.indexer.engine.IndexUpdater;
+import org.lilyproject.indexer.engine.IndexUpdaterMetrics;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.IdRecord;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RecordType;
+import org.lilyproject.repository.api.Repository;
+import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repotestfw.RepositorySetup;
+import org.lilyproject.rowlog.api.RowLogMessage;
+import org.lilyproject.rowlog.impl.RowLogMessageImpl;
+import org.lilyproject.util.repo.RecordEvent;
+import org.lilyproject.util.repo.VTaggedRecord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FanOutIndexUpdaterTest {
+    private final static RepositorySetup repoSetup = new RepositorySetup();
+    private static final String NS = "org.lilyproject.indexer.engine.test.fanout";
+
+    private static Repository repository;
+    private static IndexLocker indexLocker;
+    private static RecordType recordType;
+    private static FieldType field;
+    private static IndexUpdaterMetrics metrics1;
+    private static IndexUpdaterMetrics metrics2;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestHelper.setupLogging("org.lilyproject.indexer");
+
+        repoSetup.setupCore();
+        repoSetup.setupRepository(false);
+
+        repository = repoSetup.getRepository();
+        indexLocker = new IndexLocker(repoSetup.getZk(), true);
+        metrics1 = new IndexUpdaterMetrics("fanout1");
+        metrics2 = new IndexUpdaterMetrics("fanout2");
+
+        TypeManager typeManager = repoSetup.getTypeManager();
+        field = typeManager.createFieldType(typeManager.getValueType("STRING"), new QName(NS, "field"),
+                Scope.NON_VERSIONED);
+        recordType = typeManager.recordTypeBuilder()
+                .name(new QName(NS, "RecordType"))
+                .field(field.getId(), false)
+                .create();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        metrics1.shutdown();
+        metrics2.shutdown();
+        repoSetup.stop();
+    }
+
+    @Test
+    public void testCreateUpdateDispatchedToAllIndexes() throws Exception {
+        RecordingIndexUpdater updater1 = new RecordingIndexUpdater("index1", metrics1);
+        RecordingIndexUpdater updater2 = new RecordingIndexUpdater("index2", metrics2);
+        FanOutIndexUpdater fanOut = createFanOut(updater1, updater2);
+
+        try {
+            RecordId recordId = createRecord();
+            assertTrue(fanOut.processMessage(message(recordId, RecordEvent.Type.CREATE, null)));
+
+            for (RecordingIndexUpdater updater : Arrays.asList(updater1, updater2)) {
+                assertEquals(Arrays.asList("locked:CREATE", "denormalized:CREATE"), updater.calls);
+                // The record was read under the lock, which the updater found held in its thread
+                assertTrue(updater.lockHeld);
+                assertEquals(recordId, updater.record.getId());
+            }
+
+            // The lock has been released
+            assertFalse(indexLocker.hasLock(recordId));
+        } finally {
+            fanOut.stop();
+        }
+    }
+
+    @Test
+    public void testFailureOfOneIndex() throws Exception {
+        // This updater has no indexer, so updating its index fails
+        IndexUpdater failingUpdater = new IndexUpdater(null, repository, null, indexLocker, null, metrics1) {
+            @Override
+            public String getIndexName() {
+                return "failing";
+            }
+        };
+        RecordingIndexUpdater updater = new RecordingIndexUpdater("index2", metrics2);
+        FanOutIndexUpdater fanOut = createFanOut(failingUpdater, updater);
+
+        try {
+            long errors1 = metrics1.errors.getCurrentIntervalValue();
+            long errors2 = metrics2.errors.getCurrentIntervalValue();
+
+            RecordId recordId = createRecord();
+            assertTrue(fanOut.processMessage(message(recordId, RecordEvent.Type.UPDATE, null)));
+
+            // The failure is accounted for in the metrics of the failing index only
+            assertEquals(errors1 + 1, metrics1.errors.getCurrentIntervalValue());
+            assertEquals(errors2, metrics2.errors.getCurrentIntervalValue());
+
+            assertEquals(Arrays.asList("locked:UPDATE", "denormalized:UPDATE"), updater.calls);
+            assertFalse(indexLocker.hasLock(recordId));
+        } finally {
+            fanOut.stop();
+        }
+    }
+
+    @Test
+    public void testMissingRecord() throws Exception {
+        RecordingIndexUpdater updater1 = new RecordingIndexUpdater("index1", metrics1);
+        RecordingIndexUpdater updater2 = new RecordingIndexUpdater("index2", metrics2);
+        FanOutIndexUpdater fanOut = createFanOut(updater1, updater2);
+
+        try {
+            // The record has been deleted in the meantime: nothing to do until the delete event
+            RecordId recordId = repository.getIdGenerator().newRecordId();
+            assertTrue(fanOut.processMessage(message(recordId, RecordEvent.Type.UPDATE, null)));
+
+            assertEquals(Collections.emptyList(), updater1.calls);
+            assertEquals(Collections.emptyList(), updater2.calls);
+            assertFalse(indexLocker.hasLock(recordId));
+        } finally {
+            fanOut.stop();
+        }
+    }
+
+    @Test
+    public void testDeleteAndReindexEvents() throws Exception {
+        RecordingIndexUpdater updater1 = new RecordingIndexUpdater("index1", metrics1);
+        RecordingIndexUpdater updater2 = new RecordingIndexUpdater("index2", metrics2);
+        FanOutIndexUpdater fanOut = createFanOut(updater1, updater2);
+
+        try {
+            RecordId recordId = repository.getIdGenerator().newRecordId();
+            assertTrue(fanOut.processMessage(message(recordId, RecordEvent.Type.DELETE, null)));
+            assertEquals(Arrays.asList("event:DELETE"), updater1.calls);
+            assertEquals(Arrays.asList("event:DELETE"), updater2.calls);
+
+            // A reindex event only goes to the index it is meant for
+            assertTrue(fanOut.processMessage(message(recordId, RecordEvent.Type.INDEX, "index2")));
+            assertEquals(Arrays.asList("event:DELETE"), updater1.calls);
+            assertEquals(Arrays.asList("event:DELETE", "event:INDEX"), updater2.calls);
+        } finally {
+            fanOut.stop();
+        }
+    }
+
+    @Test
+    public void testMessagesLeftOnQueueUntilAllIndexesRegistered() throws Exception {
+        RecordingIndexUpdater updater1 = new RecordingIndexUpdater("index1", metrics1);
+        RecordingIndexUpdater updater2 = new RecordingIndexUpdater("index2", metrics2);
+        Set<String> expectedIndexes = new HashSet<String>(Arrays.asList("index1", "index2"));
+        FanOutIndexUpdater fanOut = new FanOutIndexUpdater(repository, indexLocker, expectedIndexes, 2);
+
+        try {
+            fanOut.addIndexUpdater(updater1);
+
+            RecordId recordId = createRecord();
+            RowLogMessage message = message(recordId, RecordEvent.Type.CREATE, null);
+
+            // The updater of index2 is not running yet, it would miss the message
+            assertFalse(fanOut.processMessage(message));
+            assertFalse(fanOut.processMessages(Arrays.asList(message)));
+            assertEquals(Collections.emptyList(), updater1.calls);
+
+            fanOut.addIndexUpdater(updater2);
+            assertTrue(fanOut.processMessage(message));
+            assertEquals(Arrays.asList("locked:CREATE", "denormalized:CREATE"), updater1.calls);
+            assertEquals(Arrays.asList("locked:CREATE", "denormalized:CREATE"), updater2.calls);
+        } finally {
+            fanOut.stop();
+        }
+    }
+
+    private FanOutIndexUpdater createFanOut(IndexUpdater... indexUpdaters) {
+        Set<String> expectedIndexes = new HashSet<String>();
+        for (IndexUpdater indexUpdater : indexUpdaters) {
+            expectedIndexes.add(indexUpdater.getIndexName());
+        }
+        FanOutIndexUpdater fanOut = new FanOutIndexUpdater(repository, indexLocker, expectedIndexes, 2);
+        for (IndexUpdater indexUpdater : indexUpdaters) {
+            fanOut.addIndexUpdater(indexUpdater);
+        }
+        return fanOut;
+    }
+
+    private RecordId createRecord() throws Exception {
+        return repository.recordBuilder()
+                .recordType(recordType.getName())
+                .field(field.getName(), "value")
+                .create()
+                .getId();
+    }
+
+    private RowLogMessage message(RecordId recordId, RecordEvent.Type type, String indexName) {
+        RecordEvent event = new RecordEvent();
+        event.setType(type);
+        if (indexName != null) {
+            event.setIndexName(indexName);
+        }
+        return new RowLogMessageImpl(System.currentTimeMillis(), recordId.toBytes(), 1L, null, event.toJsonBytes(),
+                null);
+    }
+
+    /**
+     * Records the calls made by the FanOutIndexUpdater, instead of updating an index.
+     */
+    private static class RecordingIndexUpdater extends IndexUpdater {
+        private final String indexName;
+        private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        private volatile boolean lockHeld;
+        private volatile IdRecord record;
+
+        public RecordingIndexUpdater(String indexName, IndexUpdaterMetrics metrics) throws Exception {
+            super(null, repository, null, indexLocker, null, metrics);
+            this.indexName = indexName;
+        }
+
+        @Override
+        public String getIndexName() {
+            return indexName;
+        }
+
+        @Override
+        public DerefCache createDerefCache() {
+            // This updater has no indexer
+            return null;
+        }
+
+        @Override
+        public void processEvent(RecordId recordId, RecordEvent event, DerefCache derefCache) {
+            calls.add("event:" + event.getType());
+        }
+
+        @Override
+        public VTaggedRecord processLockedCreateUpdate(RecordId recordId, RecordEvent event, IdRecord record,
+                DerefCache derefCache) throws InterruptedException {
+            try {
+                lockHeld = indexLocker.hasLock(recordId);
+                this.record = record;
+                calls.add("locked:" + event.getType());
+                return new VTaggedRecord(record, event, null, repository);
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void processDenormalizedData(RecordId recordId, RecordEvent event, VTaggedRecord vtRecord) {
+            calls.add("denormalized:" + event.getType());
+        }
+    }
+}
@@ -34,6 +34,7 @@ import org.lilyproject.util.zookeeper.ZooKeeperItf;
 import java.io.File;
 import java.util.*;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -128,7 +129,57 @@ public class IndexLockerTest {
 
     @Test
     public void testLockConcurrencyOnSameRecord() throws Exception {
-        IndexLocker indexLocker = new IndexLocker(ZK, true);
+        testLockConcurrencyOnSameRecord(new IndexLocker(ZK, true));
+    }
+
+    @Test
+    public void testLeaseModeLockConcurrencyOnSameRecord() throws Exception {
+        IndexLocker indexLocker = new IndexLocker(ZK, true, IndexLocker.Mode.LEASE);
+        try {
+            testLockConcurrencyOnSameRecord(indexLocker);
+        } finally {
+            indexLocker.close();
+        }
+    }
+
+    @Test
+    public void testLeaseModeHandOver() throws Exception {
+        final IndexLocker indexLocker1 = new IndexLocker(ZK, true, IndexLocker.Mode.LEASE);
+        final IndexLocker indexLocker2 = new IndexLocker(ZK, true, IndexLocker.Mode.LEASE);
+        try {
+            final RecordId recordId = new IdGeneratorImpl().newRecordId();
+
+            indexLocker1.lock(recordId);
+            assertTrue(indexLocker1.hasLock(recordId));
+            indexLocker1.unlock(recordId);
+            assertFalse(indexLocker1.hasLock(recordId));
+
+            // The first locker still owns the lease on the partition of the record, the second locker
+            // obtains it once the lease expired
+            final Variable<Throwable> throwable = new Variable<Throwable>();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        indexLocker2.lock(recordId);
+                        assertTrue(indexLocker2.hasLock(recordId));
+                        indexLocker2.unlock(recordId);
+                    } catch (Throwable t) {
+                        throwable.value = t;
+                    }
+                }
+            });
+            thread.start();
+            thread.join();
+
+            assertNull(throwable.value);
+        } finally {
+            indexLocker1.close();
+            indexLocker2.close();
+        }
+    }
+
+    private void testLockConcurrencyOnSameRecord(IndexLocker indexLocker) throws Exception {
         RecordId recordId = new IdGeneratorImpl().newRecordId();
 
         List<Info> infos = new ArrayList<Info>();
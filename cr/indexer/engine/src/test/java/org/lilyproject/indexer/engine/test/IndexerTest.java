@@ -1801,6 +1801,23 @@ public class IndexerTest {
         assertEquals("All received messages are correct.", 0, messageVerifier.getFailures());
     }
 
+    @Test
+    public void testRecordFieldDependencies() throws Exception {
+        IndexerConf conf = IndexerConfBuilder.build(IndexerTest.class.getResourceAsStream("indexerconf1.xml"),
+                repository);
+        Set<SchemaId> fields = conf.getRecordFieldDependencies();
+
+        // A field which is indexed as such
+        assertTrue(fields.contains(nvfield1.getId()));
+        // The link fields are not indexed as such, only dereferenced
+        assertTrue(fields.contains(nvLinkField1.getId()));
+        assertTrue(fields.contains(nvLinkField2.getId()));
+        assertTrue(conf.isIndexFieldDependency(nvLinkField1));
+        // The vtags
+        assertTrue(fields.contains(nvTag.getId()));
+        assertTrue(fields.contains(liveTag.getId()));
+    }
+
     @Test
     public void testComplexFieldsDerefUpdate() throws Exception {
 
@@ -1842,6 +1859,10 @@ public class IndexerTest {
         log.debug("Begin test V502");
         changeIndexUpdater("indexerconf_complexfields_deref.xml");
 
+        // The record2 field is only used as the start of a dereference, through the embedded record, it still
+        // needs to be read to index the record
+        assertTrue(INDEXER_CONF.getRecordFieldDependencies().contains(record2Field.getId()));
+
         //
         // Case 1: link field => record field => string field
         //
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine.test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.lilyproject.indexer.engine.RecordEventCoalescer;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+import org.lilyproject.util.repo.RecordEvent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RecordEventCoalescerTest {
+    private IdGenerator idGenerator = new IdGeneratorImpl();
+    private SchemaId field1 = idGenerator.getSchemaId(UUID.randomUUID());
+    private SchemaId field2 = idGenerator.getSchemaId(UUID.randomUUID());
+    private SchemaId vtag1 = idGenerator.getSchemaId(UUID.randomUUID());
+    private SchemaId vtag2 = idGenerator.getSchemaId(UUID.randomUUID());
+
+    @Test
+    public void testMergeUpdates() {
+        RecordEvent update1 = event(RecordEvent.Type.UPDATE, -1, -1, field1);
+        update1.setRecordTypeChanged(true);
+        RecordEvent update2 = event(RecordEvent.Type.UPDATE, -1, 3, field2);
+
+        List<RecordEvent> result = RecordEventCoalescer.coalesce(Arrays.asList(update1, update2));
+
+        assertEquals(1, result.size());
+        RecordEvent merged = result.get(0);
+        assertEquals(RecordEvent.Type.UPDATE, merged.getType());
+        assertTrue(merged.getRecordTypeChanged());
+        assertEquals(-1, merged.getVersionCreated());
+        assertEquals(3, merged.getVersionUpdated());
+        assertEquals(new HashSet<SchemaId>(Arrays.asList(field1, field2)), merged.getUpdatedFields());
+
+        // The original events are not modified
+        assertEquals(1, update1.getUpdatedFields().size());
+    }
+
+    @Test
+    public void testCreateWins() {
+        RecordEvent create = event(RecordEvent.Type.CREATE, 1, -1, field1);
+        RecordEvent update = event(RecordEvent.Type.UPDATE, -1, 1, field2);
+        update.setRecordTypeChanged(true);
+
+        List<RecordEvent> result = RecordEventCoalescer.coalesce(Arrays.asList(create, update));
+
+        assertEquals(1, result.size());
+        RecordEvent merged = result.get(0);
+        assertEquals(RecordEvent.Type.CREATE, merged.getType());
+        assertFalse(merged.getRecordTypeChanged());
+        assertEquals(1, merged.getVersionCreated());
+        assertEquals(-1, merged.getVersionUpdated());
+    }
+
+    @Test
+    public void testDifferentVersionsNotMerged() {
+        RecordEvent update1 = event(RecordEvent.Type.UPDATE, 2, -1, field1);
+        RecordEvent update2 = event(RecordEvent.Type.UPDATE, -1, -1, field2);
+        RecordEvent update3 = event(RecordEvent.Type.UPDATE, 3, -1, field1);
+
+        List<RecordEvent> result = RecordEventCoalescer.coalesce(Arrays.asList(update1, update2, update3));
+
+        assertEquals(2, result.size());
+        assertEquals(2, result.get(0).getVersionCreated());
+        assertEquals(new HashSet<SchemaId>(Arrays.asList(field1, field2)), result.get(0).getUpdatedFields());
+        assertEquals(3, result.get(1).getVersionCreated());
+    }
+
+    @Test
+    public void testDropBeforeDelete() {
+        RecordEvent create = event(RecordEvent.Type.CREATE, 1, -1, field1);
+        RecordEvent reindex = reindexEvent("index1", vtag1);
+        RecordEvent delete = event(RecordEvent.Type.DELETE, -1, -1);
+        RecordEvent recreate = event(RecordEvent.Type.CREATE, 1, -1, field2);
+
+        List<RecordEvent> result = RecordEventCoalescer.coalesce(Arrays.asList(create, reindex, delete, recreate));
+
+        assertEquals(2, result.size());
+        assertSame(delete, result.get(0));
+        assertEquals(RecordEvent.Type.CREATE, result.get(1).getType());
+        assertEquals(new HashSet<SchemaId>(Arrays.asList(field2)), result.get(1).getUpdatedFields());
+    }
+
+    @Test
+    public void testReindexEventsPerIndex() {
+        RecordEvent reindex1 = reindexEvent("index1", vtag1);
+        RecordEvent update = event(RecordEvent.Type.UPDATE, -1, -1, field1);
+        RecordEvent reindex2 = reindexEvent("index2", vtag1);
+        RecordEvent reindex3 = reindexEvent("index1", vtag2);
+
+        List<RecordEvent> result = RecordEventCoalescer.coalesce(Arrays.asList(reindex1, update, reindex2, reindex3));
+
+        assertEquals(3, result.size());
+        assertEquals(RecordEvent.Type.UPDATE, result.get(0).getType());
+        assertEquals("index1", result.get(1).getIndexName());
+        assertEquals(new HashSet<SchemaId>(Arrays.asList(vtag1, vtag2)), result.get(1).getVtagsToIndex());
+        assertEquals("index2", result.get(2).getIndexName());
+        assertEquals(new HashSet<SchemaId>(Arrays.asList(vtag1)), result.get(2).getVtagsToIndex());
+    }
+
+    private RecordEvent event(RecordEvent.Type type, long versionCreated, long versionUpdated,
+            SchemaId... updatedFields) {
+        RecordEvent event = new RecordEvent();
+        event.setType(type);
+        event.setVersionCreated(versionCreated);
+        event.setVersionUpdated(versionUpdated);
+        for (SchemaId field : updatedFields) {
+            event.addUpdatedField(field);
+        }
+        return event;
+    }
+
+    private RecordEvent reindexEvent(String indexName, SchemaId vtag) {
+        RecordEvent event = new RecordEvent();
+        event.setType(RecordEvent.Type.INDEX);
+        event.setIndexName(indexName);
+        event.addVTagToIndex(vtag);
+        return event;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.SolrParams;
+import org.junit.Test;
+import org.lilyproject.indexer.engine.SolrClient;
+import org.lilyproject.indexer.engine.SolrClientException;
+import org.lilyproject.indexer.engine.SolrUpdateBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SolrUpdateBufferTest {
+
+    @Test
+    public void testUnbuffered() throws Exception {
+        RecordingSolrClient client = new RecordingSolrClient();
+        SolrUpdateBuffer buffer = new SolrUpdateBuffer(client, 1, 1000);
+
+        buffer.add(doc("a")).waitForCompletion();
+        buffer.deleteById("b").waitForCompletion();
+
+        assertEquals(Arrays.asList("add a", "deleteById b"), client.requests);
+    }
+
+    @Test
+    public void testBatchBySize() throws Exception {
+        RecordingSolrClient client = new RecordingSolrClient();
+        // The delay is large enough to be sure the batch is sent because it is full
+        SolrUpdateBuffer buffer = new SolrUpdateBuffer(client, 4, 60000);
+
+        List<SolrUpdateBuffer.Update> updates = new ArrayList<SolrUpdateBuffer.Update>();
+        updates.add(buffer.add(doc("a")));
+        updates.add(buffer.add(doc("b")));
+        updates.add(buffer.deleteById("c"));
+        updates.add(buffer.add(doc("d")));
+        for (SolrUpdateBuffer.Update update : updates) {
+            update.waitForCompletion();
+        }
+
+        // Consecutive updates of the same kind are combined, the order is kept
+        assertEquals(Arrays.asList("add [a, b]", "deleteById c", "add d"), client.requests);
+    }
+
+    @Test
+    public void testBatchByDelay() throws Exception {
+        RecordingSolrClient client = new RecordingSolrClient();
+        SolrUpdateBuffer buffer = new SolrUpdateBuffer(client, 100, 10);
+
+        SolrUpdateBuffer.Update update1 = buffer.add(doc("a"));
+        SolrUpdateBuffer.Update update2 = buffer.add(doc("b"));
+        update1.waitForCompletion();
+        update2.waitForCompletion();
+
+        assertEquals(Arrays.asList("add [a, b]"), client.requests);
+    }
+
+    @Test
+    public void testConcurrentSubmitters() throws Exception {
+        final RecordingSolrClient client = new RecordingSolrClient();
+        final SolrUpdateBuffer buffer = new SolrUpdateBuffer(client, 10, 50);
+
+        final int threadCount = 10;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            final String id = String.valueOf(i);
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        buffer.add(doc(id)).waitForCompletion();
+                    } catch (Throwable t) {
+                        error.set(t);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(error.get());
+        assertEquals(threadCount, client.docCount);
+        // All adds should have been combined in much fewer requests than there were documents
+        if (client.requests.size() >= threadCount) {
+            fail("Expected the adds to be batched, got: " + client.requests);
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        RecordingSolrClient client = new RecordingSolrClient();
+        client.fail = true;
+        SolrUpdateBuffer buffer = new SolrUpdateBuffer(client, 2, 60000);
+
+        SolrUpdateBuffer.Update update1 = buffer.add(doc("a"));
+        SolrUpdateBuffer.Update update2 = buffer.add(doc("b"));
+
+        // All updates of a failed batch fail
+        for (SolrUpdateBuffer.Update update : Arrays.asList(update1, update2)) {
+            try {
+                update.waitForCompletion();
+                fail("Expected a SolrClientException");
+            } catch (SolrClientException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        RecordingSolrClient client = new RecordingSolrClient();
+        SolrUpdateBuffer buffer = new SolrUpdateBuffer(client, 100, 10);
+
+        SolrUpdateBuffer.Update update1 = buffer.add(doc("a"));
+        SolrUpdateBuffer.Update update2 = buffer.add(doc("b"));
+        assertTrue(update1.cancel());
+        update2.waitForCompletion();
+        assertEquals(Arrays.asList("add b"), client.requests);
+
+        // Once sent, an update can no longer be cancelled
+        assertFalse(update2.cancel());
+
+        // Nor can an update which was not buffered
+        SolrUpdateBuffer unbuffered = new SolrUpdateBuffer(client, 1, 10);
+        assertFalse(unbuffered.add(doc("c")).cancel());
+    }
+
+    private static SolrInputDocument doc(String id) {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.setField("lily.key", id);
+        return doc;
+    }
+
+    private static class RecordingSolrClient implements SolrClient {
+        private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        private volatile int docCount;
+        private boolean fail;
+
+        @Override
+        public String getDescription() {
+            return "recording";
+        }
+
+        @Override
+        public synchronized UpdateResponse add(SolrInputDocument doc) throws SolrClientException {
+            checkFail();
+            requests.add("add " + doc.getFieldValue("lily.key"));
+            docCount++;
+            return null;
+        }
+
+        @Override
+        public synchronized UpdateResponse add(Collection<SolrInputDocument> docs) throws SolrClientException {
+            checkFail();
+            List<Object> keys = new ArrayList<Object>();
+            for (SolrInputDocument doc : docs) {
+                keys.add(doc.getFieldValue("lily.key"));
+            }
+            requests.add("add " + keys);
+            docCount += docs.size();
+            return null;
+        }
+
+        @Override
+        public UpdateResponse deleteById(String id) throws SolrClientException {
+            checkFail();
+            requests.add("deleteById " + id);
+            return null;
+        }
+
+        @Override
+        public UpdateResponse deleteById(List<String> ids) throws SolrClientException {
+            checkFail();
+            requests.add("deleteById " + ids);
+            return null;
+        }
+
+        @Override
+        public UpdateResponse deleteByQuery(String query) throws SolrClientException {
+            checkFail();
+            requests.add("deleteByQuery " + query);
+            return null;
+        }
+
+        @Override
+        public UpdateResponse commit(boolean waitFlush, boolean waitSearcher) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public UpdateResponse commit() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public QueryResponse query(SolrParams params) {
+            throw new UnsupportedOperationException();
+        }
+
+        private void checkFail() throws SolrClientException {
+            if (fail) {
+                throw new SolrClientException(getDescription(), new RuntimeException("failure"));
+            }
+        }
+    }
+}
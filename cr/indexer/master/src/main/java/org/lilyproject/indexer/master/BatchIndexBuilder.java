@@ -20,8 +20,11 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import net.iharder.Base64;
 
@@ -30,12 +33,19 @@ import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
 import org.codehaus.jackson.JsonNode;
 import org.lilyproject.indexer.batchbuild.IndexingMapper;
+import org.lilyproject.indexer.engine.IndexLocker;
 import org.lilyproject.indexer.engine.SolrClientConfig;
 import org.lilyproject.indexer.model.api.IndexDefinition;
+import org.lilyproject.indexer.model.indexerconf.IndexerConf;
+import org.lilyproject.indexer.model.indexerconf.IndexerConfBuilder;
 import org.lilyproject.mapreduce.LilyMapReduceUtil;
+import org.lilyproject.repository.api.QName;
 import org.lilyproject.repository.api.RecordScan;
 import org.lilyproject.repository.api.Repository;
+import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.ReturnFields;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.api.TypeManager;
 import org.lilyproject.tools.import_.json.RecordScanReader;
 import org.lilyproject.util.json.JsonFormat;
 
@@ -46,7 +56,7 @@ public class BatchIndexBuilder {
      */
     public static Job startBatchBuildJob(IndexDefinition index, Configuration mapReduceConf, Configuration hbaseConf,
             Repository repository, String zkConnectString, int zkSessionTimeout, SolrClientConfig solrConfig,
-            byte[] batchIndexConfiguration, boolean enableLocking) throws Exception {
+            byte[] batchIndexConfiguration, boolean enableLocking, IndexLocker.Mode lockMode) throws Exception {
 
         Configuration conf = new Configuration(mapReduceConf);
         Job job = new Job(conf, "BatchIndexBuild Job");
@@ -87,7 +97,15 @@ public class BatchIndexBuilder {
         
         JsonNode jsonNode = JsonFormat.deserializeNonStd(new ByteArrayInputStream(batchIndexConfiguration)).get("scan");
         RecordScan recordScan = RecordScanReader.INSTANCE.fromJson(jsonNode, repository);
-        recordScan.setReturnFields(ReturnFields.NONE);
+        if (enableLocking) {
+            // The record needs to be read again once the index lock is obtained, see IndexingMapper
+            recordScan.setReturnFields(ReturnFields.NONE);
+        } else {
+            // The records are indexed as they were scanned, hence read the fields needed for indexing
+            IndexerConf indexerConf = IndexerConfBuilder.build(new ByteArrayInputStream(index.getConfiguration()),
+                    repository);
+            recordScan.setReturnFields(getReturnFields(indexerConf, repository.getTypeManager()));
+        }
         recordScan.setCacheBlocks(false);
         recordScan.setCaching(1024);
 
@@ -115,17 +133,36 @@ public class BatchIndexBuilder {
             job.getConfiguration().set("org.lilyproject.indexer.batchbuild.responseparser",
                     solrConfig.getResponseParser());
         }
+        job.getConfiguration().set("org.lilyproject.indexer.batchbuild.updatebuffersize",
+                String.valueOf(solrConfig.getUpdateBufferSize()));
+        job.getConfiguration().set("org.lilyproject.indexer.batchbuild.updatebufferdelay",
+                String.valueOf(solrConfig.getUpdateBufferDelay()));
 
         //
         // Other props
         //
         job.getConfiguration().set("org.lilyproject.indexer.batchbuild.enableLocking", String.valueOf(enableLocking));
+        job.getConfiguration().set("org.lilyproject.indexer.batchbuild.lockMode", lockMode.name());
 
         job.submit();
 
         return job;
     }
 
+    private static ReturnFields getReturnFields(IndexerConf indexerConf, TypeManager typeManager)
+            throws RepositoryException, InterruptedException {
+        Set<SchemaId> fieldIds = indexerConf.getRecordFieldDependencies();
+        if (fieldIds == null) {
+            return ReturnFields.ALL;
+        }
+
+        List<QName> fields = new ArrayList<QName>(fieldIds.size());
+        for (SchemaId fieldId : fieldIds) {
+            fields.add(typeManager.getFieldTypeById(fieldId).getName());
+        }
+        return new ReturnFields(fields);
+    }
+
     /**
      * This method was copied from Hadoop JobConf (Apache License).
      */
@@ -23,6 +23,8 @@ import org.apache.hadoop.mapreduce.Job;
 import org.apache.tika.io.IOUtils;
 import org.apache.zookeeper.KeeperException;
 import org.lilyproject.indexer.batchbuild.IndexBatchBuildCounters;
+import org.lilyproject.indexer.engine.FanOutIndexUpdater;
+import org.lilyproject.indexer.engine.IndexLocker;
 import org.lilyproject.indexer.engine.SolrClientConfig;
 import org.lilyproject.indexer.model.api.*;
 import org.lilyproject.repository.api.Repository;
@@ -75,6 +77,10 @@ public class IndexerMaster {
 
     private final boolean enableLocking;
 
+    private final IndexLocker.Mode lockMode;
+
+    private final boolean fanOut;
+
     private final String hostName;
 
     private LeaderElection leaderElection;
@@ -100,7 +106,8 @@ public class IndexerMaster {
     public IndexerMaster(ZooKeeperItf zk, WriteableIndexerModel indexerModel, Repository repository,
             Configuration mapReduceConf, Configuration mapReduceJobConf, Configuration hbaseConf,
             String zkConnectString, int zkSessionTimeout, RowLogConfigurationManager rowLogConfMgr, LilyInfo lilyInfo,
-            SolrClientConfig solrClientConfig, boolean enableLocking, String hostName, String nodes) {
+            SolrClientConfig solrClientConfig, boolean enableLocking, IndexLocker.Mode lockMode, boolean fanOut,
+            String hostName, String nodes) {
         this.zk = zk;
         this.indexerModel = indexerModel;
         this.repository = repository;
@@ -113,6 +120,8 @@ public class IndexerMaster {
         this.lilyInfo = lilyInfo;
         this.solrClientConfig = solrClientConfig;
         this.enableLocking = enableLocking;
+        this.lockMode = lockMode;
+        this.fanOut = fanOut;
         this.hostName = hostName;
         this.nodes = nodes;
     }
@@ -223,7 +232,11 @@ public class IndexerMaster {
                     // prefix "IndexUpdater:". This way we are sure there are no naming conflicts or conflicts
                     // due to concurrent operations (e.g. someone deleting this subscription right after we
                     // created it).
-                    String subscriptionId = subscriptionId(index.getName());
+                    // In fan-out mode, all indexes share one subscription, which is created by the first index
+                    // which needs it (addSubscription does nothing if it already exists). Since the index joins a
+                    // subscription which is already being processed, the workers leave its messages on the queue
+                    // until they run an index updater for each index on it, see FanOutIndexUpdater.
+                    String subscriptionId = fanOut ? FanOutIndexUpdater.SUBSCRIPTION_ID : subscriptionId(index.getName());
                     rowLogConfMgr.addSubscription("mq", subscriptionId, RowLogSubscription.Type.Netty, 1);
                     index.setQueueSubscriptionId(subscriptionId);
                     indexerModel.updateIndexInternal(index);
@@ -244,7 +257,7 @@ public class IndexerMaster {
                 // Read current situation of record and assure it is still actual
                 IndexDefinition index = indexerModel.getMutableIndex(indexName);
                 if (needsSubscriptionIdUnassigned(index)) {
-                    rowLogConfMgr.removeSubscription("mq", index.getQueueSubscriptionId());
+                    removeSubscription(indexName, index.getQueueSubscriptionId());
                     log.info("Deleted queue subscription for index " + indexName);
                     index.setQueueSubscriptionId(null);
                     indexerModel.updateIndexInternal(index);
@@ -261,6 +274,22 @@ public class IndexerMaster {
         return "IndexUpdater_" + indexName;
     }
 
+    /**
+     * Removes the queue subscription of an index, except for the fan-out subscription as long as other indexes
+     * still use it.
+     */
+    private void removeSubscription(String indexName, String subscriptionId) throws Exception {
+        if (subscriptionId.equals(FanOutIndexUpdater.SUBSCRIPTION_ID)) {
+            for (IndexDefinition other : indexerModel.getIndexes()) {
+                if (!other.getName().equals(indexName) && subscriptionId.equals(other.getQueueSubscriptionId())
+                        && !other.getGeneralState().isDeleteState()) {
+                    return;
+                }
+            }
+        }
+        rowLogConfMgr.removeSubscription("mq", subscriptionId);
+    }
+
     private void startFullIndexBuild(String indexName) {
         try {
             String lock = indexerModel.lockIndex(indexName);
@@ -275,7 +304,7 @@ public class IndexerMaster {
                     try {
                         job = BatchIndexBuilder.startBatchBuildJob(index, mapReduceJobConf, hbaseConf, repository,
                                 zkConnectString, zkSessionTimeout, solrClientConfig, batchIndexConfiguration,
-                                enableLocking);
+                                enableLocking, lockMode);
                         jobStarted = true;
                     } catch (Throwable t) {
                         jobStarted = false;
@@ -341,7 +370,7 @@ public class IndexerMaster {
 
                 String queueSubscriptionId = index.getQueueSubscriptionId();
                 if (queueSubscriptionId != null) {
-                    rowLogConfMgr.removeSubscription("mq", index.getQueueSubscriptionId());
+                    removeSubscription(indexName, queueSubscriptionId);
                     // We leave the subscription ID in the index definition FYI
                 }
 
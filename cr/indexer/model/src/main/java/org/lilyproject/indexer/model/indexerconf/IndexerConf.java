@@ -38,6 +38,7 @@ public class IndexerConf {
     private List<IndexCase> indexCases = new ArrayList<IndexCase>();
     private List<IndexField> indexFields = new ArrayList<IndexField>();
     private Set<SchemaId> repoFieldDependencies = new HashSet<SchemaId>();
+    private Set<SchemaId> recordFieldDependencies = new HashSet<SchemaId>();
     private List<IndexField> derefIndexFields = new ArrayList<IndexField>();
     private List<DynamicIndexField> dynamicFields = new ArrayList<DynamicIndexField>();
     private Map<SchemaId, List<IndexField>> derefIndexFieldsByField = new HashMap<SchemaId, List<IndexField>>();
@@ -71,10 +72,19 @@ public class IndexerConf {
         indexFields.add(indexField);
 
         SchemaId fieldDep = indexField.getValue().getFieldDependency();
-        if (fieldDep != null)
+        if (fieldDep != null) {
             repoFieldDependencies.add(fieldDep);
+            recordFieldDependencies.add(fieldDep);
+        }
 
         if (indexField.getValue() instanceof DerefValue) {
+            // Dereferencing through an embedded record starts from a field of the record itself. This is not a
+            // field dependency in the sense of isIndexFieldDependency, but the field does need to be read.
+            DerefValue.Follow follow = ((DerefValue)indexField.getValue()).getFollows().get(0);
+            if (follow instanceof DerefValue.RecordFieldFollow) {
+                recordFieldDependencies.add(((DerefValue.RecordFieldFollow)follow).getFieldType().getId());
+            }
+
             FieldType lastRealField = ((DerefValue)indexField.getValue()).getLastRealField();
             if (lastRealField != null && !systemFields.isSystemField(lastRealField.getId())) {
                 derefIndexFields.add(indexField);
@@ -134,6 +144,31 @@ public class IndexerConf {
         return result == null ? Collections.<IndexField>emptyList() : result;
     }
 
+    /**
+     * Returns the fields that should be read from a record in order to index it, or null if all fields are
+     * needed, which is the case when there are dynamic index fields.
+     *
+     * <p>This includes the vtag fields and, for dereference values, the fields of the record from which the
+     * dereferencing starts. The fields read from the records reached through dereferencing are not included,
+     * nor are the system fields.
+     */
+    public Set<SchemaId> getRecordFieldDependencies() {
+        if (!dynamicFields.isEmpty()) {
+            return null;
+        }
+
+        Set<SchemaId> fields = new HashSet<SchemaId>();
+        fields.addAll(vtags);
+
+        for (SchemaId fieldId : recordFieldDependencies) {
+            if (!systemFields.isSystemField(fieldId)) {
+                fields.add(fieldId);
+            }
+        }
+
+        return fields;
+    }
+
     /**
      * Returns the set of all known vtags, thus all the vtags that are relevant to indexing.
      */
@@ -39,6 +39,9 @@ import org.lilyproject.rowlog.api.RowLogException;
 import org.lilyproject.rowlog.impl.RemoteListenerHandler;
 import org.lilyproject.util.Logs;
 import org.lilyproject.util.ObjectUtils;
+import org.lilyproject.util.concurrent.RateLimiter;
+import org.lilyproject.util.hbase.HBaseTableFactory;
+import org.lilyproject.util.hbase.LilyHBaseSchema;
 import org.lilyproject.util.io.Closer;
 import org.lilyproject.util.zookeeper.ZooKeeperItf;
 
@@ -50,6 +53,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
@@ -68,6 +72,8 @@ public class IndexerWorker {
 
     private Repository repository;
 
+    private IndexManager indexManager;
+
     private LinkIndex linkIndex;
 
     private ZooKeeperItf zk;
@@ -78,6 +84,15 @@ public class IndexerWorker {
 
     private final SolrClientConfig solrClientConfig;
 
+    private final HBaseTableFactory tableFactory;
+
+    private ContentExtractor contentExtractor;
+
+    /**
+     * Shared by the index updaters, so that the rate limit applies to this worker as a whole.
+     */
+    private final RateLimiter reindexRateLimiter;
+
     private final IndexerWorkerSettings settings;
 
     private final String hostName;
@@ -86,6 +101,26 @@ public class IndexerWorker {
 
     private Map<String, IndexUpdaterHandle> indexUpdaters = new HashMap<String, IndexUpdaterHandle>();
 
+    /**
+     * Updates the indexes which share the fan-out subscription, null as long as there are none.
+     */
+    private FanOutIndexUpdater fanOutIndexUpdater;
+
+    private List<RemoteListenerHandler> fanOutListenerHandlers;
+
+    /**
+     * The index locker of the indexes which share the fan-out subscription. Locks are owned by the thread which
+     * takes them, and the fan-out index updater takes them on behalf of all these indexes.
+     */
+    private IndexLocker fanOutIndexLocker;
+
+    /**
+     * The names of the indexes which should be updated through the fan-out subscription on this node. This is
+     * updated as soon as the indexer model changes, before the index updaters are started, so that the fan-out
+     * index updater leaves the messages on the queue until the index updaters of all these indexes are running.
+     */
+    private final Set<String> fanOutIndexNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     private final Object indexUpdatersLock = new Object();
 
     private BlockingQueue<IndexerModelEvent> eventQueue = new LinkedBlockingQueue<IndexerModelEvent>();
@@ -99,22 +134,30 @@ public class IndexerWorker {
     private final Log log = LogFactory.getLog(getClass());
 
     public IndexerWorker(IndexerModel indexerModel, Repository repository, RowLog rowLog, ZooKeeperItf zk,
-            Configuration hbaseConf, RowLogConfigurationManager rowLogConfMgr,
+            Configuration hbaseConf, HBaseTableFactory tableFactory, RowLogConfigurationManager rowLogConfMgr,
             SolrClientConfig solrClientConfig, String hostName, IndexerWorkerSettings settings)
             throws IOException, org.lilyproject.hbaseindex.IndexNotFoundException, InterruptedException {
         this.indexerModel = indexerModel;
         this.repository = repository;
         this.rowLog = rowLog;
-        this.linkIndex = new LinkIndex(new IndexManager(hbaseConf), repository);
+        this.indexManager = new IndexManager(hbaseConf);
+        this.linkIndex = new LinkIndex(indexManager, repository);
         this.zk = zk;
+        this.tableFactory = tableFactory;
         this.rowLogConfMgr = rowLogConfMgr;
         this.settings = settings;
+        this.reindexRateLimiter = new RateLimiter(settings.getReferrerReindexRate());
         this.solrClientConfig = solrClientConfig;
         this.hostName = hostName;
     }
 
     @PostConstruct
-    public void init() {
+    public void init() throws IOException {
+        // The content extractor is shared by all indexes, so that the number of extraction threads is bounded
+        contentExtractor = new ContentExtractor(settings.getExtractionThreads(), settings.getExtractionTimeout(),
+                settings.getExtractionWriteLimit(), settings.getExtractionCacheSize(),
+                LilyHBaseSchema.getBlobTextTable(tableFactory));
+
         connectionManager = new MultiThreadedHttpConnectionManager();
         connectionManager.getParams().setDefaultMaxConnectionsPerHost(settings.getSolrMaxConnectionsPerHost());
         connectionManager.getParams().setMaxTotalConnections(settings.getSolrMaxTotalConnections());
@@ -126,6 +169,10 @@ public class IndexerWorker {
         synchronized (indexUpdatersLock) {
             Collection<IndexDefinition> indexes = indexerModel.getIndexes(listener);
 
+            for (IndexDefinition index : indexes) {
+                updateFanOutIndexNames(index);
+            }
+
             for (IndexDefinition index : indexes) {
                 if (shouldRunIndexUpdater(index)) {
                     addIndexUpdater(index);
@@ -152,7 +199,10 @@ public class IndexerWorker {
             }
         }
 
+        Closer.close(fanOutIndexLocker);
         connectionManager.shutdown();
+        contentExtractor.stop();
+        indexManager.close();
     }
 
     private void addIndexUpdater(IndexDefinition index) {
@@ -172,24 +222,40 @@ public class IndexerWorker {
 
             SolrShardManager solrShardMgr = new SolrShardManager(index.getName(), index.getSolrShards(), shardSelector,
                     httpClient, solrClientConfig, true);
-            IndexLocker indexLocker = new IndexLocker(zk, settings.getEnableLocking());
+            // The indexes sharing the fan-out subscription are updated through the listeners of the fan-out updater
+            boolean fanOut = isFanOut(index);
+
+            IndexLocker indexLocker;
+            if (fanOut) {
+                if (fanOutIndexLocker == null) {
+                    fanOutIndexLocker = new IndexLocker(zk, settings.getEnableLocking(), settings.getLockMode());
+                }
+                indexLocker = fanOutIndexLocker;
+            } else {
+                indexLocker = new IndexLocker(zk, settings.getEnableLocking(), settings.getLockMode());
+            }
             IndexerMetrics indexerMetrics = new IndexerMetrics(index.getName());
             Indexer indexer = new Indexer(index.getName(), indexerConf, repository, solrShardMgr, indexLocker,
-                    indexerMetrics);
+                    contentExtractor, indexerMetrics);
 
             IndexUpdaterMetrics updaterMetrics = new IndexUpdaterMetrics(index.getName());
             IndexUpdater indexUpdater = new IndexUpdater(indexer, repository, linkIndex, indexLocker, rowLog,
-                    updaterMetrics);
+                    updaterMetrics, reindexRateLimiter);
+            indexUpdater.setBinaryRecordEvents(settings.getBinaryRecordEvents());
 
             List<RemoteListenerHandler> listenerHandlers = new ArrayList<RemoteListenerHandler>();
 
-            for (int i = 0; i < settings.getListenersPerIndex(); i++) {
-                RemoteListenerHandler handler = new RemoteListenerHandler(rowLog, index.getQueueSubscriptionId(),
-                        indexUpdater, rowLogConfMgr, hostName);
-                listenerHandlers.add(handler);
+            if (!fanOut) {
+                for (int i = 0; i < settings.getListenersPerIndex(); i++) {
+                    RemoteListenerHandler handler = new RemoteListenerHandler(rowLog, index.getQueueSubscriptionId(),
+                            indexUpdater, rowLogConfMgr, hostName);
+                    listenerHandlers.add(handler);
+                }
             }
 
-            handle = new IndexUpdaterHandle(index, listenerHandlers, solrShardMgr, indexerMetrics, updaterMetrics);
+            // The fan-out index locker is shared, and closed when the worker stops
+            handle = new IndexUpdaterHandle(index, fanOut ? indexUpdater : null, listenerHandlers, solrShardMgr,
+                    fanOut ? null : indexLocker, indexerMetrics, updaterMetrics);
             handle.start();
 
             indexUpdaters.put(index.getName(), handle);
@@ -202,6 +268,9 @@ public class IndexerWorker {
 
             log.error("Problem starting index updater for index " + index.getName(), t);
 
+            // Don't keep the other indexes sharing the fan-out subscription waiting for this one
+            fanOutIndexNames.remove(index.getName());
+
             if (handle != null) {
                 // stop any listeners that might have been started
                 try {
@@ -217,6 +286,55 @@ public class IndexerWorker {
         }
     }
 
+    private void addToFanOut(IndexUpdater indexUpdater) throws RowLogException, InterruptedException,
+            KeeperException {
+        if (fanOutIndexUpdater == null) {
+            FanOutIndexUpdater fanOutIndexUpdater = new FanOutIndexUpdater(repository, fanOutIndexLocker,
+                    fanOutIndexNames, settings.getFanOutThreads());
+            List<RemoteListenerHandler> listenerHandlers = new ArrayList<RemoteListenerHandler>();
+            boolean started = false;
+            try {
+                for (int i = 0; i < settings.getListenersPerIndex(); i++) {
+                    RemoteListenerHandler handler = new RemoteListenerHandler(rowLog,
+                            FanOutIndexUpdater.SUBSCRIPTION_ID, fanOutIndexUpdater, rowLogConfMgr, hostName);
+                    listenerHandlers.add(handler);
+                    handler.start();
+                }
+                started = true;
+            } finally {
+                if (!started) {
+                    stopFanOut(fanOutIndexUpdater, listenerHandlers);
+                }
+            }
+            this.fanOutIndexUpdater = fanOutIndexUpdater;
+            this.fanOutListenerHandlers = listenerHandlers;
+            log.info("Started fan-out index updater");
+        }
+        fanOutIndexUpdater.addIndexUpdater(indexUpdater);
+    }
+
+    private void removeFromFanOut(IndexUpdater indexUpdater) throws InterruptedException {
+        if (fanOutIndexUpdater == null) {
+            return;
+        }
+
+        fanOutIndexUpdater.removeIndexUpdater(indexUpdater);
+        if (fanOutIndexUpdater.isEmpty()) {
+            stopFanOut(fanOutIndexUpdater, fanOutListenerHandlers);
+            fanOutIndexUpdater = null;
+            fanOutListenerHandlers = null;
+            log.info("Stopped fan-out index updater");
+        }
+    }
+
+    private void stopFanOut(FanOutIndexUpdater fanOutIndexUpdater, List<RemoteListenerHandler> listenerHandlers)
+            throws InterruptedException {
+        for (RemoteListenerHandler handler : listenerHandlers) {
+            handler.stop();
+        }
+        fanOutIndexUpdater.stop();
+    }
+
     private void checkShardUsage(String indexName, Set<String> definedShards, Set<String> selectorShards) {
         for (String shard : definedShards) {
             if (!selectorShards.contains(shard)) {
@@ -266,6 +384,16 @@ public class IndexerWorker {
     private class MyListener implements IndexerModelListener {
         @Override
         public void process(IndexerModelEvent event) {
+            if (event.getType() == INDEX_REMOVED) {
+                fanOutIndexNames.remove(event.getIndexName());
+            } else {
+                try {
+                    updateFanOutIndexNames(indexerModel.getIndex(event.getIndexName()));
+                } catch (IndexNotFoundException e) {
+                    fanOutIndexNames.remove(event.getIndexName());
+                }
+            }
+
             try {
                 // Because the actions we take in response to events might take some time, we
                 // let the events process by another thread, so that other watchers do not
@@ -277,6 +405,18 @@ public class IndexerWorker {
         }
     }
 
+    private void updateFanOutIndexNames(IndexDefinition index) {
+        if (shouldRunIndexUpdater(index) && isFanOut(index)) {
+            fanOutIndexNames.add(index.getName());
+        } else {
+            fanOutIndexNames.remove(index.getName());
+        }
+    }
+
+    private boolean isFanOut(IndexDefinition index) {
+        return FanOutIndexUpdater.SUBSCRIPTION_ID.equals(index.getQueueSubscriptionId());
+    }
+
     private boolean shouldRunIndexUpdater(IndexDefinition index) {
         return index.getUpdateState() == IndexUpdateState.SUBSCRIBE_AND_LISTEN &&
                 index.getQueueSubscriptionId() != null &&
@@ -285,16 +425,24 @@ public class IndexerWorker {
 
     private class IndexUpdaterHandle {
         private IndexDefinition indexDef;
+        /**
+         * The index updater, in case it is run by the fan-out index updater.
+         */
+        private IndexUpdater fanOutIndexUpdater;
         private List<RemoteListenerHandler> listenerHandlers;
         private SolrShardManager solrShardMgr;
+        private IndexLocker indexLocker;
         private IndexerMetrics indexerMetrics;
         private IndexUpdaterMetrics updaterMetrics;
 
-        public IndexUpdaterHandle(IndexDefinition indexDef, List<RemoteListenerHandler> listenerHandlers,
-                SolrShardManager solrShardMgr, IndexerMetrics indexerMetrics, IndexUpdaterMetrics updaterMetrics) {
+        public IndexUpdaterHandle(IndexDefinition indexDef, IndexUpdater fanOutIndexUpdater,
+                List<RemoteListenerHandler> listenerHandlers, SolrShardManager solrShardMgr, IndexLocker indexLocker,
+                IndexerMetrics indexerMetrics, IndexUpdaterMetrics updaterMetrics) {
             this.indexDef = indexDef;
+            this.fanOutIndexUpdater = fanOutIndexUpdater;
             this.listenerHandlers = listenerHandlers;
             this.solrShardMgr = solrShardMgr;
+            this.indexLocker = indexLocker;
             this.indexerMetrics = indexerMetrics;
             this.updaterMetrics = updaterMetrics;
         }
@@ -303,13 +451,20 @@ public class IndexerWorker {
             for (RemoteListenerHandler handler : listenerHandlers) {
                 handler.start();
             }
+            if (fanOutIndexUpdater != null) {
+                addToFanOut(fanOutIndexUpdater);
+            }
         }
 
         public void stop() throws InterruptedException {
             for (RemoteListenerHandler handler : listenerHandlers) {
                 handler.stop();
             }
+            if (fanOutIndexUpdater != null) {
+                removeFromFanOut(fanOutIndexUpdater);
+            }
             Closer.close(solrShardMgr);
+            Closer.close(indexLocker);
             Closer.close(indexerMetrics);
             Closer.close(updaterMetrics);
         }
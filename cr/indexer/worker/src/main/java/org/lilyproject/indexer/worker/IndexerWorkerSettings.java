@@ -15,11 +15,22 @@
  */
 package org.lilyproject.indexer.worker;
 
+import org.lilyproject.indexer.engine.ContentExtractor;
+import org.lilyproject.indexer.engine.IndexLocker;
+
 public class IndexerWorkerSettings {
     private int listenersPerIndex = 10;
     private boolean enableLocking = false;
+    private IndexLocker.Mode lockMode = IndexLocker.Mode.ZOOKEEPER;
     private int solrMaxTotalConnections = 200;
     private int solrMaxConnectionsPerHost = 50;
+    private int extractionThreads = ContentExtractor.DEFAULT_THREADS;
+    private long extractionTimeout = ContentExtractor.DEFAULT_TIMEOUT;
+    private int extractionWriteLimit = ContentExtractor.DEFAULT_WRITE_LIMIT;
+    private int extractionCacheSize = ContentExtractor.DEFAULT_CACHE_SIZE;
+    private int fanOutThreads = 20;
+    private int referrerReindexRate = 0;
+    private boolean binaryRecordEvents = false;
 
     public int getListenersPerIndex() {
         return listenersPerIndex;
@@ -37,6 +48,14 @@ public class IndexerWorkerSettings {
         this.enableLocking = enableLocking;
     }
 
+    public IndexLocker.Mode getLockMode() {
+        return lockMode;
+    }
+
+    public void setLockMode(IndexLocker.Mode lockMode) {
+        this.lockMode = lockMode;
+    }
+
     public int getSolrMaxTotalConnections() {
         return solrMaxTotalConnections;
     }
@@ -52,4 +71,67 @@ public class IndexerWorkerSettings {
     public void setSolrMaxConnectionsPerHost(int solrMaxConnectionsPerHost) {
         this.solrMaxConnectionsPerHost = solrMaxConnectionsPerHost;
     }
+
+    public int getExtractionThreads() {
+        return extractionThreads;
+    }
+
+    public void setExtractionThreads(int extractionThreads) {
+        this.extractionThreads = extractionThreads;
+    }
+
+    public long getExtractionTimeout() {
+        return extractionTimeout;
+    }
+
+    public void setExtractionTimeout(long extractionTimeout) {
+        this.extractionTimeout = extractionTimeout;
+    }
+
+    public int getExtractionWriteLimit() {
+        return extractionWriteLimit;
+    }
+
+    public void setExtractionWriteLimit(int extractionWriteLimit) {
+        this.extractionWriteLimit = extractionWriteLimit;
+    }
+
+    public int getExtractionCacheSize() {
+        return extractionCacheSize;
+    }
+
+    public void setExtractionCacheSize(int extractionCacheSize) {
+        this.extractionCacheSize = extractionCacheSize;
+    }
+
+    public int getFanOutThreads() {
+        return fanOutThreads;
+    }
+
+    public void setFanOutThreads(int fanOutThreads) {
+        this.fanOutThreads = fanOutThreads;
+    }
+
+    public int getReferrerReindexRate() {
+        return referrerReindexRate;
+    }
+
+    /**
+     * The maximum number of index messages per second put for the referrers of updated records, by all index
+     * updaters of this worker together. A value of 0 or less means no limit.
+     */
+    public void setReferrerReindexRate(int referrerReindexRate) {
+        this.referrerReindexRate = referrerReindexRate;
+    }
+
+    public boolean getBinaryRecordEvents() {
+        return binaryRecordEvents;
+    }
+
+    /**
+     * Whether the index messages put for referrers use the binary record event format rather than json.
+     */
+    public void setBinaryRecordEvents(boolean binaryRecordEvents) {
+        this.binaryRecordEvents = binaryRecordEvents;
+    }
 }
@@ -17,9 +17,12 @@ package org.lilyproject.linkindex;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.hadoop.hbase.util.Bytes;
@@ -59,6 +62,10 @@ public class LinkIndex {
 
     private static final byte[] SOURCE_FIELD_KEY = Bytes.toBytes("sf");
     private static final byte[] VTAG_KEY = Bytes.toBytes("vt");
+    /**
+     * Maximum number of links per record read on beforehand by the multi-record iterators.
+     */
+    public static final int MAX_PREFETCHED_LINKS = 100;
 
     public LinkIndex(final IndexManager indexManager, Repository repository) throws IndexNotFoundException, IOException,
             InterruptedException {
@@ -310,6 +317,83 @@ public class LinkIndex {
         }
     }
 
+    /**
+     * Streaming variant of {@link #getReferrers(RecordId, SchemaId, SchemaId)}: the referrers are read from the
+     * index as the returned iterator is consumed, rather than collected in memory first. This should be used
+     * for records which can have a very large number of referrers. See {@link ReferrerIterator} for details.
+     *
+     * @param vtag optional, null for all vtags
+     * @param sourceField optional, null for all fields
+     */
+    public ReferrerIterator getReferrersIterator(RecordId record, SchemaId vtag, SchemaId sourceField)
+            throws LinkIndexException {
+        String description = "for record '" + record + "', vtag '" + vtag + "', field '" + sourceField + "'";
+        try {
+            Query query = new Query();
+            query.addEqualsCondition("target", record.toBytes());
+            if (vtag != null) {
+                query.addEqualsCondition("vtag", vtag.getBytes());
+            }
+            if (sourceField != null) {
+                query.addEqualsCondition("sourcefield", sourceField.getBytes());
+            }
+            // Used for records with many referrers, which are best fetched in large batches
+            query.setResultSizeHint(1000);
+
+            QueryResult qr = backwardIndex.performQuery(query);
+            return new ReferrerIterator(qr, idGenerator, SOURCE_FIELD_KEY, metrics, description);
+        } catch (IOException e) {
+            throw new LinkIndexException("Error getting referrers " + description, e);
+        }
+    }
+
+    /**
+     * Multi-record variant of {@link #getReferrersIterator(RecordId, SchemaId, SchemaId)}: the referrers of all
+     * the given records are looked up at once, see {@link Index#performQueries}, and the returned iterator
+     * returns them one record after the other. At most {@link #MAX_PREFETCHED_LINKS} referrers of each record
+     * are read on beforehand, the others are read as the iterator is consumed, so that the memory use remains
+     * bounded even when some of the records have very many referrers.
+     *
+     * @param vtag optional, null for all vtags
+     * @param sourceField optional, null for all fields
+     */
+    public ReferrerIterator getReferrersIterator(Collection<RecordId> records, SchemaId vtag, SchemaId sourceField)
+            throws LinkIndexException {
+        String description = "for " + records.size() + " records, vtag '" + vtag + "', field '" + sourceField + "'";
+        try {
+            List<QueryResult> results = backwardIndex.performQueries(
+                    createLinkQueries("target", records, vtag, sourceField), MAX_PREFETCHED_LINKS);
+            return new ReferrerIterator(results, idGenerator, SOURCE_FIELD_KEY, metrics, description);
+        } catch (IOException e) {
+            throw new LinkIndexException("Error getting referrers " + description, e);
+        }
+    }
+
+    /**
+     * Multi-record variant of {@link #getReferrers(RecordId, SchemaId, SchemaId)}: looks up the referrers of
+     * all the given records at once, which is more efficient than looking them up one by one. See
+     * {@link Index#performQueries}.
+     *
+     * <p>All referrers are kept in memory, for records which can have many referrers, use
+     * {@link #getReferrersIterator(Collection, SchemaId, SchemaId)}.
+     *
+     * @param vtag optional, null for all vtags
+     * @param sourceField optional, null for all fields
+     * @return for each record, its referrers (this is an empty set for records without referrers)
+     */
+    public Map<RecordId, Set<RecordId>> getReferrers(Collection<RecordId> records, SchemaId vtag,
+            SchemaId sourceField) throws LinkIndexException {
+        long before = System.currentTimeMillis();
+        try {
+            return performLinkQueries(backwardIndex, "target", records, vtag, sourceField);
+        } catch (IOException e) {
+            throw new LinkIndexException("Error getting referrers for " + records.size() + " records, vtag '" +
+                    vtag + "', field '" + sourceField + "'", e);
+        } finally {
+            metrics.report(Action.GET_REFERRERS, System.currentTimeMillis() - before);
+        }
+    }
+
     public Set<FieldedLink> getFieldedReferrers(RecordId record, SchemaId vtag) throws LinkIndexException {
         long before = System.currentTimeMillis();
         try {
@@ -402,6 +486,68 @@ public class LinkIndex {
         }
     }
 
+    /**
+     * Multi-record variant of {@link #getForwardLinks(RecordId, SchemaId, SchemaId)}, see
+     * {@link #getReferrers(Collection, SchemaId, SchemaId)}.
+     */
+    public Map<RecordId, Set<RecordId>> getForwardLinks(Collection<RecordId> records, SchemaId vtag,
+            SchemaId sourceField) throws LinkIndexException {
+        long before = System.currentTimeMillis();
+        try {
+            return performLinkQueries(forwardIndex, "source", records, vtag, sourceField);
+        } catch (IOException e) {
+            throw new LinkIndexException("Error getting forward links for " + records.size() + " records, vtag '" +
+                    vtag + "', field '" + sourceField + "'", e);
+        } finally {
+            metrics.report(Action.GET_FW_LINKS, System.currentTimeMillis() - before);
+        }
+    }
+
+    /**
+     * Performs one query per record on the given index, and returns the identifiers found for each record.
+     *
+     * @param recordField the index field holding the record
+     */
+    private Map<RecordId, Set<RecordId>> performLinkQueries(Index index, String recordField,
+            Collection<RecordId> records, SchemaId vtag, SchemaId sourceField) throws IOException {
+        List<RecordId> recordList = new ArrayList<RecordId>(records);
+        List<QueryResult> results = index.performQueries(createLinkQueries(recordField, recordList, vtag,
+                sourceField));
+
+        Map<RecordId, Set<RecordId>> linksByRecord = new HashMap<RecordId, Set<RecordId>>();
+        for (int i = 0; i < recordList.size(); i++) {
+            Set<RecordId> links = new HashSet<RecordId>();
+            QueryResult qr = results.get(i);
+            byte[] id;
+            while ((id = qr.next()) != null) {
+                links.add(idGenerator.fromBytes(id));
+            }
+            qr.close();
+            linksByRecord.put(recordList.get(i), links);
+        }
+        return linksByRecord;
+    }
+
+    /**
+     * Creates one query per record, in the order of the records.
+     */
+    private List<Query> createLinkQueries(String recordField, Collection<RecordId> records, SchemaId vtag,
+            SchemaId sourceField) {
+        List<Query> queries = new ArrayList<Query>(records.size());
+        for (RecordId record : records) {
+            Query query = new Query();
+            query.addEqualsCondition(recordField, record.toBytes());
+            if (vtag != null) {
+                query.addEqualsCondition("vtag", vtag.getBytes());
+            }
+            if (sourceField != null) {
+                query.addEqualsCondition("sourcefield", sourceField.getBytes());
+            }
+            queries.add(query);
+        }
+        return queries;
+    }
+
     public Set<FieldedLink> getFieldedForwardLinks(RecordId record, SchemaId vtag)
             throws LinkIndexException {
         long before = System.currentTimeMillis();
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.linkindex;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.lilyproject.hbaseindex.QueryResult;
+import org.lilyproject.linkindex.LinkIndexMetrics.Action;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.SchemaId;
+
+/**
+ * Iterates over the referrers of a record, or of a number of records, as they are read from the backward link
+ * index, see {@link LinkIndex#getReferrersIterator}.
+ *
+ * <p>Contrary to {@link LinkIndex#getReferrers}, the referrers are not collected in a set, so that records
+ * with a very large number of referrers can be handled with bounded memory. As a consequence, the same
+ * referrer is returned more than once if it links to the record from multiple fields or vtags, unless these
+ * were specified when asking for the iterator.
+ *
+ * <p>The iterator should be closed after use, this releases the underlying scanner.
+ */
+public class ReferrerIterator implements Closeable {
+    /**
+     * The query results are iterated one after the other.
+     */
+    private final List<QueryResult> queryResults;
+    private int current = 0;
+    private final IdGenerator idGenerator;
+    private final byte[] sourceFieldKey;
+    private final LinkIndexMetrics metrics;
+    private final String description;
+    private final long createdAt = System.currentTimeMillis();
+    private SchemaId sourceField;
+    private boolean closed;
+
+    ReferrerIterator(QueryResult queryResult, IdGenerator idGenerator, byte[] sourceFieldKey,
+            LinkIndexMetrics metrics, String description) {
+        this(Collections.singletonList(queryResult), idGenerator, sourceFieldKey, metrics, description);
+    }
+
+    ReferrerIterator(List<QueryResult> queryResults, IdGenerator idGenerator, byte[] sourceFieldKey,
+            LinkIndexMetrics metrics, String description) {
+        this.queryResults = queryResults;
+        this.idGenerator = idGenerator;
+        this.sourceFieldKey = sourceFieldKey;
+        this.metrics = metrics;
+        this.description = description;
+    }
+
+    /**
+     * Returns the next referrer, or null if there are no more referrers.
+     */
+    public RecordId next() throws LinkIndexException {
+        try {
+            sourceField = null;
+            while (current < queryResults.size()) {
+                byte[] id = queryResults.get(current).next();
+                if (id != null) {
+                    return idGenerator.fromBytes(id);
+                }
+                // Release the rows of the exhausted query result before moving on to the next one
+                queryResults.get(current).close();
+                current++;
+            }
+            return null;
+        } catch (IOException e) {
+            throw new LinkIndexException("Error getting referrers " + description, e);
+        }
+    }
+
+    /**
+     * Returns up to pageSize next referrers, the returned list is only empty if there are no more referrers.
+     */
+    public List<RecordId> next(int pageSize) throws LinkIndexException {
+        List<RecordId> page = new ArrayList<RecordId>(Math.min(pageSize, 1000));
+        RecordId referrer;
+        while (page.size() < pageSize && (referrer = next()) != null) {
+            page.add(referrer);
+        }
+        return page;
+    }
+
+    /**
+     * Returns the field through which the last referrer returned by {@link #next()} links to the record.
+     */
+    public SchemaId getSourceField() {
+        if (sourceField == null) {
+            byte[] data = queryResults.get(current).getData(sourceFieldKey);
+            if (data != null) {
+                sourceField = idGenerator.getSchemaId(data);
+            }
+        }
+        return sourceField;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            for (int i = current; i < queryResults.size(); i++) {
+                queryResults.get(i).close();
+            }
+            metrics.report(Action.GET_REFERRERS, System.currentTimeMillis() - createdAt);
+        }
+    }
+}
@@ -23,6 +23,7 @@ import org.lilyproject.hbaseindex.IndexManager;
 import org.lilyproject.linkindex.FieldedLink;
 import org.lilyproject.linkindex.LinkIndex;
 import org.lilyproject.linkindex.LinkIndexUpdater;
+import org.lilyproject.linkindex.ReferrerIterator;
 import org.lilyproject.repository.api.*;
 import org.lilyproject.repository.impl.id.SchemaIdImpl;
 import org.lilyproject.repotestfw.RepositorySetup;
@@ -32,11 +33,14 @@ import org.lilyproject.util.io.Closer;
 import org.lilyproject.util.repo.VersionTag;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class LinkIndexTest {
@@ -123,6 +127,68 @@ public class LinkIndexTest {
         assertEquals(1, referrers.size());
     }
 
+    @Test
+    public void testReferrersIterator() throws Exception {
+        SchemaId liveTag = repository.getIdGenerator().getSchemaId(UUID.randomUUID());
+        RecordId target = ids.newRecordId("iteratorTarget");
+
+        Set<FieldedLink> links = new HashSet<FieldedLink>();
+        links.add(new FieldedLink(target, field1));
+
+        Set<RecordId> sources = new HashSet<RecordId>();
+        for (int i = 0; i < 5; i++) {
+            RecordId source = ids.newRecordId("iteratorSource" + i);
+            sources.add(source);
+            linkIndex.updateLinks(source, liveTag, links);
+        }
+
+        ReferrerIterator referrers = linkIndex.getReferrersIterator(target, liveTag, field1);
+        try {
+            Set<RecordId> found = new HashSet<RecordId>(referrers.next(3));
+            assertEquals(3, found.size());
+            RecordId referrer = referrers.next();
+            assertEquals(field1, referrers.getSourceField());
+            found.add(referrer);
+            found.addAll(referrers.next(3));
+            assertEquals(sources, found);
+            assertNull(referrers.next());
+            assertTrue(referrers.next(3).isEmpty());
+        } finally {
+            referrers.close();
+        }
+    }
+
+    @Test
+    public void testMultiRecordQueries() throws Exception {
+        SchemaId liveTag = repository.getIdGenerator().getSchemaId(UUID.randomUUID());
+        RecordId target1 = ids.newRecordId("multiTarget1");
+        RecordId target2 = ids.newRecordId("multiTarget2");
+        RecordId target3 = ids.newRecordId("multiTarget3");
+        RecordId source1 = ids.newRecordId("multiSource1");
+        RecordId source2 = ids.newRecordId("multiSource2");
+
+        Set<FieldedLink> links1 = new HashSet<FieldedLink>();
+        links1.add(new FieldedLink(target1, field1));
+        links1.add(new FieldedLink(target2, field1));
+        linkIndex.updateLinks(source1, liveTag, links1);
+
+        Set<FieldedLink> links2 = new HashSet<FieldedLink>();
+        links2.add(new FieldedLink(target2, field1));
+        linkIndex.updateLinks(source2, liveTag, links2);
+
+        Map<RecordId, Set<RecordId>> referrers = linkIndex.getReferrers(Arrays.asList(target1, target2, target3),
+                liveTag, field1);
+        assertEquals(3, referrers.size());
+        assertEquals(Collections.singleton(source1), referrers.get(target1));
+        assertEquals(new HashSet<RecordId>(Arrays.asList(source1, source2)), referrers.get(target2));
+        assertTrue(referrers.get(target3).isEmpty());
+
+        Map<RecordId, Set<RecordId>> forwardLinks = linkIndex.getForwardLinks(Arrays.asList(source1, source2),
+                liveTag, null);
+        assertEquals(new HashSet<RecordId>(Arrays.asList(target1, target2)), forwardLinks.get(source1));
+        assertEquals(Collections.singleton(target2), forwardLinks.get(source2));
+    }
+
     @Test
     public void testLinkIndexWithShortRecordIds() throws Exception {
         final RecordId id1 = ids.newRecordId("id1");
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.client;
+
+import java.util.List;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.lilyproject.repository.api.MutationCondition;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RecordResult;
+import org.lilyproject.repository.api.Repository;
+
+/**
+ * Asynchronous variant of the record operations of {@link Repository}.
+ *
+ * <p>The methods return immediately with a future, rather than blocking the calling thread until the Lily
+ * server has answered. This allows a single client thread to have many operations in flight at the same time.
+ *
+ * <p>The semantics of each operation are the same as those of the corresponding method in {@link Repository}.
+ * In case the operation fails, {@link java.util.concurrent.Future#get()} throws an ExecutionException whose cause
+ * is the exception the blocking Repository method would have thrown.
+ *
+ * <p>Instances are obtained through {@link LilyClient#getAsyncRepository()}.
+ */
+public interface AsyncRepository {
+    /**
+     * See {@link Repository#create(Record)}.
+     */
+    ListenableFuture<Record> create(Record record);
+
+    /**
+     * See {@link Repository#update(Record)}.
+     */
+    ListenableFuture<Record> update(Record record);
+
+    /**
+     * See {@link Repository#update(Record, boolean, boolean, List)}.
+     */
+    ListenableFuture<Record> update(Record record, boolean updateVersion, boolean useLatestRecordType,
+            List<MutationCondition> conditions);
+
+    /**
+     * See {@link Repository#createOrUpdate(Record)}.
+     */
+    ListenableFuture<Record> createOrUpdate(Record record);
+
+    /**
+     * See {@link Repository#createOrUpdate(Record, boolean)}.
+     */
+    ListenableFuture<Record> createOrUpdate(Record record, boolean useLatestRecordType);
+
+    /**
+     * See {@link Repository#createOrUpdate(List, boolean)}.
+     */
+    ListenableFuture<List<RecordResult>> createOrUpdate(List<Record> records, boolean useLatestRecordType);
+
+    /**
+     * See {@link Repository#read(RecordId, Long, List)}.
+     *
+     * @param version optional (can be null), null to read the latest version
+     * @param fieldNames optional (can be null), null to read all fields
+     */
+    ListenableFuture<Record> read(RecordId recordId, Long version, List<QName> fieldNames);
+
+    /**
+     * See {@link Repository#read(List, List)}.
+     */
+    ListenableFuture<List<Record>> read(List<RecordId> recordIds, List<QName> fieldNames);
+
+    /**
+     * See {@link Repository#delete(RecordId, List)}.
+     *
+     * @param conditions optional (can be null)
+     */
+    ListenableFuture<Record> delete(RecordId recordId, List<MutationCondition> conditions);
+}
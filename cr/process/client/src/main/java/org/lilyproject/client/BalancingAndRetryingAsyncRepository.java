@@ -0,0 +1,252 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.lilyproject.repository.api.IORecordException;
+import org.lilyproject.repository.api.MutationCondition;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RecordResult;
+import org.lilyproject.repository.api.RetriesExhaustedRecordException;
+import org.lilyproject.util.concurrent.CustomThreadFactory;
+
+import static org.lilyproject.client.BalancingAndRetryingRepository.getSleepTime;
+import static org.lilyproject.client.BalancingAndRetryingRepository.isCallInitiated;
+import static org.lilyproject.client.BalancingAndRetryingRepository.isRetryableOperation;
+import static org.lilyproject.client.BalancingAndRetryingRepository.isRetryableThrowable;
+
+/**
+ * The asynchronous counterpart of {@link BalancingAndRetryingRepository}: spreads the operations over
+ * the available Lily servers and retries them according to the {@link RetryConf} of the {@link LilyClient}.
+ *
+ * <p>Retries never block a thread: a failed attempt is rescheduled after the retry interval, and the future
+ * handed out to the caller only completes once an attempt succeeds or retrying is given up.
+ */
+public class BalancingAndRetryingAsyncRepository implements AsyncRepository, Closeable {
+    private final LilyClient lilyClient;
+    private final ScheduledExecutorService retryExecutor;
+
+    private Log log = LogFactory.getLog(getClass());
+
+    public BalancingAndRetryingAsyncRepository(LilyClient lilyClient) {
+        this.lilyClient = lilyClient;
+        this.retryExecutor = Executors.newSingleThreadScheduledExecutor(
+                new CustomThreadFactory("lilyclient-async-retry", null, true));
+    }
+
+    @Override
+    public void close() throws IOException {
+        retryExecutor.shutdownNow();
+    }
+
+    @Override
+    public ListenableFuture<Record> create(final Record record) {
+        return execute("create", new Operation<Record>() {
+            @Override
+            public ListenableFuture<Record> invoke(AsyncRepository repository) {
+                return repository.create(record);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Record> update(final Record record) {
+        return execute("update", new Operation<Record>() {
+            @Override
+            public ListenableFuture<Record> invoke(AsyncRepository repository) {
+                return repository.update(record);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Record> update(final Record record, final boolean updateVersion,
+            final boolean useLatestRecordType, final List<MutationCondition> conditions) {
+        return execute("update", new Operation<Record>() {
+            @Override
+            public ListenableFuture<Record> invoke(AsyncRepository repository) {
+                return repository.update(record, updateVersion, useLatestRecordType, conditions);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Record> createOrUpdate(Record record) {
+        return createOrUpdate(record, true);
+    }
+
+    @Override
+    public ListenableFuture<Record> createOrUpdate(final Record record, final boolean useLatestRecordType) {
+        return execute("createOrUpdate", new Operation<Record>() {
+            @Override
+            public ListenableFuture<Record> invoke(AsyncRepository repository) {
+                return repository.createOrUpdate(record, useLatestRecordType);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<List<RecordResult>> createOrUpdate(final List<Record> records,
+            final boolean useLatestRecordType) {
+        return execute("createOrUpdate", new Operation<List<RecordResult>>() {
+            @Override
+            public ListenableFuture<List<RecordResult>> invoke(AsyncRepository repository) {
+                return repository.createOrUpdate(records, useLatestRecordType);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Record> read(final RecordId recordId, final Long version, final List<QName> fieldNames) {
+        return execute("read", new Operation<Record>() {
+            @Override
+            public ListenableFuture<Record> invoke(AsyncRepository repository) {
+                return repository.read(recordId, version, fieldNames);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<List<Record>> read(final List<RecordId> recordIds, final List<QName> fieldNames) {
+        return execute("read", new Operation<List<Record>>() {
+            @Override
+            public ListenableFuture<List<Record>> invoke(AsyncRepository repository) {
+                return repository.read(recordIds, fieldNames);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Record> delete(final RecordId recordId, final List<MutationCondition> conditions) {
+        return execute("delete", new Operation<Record>() {
+            @Override
+            public ListenableFuture<Record> invoke(AsyncRepository repository) {
+                return repository.delete(recordId, conditions);
+            }
+        });
+    }
+
+    /**
+     * @param methodName the name of the corresponding Repository method, which determines the retry behavior
+     */
+    private <T> ListenableFuture<T> execute(String methodName, Operation<T> operation) {
+        RetryingCall<T> call = new RetryingCall<T>(methodName, operation);
+        call.run();
+        return call.future;
+    }
+
+    private interface Operation<T> {
+        ListenableFuture<T> invoke(AsyncRepository repository);
+    }
+
+    private class RetryingCall<T> implements Runnable {
+        private final String methodName;
+        private final Operation<T> operation;
+        private final SettableFuture<T> future = SettableFuture.create();
+        private final long startedAt = System.currentTimeMillis();
+        private int attempt = 0;
+
+        RetryingCall(String methodName, Operation<T> operation) {
+            this.methodName = methodName;
+            this.operation = operation;
+        }
+
+        @Override
+        public void run() {
+            ListenableFuture<T> result;
+            try {
+                result = operation.invoke(lilyClient.getPlainAsyncRepository());
+            } catch (NoServersException e) {
+                // Wrapped for the same reason as in BalancingAndRetryingRepository, this also marks the call
+                // as not initiated
+                handleFailure(new IORecordException(e));
+                return;
+            } catch (Throwable t) {
+                handleFailure(t);
+                return;
+            }
+
+            Futures.addCallback(result, new FutureCallback<T>() {
+                @Override
+                public void onSuccess(T value) {
+                    future.set(value);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    handleFailure(t);
+                }
+            });
+        }
+
+        private void handleFailure(Throwable throwable) {
+            if (!isRetryableThrowable(throwable)) {
+                future.setException(throwable);
+                return;
+            }
+
+            long timeSpentRetrying = System.currentTimeMillis() - startedAt;
+            if (timeSpentRetrying > lilyClient.getRetryConf().getRetryMaxTime()) {
+                future.setException(new RetriesExhaustedRecordException(getOpString(), attempt, timeSpentRetrying,
+                        throwable));
+                return;
+            }
+
+            if (!isRetryableOperation(lilyClient.getRetryConf(), methodName, isCallInitiated(throwable))) {
+                future.setException(throwable);
+                return;
+            }
+
+            int sleepTime = getSleepTime(lilyClient.getRetryConf(), attempt);
+            if (log.isDebugEnabled() || log.isInfoEnabled()) {
+                String message = "Will retry operation " + getOpString() + " in " + sleepTime + "ms, attempt " +
+                        attempt + " failed due to " + throwable.getCause();
+                if (log.isDebugEnabled()) {
+                    log.debug(message, throwable);
+                } else if (log.isInfoEnabled()) {
+                    log.info(message);
+                }
+            }
+            attempt++;
+
+            try {
+                retryExecutor.schedule(this, sleepTime, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // The repository has been closed
+                future.setException(throwable);
+            }
+        }
+
+        private String getOpString() {
+            return AsyncRepository.class.getSimpleName() + "." + methodName;
+        }
+    }
+}
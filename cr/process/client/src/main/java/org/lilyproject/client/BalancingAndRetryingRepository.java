@@ -151,20 +151,8 @@ public class BalancingAndRetryingRepository {
             if (throwable instanceof InvocationTargetException)
                 throwable = ((InvocationTargetException)throwable).getTargetException();
 
-            if (throwable instanceof IORecordException || throwable instanceof IOBlobException ||
-                    throwable instanceof IOTypeException || throwable instanceof RecordLockedException) {
-
-                boolean callInitiated = true;
-                if (throwable.getCause() instanceof NoServersException) {
-                    // I initially thought we could also assume the request was not yet launched in case of
-                    // ConnectException with msg "Connection refused". However, at least with the Avro HttpTransceiver,
-                    // this exception can also occur when the connection is lost between writing the request
-                    // and reading the response. On reading the response, the Java URLConnection will see
-                    // there is no connection anymore and reestablish it, hence giving a "connection refused" error.
-                    // In this situation, the request is sent out by the server, so it is not safe to simply redo it.
-                    callInitiated = false;
-                }
-                handleRetry(method, startedAt, attempt, callInitiated, throwable, opType);
+            if (isRetryableThrowable(throwable)) {
+                handleRetry(method, startedAt, attempt, isCallInitiated(throwable), throwable, opType);
             } else {
                 throw throwable;
             }
@@ -187,28 +175,8 @@ public class BalancingAndRetryingRepository {
                 }
             }
 
-            String methodName = method.getName();
-
-            boolean retry = false;
-
-            // Since the "newSomething" methods are simple factory methods, put them in the same class as reads
-            // TODO: the methods starting with get include the blob methods getInputStream and getOutputStream,
-            //       which should probably have a different treatment
-            if ((methodName.startsWith("read") || methodName.startsWith("get") || methodName.startsWith("new"))
-                    && retryConf.getRetryReads()) {
-                retry = true;
-            } else if (methodName.equals("createOrUpdate") && retryConf.getRetryCreateOrUpdate()) {
-                retry = true;
-            } else if (methodName.startsWith("update") && retryConf.getRetryUpdates()) {
-                retry = true;
-            } else if (methodName.startsWith("delete") && retryConf.getRetryDeletes()) {
-                retry = true;
-            } else if (methodName.startsWith("create") && retryConf.getRetryCreate() && (!callInitiated || retryConf.getRetryCreateRiskDoubles())) {
-                retry = true;
-            }
-
-            if (retry) {
-                int sleepTime = getSleepTime(attempt);
+            if (isRetryableOperation(retryConf, method.getName(), callInitiated)) {
+                int sleepTime = getSleepTime(retryConf, attempt);
                 if (log.isDebugEnabled() || log.isInfoEnabled()) {
                     String message = "Sleeping " + sleepTime + "ms before retrying operation " +
                             getOpString(method) + " attempt " + attempt +
@@ -225,14 +193,55 @@ public class BalancingAndRetryingRepository {
             }
         }
 
-        private int getSleepTime(int attempt) throws InterruptedException {
-            int pos = attempt < retryConf.getRetryIntervals().length ? attempt : retryConf.getRetryIntervals().length - 1;
-            int waitTime = retryConf.getRetryIntervals()[pos];
-            return waitTime;
-        }
-
         private String getOpString(Method method) {
             return method.getDeclaringClass().getSimpleName() + "." + method.getName();
         }
     }
+
+    /**
+     * Returns true for the exceptions which indicate that an operation might succeed when tried again.
+     */
+    static boolean isRetryableThrowable(Throwable throwable) {
+        return throwable instanceof IORecordException || throwable instanceof IOBlobException ||
+                throwable instanceof IOTypeException || throwable instanceof RecordLockedException;
+    }
+
+    static boolean isCallInitiated(Throwable throwable) {
+        // I initially thought we could also assume the request was not yet launched in case of
+        // ConnectException with msg "Connection refused". However, at least with the Avro HttpTransceiver,
+        // this exception can also occur when the connection is lost between writing the request
+        // and reading the response. On reading the response, the Java URLConnection will see
+        // there is no connection anymore and reestablish it, hence giving a "connection refused" error.
+        // In this situation, the request is sent out by the server, so it is not safe to simply redo it.
+        return !(throwable.getCause() instanceof NoServersException);
+    }
+
+    /**
+     * Decides, based on the {@link RetryConf}, whether the operation with the given (Repository or TypeManager)
+     * method name can be retried.
+     */
+    static boolean isRetryableOperation(RetryConf retryConf, String methodName, boolean callInitiated) {
+        // Since the "newSomething" methods are simple factory methods, put them in the same class as reads
+        // TODO: the methods starting with get include the blob methods getInputStream and getOutputStream,
+        //       which should probably have a different treatment
+        if ((methodName.startsWith("read") || methodName.startsWith("get") || methodName.startsWith("new"))
+                && retryConf.getRetryReads()) {
+            return true;
+        } else if (methodName.equals("createOrUpdate") && retryConf.getRetryCreateOrUpdate()) {
+            return true;
+        } else if (methodName.startsWith("update") && retryConf.getRetryUpdates()) {
+            return true;
+        } else if (methodName.startsWith("delete") && retryConf.getRetryDeletes()) {
+            return true;
+        } else if (methodName.startsWith("create") && retryConf.getRetryCreate() && (!callInitiated || retryConf.getRetryCreateRiskDoubles())) {
+            return true;
+        }
+        return false;
+    }
+
+    static int getSleepTime(RetryConf retryConf, int attempt) {
+        int pos = attempt < retryConf.getRetryIntervals().length ? attempt : retryConf.getRetryIntervals().length - 1;
+        int waitTime = retryConf.getRetryIntervals()[pos];
+        return waitTime;
+    }
 }
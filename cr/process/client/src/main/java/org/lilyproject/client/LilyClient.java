@@ -20,6 +20,8 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -40,6 +42,7 @@ import org.lilyproject.repository.impl.id.IdGeneratorImpl;
 import org.lilyproject.util.hbase.HBaseTableFactory;
 import org.lilyproject.util.hbase.HBaseTableFactoryImpl;
 import org.lilyproject.util.hbase.LocalHTable;
+import org.lilyproject.util.concurrent.CustomThreadFactory;
 import org.lilyproject.util.io.Closer;
 import org.lilyproject.util.json.JsonFormat;
 import org.lilyproject.util.repo.DfsUri;
@@ -69,6 +72,8 @@ public class LilyClient implements Closeable {
     private ZkWatcher watcher = new ZkWatcher();
 
     private Repository balancingAndRetryingRepository = BalancingAndRetryingRepository.getInstance(this);
+    private BalancingAndRetryingAsyncRepository balancingAndRetryingAsyncRepository;
+    private ExecutorService asyncCallbackExecutor;
     private RemoteSchemaCache schemaCache;
     private HBaseConnections hbaseConnections = new HBaseConnections();
     
@@ -108,6 +113,14 @@ public class LilyClient implements Closeable {
 
         for (ServerNode node : servers) {
             Closer.close(node.repository);
+            Closer.close(node.asyncRepository);
+        }
+
+        synchronized (this) {
+            Closer.close(balancingAndRetryingAsyncRepository);
+            if (asyncCallbackExecutor != null) {
+                asyncCallbackExecutor.shutdownNow();
+            }
         }
         
         
@@ -165,6 +178,46 @@ public class LilyClient implements Closeable {
         return balancingAndRetryingRepository;
     }
 
+    /**
+     * Returns an asynchronous repository which, like {@link #getRepository()}, balances requests over the
+     * available Lily servers and retries operations according to what is specified in {@link RetryConf}.
+     *
+     * <p>Per Lily server, all requests are multiplexed over one connection, so there is no need to use
+     * many client threads to achieve a high throughput.
+     */
+    public synchronized AsyncRepository getAsyncRepository() {
+        if (balancingAndRetryingAsyncRepository == null) {
+            balancingAndRetryingAsyncRepository = new BalancingAndRetryingAsyncRepository(this);
+        }
+        return balancingAndRetryingAsyncRepository;
+    }
+
+    /**
+     * Returns an asynchronous repository that uses one of the available Lily servers (randomly selected).
+     * The same remarks as for {@link #getPlainRepository()} apply. Most of the time, you will rather use
+     * {@link #getAsyncRepository()}.
+     */
+    public synchronized AsyncRepository getPlainAsyncRepository() throws IOException, NoServersException,
+            InterruptedException, KeeperException, RepositoryException {
+        if (servers.size() == 0) {
+            throw new NoServersException("No servers available");
+        }
+        int pos = (int)Math.floor(Math.random() * servers.size());
+        ServerNode server = servers.get(pos);
+        if (server.repository == null) {
+            constructRepository(server);
+        }
+        if (server.asyncRepository == null) {
+            if (asyncCallbackExecutor == null) {
+                asyncCallbackExecutor = Executors.newCachedThreadPool(
+                        new CustomThreadFactory("lilyclient-async-callback", null, true));
+            }
+            server.asyncRepository = new RemoteAsyncRepository(parseAddressAndPort(server.lilyAddressAndPort),
+                    server.converter, asyncCallbackExecutor);
+        }
+        return server.asyncRepository;
+    }
+
     public RetryConf getRetryConf() {
         return retryConf;
     }
@@ -197,6 +250,7 @@ public class LilyClient implements Closeable {
         
         typeManager.start();
         server.repository = repository;
+        server.converter = remoteConverter;
     }
     
     public static BlobManager getBlobManager(ZooKeeperItf zk, HBaseConnections hbaseConns) throws IOException {
@@ -267,6 +321,8 @@ public class LilyClient implements Closeable {
     private class ServerNode {
         private String lilyAddressAndPort;
         private Repository repository;
+        private AvroConverter converter;
+        private RemoteAsyncRepository asyncRepository;
 
         public ServerNode(String lilyAddressAndPort) {
             this.lilyAddressAndPort = lilyAddressAndPort;
@@ -320,6 +376,7 @@ public class LilyClient implements Closeable {
             if (removedServers.contains(server.lilyAddressAndPort)) {
                 serverIt.remove();
                 Closer.close(server.repository);
+                Closer.close(server.asyncRepository);
             }
         }
         serverAddresses.removeAll(removedServers);
@@ -341,6 +398,7 @@ public class LilyClient implements Closeable {
             ServerNode server = serverIt.next();
             serverIt.remove();
             Closer.close(server.repository);
+            Closer.close(server.asyncRepository);
         }
 
         serverAddresses.clear();
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.avro.AvroRemoteException;
+import org.apache.avro.ipc.Callback;
+import org.apache.avro.ipc.Transceiver;
+import org.apache.avro.ipc.specific.SpecificRequestor;
+import org.lilyproject.repository.api.IORecordException;
+import org.lilyproject.repository.api.MutationCondition;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RecordResult;
+import org.lilyproject.repository.avro.AvroConverter;
+import org.lilyproject.repository.avro.AvroGenericException;
+import org.lilyproject.repository.avro.AvroLily;
+import org.lilyproject.repository.avro.AvroQName;
+import org.lilyproject.repository.avro.AvroRecordResult;
+import org.lilyproject.repository.avro.AvroRepositoryException;
+import org.lilyproject.repository.impl.NettyTransceiverFactory;
+import org.lilyproject.util.ArgumentValidator;
+import org.lilyproject.util.io.Closer;
+
+/**
+ * {@link AsyncRepository} which talks to one Lily server, the asynchronous counterpart of
+ * {@link org.lilyproject.repository.impl.RemoteRepository}.
+ *
+ * <p>Requests are sent using Avro's callback API over a NettyTransceiver, which multiplexes any number of
+ * outstanding requests over a single connection.
+ *
+ * <p>The responses are converted on the supplied executor rather than on the Netty I/O thread: converting a
+ * record can require a (blocking) call to the type manager, which should never be done from an I/O thread.
+ */
+public class RemoteAsyncRepository implements AsyncRepository, Closeable {
+    private final AvroLily.Callback lilyProxy;
+    private final AvroConverter converter;
+    private final Executor callbackExecutor;
+    private final Transceiver client;
+
+    public RemoteAsyncRepository(InetSocketAddress address, AvroConverter converter, Executor callbackExecutor)
+            throws IOException {
+        this.converter = converter;
+        this.callbackExecutor = callbackExecutor;
+
+        client = NettyTransceiverFactory.create(address);
+
+        lilyProxy = SpecificRequestor.getClient(AvroLily.Callback.class, client);
+    }
+
+    @Override
+    public void close() throws IOException {
+        Closer.close(client);
+    }
+
+    @Override
+    public ListenableFuture<Record> create(Record record) {
+        RecordCallback callback = new RecordCallback();
+        try {
+            lilyProxy.create(converter.convert(record), callback);
+        } catch (Throwable t) {
+            callback.handleError(t);
+        }
+        return callback.getFuture();
+    }
+
+    @Override
+    public ListenableFuture<Record> update(Record record) {
+        return update(record, false, true, null);
+    }
+
+    @Override
+    public ListenableFuture<Record> update(Record record, boolean updateVersion, boolean useLatestRecordType,
+            List<MutationCondition> conditions) {
+        RecordCallback callback = new RecordCallback();
+        try {
+            lilyProxy.update(converter.convert(record), updateVersion, useLatestRecordType,
+                    converter.convert(record, conditions), callback);
+        } catch (Throwable t) {
+            callback.handleError(t);
+        }
+        return callback.getFuture();
+    }
+
+    @Override
+    public ListenableFuture<Record> createOrUpdate(Record record) {
+        return createOrUpdate(record, true);
+    }
+
+    @Override
+    public ListenableFuture<Record> createOrUpdate(Record record, boolean useLatestRecordType) {
+        RecordCallback callback = new RecordCallback();
+        try {
+            lilyProxy.createOrUpdate(converter.convert(record), useLatestRecordType, callback);
+        } catch (Throwable t) {
+            callback.handleError(t);
+        }
+        return callback.getFuture();
+    }
+
+    @Override
+    public ListenableFuture<List<RecordResult>> createOrUpdate(List<Record> records, boolean useLatestRecordType) {
+        RecordResultsCallback callback = new RecordResultsCallback();
+        try {
+            lilyProxy.createOrUpdateRecords(converter.convertRecords(records), useLatestRecordType, callback);
+        } catch (Throwable t) {
+            callback.handleError(t);
+        }
+        return callback.getFuture();
+    }
+
+    @Override
+    public ListenableFuture<Record> read(RecordId recordId, Long version, List<QName> fieldNames) {
+        RecordCallback callback = new RecordCallback();
+        try {
+            lilyProxy.read(converter.convert(recordId), converter.convertVersion(version),
+                    convertFieldNames(fieldNames), callback);
+        } catch (Throwable t) {
+            callback.handleError(t);
+        }
+        return callback.getFuture();
+    }
+
+    @Override
+    public ListenableFuture<List<Record>> read(List<RecordId> recordIds, List<QName> fieldNames) {
+        ArgumentValidator.notNull(recordIds, "recordIds");
+        RecordsCallback callback = new RecordsCallback();
+        try {
+            List<ByteBuffer> avroRecordIds = new ArrayList<ByteBuffer>(recordIds.size());
+            for (RecordId recordId : recordIds) {
+                avroRecordIds.add(converter.convert(recordId));
+            }
+            lilyProxy.readRecords(avroRecordIds, convertFieldNames(fieldNames), callback);
+        } catch (Throwable t) {
+            callback.handleError(t);
+        }
+        return callback.getFuture();
+    }
+
+    @Override
+    public ListenableFuture<Record> delete(RecordId recordId, List<MutationCondition> conditions) {
+        RecordCallback callback = new RecordCallback();
+        try {
+            lilyProxy.delete(converter.convert(recordId), converter.convert(null, conditions), callback);
+        } catch (Throwable t) {
+            callback.handleError(t);
+        }
+        return callback.getFuture();
+    }
+
+    private List<AvroQName> convertFieldNames(List<QName> fieldNames) {
+        if (fieldNames == null)
+            return null;
+        List<AvroQName> avroFieldNames = new ArrayList<AvroQName>(fieldNames.size());
+        for (QName fieldName : fieldNames) {
+            avroFieldNames.add(converter.convert(fieldName));
+        }
+        return avroFieldNames;
+    }
+
+    /**
+     * Maps the exceptions received from Avro onto the exceptions the blocking RemoteRepository would throw.
+     */
+    private Throwable convertError(Throwable error) {
+        if (error instanceof AvroRepositoryException) {
+            return converter.convert((AvroRepositoryException)error);
+        } else if (error instanceof AvroGenericException) {
+            return converter.convert((AvroGenericException)error);
+        } else if (error instanceof AvroRemoteException) {
+            // AvroRemoteException's are exceptions which are not declared in the avro protocol and
+            // which are not RuntimeException's.
+            if (error.getCause() instanceof IOException) {
+                return new IORecordException(error.getCause());
+            } else {
+                return converter.convert((AvroRemoteException)error);
+            }
+        } else if (error instanceof IOException) {
+            return new IORecordException(error);
+        }
+        return error;
+    }
+
+    /**
+     * Completes a future with the converted response of an Avro call.
+     */
+    private abstract class ConvertingCallback<A, T> implements Callback<A> {
+        private final SettableFuture<T> future = SettableFuture.create();
+
+        public ListenableFuture<T> getFuture() {
+            return future;
+        }
+
+        @Override
+        public void handleResult(final A result) {
+            try {
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            future.set(convert(result));
+                        } catch (Throwable t) {
+                            future.setException(t);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                future.setException(e);
+            }
+        }
+
+        @Override
+        public void handleError(Throwable error) {
+            future.setException(convertError(error));
+        }
+
+        protected abstract T convert(A result) throws Exception;
+    }
+
+    private class RecordCallback extends ConvertingCallback<ByteBuffer, Record> {
+        @Override
+        protected Record convert(ByteBuffer result) throws Exception {
+            return result == null ? null : converter.convertRecord(result);
+        }
+    }
+
+    private class RecordsCallback extends ConvertingCallback<List<ByteBuffer>, List<Record>> {
+        @Override
+        protected List<Record> convert(List<ByteBuffer> result) throws Exception {
+            return converter.convertAvroRecords(result);
+        }
+    }
+
+    private class RecordResultsCallback extends ConvertingCallback<List<AvroRecordResult>, List<RecordResult>> {
+        @Override
+        protected List<RecordResult> convert(List<AvroRecordResult> result) throws Exception {
+            return converter.convertAvroRecordResults(result);
+        }
+    }
+}
@@ -37,6 +37,7 @@ public class LinkIndexUpdaterSetup {
     private final Repository repository;
     private final Configuration hbaseConf;
     private final HBaseTableFactory tableFactory;
+    private IndexManager indexManager;
 
     public LinkIndexUpdaterSetup(Repository repository, Configuration hbaseConf, HBaseTableFactory tableFactory) {
         this.repository = repository;
@@ -52,7 +53,7 @@ public class LinkIndexUpdaterSetup {
 
         // The creation of the linkindex indexes happens in the general module.
 
-        IndexManager indexManager = new IndexManager(hbaseConf, tableFactory);
+        indexManager = new IndexManager(hbaseConf, tableFactory);
 
         LinkIndex linkIndex = new LinkIndex(indexManager, repository);
 
@@ -64,5 +65,8 @@ public class LinkIndexUpdaterSetup {
     @PreDestroy
     public void stop() {
         RowLogMessageListenerMapping.INSTANCE.remove("LinkIndexUpdater");
+        if (indexManager != null) {
+            indexManager.close();
+        }
     }
 }
@@ -129,14 +129,20 @@ public class RowLogSetup {
         }
 
         int shardCount = rowLogConf.getChild("shardCount").getValueAsInteger();
+        Conf putBufferConf = rowLogConf.getChild("shardPutBuffer");
+        int putBufferSize = putBufferConf.getChild("maxSize").getValueAsInteger(RowLogShardPutBuffer.DEFAULT_MAX_SIZE);
+        long putBufferDelay = putBufferConf.getChild("maxDelay").getValueAsLong(RowLogShardPutBuffer.DEFAULT_MAX_DELAY);
+        boolean compactExecutionState = rowLogConf.getChild("compactExecutionState").getValueAsBoolean(false);
 
         messageQueue = new RowLogImpl("mq", LilyHBaseSchema.getRecordTable(hbaseTableFactory), RecordCf.ROWLOG.bytes,
                 RecordColumn.MQ_PREFIX, confMgr, null, new RowLogHashShardRouter());
-        RowLogShardSetup.setupShards(shardCount, messageQueue, hbaseTableFactory);
+        messageQueue.setCompactExecutionState(compactExecutionState);
+        RowLogShardSetup.setupShards(shardCount, messageQueue, hbaseTableFactory, putBufferSize, putBufferDelay);
 
         writeAheadLog = new WalRowLog("wal", LilyHBaseSchema.getRecordTable(hbaseTableFactory), RecordCf.ROWLOG.bytes,
                 RecordColumn.WAL_PREFIX, confMgr, rowLocker, new RowLogHashShardRouter());
-        RowLogShardSetup.setupShards(shardCount, writeAheadLog, hbaseTableFactory);
+        writeAheadLog.setCompactExecutionState(compactExecutionState);
+        RowLogShardSetup.setupShards(shardCount, writeAheadLog, hbaseTableFactory, putBufferSize, putBufferDelay);
 
         RowLogMessageListenerMapping.INSTANCE.put(WalListener.ID, new WalListener(writeAheadLog, rowLocker));
         RowLogMessageListenerMapping.INSTANCE.put("MQFeeder", new MessageQueueFeeder(messageQueue));
@@ -215,6 +221,18 @@ public class RowLogSetup {
                 conf.getChild("messagesWorkQueueSize")
                         .getValueAsInteger(settings.getMessagesWorkQueueSize()));
 
+        settings.setMaxScansPerRegionServer(
+                conf.getChild("maxScansPerRegionServer")
+                        .getValueAsInteger(settings.getMaxScansPerRegionServer()));
+
+        settings.setMaxCoalescedMessages(
+                conf.getChild("maxCoalescedMessages")
+                        .getValueAsInteger(settings.getMaxCoalescedMessages()));
+
+        if (conf.getChild("pushEnabled").getValueAsBoolean(false)) {
+            settings.setPushHostName(hostName);
+        }
+
         return settings;
     }
 
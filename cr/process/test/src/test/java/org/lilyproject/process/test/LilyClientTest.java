@@ -17,17 +17,28 @@ package org.lilyproject.process.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.zookeeper.KeeperException;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.lilyproject.client.AsyncRepository;
 import org.lilyproject.client.LilyClient;
+import org.lilyproject.client.NoServersException;
+import org.lilyproject.client.RetryConf;
 import org.lilyproject.lilyservertestfw.LilyProxy;
 import org.lilyproject.repository.api.*;
+import org.lilyproject.util.io.Closer;
 
 public class LilyClientTest {
     private static LilyProxy lilyProxy;
@@ -135,6 +146,109 @@ public class LilyClientTest {
 
     }
 
+    /**
+     * Creates, reads, updates and deletes a record through the asynchronous repository.
+     */
+    @Test
+    public void testAsyncRepository() throws Exception {
+        LilyClient client = lilyProxy.getLilyServerProxy().getClient();
+        Repository repository = client.getRepository();
+        AsyncRepository asyncRepository = client.getAsyncRepository();
+
+        String NS = "org.lilyproject.client.test";
+        QName fieldName = new QName(NS, "asyncfield");
+        createRecordType(repository, fieldName, new QName(NS, "asyncrt"));
+
+        Record record = repository.newRecord(repository.getIdGenerator().newRecordId("async1"));
+        record.setRecordType(new QName(NS, "asyncrt"));
+        record.setField(fieldName, "value 1");
+        Record created = asyncRepository.create(record).get();
+        assertEquals(record.getId(), created.getId());
+        assertEquals(new Long(1), created.getVersion());
+
+        assertEquals("value 1", asyncRepository.read(record.getId(), null, null).get().getField(fieldName));
+        // The record is also visible to the blocking repository
+        assertEquals("value 1", repository.read(record.getId()).getField(fieldName));
+
+        record.setField(fieldName, "value 2");
+        assertEquals(new Long(2), asyncRepository.update(record).get().getVersion());
+
+        // Records which do not exist are left out
+        List<Record> records = asyncRepository.read(Arrays.asList(record.getId(),
+                repository.getIdGenerator().newRecordId("async2")), null).get();
+        assertEquals(1, records.size());
+        assertEquals("value 2", records.get(0).getField(fieldName));
+
+        asyncRepository.delete(record.getId(), null).get();
+        try {
+            asyncRepository.read(record.getId(), null, null).get();
+            fail("Expected RecordNotFoundException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RecordNotFoundException);
+        }
+    }
+
+    /**
+     * Operations on the asynchronous repository are retried as long as no server can be reached.
+     */
+    @Test
+    public void testAsyncRepositoryRetry() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(3);
+        LilyClient client = new LilyClient(lilyProxy.getLilyServerProxy().getZooKeeper()) {
+            @Override
+            public synchronized AsyncRepository getPlainAsyncRepository() throws IOException, NoServersException,
+                    InterruptedException, KeeperException, RepositoryException {
+                if (failures.getAndDecrement() > 0) {
+                    throw new NoServersException("No servers available");
+                }
+                return super.getPlainAsyncRepository();
+            }
+        };
+        try {
+            RetryConf retryConf = new RetryConf();
+            retryConf.setRetryIntervals(new int[] {10, 20});
+            client.setRetryConf(retryConf);
+            Repository repository = client.getRepository();
+            AsyncRepository asyncRepository = client.getAsyncRepository();
+
+            String NS = "org.lilyproject.client.test";
+            QName fieldName = new QName(NS, "asyncretryfield");
+            createRecordType(repository, fieldName, new QName(NS, "asyncretryrt"));
+
+            // A create which never reached a server can safely be retried
+            Record record = repository.newRecord(repository.getIdGenerator().newRecordId("asyncretry1"));
+            record.setRecordType(new QName(NS, "asyncretryrt"));
+            record.setField(fieldName, "value");
+            assertEquals(record.getId(), asyncRepository.create(record).get().getId());
+            // Three failed attempts and one successful one
+            assertEquals(-1, failures.get());
+            assertEquals("value", repository.read(record.getId()).getField(fieldName));
+
+            // Not retried forever
+            failures.set(Integer.MAX_VALUE);
+            retryConf.setRetryMaxTime(200);
+            try {
+                asyncRepository.read(record.getId(), null, null).get();
+                fail("Expected RetriesExhaustedRecordException");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RetriesExhaustedRecordException);
+            }
+        } finally {
+            Closer.close(client);
+        }
+    }
+
+    private void createRecordType(Repository repository, QName fieldName, QName recordTypeName)
+            throws Exception {
+        TypeManager typeManager = repository.getTypeManager();
+        FieldType fieldType = typeManager.newFieldType("STRING", fieldName, Scope.VERSIONED);
+        fieldType = typeManager.createFieldType(fieldType);
+
+        RecordType recordType = typeManager.newRecordType(recordTypeName);
+        recordType.addFieldTypeEntry(fieldType.getId(), false);
+        typeManager.createRecordType(recordType);
+    }
+
     private byte[] makeBlobData(int size) {
         return new byte[size];
     }
@@ -54,6 +54,16 @@ public class ManualProcessRowLog implements RowLog {
         return msg;
     }
 
+    @Override
+    public List<RowLogMessage> putMessages(List<byte[]> rowKeys, List<byte[]> payloads, List<Put> puts)
+            throws RowLogException, InterruptedException {
+
+        List<RowLogMessage> msgs = delegate.putMessages(rowKeys, payloads, puts);
+        unprocessedMessages.addAll(msgs);
+
+        return msgs;
+    }
+
     public void processMessages() throws RowLogException, InterruptedException {
         while (!unprocessedMessages.isEmpty()) {
             RowLogMessage msg = unprocessedMessages.remove(0);
@@ -20,6 +20,10 @@ import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.JsonNodeFactory;
 import org.codehaus.jackson.node.ObjectNode;
 import org.codehaus.jackson.util.ByteArrayBuilder;
+import org.lilyproject.bytes.api.DataInput;
+import org.lilyproject.bytes.api.DataOutput;
+import org.lilyproject.bytes.impl.DataInputImpl;
+import org.lilyproject.bytes.impl.DataOutputImpl;
 import org.lilyproject.repository.api.IdGenerator;
 import org.lilyproject.repository.api.SchemaId;
 import org.lilyproject.util.ObjectUtils;
@@ -34,9 +38,25 @@ import java.util.Set;
 /**
  * Represents the payload of an event about a create-update-delete operation on the repository.
  *
- * <p>The actual payload is json, this class helps in parsing or constructing that json.
+ * <p>The payload can be written in a compact binary format, see {@link #toBytes()}, or as json, see
+ * {@link #toJsonBytes()}. Both formats can be read, but older versions of Lily only read json: writers only
+ * use the binary format when configured to do so, see {@link #toBytes(boolean)}, which should only be done
+ * once all nodes of the cluster have been upgraded.
  */
 public class RecordEvent {
+    /**
+     * The first byte of a binary payload is the version of the binary format. Json payloads always start
+     * with '{', which can't be confused with a version number.
+     */
+    private static final byte BINARY_VERSION_1 = 1;
+
+    private static final int FLAG_RECORD_TYPE_CHANGED = 1;
+    private static final int FLAG_VERSION_CREATED = 1 << 1;
+    private static final int FLAG_VERSION_UPDATED = 1 << 2;
+    private static final int FLAG_INDEX_NAME = 1 << 3;
+    private static final int FLAG_UPDATED_FIELDS = 1 << 4;
+    private static final int FLAG_VTAGS_TO_INDEX = 1 << 5;
+
     private long versionCreated = -1;
     private long versionUpdated = -1;
     private Type type;
@@ -68,9 +88,24 @@ public class RecordEvent {
     }
 
     /**
-     * Creates a record event from the json data supplied as bytes.
+     * Creates a record event from its binary or json representation, as produced by {@link #toBytes()}
+     * or {@link #toJsonBytes()}.
      */
     public RecordEvent(byte[] data, IdGenerator idGenerator) throws IOException {
+        if (data.length == 0) {
+            throw new IOException("Empty record event payload.");
+        }
+
+        if (data[0] == '{') {
+            parseJson(data, idGenerator);
+        } else if (data[0] == BINARY_VERSION_1) {
+            decode(new DataInputImpl(data, 1, data.length - 1), idGenerator);
+        } else {
+            throw new IOException("Unsupported record event payload format: " + data[0]);
+        }
+    }
+
+    private void parseJson(byte[] data, IdGenerator idGenerator) throws IOException {
         // Using streaming JSON parsing for performance. We expect the JSON to be correct, validation
         // is absent/minimal.
 
@@ -196,6 +231,134 @@ public class RecordEvent {
         vtagsToIndex.add(vtag);
     }
 
+    private void decode(DataInput input, IdGenerator idGenerator) {
+        int typeOrdinal = input.readByte();
+        if (typeOrdinal > 0) {
+            Type[] types = Type.values();
+            if (typeOrdinal > types.length) {
+                throw new RuntimeException("Unexpected kind of message type: " + typeOrdinal);
+            }
+            type = types[typeOrdinal - 1];
+        }
+
+        int flags = input.readByte();
+        recordTypeChanged = (flags & FLAG_RECORD_TYPE_CHANGED) != 0;
+
+        if ((flags & FLAG_VERSION_CREATED) != 0) {
+            versionCreated = input.readVLong();
+        }
+
+        if ((flags & FLAG_VERSION_UPDATED) != 0) {
+            versionUpdated = input.readVLong();
+        }
+
+        if ((flags & FLAG_INDEX_NAME) != 0) {
+            indexName = input.readVUTF();
+        }
+
+        if ((flags & FLAG_UPDATED_FIELDS) != 0) {
+            updatedFields = readSchemaIds(input, idGenerator);
+        }
+
+        if ((flags & FLAG_VTAGS_TO_INDEX) != 0) {
+            vtagsToIndex = readSchemaIds(input, idGenerator);
+        }
+    }
+
+    private static Set<SchemaId> readSchemaIds(DataInput input, IdGenerator idGenerator) {
+        int count = input.readVInt();
+        Set<SchemaId> ids = new HashSet<SchemaId>((int)(count / 0.75f) + 1);
+        for (int i = 0; i < count; i++) {
+            ids.add(idGenerator.getSchemaId(input.readBytes(input.readVInt())));
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the binary representation of this record event if binary is true, and the json representation
+     * otherwise. Nodes running a Lily version older than the binary format can only read the json one.
+     */
+    public byte[] toBytes(boolean binary) {
+        return binary ? toBytes() : toJsonBytes();
+    }
+
+    /**
+     * Returns the binary representation of this record event.
+     *
+     * <p>The format is: a version byte, the type (ordinal + 1, 0 for none), a byte with flags telling which
+     * of the remaining items are present, the created and updated versions as vlongs, the index name as vutf,
+     * and the updated fields and vtags to index as a vint count followed by the length-prefixed schema ids.
+     */
+    public byte[] toBytes() {
+        int flags = 0;
+        if (recordTypeChanged) {
+            flags |= FLAG_RECORD_TYPE_CHANGED;
+        }
+        if (versionCreated != -1) {
+            flags |= FLAG_VERSION_CREATED;
+        }
+        if (versionUpdated != -1) {
+            flags |= FLAG_VERSION_UPDATED;
+        }
+        if (indexName != null) {
+            flags |= FLAG_INDEX_NAME;
+        }
+        if (updatedFields != null && updatedFields.size() > 0) {
+            flags |= FLAG_UPDATED_FIELDS;
+        }
+        if (vtagsToIndex != null && vtagsToIndex.size() > 0) {
+            flags |= FLAG_VTAGS_TO_INDEX;
+        }
+
+        DataOutput output = new DataOutputImpl(estimateSize());
+        output.writeByte(BINARY_VERSION_1);
+        output.writeByte((byte)(type != null ? type.ordinal() + 1 : 0));
+        output.writeByte((byte)flags);
+
+        if ((flags & FLAG_VERSION_CREATED) != 0) {
+            output.writeVLong(versionCreated);
+        }
+
+        if ((flags & FLAG_VERSION_UPDATED) != 0) {
+            output.writeVLong(versionUpdated);
+        }
+
+        if ((flags & FLAG_INDEX_NAME) != 0) {
+            output.writeVUTF(indexName);
+        }
+
+        if ((flags & FLAG_UPDATED_FIELDS) != 0) {
+            writeSchemaIds(updatedFields, output);
+        }
+
+        if ((flags & FLAG_VTAGS_TO_INDEX) != 0) {
+            writeSchemaIds(vtagsToIndex, output);
+        }
+
+        return output.toByteArray();
+    }
+
+    private int estimateSize() {
+        // Schema ids are typically 16 byte UUIDs
+        int size = 32;
+        if (updatedFields != null) {
+            size += updatedFields.size() * 17;
+        }
+        if (vtagsToIndex != null) {
+            size += vtagsToIndex.size() * 17;
+        }
+        return size;
+    }
+
+    private static void writeSchemaIds(Set<SchemaId> ids, DataOutput output) {
+        output.writeVInt(ids.size());
+        for (SchemaId id : ids) {
+            byte[] bytes = id.getBytes();
+            output.writeVInt(bytes.length);
+            output.writeBytes(bytes);
+        }
+    }
+
     public void toJson(JsonGenerator gen) throws IOException {
         gen.writeStartObject();
 
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.util.repo.test;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+import org.lilyproject.util.repo.RecordEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the binary encoding of {@link RecordEvent} payloads against the json encoding which was used
+ * before. The main method also prints the payload sizes of both encodings.
+ *
+ * <p>This is not a unit test, run it through its main method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RecordEventCodecBenchmark {
+    @Param({"1", "5", "50"})
+    public int updatedFields;
+
+    private IdGenerator idGenerator = new IdGeneratorImpl();
+    private RecordEvent event;
+    private byte[] jsonPayload;
+    private byte[] binaryPayload;
+
+    @Setup
+    public void setup() {
+        event = createEvent(idGenerator, updatedFields);
+        jsonPayload = event.toJsonBytes();
+        binaryPayload = event.toBytes();
+    }
+
+    private static RecordEvent createEvent(IdGenerator idGenerator, int updatedFields) {
+        RecordEvent event = new RecordEvent();
+        event.setType(RecordEvent.Type.UPDATE);
+        event.setVersionCreated(12);
+        event.setVersionUpdated(11);
+        for (int i = 0; i < updatedFields; i++) {
+            event.addUpdatedField(idGenerator.getSchemaId(UUID.randomUUID()));
+        }
+        return event;
+    }
+
+    @Benchmark
+    public byte[] encodeJson() {
+        return event.toJsonBytes();
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return event.toBytes();
+    }
+
+    @Benchmark
+    public RecordEvent decodeJson() throws Exception {
+        return new RecordEvent(jsonPayload, idGenerator);
+    }
+
+    @Benchmark
+    public RecordEvent decodeBinary() throws Exception {
+        return new RecordEvent(binaryPayload, idGenerator);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        IdGenerator idGenerator = new IdGeneratorImpl();
+        for (int updatedFields : new int[] {1, 5, 50}) {
+            RecordEvent event = createEvent(idGenerator, updatedFields);
+            System.out.println("Payload size with " + updatedFields + " updated fields: json " +
+                    event.toJsonBytes().length + " bytes, binary " + event.toBytes().length + " bytes");
+        }
+
+        new Runner(new OptionsBuilder()
+                .include(RecordEventCodecBenchmark.class.getSimpleName())
+                .forks(1)
+                .build()).run();
+    }
+}
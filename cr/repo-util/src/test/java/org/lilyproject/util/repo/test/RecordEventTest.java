@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.util.repo.test;
+
+import java.util.UUID;
+
+import org.junit.Test;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+import org.lilyproject.util.repo.RecordEvent;
+
+import static org.junit.Assert.assertEquals;
+
+public class RecordEventTest {
+    private IdGenerator idGenerator = new IdGeneratorImpl();
+
+    @Test
+    public void testBinaryRoundTrip() throws Exception {
+        RecordEvent event = new RecordEvent();
+        event.setType(RecordEvent.Type.UPDATE);
+        event.setVersionCreated(3);
+        event.setVersionUpdated(2);
+        event.setRecordTypeChanged(true);
+        event.addUpdatedField(idGenerator.getSchemaId(UUID.randomUUID()));
+        event.addUpdatedField(idGenerator.getSchemaId(UUID.randomUUID()));
+
+        assertEquals(event, new RecordEvent(event.toBytes(), idGenerator));
+
+        RecordEvent indexEvent = new RecordEvent();
+        indexEvent.setType(RecordEvent.Type.INDEX);
+        indexEvent.setIndexName("index\u00E9");
+        indexEvent.addVTagToIndex(idGenerator.getSchemaId(UUID.randomUUID()));
+
+        assertEquals(indexEvent, new RecordEvent(indexEvent.toBytes(), idGenerator));
+
+        RecordEvent emptyEvent = new RecordEvent();
+        assertEquals(emptyEvent, new RecordEvent(emptyEvent.toBytes(), idGenerator));
+    }
+
+    @Test
+    public void testReadJson() throws Exception {
+        RecordEvent event = new RecordEvent();
+        event.setType(RecordEvent.Type.CREATE);
+        event.setVersionCreated(1);
+        event.addUpdatedField(idGenerator.getSchemaId(UUID.randomUUID()));
+
+        // Payloads written by older versions are json
+        assertEquals(event, new RecordEvent(event.toJsonBytes(), idGenerator));
+    }
+}
@@ -30,6 +30,15 @@ public interface FieldTypes {
      * @throws RepositoryException when an unexpected exception occurs on the repository
      */
     FieldType getFieldType(SchemaId id) throws TypeException, InterruptedException;
+
+    /**
+     * Gets a FieldType from the FieldTypes, by the bytes of its ID, as stored in a larger byte array, for
+     * example a column qualifier. The ID is not copied out of the array.
+     *
+     * @throws FieldTypeNotFoundException when no fieldType with the given ID exists
+     * @throws RepositoryException when an unexpected exception occurs on the repository
+     */
+    FieldType getFieldType(byte[] idBytes, int offset, int length) throws TypeException, InterruptedException;
     
     /**
      * Gets a FieldType from the FieldTypes.
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.api;
+
+import org.lilyproject.util.ArgumentValidator;
+
+/**
+ * The outcome of one record in a batch operation such as {@link Repository#createOrUpdate(java.util.List)}.
+ *
+ * <p>Either {@link #getRecord()} or {@link #getException()} is non-null, never both.</p>
+ */
+public class RecordResult {
+    private final Record record;
+    private final RepositoryException exception;
+
+    public RecordResult(Record record) {
+        ArgumentValidator.notNull(record, "record");
+        this.record = record;
+        this.exception = null;
+    }
+
+    public RecordResult(RepositoryException exception) {
+        ArgumentValidator.notNull(exception, "exception");
+        this.record = null;
+        this.exception = exception;
+    }
+
+    /**
+     * The record as it was stored, with its {@link Record#getResponseStatus() response status} set.
+     * Returns null if the operation failed for this record.
+     */
+    public Record getRecord() {
+        return record;
+    }
+
+    /**
+     * The exception that caused the operation to fail for this record, null if it succeeded.
+     */
+    public RepositoryException getException() {
+        return exception;
+    }
+
+    public boolean isSuccess() {
+        return exception == null;
+    }
+}
@@ -202,6 +202,30 @@ public interface Repository extends Closeable {
      */
     Record createOrUpdate(Record record, boolean useLatestRecordType) throws RepositoryException, InterruptedException;
 
+    /**
+     * Creates or updates a batch of records.
+     *
+     * <p>See {@link #createOrUpdate(List, boolean)} for more details.
+     */
+    List<RecordResult> createOrUpdate(List<Record> records) throws RepositoryException, InterruptedException;
+
+    /**
+     * Creates or updates a batch of records, depending on whether each record already exists.
+     *
+     * <p>This is the batch equivalent of {@link #createOrUpdate(Record, boolean)}: reading the existing state
+     * of the records and writing their write-ahead-log messages is done in bulk, which saves a number of
+     * round trips compared to calling createOrUpdate for each record separately.
+     *
+     * <p>Each record must have an ID. Each record is created or updated on its own, the batch as a whole
+     * is not atomic. The returned list contains one {@link RecordResult} per supplied record, in the same
+     * order. A failure for one record does not stop the processing of the others, it is reported in the
+     * corresponding RecordResult instead.
+     *
+     * @throws RepositoryException only for failures that affect the whole batch
+     */
+    List<RecordResult> createOrUpdate(List<Record> records, boolean useLatestRecordType)
+            throws RepositoryException, InterruptedException;
+
     /**
      * @param recordId   the id of the record to read, null is not allowed
      * @param fieldNames list of names of the fields to read or null to read all fields
@@ -364,6 +388,18 @@ public interface Repository extends Closeable {
     IdRecord readWithIds(RecordId recordId, Long version, List<SchemaId> fieldIds)
             throws RepositoryException, InterruptedException;
 
+    /**
+     * Reads the last version of a list of records and also returns the mapping from QNames to IDs.
+     *
+     * <p>No RecordNotFoundException is thrown when a record does not exist or has been deleted.
+     * Instead, the returned list will not contain an entry for that requested id.
+     *
+     * @param recordIds ids of the records to read, null is not allowed
+     * @param fieldIds load only the fields with these ids. optional, can be null.
+     */
+    List<IdRecord> readWithIds(List<RecordId> recordIds, List<SchemaId> fieldIds)
+            throws RepositoryException, InterruptedException;
+
     /**
      * Delete a {@link Record} from the repository.
      *
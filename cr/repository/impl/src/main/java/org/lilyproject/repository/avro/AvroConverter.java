@@ -537,6 +537,34 @@ public class AvroConverter {
         return avroRecords;
     }
     
+    public List<AvroRecordResult> convertRecordResults(List<RecordResult> results) throws AvroRepositoryException,
+            AvroInterruptedException, RepositoryException, InterruptedException {
+        List<AvroRecordResult> avroResults = new ArrayList<AvroRecordResult>(results.size());
+        for (RecordResult result : results) {
+            AvroRecordResult avroResult = new AvroRecordResult();
+            if (result.isSuccess()) {
+                avroResult.setRecord(convert(result.getRecord()));
+            } else {
+                avroResult.setException(convert(result.getException()));
+            }
+            avroResults.add(avroResult);
+        }
+        return avroResults;
+    }
+
+    public List<RecordResult> convertAvroRecordResults(List<AvroRecordResult> avroResults)
+            throws RepositoryException, InterruptedException {
+        List<RecordResult> results = new ArrayList<RecordResult>(avroResults.size());
+        for (AvroRecordResult avroResult : avroResults) {
+            if (avroResult.getException() != null) {
+                results.add(new RecordResult(convert(avroResult.getException())));
+            } else {
+                results.add(new RecordResult(convertRecord(avroResult.getRecord())));
+            }
+        }
+        return results;
+    }
+
     public Set<RecordId> convertAvroRecordIds(List<String> avroRecordIds) {
         Set<RecordId> recordIds = new HashSet<RecordId>();
         IdGenerator idGenerator = repository.getIdGenerator();
@@ -57,6 +57,19 @@ public class AvroLilyImpl implements AvroLily {
         }
     }
 
+    @Override
+    public List<AvroRecordResult> createOrUpdateRecords(List<ByteBuffer> records, boolean useLatestRecordType)
+            throws AvroRepositoryException, AvroInterruptedException {
+        try {
+            return converter.convertRecordResults(repository.createOrUpdate(converter.convertAvroRecords(records),
+                    useLatestRecordType));
+        } catch (RepositoryException e) {
+            throw converter.convert(e);
+        } catch (InterruptedException e) {
+            throw converter.convert(e);
+        }
+    }
+
     @Override
     public ByteBuffer delete(ByteBuffer recordId, List<AvroMutationCondition> conditions)
             throws AvroRepositoryException, AvroInterruptedException {
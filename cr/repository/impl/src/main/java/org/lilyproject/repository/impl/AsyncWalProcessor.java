@@ -0,0 +1,180 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.lilyproject.rowlock.RowLock;
+import org.lilyproject.rowlock.RowLocker;
+import org.lilyproject.rowlog.api.RowLog;
+import org.lilyproject.rowlog.api.RowLogException;
+import org.lilyproject.rowlog.api.RowLogMessage;
+import org.lilyproject.util.concurrent.CustomThreadFactory;
+
+/**
+ * Processes the WAL messages of the repository after the row has been written and unlocked, so that the writes
+ * do not wait for the WAL listeners (such as the link index updater and the message queue feeder).
+ *
+ * <p>The messages to process are first {@link #defer deferred} while the row is locked, and then
+ * {@link #submit submitted} once the row lock is released. The processing takes the row lock again. Nothing is lost
+ * when the processing does not happen: the message stays on the WAL, with its execution state on the row, until
+ * it is processed, be it by the WAL processor or by the next update of the record.
+ *
+ * <p>The number of messages waiting to be processed is bounded: when the queue is full, the writing thread
+ * processes the message itself, which slows down the writes until the processing catches up.
+ */
+public class AsyncWalProcessor {
+    private final RowLog wal;
+    private final RowLocker rowLocker;
+    private final long lockTimeout;
+    private final ThreadPoolExecutor executor;
+    private final AsyncWalProcessorMetrics metrics;
+    private final ConcurrentMap<RowLock, List<RowLogMessage>> deferred =
+            new ConcurrentHashMap<RowLock, List<RowLogMessage>>();
+
+    private Log log = LogFactory.getLog(getClass());
+
+    /**
+     * @param threads the number of threads processing WAL messages, a value smaller than 1 disables asynchronous
+     *                processing: the repository then processes the messages while the row is still locked
+     * @param queueSize the maximum number of messages waiting to be processed
+     * @param lockTimeout how long (in ms) to wait for the row lock, after which the message is left to the
+     *                    WAL processor
+     */
+    public AsyncWalProcessor(RowLog wal, RowLocker rowLocker, int threads, int queueSize, long lockTimeout,
+            AsyncWalProcessorMetrics metrics) {
+        this.wal = wal;
+        this.rowLocker = rowLocker;
+        this.lockTimeout = lockTimeout;
+        this.metrics = metrics;
+
+        if (threads < 1) {
+            this.executor = null;
+            return;
+        }
+
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new CustomThreadFactory("async-wal-processor", null, true),
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                        if (!executor.isShutdown()) {
+                            metrics.backpressure.inc();
+                            task.run();
+                        }
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public boolean isEnabled() {
+        return executor != null;
+    }
+
+    /**
+     * Remembers a message to be processed once the given row lock has been released.
+     */
+    public void defer(RowLock rowLock, RowLogMessage message) {
+        List<RowLogMessage> messages = deferred.get(rowLock);
+        if (messages == null) {
+            // A row lock is only used by one thread at a time
+            messages = new ArrayList<RowLogMessage>(1);
+            deferred.put(rowLock, messages);
+        }
+        messages.add(message);
+    }
+
+    /**
+     * Submits the messages deferred on the given row lock for processing. Should be called after the row lock
+     * has been released.
+     */
+    public void submit(RowLock rowLock) {
+        List<RowLogMessage> messages = deferred.remove(rowLock);
+        if (messages == null) {
+            return;
+        }
+
+        for (RowLogMessage message : messages) {
+            submit(message);
+        }
+    }
+
+    /**
+     * Submits a message for processing, for a row which is not locked.
+     */
+    public void submit(final RowLogMessage message) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                process(message);
+            }
+        });
+        metrics.queueSize.set(executor.getQueue().size());
+    }
+
+    private void process(RowLogMessage message) {
+        long before = System.currentTimeMillis();
+        RowLock rowLock = null;
+        try {
+            rowLock = rowLocker.lockRow(message.getRowKey(), lockTimeout);
+            if (rowLock == null) {
+                metrics.skipped.inc();
+                return;
+            }
+
+            // The execution state of the message is the one of when it was put. The message might have been
+            // processed since, e.g. by a next update of the record, so let the WAL read it from the row.
+            message.setExecutionState(null);
+            wal.processMessage(message, rowLock);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.debug("Processing message '" + message + "' by the WAL got interrupted. It will be retried later.");
+        } catch (RowLogException e) {
+            log.warn("Exception while processing message '" + message + "' by the WAL. It will be retried later.", e);
+        } catch (IOException e) {
+            log.warn("Exception while processing message '" + message + "' by the WAL. It will be retried later.", e);
+        } finally {
+            if (rowLock != null) {
+                try {
+                    rowLocker.unlockRow(rowLock);
+                } catch (IOException e) {
+                    log.warn("Exception while unlocking row of message '" + message + "'", e);
+                }
+            }
+            metrics.processing.inc(System.currentTimeMillis() - before);
+            metrics.queueSize.set(executor.getQueue().size());
+        }
+    }
+
+    /**
+     * Stops processing. The messages which are still queued are left to the WAL processor.
+     */
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
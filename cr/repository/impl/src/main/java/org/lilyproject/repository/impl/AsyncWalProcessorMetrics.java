@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl;
+
+import javax.management.ObjectName;
+
+import org.apache.hadoop.metrics.MetricsContext;
+import org.apache.hadoop.metrics.MetricsRecord;
+import org.apache.hadoop.metrics.MetricsUtil;
+import org.apache.hadoop.metrics.Updater;
+import org.apache.hadoop.metrics.util.MetricsBase;
+import org.apache.hadoop.metrics.util.MetricsIntValue;
+import org.apache.hadoop.metrics.util.MetricsRegistry;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingInt;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
+import org.lilyproject.util.hbase.metrics.MBeanUtil;
+import org.lilyproject.util.hbase.metrics.MetricsDynamicMBeanBase;
+
+public class AsyncWalProcessorMetrics implements Updater {
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final MetricsRecord metricsRecord;
+    private final MetricsContext context;
+    private final AsyncWalProcessorMetricsMXBean mbean;
+    private final String recordName;
+
+    /**
+     * The number of WAL messages waiting to be processed.
+     */
+    public MetricsIntValue queueSize = new MetricsIntValue("queue_size", registry);
+
+    /**
+     * The time needed to process a WAL message, including taking the row lock.
+     */
+    public MetricsTimeVaryingRate processing = new MetricsTimeVaryingRate("processing", registry);
+
+    /**
+     * WAL messages processed by the writing thread because the queue was full.
+     */
+    public MetricsTimeVaryingInt backpressure = new MetricsTimeVaryingInt("backpressure", registry);
+
+    /**
+     * WAL messages left to the WAL processor because their row stayed locked.
+     */
+    public MetricsTimeVaryingInt skipped = new MetricsTimeVaryingInt("skipped", registry);
+
+    public AsyncWalProcessorMetrics(String recordName) {
+        this.recordName = recordName;
+        context = MetricsUtil.getContext("repository");
+        metricsRecord = MetricsUtil.createRecord(context, recordName);
+        context.registerUpdater(this);
+        mbean = new AsyncWalProcessorMetricsMXBean(this.registry);
+    }
+
+    public void shutdown() {
+        context.unregisterUpdater(this);
+        mbean.shutdown();
+    }
+
+    @Override
+    public void doUpdates(MetricsContext unused) {
+        synchronized (this) {
+          for (MetricsBase m : registry.getMetricsList()) {
+            m.pushMetric(metricsRecord);
+          }
+        }
+        metricsRecord.update();
+    }
+
+    public class AsyncWalProcessorMetricsMXBean extends MetricsDynamicMBeanBase {
+        private final ObjectName mbeanName;
+
+        public AsyncWalProcessorMetricsMXBean(MetricsRegistry registry) {
+            super(registry, "Lily Repository WAL processing");
+
+            mbeanName = MBeanUtil.registerMBean("Repository", recordName, this);
+        }
+
+        public void shutdown() {
+            if (mbeanName != null)
+                MBeanUtil.unregisterMBean(mbeanName);
+        }
+    }
+}
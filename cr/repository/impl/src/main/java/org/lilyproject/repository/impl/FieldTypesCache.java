@@ -150,6 +150,7 @@ public class FieldTypesCache extends FieldTypesImpl implements FieldTypes {
                     newFieldTypes.nameCache.put(fieldType.getName(), fieldType);
                 }
             }
+            newFieldTypes.sortById();
             return newFieldTypes;
         }
     }
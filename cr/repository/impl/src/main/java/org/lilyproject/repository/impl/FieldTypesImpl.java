@@ -20,7 +20,9 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.lilyproject.repository.api.*;
+import org.lilyproject.repository.impl.id.SchemaIdImpl;
 import org.lilyproject.util.ArgumentValidator;
 
 public class FieldTypesImpl implements FieldTypes {
@@ -30,6 +32,8 @@ public class FieldTypesImpl implements FieldTypes {
     // this is the up-to-date nameCache (in case of FieldTypesCache).
     protected Map<QName, FieldType> nameCache;
     protected Map<String, Map<SchemaId, FieldType>> buckets;
+    // The field types sorted on their ID, only built for snapshots, which don't change anymore, see sortById()
+    private FieldType[] fieldTypesById;
 
     public FieldTypesImpl() {
         nameCache = new HashMap<QName, FieldType>();
@@ -65,6 +69,48 @@ public class FieldTypesImpl implements FieldTypes {
         return fieldType.clone();
     }
 
+    @Override
+    public FieldType getFieldType(byte[] idBytes, int offset, int length) throws FieldTypeNotFoundException {
+        ArgumentValidator.notNull(idBytes, "idBytes");
+        if (fieldTypesById == null) {
+            return getFieldType(new SchemaIdImpl(Arrays.copyOfRange(idBytes, offset, offset + length)));
+        }
+
+        int low = 0;
+        int high = fieldTypesById.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            byte[] midId = fieldTypesById[mid].getId().getBytes();
+            int cmp = Bytes.compareTo(midId, 0, midId.length, idBytes, offset, length);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return fieldTypesById[mid].clone();
+            }
+        }
+        throw new FieldTypeNotFoundException(new SchemaIdImpl(Arrays.copyOfRange(idBytes, offset, offset + length)));
+    }
+
+    /**
+     * Sorts the field types on their ID, so that {@link #getFieldType(byte[], int, int)} can look them up
+     * without copying the ID. Should only be called once the field types don't change anymore.
+     */
+    protected void sortById() {
+        List<FieldType> fieldTypes = new ArrayList<FieldType>();
+        for (Map<SchemaId, FieldType> bucket : buckets.values()) {
+            fieldTypes.addAll(bucket.values());
+        }
+        Collections.sort(fieldTypes, new Comparator<FieldType>() {
+            @Override
+            public int compare(FieldType o1, FieldType o2) {
+                return Bytes.compareTo(o1.getId().getBytes(), o2.getId().getBytes());
+            }
+        });
+        fieldTypesById = fieldTypes.toArray(new FieldType[fieldTypes.size()]);
+    }
+
     @Override
     public FieldType getFieldType(QName name) throws FieldTypeNotFoundException, InterruptedException {
         ArgumentValidator.notNull(name, "name");
@@ -70,6 +70,7 @@ import org.lilyproject.repository.api.RecordExistsException;
 import org.lilyproject.repository.api.RecordId;
 import org.lilyproject.repository.api.RecordLockedException;
 import org.lilyproject.repository.api.RecordNotFoundException;
+import org.lilyproject.repository.api.RecordResult;
 import org.lilyproject.repository.api.RecordType;
 import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.ResponseStatus;
@@ -112,6 +113,8 @@ public class HBaseRepository extends BaseRepository {
     private RowLog wal;
     private RowLocker rowLocker;
     private List<RecordUpdateHook> updateHooks = Collections.emptyList();
+    private AsyncWalProcessor asyncWalProcessor;
+    private boolean binaryRecordEvents = false;
 
     private Log log = LogFactory.getLog(getClass());
     private RepositoryMetrics metrics;
@@ -129,6 +132,9 @@ public class HBaseRepository extends BaseRepository {
 
     @Override
     public void close() throws IOException {
+        if (asyncWalProcessor != null) {
+            asyncWalProcessor.stop();
+        }
     }
 
     /**
@@ -139,6 +145,22 @@ public class HBaseRepository extends BaseRepository {
                 Collections.<RecordUpdateHook>emptyList() : recordUpdateHooks;
     }
 
+    /**
+     * Sets the processor which processes the WAL messages after the row has been unlocked. When not set, or when
+     * it is not enabled, the WAL messages are processed while the row is still locked, before a write returns.
+     */
+    public void setAsyncWalProcessor(AsyncWalProcessor asyncWalProcessor) {
+        this.asyncWalProcessor = asyncWalProcessor;
+    }
+
+    /**
+     * Sets whether the record events on the WAL are written in the binary format rather than as json. Only
+     * enable this once all nodes of the cluster run a Lily version which can read the binary format.
+     */
+    public void setBinaryRecordEvents(boolean binaryRecordEvents) {
+        this.binaryRecordEvents = binaryRecordEvents;
+    }
+
     @Override
     public IdGenerator getIdGenerator() {
         return idGenerator;
@@ -198,6 +220,228 @@ public class HBaseRepository extends BaseRepository {
                 " attempts, toggling between create and update mode.");
     }
 
+    @Override
+    public List<RecordResult> createOrUpdate(List<Record> records) throws RepositoryException, InterruptedException {
+        return createOrUpdate(records, true);
+    }
+
+    @Override
+    public List<RecordResult> createOrUpdate(List<Record> records, boolean useLatestRecordType)
+            throws RepositoryException, InterruptedException {
+        ArgumentValidator.notNull(records, "records");
+
+        long before = System.currentTimeMillis();
+        RecordResult[] results = new RecordResult[records.size()];
+        List<BatchEntry> entries = new ArrayList<BatchEntry>(records.size());
+        try {
+            // Each record can occur only once in a batch, since its row is locked only once
+            Set<RecordId> recordIds = new HashSet<RecordId>();
+            for (int i = 0; i < records.size(); i++) {
+                Record record = records.get(i);
+                ArgumentValidator.notNull(record, "record");
+                if (record.getId() == null) {
+                    results[i] = new RecordResult(
+                            new RecordException("Record ID is mandatory when using create-or-update."));
+                } else if (!recordIds.add(record.getId())) {
+                    results[i] = new RecordResult(
+                            new InvalidRecordException("Record occurs more than once in the batch.", record.getId()));
+                } else {
+                    entries.add(new BatchEntry(i, record));
+                }
+            }
+
+            // Lock the rows in row key order, so that concurrent batches do not block each other in turns
+            Collections.sort(entries);
+            for (BatchEntry entry : entries) {
+                try {
+                    entry.rowLock = lockRow(entry.recordId);
+                    checkAndProcessOpenMessages(entry.recordId, entry.rowLock);
+                } catch (RepositoryException e) {
+                    entry.fail(results, e);
+                } catch (IOException e) {
+                    entry.fail(results, new RecordException("Exception occurred while locking record '"
+                            + entry.recordId + "' on HBase table", e));
+                }
+            }
+
+            // Read the current state of all the rows with one multi-get
+            List<BatchEntry> pending = getPending(entries);
+            List<Get> gets = new ArrayList<Get>(pending.size());
+            for (BatchEntry entry : pending) {
+                Get get = new Get(entry.rowKey);
+                get.addFamily(RecordCf.DATA.bytes);
+                get.setMaxVersions(1);
+                gets.add(get);
+            }
+            Result[] rowResults;
+            try {
+                rowResults = gets.isEmpty() ? new Result[0] : recordTable.get(gets);
+            } catch (IOException e) {
+                throw new RecordException("Exception occurred while retrieving records from HBase table", e);
+            }
+
+            FieldTypes fieldTypes = typeManager.getFieldTypesSnapshot();
+            for (int i = 0; i < pending.size(); i++) {
+                BatchEntry entry = pending.get(i);
+                try {
+                    prepareCreateOrUpdate(entry, rowResults[i], useLatestRecordType, fieldTypes);
+                    if (entry.put == null) {
+                        // Nothing changed, nothing to write
+                        results[entry.index] = new RecordResult(entry.newRecord);
+                    } else {
+                        // Reserve blobs so no other records can use them
+                        reserveBlobs(entry.create ? null : entry.recordId, entry.referencedBlobs);
+                    }
+                } catch (RepositoryException e) {
+                    entry.fail(results, e);
+                } catch (IOException e) {
+                    entry.fail(results, new RecordException("Exception occurred while preparing record '"
+                            + entry.recordId + "' for create-or-update", e));
+                }
+            }
+
+            // Add the wal messages of all records in one go, this puts them on the rowlog shards in bulk
+            pending = getPending(entries);
+            List<byte[]> rowKeys = new ArrayList<byte[]>(pending.size());
+            List<byte[]> payloads = new ArrayList<byte[]>(pending.size());
+            List<Put> puts = new ArrayList<Put>(pending.size());
+            for (BatchEntry entry : pending) {
+                rowKeys.add(entry.rowKey);
+                payloads.add(entry.recordEvent.toBytes(binaryRecordEvents));
+                puts.add(entry.put);
+            }
+            List<RowLogMessage> walMessages = Collections.emptyList();
+            try {
+                if (!pending.isEmpty()) {
+                    walMessages = wal.putMessages(rowKeys, payloads, puts);
+                }
+            } catch (RowLogException e) {
+                for (BatchEntry entry : pending) {
+                    entry.fail(results, new RecordException("Exception occurred while putting record '"
+                            + entry.recordId + "' on the WAL", e));
+                }
+            }
+
+            // The puts themselves need to be checked against the row locks, which HBase can only do one row at a time
+            pending = getPending(entries);
+            for (int i = 0; i < pending.size(); i++) {
+                BatchEntry entry = pending.get(i);
+                try {
+                    if (!rowLocker.put(entry.put, entry.rowLock)) {
+                        throw new RecordException("Invalid or expired lock trying to put record '" + entry.recordId
+                                + "' on HBase table");
+                    }
+                    if (!walMessages.isEmpty()) {
+                        processWalMessage(walMessages.get(i), entry.recordEvent, entry.rowLock);
+                    }
+                    // Remove the used blobs from the blobIncubator and delete unreferenced blobs from the blobstore
+                    blobManager.handleBlobReferences(entry.recordId, entry.referencedBlobs, entry.unReferencedBlobs);
+                    results[entry.index] = new RecordResult(entry.newRecord);
+                } catch (RepositoryException e) {
+                    entry.fail(results, e);
+                } catch (IOException e) {
+                    entry.fail(results, new RecordException("Exception occurred while putting record '"
+                            + entry.recordId + "' on HBase table", e));
+                }
+            }
+
+            return Arrays.asList(results);
+        } finally {
+            for (BatchEntry entry : entries) {
+                unlockRow(entry.rowLock);
+            }
+            metrics.report(Action.CREATE_OR_UPDATE_BATCH, System.currentTimeMillis() - before);
+        }
+    }
+
+    // Calculates the changes of one record of a create-or-update batch, given the current state of its row
+    private void prepareCreateOrUpdate(BatchEntry entry, Result result, boolean useLatestRecordType,
+                                       FieldTypes fieldTypes)
+            throws RepositoryException, InterruptedException, IOException {
+        Record record = entry.record;
+        byte[] deleted = result == null ? null : recdec.getLatest(result, RecordCf.DATA.bytes,
+                RecordColumn.DELETED.bytes);
+
+        entry.put = new Put(entry.rowKey);
+        entry.recordEvent = new RecordEvent();
+
+        if ((deleted == null) || (Bytes.toBoolean(deleted))) {
+            checkCreatePreconditions(record);
+            entry.create = true;
+            entry.newRecord = record.cloneRecord();
+            long version = getVersionForCreate(entry.recordId, result);
+            calculateCreateChanges(entry.newRecord, version, entry.put, entry.recordEvent, entry.referencedBlobs,
+                    entry.unReferencedBlobs, fieldTypes);
+            entry.newRecord.setResponseStatus(ResponseStatus.CREATED);
+        } else {
+            Long version = recdec.getLatestVersion(result);
+            Record originalRecord = new UnmodifiableRecord(recdec.decodeRecord(entry.recordId, version, null, result,
+                    fieldTypes));
+
+            for (RecordUpdateHook hook : updateHooks) {
+                hook.beforeUpdate(record, originalRecord, this, fieldTypes);
+            }
+
+            entry.newRecord = record.cloneRecord();
+            entry.recordEvent.setType(Type.UPDATE);
+            long newVersion = originalRecord.getVersion() == null ? 1 : originalRecord.getVersion() + 1;
+
+            if (calculateRecordChanges(entry.newRecord, originalRecord, newVersion, entry.put, entry.recordEvent,
+                    entry.referencedBlobs, entry.unReferencedBlobs, useLatestRecordType, fieldTypes)) {
+                entry.newRecord.setResponseStatus(ResponseStatus.UPDATED);
+            } else {
+                entry.newRecord.setResponseStatus(ResponseStatus.UP_TO_DATE);
+                entry.put = null;
+            }
+        }
+
+        entry.newRecord.getFieldsToDelete().clear();
+    }
+
+    private List<BatchEntry> getPending(List<BatchEntry> entries) {
+        List<BatchEntry> pending = new ArrayList<BatchEntry>(entries.size());
+        for (BatchEntry entry : entries) {
+            if (!entry.done)
+                pending.add(entry);
+        }
+        return pending;
+    }
+
+    /**
+     * The state of one record while it goes through a create-or-update batch.
+     */
+    private static class BatchEntry implements Comparable<BatchEntry> {
+        private final int index;
+        private final Record record;
+        private final RecordId recordId;
+        private final byte[] rowKey;
+        private RowLock rowLock;
+        private boolean create;
+        private Record newRecord;
+        private Put put;
+        private RecordEvent recordEvent;
+        private final Set<BlobReference> referencedBlobs = new HashSet<BlobReference>();
+        private final Set<BlobReference> unReferencedBlobs = new HashSet<BlobReference>();
+        private boolean done;
+
+        BatchEntry(int index, Record record) {
+            this.index = index;
+            this.record = record;
+            this.recordId = record.getId();
+            this.rowKey = recordId.toBytes();
+        }
+
+        void fail(RecordResult[] results, RepositoryException e) {
+            results[index] = new RecordResult(e);
+            done = true;
+        }
+
+        @Override
+        public int compareTo(BatchEntry o) {
+            return Bytes.compareTo(rowKey, o.rowKey);
+        }
+    }
+
     @Override
     public Record create(Record record) throws RepositoryException {
 
@@ -208,6 +452,9 @@ public class HBaseRepository extends BaseRepository {
             Record newRecord = record.cloneRecord();
 
             RecordId recordId = newRecord.getId();
+            // A record ID generated here is a new UUID, so there cannot be an existing or deleted record
+            // with the same ID
+            boolean generatedId = recordId == null;
             if (recordId == null) {
                 recordId = idGenerator.newRecordId();
                 newRecord.setId(recordId);
@@ -219,55 +466,36 @@ public class HBaseRepository extends BaseRepository {
             try {
                 FieldTypes fieldTypes = typeManager.getFieldTypesSnapshot();
 
-                // Lock the row
-                rowLock = lockRow(recordId);
-
                 long version = 1L;
-                // If the record existed it would have been deleted.
-                // The version numbering continues from where it has been deleted.
-                Get get = new Get(rowId);
-                get.addColumn(RecordCf.DATA.bytes, RecordColumn.DELETED.bytes);
-                get.addColumn(RecordCf.DATA.bytes, RecordColumn.VERSION.bytes);
-                Result result = recordTable.get(get);
-                if (!result.isEmpty()) {
-                    // If the record existed it should have been deleted
-                    byte[] recordDeleted = result.getValue(RecordCf.DATA.bytes, RecordColumn.DELETED.bytes);
-                    if (recordDeleted != null && !Bytes.toBoolean(recordDeleted)) {
-                        throw new RecordExistsException(recordId);
-                    }
-                    byte[] oldVersion = result.getValue(RecordCf.DATA.bytes, RecordColumn.VERSION.bytes);
-                    if (oldVersion != null) {
-                        version = Bytes.toLong(oldVersion) + 1;
-                        // Make sure any old data gets cleared and old blobs are deleted
-                        // This is to cover the failure scenario where a record was deleted, but a failure
-                        // occurred before executing the clearData
-                        // If this was already done, this is a no-op
-                        clearData(recordId, null);
-                    }
+                if (!generatedId) {
+                    // Lock the row
+                    rowLock = lockRow(recordId);
+
+                    // If the record existed it would have been deleted.
+                    // The version numbering continues from where it has been deleted.
+                    Get get = new Get(rowId);
+                    get.addColumn(RecordCf.DATA.bytes, RecordColumn.DELETED.bytes);
+                    get.addColumn(RecordCf.DATA.bytes, RecordColumn.VERSION.bytes);
+                    Result result = recordTable.get(get);
+                    version = getVersionForCreate(recordId, result);
                 }
 
-                Record dummyOriginalRecord = newRecord();
                 Put put = new Put(newRecord.getId().toBytes());
-                put.add(RecordCf.DATA.bytes, RecordColumn.DELETED.bytes, 1L, Bytes.toBytes(false));
                 RecordEvent recordEvent = new RecordEvent();
-                recordEvent.setType(Type.CREATE);
                 Set<BlobReference> referencedBlobs = new HashSet<BlobReference>();
                 Set<BlobReference> unReferencedBlobs = new HashSet<BlobReference>();
 
-                calculateRecordChanges(newRecord, dummyOriginalRecord, version, put, recordEvent, referencedBlobs,
-                        unReferencedBlobs, false, fieldTypes);
-
-                // Make sure the record type changed flag stays false for a newly
-                // created record
-                recordEvent.setRecordTypeChanged(false);
-                Long newVersion = newRecord.getVersion();
-                if (newVersion != null)
-                    recordEvent.setVersionCreated(newVersion);
+                calculateCreateChanges(newRecord, version, put, recordEvent, referencedBlobs, unReferencedBlobs,
+                        fieldTypes);
 
                 // Reserve blobs so no other records can use them
                 reserveBlobs(null, referencedBlobs);
 
-                putRowWithWalProcessing(recordId, rowLock, put, recordEvent);
+                if (generatedId) {
+                    putNewRowWithWalProcessing(recordId, put, recordEvent);
+                } else {
+                    putRowWithWalProcessing(recordId, rowLock, put, recordEvent);
+                }
 
                 // Remove the used blobs from the blobIncubator
                 blobManager.handleBlobReferences(recordId, referencedBlobs, unReferencedBlobs);
@@ -297,6 +525,49 @@ public class HBaseRepository extends BaseRepository {
         }
     }
 
+    // Determines the version a record will get when it is created in the given row. If the row contained a record
+    // before, it should have been deleted, and the version numbering continues from where it has been deleted.
+    private long getVersionForCreate(RecordId recordId, Result result)
+            throws IOException, RepositoryException, InterruptedException {
+        long version = 1L;
+        if (result != null && !result.isEmpty()) {
+            // If the record existed it should have been deleted
+            byte[] recordDeleted = recdec.getLatest(result, RecordCf.DATA.bytes, RecordColumn.DELETED.bytes);
+            if (recordDeleted != null && !Bytes.toBoolean(recordDeleted)) {
+                throw new RecordExistsException(recordId);
+            }
+            byte[] oldVersion = recdec.getLatest(result, RecordCf.DATA.bytes, RecordColumn.VERSION.bytes);
+            if (oldVersion != null) {
+                version = Bytes.toLong(oldVersion) + 1;
+                // Make sure any old data gets cleared and old blobs are deleted
+                // This is to cover the failure scenario where a record was deleted, but a failure
+                // occurred before executing the clearData
+                // If this was already done, this is a no-op
+                clearData(recordId, null);
+            }
+        }
+        return version;
+    }
+
+    // Calculates the changes for creating a new record, the counterpart of calculateRecordChanges for the update case
+    private void calculateCreateChanges(Record newRecord, long version, Put put, RecordEvent recordEvent,
+                                        Set<BlobReference> referencedBlobs, Set<BlobReference> unReferencedBlobs,
+                                        FieldTypes fieldTypes) throws RepositoryException, InterruptedException {
+        Record dummyOriginalRecord = newRecord();
+        put.add(RecordCf.DATA.bytes, RecordColumn.DELETED.bytes, 1L, Bytes.toBytes(false));
+        recordEvent.setType(Type.CREATE);
+
+        calculateRecordChanges(newRecord, dummyOriginalRecord, version, put, recordEvent, referencedBlobs,
+                unReferencedBlobs, false, fieldTypes);
+
+        // Make sure the record type changed flag stays false for a newly
+        // created record
+        recordEvent.setRecordTypeChanged(false);
+        Long newVersion = newRecord.getVersion();
+        if (newVersion != null)
+            recordEvent.setVersionCreated(newVersion);
+    }
+
     private void checkCreatePreconditions(Record record) throws InvalidRecordException {
         ArgumentValidator.notNull(record, "record");
         if (record.getRecordTypeName() == null) {
@@ -435,16 +706,65 @@ public class HBaseRepository extends BaseRepository {
     private void putRowWithWalProcessing(RecordId recordId, RowLock rowLock, Put put, RecordEvent recordEvent)
             throws InterruptedException, RowLogException, IOException, RecordException {
         RowLogMessage walMessage;
-        walMessage = wal.putMessage(recordId.toBytes(), null, recordEvent.toJsonBytes(), put);
+        walMessage = wal.putMessage(recordId.toBytes(), null, recordEvent.toBytes(binaryRecordEvents), put);
         if (!rowLocker.put(put, rowLock)) {
             throw new RecordException("Invalid or expired lock trying to put record '" + recordId + "' on HBase table");
         }
 
+        processWalMessage(walMessage, recordEvent, rowLock);
+    }
+
+    // The counterpart of putRowWithWalProcessing for a row which does not exist yet: rather than locking the row,
+    // putting and unlocking it, the put is only applied if the row is not locked, which takes one request.
+    // The wal message still needs to be processed under the row lock, as the wal processor might pick it up as
+    // well: it is only the processing which takes the lock.
+    private void putNewRowWithWalProcessing(RecordId recordId, Put put, RecordEvent recordEvent)
+            throws InterruptedException, RowLogException, IOException, RecordException {
+        RowLogMessage walMessage;
+        walMessage = wal.putMessage(recordId.toBytes(), null, recordEvent.toBytes(binaryRecordEvents), put);
+        if (!rowLocker.putIfUnlocked(put)) {
+            throw new RecordException("Record '" + recordId + "' is unexpectedly locked, trying to put it on HBase table");
+        }
+
+        if (walMessage == null) {
+            return;
+        }
+
+        if (asyncWalProcessor != null && asyncWalProcessor.isEnabled()) {
+            // The asynchronous processing takes the row lock itself
+            processWalMessage(walMessage, recordEvent, null);
+            return;
+        }
+
+        RowLock rowLock = rowLocker.lockRow(recordId.toBytes());
+        if (rowLock == null) {
+            // Someone else, i.e. the wal processor, is processing the message already, or will do so later
+            return;
+        }
+        try {
+            processWalMessage(walMessage, recordEvent, rowLock);
+        } finally {
+            unlockRow(rowLock);
+        }
+    }
+
+    // Asks the wal to process a message which has just been put. A failure is not fatal, the message
+    // stays on the wal and will be retried later.
+    // With asynchronous wal processing, the message is only processed once the row is unlocked, see unlockRow.
+    private void processWalMessage(RowLogMessage walMessage, RecordEvent recordEvent, RowLock rowLock) {
         if (walMessage != null) {
             try {
                 RowLogContext rowLogContext = new RowLogContext();
                 rowLogContext.setRecordEvent(recordEvent);
                 walMessage.setContext(rowLogContext);
+                if (asyncWalProcessor != null && asyncWalProcessor.isEnabled()) {
+                    if (rowLock != null) {
+                        asyncWalProcessor.defer(rowLock, walMessage);
+                    } else {
+                        asyncWalProcessor.submit(walMessage);
+                    }
+                    return;
+                }
                 wal.processMessage(walMessage, rowLock);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -1027,6 +1347,31 @@ public class HBaseRepository extends BaseRepository {
         return readWithIds(recordId, version, fields, fieldTypes);
     }
 
+    @Override
+    public List<IdRecord> readWithIds(List<RecordId> recordIds, List<SchemaId> fieldIds)
+            throws RepositoryException, InterruptedException {
+        long before = System.currentTimeMillis();
+        try {
+            ArgumentValidator.notNull(recordIds, "recordIds");
+            List<IdRecord> records = new ArrayList<IdRecord>(recordIds.size());
+            if (recordIds.isEmpty())
+                return records;
+
+            FieldTypes fieldTypes = typeManager.getFieldTypesSnapshot();
+            List<FieldType> fields = getFieldTypesFromIds(fieldIds, fieldTypes);
+
+            Map<RecordId, Result> results = getRows(recordIds, fields);
+
+            for (Entry<RecordId, Result> entry : results.entrySet()) {
+                Long version = recdec.getLatestVersion(entry.getValue());
+                records.add(recdec.decodeRecordWithIds(entry.getKey(), version, entry.getValue(), fieldTypes));
+            }
+            return records;
+        } finally {
+            metrics.report(Action.READ, System.currentTimeMillis() - before);
+        }
+    }
+
     private IdRecord readWithIds(RecordId recordId, Long requestedVersion, List<FieldType> fields,
                                  FieldTypes fieldTypes) throws RepositoryException, InterruptedException {
         long before = System.currentTimeMillis();
@@ -1220,7 +1565,7 @@ public class HBaseRepository extends BaseRepository {
 
             RecordEvent recordEvent = new RecordEvent();
             recordEvent.setType(Type.DELETE);
-            RowLogMessage walMessage = wal.putMessage(recordId.toBytes(), null, recordEvent.toJsonBytes(), put);
+            RowLogMessage walMessage = wal.putMessage(recordId.toBytes(), null, recordEvent.toBytes(binaryRecordEvents), put);
             if (!rowLocker.put(put, rowLock)) {
                 throw new RecordException("Exception occurred while deleting record '" + recordId + "' on HBase table");
             }
@@ -1228,13 +1573,7 @@ public class HBaseRepository extends BaseRepository {
             // Clear the old data and delete any referenced blobs
             clearData(recordId, originalRecord);
 
-            if (walMessage != null) {
-                try {
-                    wal.processMessage(walMessage, rowLock);
-                } catch (RowLogException e) {
-                    // Processing the message failed, it will be retried later.
-                }
-            }
+            processWalMessage(walMessage, recordEvent, rowLock);
         } catch (RowLogException e) {
             throw new RecordException("Exception occurred while deleting record '" + recordId
                     + "' on HBase table", e);
@@ -1357,6 +1696,10 @@ public class HBaseRepository extends BaseRepository {
             } catch (IOException e) {
                 log.warn("Exception while unlocking row '" + Bytes.toStringBinary(rowLock.getRowKey()) + "'", e);
             }
+
+            if (asyncWalProcessor != null && asyncWalProcessor.isEnabled()) {
+                asyncWalProcessor.submit(rowLock);
+            }
         }
     }
 
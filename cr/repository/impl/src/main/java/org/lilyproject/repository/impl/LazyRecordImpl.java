@@ -0,0 +1,180 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.lilyproject.bytes.impl.DataInputImpl;
+import org.lilyproject.repository.api.FieldNotFoundException;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RepositoryException;
+import org.lilyproject.repository.api.ValueType;
+import org.lilyproject.repository.impl.valuetype.LinkValueType;
+import org.lilyproject.repository.impl.valuetype.RecordValueType;
+
+/**
+ * A record read from HBase which only decodes the value of a field when it is asked for.
+ *
+ * <p>The encoded values are copied from the KeyValues of the HBase result into one array per record, so that
+ * the record does not keep the (much larger) backing array of the result in memory. A value is decoded on the
+ * first {@link #getField}, while methods that work on all fields, such as {@link #getFields}, equals or
+ * cloning, decode all remaining values first. Other than that, this record behaves as a {@link RecordImpl}.
+ *
+ * <p>Values of LINK and RECORD types, also nested in lists or paths, are decoded right away by
+ * {@link #setEncodedField}: they need the id generator or the type manager, which can fail with a
+ * RepositoryException that should be reported when the record is read. Since getField can not throw checked
+ * exceptions other than FieldNotFoundException, an error while decoding any other value is thrown as a
+ * RuntimeException, but these are only expected for corrupt data.
+ *
+ * <p>Since reading a field changes the state of this record, the methods which read or change the fields are
+ * synchronized. As for a decoded {@link RecordImpl}, the record can be read by several threads at once, for
+ * example by the index updaters to which one record is handed, but it should not be changed meanwhile.
+ */
+public class LazyRecordImpl extends RecordImpl {
+    private Map<QName, EncodedValue> encodedFields = new HashMap<QName, EncodedValue>();
+    /**
+     * The encoded values which have not been decoded yet, null when there are none.
+     */
+    private byte[] encodedData;
+    private int encodedDataLength;
+
+    public LazyRecordImpl() {
+    }
+
+    public LazyRecordImpl(RecordId id) {
+        super(id);
+    }
+
+    /**
+     * Sets a field whose value will be decoded from the given KeyValue when asked for. The value of the
+     * KeyValue is expected to start with the prefix byte of the encoded field value. The KeyValue is not
+     * referenced anymore once this method returns.
+     */
+    public synchronized void setEncodedField(FieldType fieldType, KeyValue keyValue)
+            throws RepositoryException, InterruptedException {
+        // Skip the prefix byte
+        int offset = keyValue.getValueOffset() + 1;
+        int length = keyValue.getValueLength() - 1;
+
+        if (isDecodedEagerly(fieldType.getValueType())) {
+            setField(fieldType.getName(), fieldType.getValueType().read(
+                    new DataInputImpl(keyValue.getBuffer(), offset, length)));
+            return;
+        }
+
+        super.delete(fieldType.getName(), false);
+        encodedFields.put(fieldType.getName(), new EncodedValue(fieldType, append(keyValue.getBuffer(), offset,
+                length), length));
+    }
+
+    private static boolean isDecodedEagerly(ValueType valueType) {
+        String baseName = valueType.getDeepestValueType().getBaseName();
+        return baseName.equals(LinkValueType.NAME) || baseName.equals(RecordValueType.NAME);
+    }
+
+    /**
+     * Appends the bytes to the encoded data, and returns the offset at which they were appended.
+     */
+    private int append(byte[] bytes, int offset, int length) {
+        if (encodedData == null) {
+            encodedData = new byte[Math.max(length, 256)];
+            encodedDataLength = 0;
+        } else if (encodedDataLength + length > encodedData.length) {
+            encodedData = Arrays.copyOf(encodedData, Math.max(encodedDataLength + length, encodedData.length * 2));
+        }
+        System.arraycopy(bytes, offset, encodedData, encodedDataLength, length);
+        encodedDataLength += length;
+        return encodedDataLength - length;
+    }
+
+    @Override
+    public synchronized void setField(QName name, Object value) {
+        removeEncodedField(name);
+        super.setField(name, value);
+    }
+
+    @Override
+    public synchronized <T> T getField(QName name) throws FieldNotFoundException {
+        EncodedValue encodedValue = encodedFields.get(name);
+        if (encodedValue != null) {
+            Object value = decode(name, encodedValue);
+            removeEncodedField(name);
+            super.setField(name, value);
+        }
+        return super.<T>getField(name);
+    }
+
+    @Override
+    public synchronized boolean hasField(QName fieldName) {
+        return encodedFields.containsKey(fieldName) || super.hasField(fieldName);
+    }
+
+    @Override
+    public synchronized Map<QName, Object> getFields() {
+        if (!encodedFields.isEmpty()) {
+            Iterator<Map.Entry<QName, EncodedValue>> it = encodedFields.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<QName, EncodedValue> entry = it.next();
+                super.setField(entry.getKey(), decode(entry.getKey(), entry.getValue()));
+                it.remove();
+            }
+            encodedData = null;
+        }
+        return super.getFields();
+    }
+
+    @Override
+    public synchronized void delete(QName fieldName, boolean addToFieldsToDelete) {
+        removeEncodedField(fieldName);
+        super.delete(fieldName, addToFieldsToDelete);
+    }
+
+    private void removeEncodedField(QName name) {
+        if (encodedFields.remove(name) != null && encodedFields.isEmpty()) {
+            encodedData = null;
+        }
+    }
+
+    private Object decode(QName name, EncodedValue encodedValue) {
+        DataInputImpl dataInput = new DataInputImpl(encodedData, encodedValue.offset, encodedValue.length);
+        try {
+            return encodedValue.fieldType.getValueType().read(dataInput);
+        } catch (RepositoryException e) {
+            throw new RuntimeException("Error decoding the value of field " + name, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while decoding the value of field " + name, e);
+        }
+    }
+
+    private static final class EncodedValue {
+        private final FieldType fieldType;
+        private final int offset;
+        private final int length;
+
+        private EncodedValue(FieldType fieldType, int offset, int length) {
+            this.fieldType = fieldType;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
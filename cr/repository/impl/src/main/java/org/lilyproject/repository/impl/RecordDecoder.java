@@ -24,6 +24,7 @@ import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Set;
 
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.Scan;
@@ -101,10 +102,13 @@ public class RecordDecoder {
 
     /**
      * Gets the requested version of the record (fields and recordTypes) from the Result object.
+     *
+     * <p>The field values are not decoded yet, the returned record decodes them when they are asked for, see
+     * {@link LazyRecordImpl}. The encoded values are copied out of the Result, so it can be reused afterwards.
      */
     public Record decodeRecord(RecordId recordId, Long requestedVersion, ReadContext readContext,
                                Result result, FieldTypes fieldTypes) throws InterruptedException, RepositoryException {
-        Record record = newRecord(recordId);
+        LazyRecordImpl record = new LazyRecordImpl(recordId);
         record.setVersion(requestedVersion);
         Set<Scope> scopes = EnumSet.noneOf(Scope.class); // Set of scopes for which a field has been read
 
@@ -112,28 +116,36 @@ public class RecordDecoder {
         // All non-versioned fields are stored at version 1, so we extract the fields at version 1
         Long versionToRead = (requestedVersion == null) ? 1L : requestedVersion;
 
-        // Get a map of all fields with their values for each (cell-)version
-        NavigableMap<byte[], NavigableMap<Long, byte[]>> mapWithVersions = result.getMap().get(RecordCf.DATA.bytes);
-        if (mapWithVersions != null) {
-            // Iterate over all columns
-            for (Map.Entry<byte[], NavigableMap<Long, byte[]>> columnWithAllVersions : mapWithVersions.entrySet()) {
-                // Check if the retrieved column is from a data field, and not a system field
-                byte[] key = columnWithAllVersions.getKey();
-                if (key[0] == LilyHBaseSchema.RecordColumn.DATA_PREFIX) {
-                    NavigableMap<Long, byte[]> allValueVersions = columnWithAllVersions.getValue();
-                    // Get the entry for the version (can be a cell with a lower version number if the field was not changed)
-                    Map.Entry<Long, byte[]> ceilingEntry = allValueVersions.ceilingEntry(versionToRead);
-                    if (ceilingEntry != null) {
-                        // Extract and decode the value of the field
-                        Pair<FieldType, Object> field =
-                                extractField(key, ceilingEntry.getValue(), readContext, fieldTypes);
-                        if (field != null) {
-                            record.setField(field.getV1().getName(), field.getV2());
-                            scopes.add(field.getV1().getScope());
-                        }
-                    }
-                }
+        // Iterate over the cells as they are in the Result, rather than building the map of all columns and
+        // their versions: the cells are sorted per column, from the newest to the oldest version.
+        KeyValue[] keyValues = result.raw();
+        KeyValue lastField = null;
+        for (int i = 0; keyValues != null && i < keyValues.length; i++) {
+            KeyValue kv = keyValues[i];
+            // Check if the cell is from a data field, and not a system field
+            if (kv.getQualifierLength() == 0 || kv.getBuffer()[kv.getQualifierOffset()] != RecordColumn.DATA_PREFIX
+                    || !kv.matchingFamily(RecordCf.DATA.bytes)) {
+                continue;
+            }
+
+            // Take the first cell of the column which is not newer than the version (can be a cell with a lower
+            // version number if the field was not changed)
+            if (kv.getTimestamp() > versionToRead || (lastField != null && sameQualifier(lastField, kv))) {
+                continue;
             }
+            lastField = kv;
+
+            if (kv.getValueLength() == 0 || kv.getBuffer()[kv.getValueOffset()] == LilyHBaseSchema.DELETE_FLAG) {
+                continue;
+            }
+
+            int qualifierOffset = kv.getQualifierOffset();
+            FieldType fieldType = fieldTypes.getFieldType(kv.getBuffer(), qualifierOffset + 1,
+                    kv.getQualifierLength() - 1);
+            if (readContext != null)
+                readContext.addFieldType(fieldType);
+            record.setEncodedField(fieldType, kv);
+            scopes.add(fieldType.getScope());
         }
 
         // We're only adding the record types if any fields were read.
@@ -201,6 +213,9 @@ public class RecordDecoder {
     /**
      * Gets the requested version of the record (fields and recordTypes) from the Result object.
      * This method is optimized for reading multiple versions.
+     *
+     * <p>Unlike {@link #decodeRecord(RecordId, Long, ReadContext, Result, FieldTypes)}, the field values are decoded
+     * right away: a value is typically shared by several of the returned versions, and is then decoded only once.
      */
     public List<Record> decodeRecords(RecordId recordId, List<Long> requestedVersions, Result result,
                                       FieldTypes fieldTypes) throws InterruptedException, RepositoryException {
@@ -284,6 +299,11 @@ public class RecordDecoder {
         return new RecordImpl(recordId);
     }
 
+    private static boolean sameQualifier(KeyValue kv1, KeyValue kv2) {
+        return Bytes.compareTo(kv1.getBuffer(), kv1.getQualifierOffset(), kv1.getQualifierLength(),
+                kv2.getBuffer(), kv2.getQualifierOffset(), kv2.getQualifierLength()) == 0;
+    }
+
     private Pair<FieldType, Object> extractField(byte[] key, byte[] prefixedValue, ReadContext context,
                                                  FieldTypes fieldTypes)
             throws RepositoryException, InterruptedException {
@@ -311,26 +331,15 @@ public class RecordDecoder {
     }
 
     /**
-     * Gets the latest value for a family/qualifier from a Result object, using its
-     * getMap(). Most of the time this will be more efficient than using
-     * Result.getValue() since the map will need to built anyway when reading the
-     * record.
+     * Gets the latest value for a family/qualifier from a Result object. This does a binary search in the
+     * cells of the Result, which avoids building the map of all columns and versions of the Result.
      */
     public byte[] getLatest(Result result, byte[] family, byte[] qualifier) {
-        NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> map = result.getMap();
-        if (map == null)
-            return null;
-
-        NavigableMap<byte[], NavigableMap<Long, byte[]>> qualifiers = map.get(family);
-        if (qualifiers == null)
-            return null;
-
-        NavigableMap<Long, byte[]> timestamps = qualifiers.get(qualifier);
-        if (timestamps == null)
+        if (result.isEmpty())
             return null;
 
-        Map.Entry<Long, byte[]> entry = timestamps.lastEntry();
-        return entry == null ? null : entry.getValue();
+        KeyValue kv = result.getColumnLatest(family, qualifier);
+        return kv == null ? null : kv.getValue();
     }
 
     /**
@@ -363,37 +372,41 @@ public class RecordDecoder {
      * Extracts the record type for a specific version and a specific scope
      */
     public Pair<SchemaId, Long> extractVersionRecordType(Scope scope, Result result, Long version) {
-        NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> allVersionsMap = result.getMap();
-        NavigableMap<byte[], NavigableMap<Long, byte[]>> allColumnsAllVersionsMap = allVersionsMap
-                .get(RecordCf.DATA.bytes);
-
         byte[] recordTypeIdColumnName = RECORD_TYPE_ID_QUALIFIERS.get(scope);
         byte[] recordTypeVersionColumnName = RECORD_TYPE_VERSION_QUALIFIERS.get(scope);
         // Get recordTypeId
-        Map.Entry<Long, byte[]> idCeilingEntry = null;
-        NavigableMap<Long, byte[]> recordTypeIdMap = allColumnsAllVersionsMap.get(recordTypeIdColumnName);
-        if (recordTypeIdMap != null) {
-            idCeilingEntry = recordTypeIdMap.ceilingEntry(version);
-        }
+        KeyValue idKv = getCellForVersion(result, recordTypeIdColumnName, version);
         SchemaId recordTypeId;
-        if (idCeilingEntry == null)
+        if (idKv == null)
             return null; // No record type was found
-        recordTypeId = new SchemaIdImpl(idCeilingEntry.getValue());
+        recordTypeId = new SchemaIdImpl(idKv.getValue());
 
         // Get recordTypeVersion
         Long recordTypeVersion;
-        Map.Entry<Long, byte[]> versionCeilingEntry = null;
-        NavigableMap<Long, byte[]> recordTypeVersionMap = allColumnsAllVersionsMap.get(recordTypeVersionColumnName);
-        if (recordTypeVersionMap != null) {
-            versionCeilingEntry = recordTypeVersionMap.ceilingEntry(version);
-        }
-        if (versionCeilingEntry == null)
+        KeyValue versionKv = getCellForVersion(result, recordTypeVersionColumnName, version);
+        if (versionKv == null)
             return null; // No record type was found, we should never get here: if there is an id there should also be a version
-        recordTypeVersion = Bytes.toLong(versionCeilingEntry.getValue());
+        recordTypeVersion = Bytes.toLong(versionKv.getValue());
         Pair<SchemaId, Long> recordType = new Pair<SchemaId, Long>(recordTypeId, recordTypeVersion);
         return recordType;
     }
 
+    /**
+     * Gets the newest cell of a data column which is not newer than the given version.
+     */
+    private KeyValue getCellForVersion(Result result, byte[] qualifier, long version) {
+        if (result.isEmpty())
+            return null;
+
+        // The cells of the column are sorted from the newest to the oldest
+        for (KeyValue kv : result.getColumn(RecordCf.DATA.bytes, qualifier)) {
+            if (kv.getTimestamp() <= version) {
+                return kv;
+            }
+        }
+        return null;
+    }
+
     public Long getLatestVersion(Result result) {
         byte[] latestVersionBytes = getLatest(result, RecordCf.DATA.bytes, LilyHBaseSchema.RecordColumn.VERSION.bytes);
         Long latestVersion = latestVersionBytes != null ? Bytes.toLong(latestVersionBytes) : null;
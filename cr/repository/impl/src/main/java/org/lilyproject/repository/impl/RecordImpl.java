@@ -193,7 +193,7 @@ public class RecordImpl implements Record, Cloneable {
         record.version = version;
         record.recordTypes.putAll(recordTypes);
         parentRecords.push(this);
-        for (Entry<QName, Object> entry : fields.entrySet()) {
+        for (Entry<QName, Object> entry : getFields().entrySet()) {
             record.fields.put(entry.getKey(), tryCloneValue(parentRecords, entry));
         }
         parentRecords.pop();
@@ -213,7 +213,7 @@ public class RecordImpl implements Record, Cloneable {
     }
 
     private boolean detectRecordRecursion(List<Record> parentRecords) {
-        for (Entry<QName, Object> entry : fields.entrySet()) {
+        for (Entry<QName, Object> entry : getFields().entrySet()) {
             if (detectRecordRecursion(entry.getValue(), parentRecords))
                 return true;
         }
@@ -282,7 +282,7 @@ public class RecordImpl implements Record, Cloneable {
     public int hashCode() {
         final int prime = 31;
         int result = 1;
-        result = prime * result + ((fields == null) ? 0 : fields.hashCode());
+        result = prime * result + getFields().hashCode();
         result = prime * result + ((fieldsToDelete == null) ? 0 : fieldsToDelete.hashCode());
         result = prime * result + ((id == null) ? 0 : id.hashCode());
         result = prime * result + ((recordTypes == null) ? 0 : recordTypes.hashCode());
@@ -333,14 +333,12 @@ public class RecordImpl implements Record, Cloneable {
         if (obj instanceof IdRecordImpl) {
             return softEquals(((IdRecordImpl)obj).getRecord());
         }
-        if (getClass() != obj.getClass())
+        // Subclasses such as LazyRecordImpl only differ in how the fields are obtained
+        if (!(obj instanceof RecordImpl))
             return false;
         RecordImpl other = (RecordImpl) obj;
 
-        if (fields == null) {
-            if (other.fields != null)
-                return false;
-        } else if (!fields.equals(other.fields)) {
+        if (!getFields().equals(other.getFields())) {
             return false;
         }
 
@@ -371,7 +369,7 @@ public class RecordImpl implements Record, Cloneable {
     @Override
     public String toString() {
         return "RecordImpl [id=" + id + ", version=" + version + ", recordTypes=" + recordTypes
-                        + ", fields=" + fields + ", fieldsToDelete="
+                        + ", fields=" + getFields() + ", fieldsToDelete="
                         + fieldsToDelete + "]";
     }
 
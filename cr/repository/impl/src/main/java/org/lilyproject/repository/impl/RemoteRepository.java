@@ -299,6 +299,28 @@ public class RemoteRepository extends BaseRepository {
         }
     }
 
+    @Override
+    public List<RecordResult> createOrUpdate(List<Record> records) throws RepositoryException, InterruptedException {
+        return createOrUpdate(records, true);
+    }
+
+    @Override
+    public List<RecordResult> createOrUpdate(List<Record> records, boolean useLatestRecordType)
+            throws RepositoryException, InterruptedException {
+        try {
+            return converter.convertAvroRecordResults(lilyProxy.createOrUpdateRecords(converter.convertRecords(records),
+                    useLatestRecordType));
+        } catch (AvroRepositoryException e) {
+            throw converter.convert(e);
+        } catch (AvroGenericException e) {
+            throw converter.convert(e);
+        } catch (AvroRemoteException e) {
+            throw handleAvroRemoteException(e);
+        } catch (UndeclaredThrowableException e) {
+            throw handleUndeclaredRecordThrowable(e);
+        }
+    }
+
     @Override
     public Set<RecordId> getVariants(RecordId recordId) throws RepositoryException, InterruptedException {
         try {
@@ -337,6 +359,22 @@ public class RemoteRepository extends BaseRepository {
         }
     }
 
+    @Override
+    public List<IdRecord> readWithIds(List<RecordId> recordIds, List<SchemaId> fieldIds)
+            throws RepositoryException, InterruptedException {
+        // There is no multi-record variant of readWithIds in the Avro protocol, this simply reads the records
+        // one by one.
+        List<IdRecord> records = new ArrayList<IdRecord>(recordIds.size());
+        for (RecordId recordId : recordIds) {
+            try {
+                records.add(readWithIds(recordId, null, fieldIds));
+            } catch (RecordNotFoundException e) {
+                // Same as the multi-record read: skip records which do not exist
+            }
+        }
+        return records;
+    }
+
     private RuntimeException handleUndeclaredRecordThrowable(UndeclaredThrowableException e) throws RecordException {
         if (e.getCause() instanceof IOException) {
             throw new IORecordException(e.getCause());
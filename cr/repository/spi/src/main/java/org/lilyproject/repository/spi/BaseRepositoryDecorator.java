@@ -33,6 +33,7 @@ import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RecordBuilder;
 import org.lilyproject.repository.api.RecordException;
 import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RecordResult;
 import org.lilyproject.repository.api.RecordScan;
 import org.lilyproject.repository.api.RecordScanner;
 import org.lilyproject.repository.api.Repository;
@@ -100,6 +101,17 @@ public class BaseRepositoryDecorator implements RepositoryDecorator {
         return delegate.createOrUpdate(record, useLatestRecordType);
     }
 
+    @Override
+    public List<RecordResult> createOrUpdate(List<Record> records) throws RepositoryException, InterruptedException {
+        return delegate.createOrUpdate(records);
+    }
+
+    @Override
+    public List<RecordResult> createOrUpdate(List<Record> records, boolean useLatestRecordType)
+            throws RepositoryException, InterruptedException {
+        return delegate.createOrUpdate(records, useLatestRecordType);
+    }
+
     @Override
     public Record read(RecordId recordId, List<QName> fieldNames) throws RepositoryException, InterruptedException {
         return delegate.read(recordId, fieldNames);
@@ -164,6 +176,12 @@ public class BaseRepositoryDecorator implements RepositoryDecorator {
         return delegate.readWithIds(recordId, version, fieldIds);
     }
 
+    @Override
+    public List<IdRecord> readWithIds(List<RecordId> recordIds, List<SchemaId> fieldIds)
+            throws RepositoryException, InterruptedException {
+        return delegate.readWithIds(recordIds, fieldIds);
+    }
+
     @Override
     public void delete(RecordId recordId) throws RepositoryException, InterruptedException {
         delegate.delete(recordId);
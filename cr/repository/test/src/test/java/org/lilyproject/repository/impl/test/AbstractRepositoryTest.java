@@ -46,6 +46,7 @@ import org.lilyproject.repository.api.RecordException;
 import org.lilyproject.repository.api.RecordExistsException;
 import org.lilyproject.repository.api.RecordId;
 import org.lilyproject.repository.api.RecordNotFoundException;
+import org.lilyproject.repository.api.RecordResult;
 import org.lilyproject.repository.api.RecordScan;
 import org.lilyproject.repository.api.RecordScanner;
 import org.lilyproject.repository.api.RecordType;
@@ -1521,6 +1522,43 @@ public abstract class AbstractRepositoryTest {
         assertEquals(ResponseStatus.UP_TO_DATE, resultRecord.getResponseStatus());
     }
 
+    @Test
+    public void testCreateOrUpdateBatch() throws Exception {
+        Record record1 = repository.newRecord(idGenerator.newRecordId());
+        record1.setRecordType(recordType1.getName(), recordType1.getVersion());
+        record1.setField(fieldType1.getName(), "value1");
+
+        Record record2 = repository.newRecord(idGenerator.newRecordId());
+        record2.setRecordType(recordType1.getName(), recordType1.getVersion());
+        record2.setField(fieldType1.getName(), "value1");
+
+        List<RecordResult> results = repository.createOrUpdate(Arrays.asList(record1, record2));
+        assertEquals(2, results.size());
+        assertEquals(ResponseStatus.CREATED, results.get(0).getRecord().getResponseStatus());
+        assertEquals(ResponseStatus.CREATED, results.get(1).getRecord().getResponseStatus());
+
+        // Update one record, leave the other one unchanged
+        record2.setField(fieldType1.getName(), "value2");
+        results = repository.createOrUpdate(Arrays.asList(record1, record2));
+        assertEquals(ResponseStatus.UP_TO_DATE, results.get(0).getRecord().getResponseStatus());
+        assertEquals(ResponseStatus.UPDATED, results.get(1).getRecord().getResponseStatus());
+        assertEquals("value2", repository.read(record2.getId()).getField(fieldType1.getName()));
+
+        // Records without an id or occurring twice fail individually, without affecting the others
+        Record record3 = repository.newRecord();
+        record3.setRecordType(recordType1.getName(), recordType1.getVersion());
+        record3.setField(fieldType1.getName(), "value1");
+        record1.setField(fieldType1.getName(), "value2");
+
+        results = repository.createOrUpdate(Arrays.asList(record1, record3, record1));
+        assertEquals(3, results.size());
+        assertEquals(ResponseStatus.UPDATED, results.get(0).getRecord().getResponseStatus());
+        assertFalse(results.get(1).isSuccess());
+        assertTrue(results.get(1).getException() instanceof RecordException);
+        assertFalse(results.get(2).isSuccess());
+        assertTrue(results.get(2).getException() instanceof InvalidRecordException);
+    }
+
     @Test
     public void testUpdateMutableFieldsRecordType() throws Exception {
         Record record = repository.newRecord();
@@ -1586,6 +1624,43 @@ public abstract class AbstractRepositoryTest {
         assertTrue(readRecords.isEmpty());
     }
 
+    @Test
+    public void testReadWithIdsMultipleRecords() throws Exception {
+        Record record1 = createDefaultRecord();
+        Record record2 = createDefaultRecord();
+        Record record3 = createDefaultRecord();
+
+        List<IdRecord> readRecords = repository.readWithIds(Arrays.asList(record3.getId(), record1.getId()), null);
+        assertEquals(2, readRecords.size());
+        List<RecordId> readIds = new ArrayList<RecordId>();
+        for (IdRecord readRecord : readRecords) {
+            readIds.add(readRecord.getId());
+            assertEquals("value1", readRecord.getField(fieldType1.getId()));
+            assertEquals(3, readRecord.getFieldsById().size());
+            assertEquals(recordType1.getId(), readRecord.getRecordTypeId());
+        }
+        assertTrue(readIds.contains(record1.getId()));
+        assertTrue(readIds.contains(record3.getId()));
+
+        // Deleted records are left out
+        repository.delete(record2.getId());
+        readRecords = repository.readWithIds(Arrays.asList(record2.getId(), record1.getId()), null);
+        assertEquals(1, readRecords.size());
+        assertEquals(record1.getId(), readRecords.get(0).getId());
+
+        // Only the requested fields are read
+        readRecords = repository.readWithIds(Arrays.asList(record1.getId(), record3.getId()),
+                Arrays.asList(fieldType2.getId()));
+        assertEquals(2, readRecords.size());
+        for (IdRecord readRecord : readRecords) {
+            assertEquals(1, readRecord.getFieldsById().size());
+            assertEquals(new Integer(123), readRecord.getField(fieldType2.getId()));
+        }
+
+        readRecords = repository.readWithIds(Collections.<RecordId>emptyList(), null);
+        assertTrue(readRecords.isEmpty());
+    }
+
     @Test
     public void testConditionalUpdate() throws Exception {
         Record record = createDefaultRecord();
@@ -43,6 +43,29 @@ public abstract class AbstractTypeManagerFieldTypeTest {
         assertEquals(typeManager.getFieldTypeById(fieldType.getId()), typeManager.getFieldTypeByName(name));
     }
 
+    @Test
+    public void testSnapshotGetByIdBytes() throws Exception {
+        QName name = new QName(namespace, "testSnapshotGetByIdBytes");
+        FieldType fieldType = typeManager.newFieldType(typeManager.getValueType("STRING"), name, Scope.NON_VERSIONED);
+        fieldType = typeManager.createFieldType(fieldType);
+
+        // The ID is looked up within a larger array, as is the case for the qualifier of a field column
+        byte[] id = fieldType.getId().getBytes();
+        byte[] qualifier = new byte[id.length + 2];
+        System.arraycopy(id, 0, qualifier, 1, id.length);
+        FieldTypes fieldTypes = typeManager.getFieldTypesSnapshot();
+        assertEquals(fieldType, fieldTypes.getFieldType(qualifier, 1, id.length));
+
+        byte[] unknownId = new SchemaIdImpl(UUID.randomUUID()).getBytes();
+        System.arraycopy(unknownId, 0, qualifier, 1, unknownId.length);
+        try {
+            fieldTypes.getFieldType(qualifier, 1, unknownId.length);
+            fail("expected exception");
+        } catch (FieldTypeNotFoundException e) {
+            // expected
+        }
+    }
+
     @Test
     public void testCreateIgnoresGivenId() throws Exception {
         SchemaId id = new SchemaIdImpl(UUID.randomUUID());
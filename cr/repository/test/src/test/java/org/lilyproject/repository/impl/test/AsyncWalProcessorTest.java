@@ -0,0 +1,274 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lilyproject.repository.impl.AsyncWalProcessor;
+import org.lilyproject.repository.impl.AsyncWalProcessorMetrics;
+import org.lilyproject.rowlock.RowLock;
+import org.lilyproject.rowlock.RowLocker;
+import org.lilyproject.rowlog.api.RowLog;
+import org.lilyproject.rowlog.api.RowLogMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncWalProcessorTest {
+    private static AsyncWalProcessorMetrics metrics;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        metrics = new AsyncWalProcessorMetrics("asyncwalprocessortest");
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        metrics.shutdown();
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        TestWal wal = new TestWal();
+        AsyncWalProcessor processor = new AsyncWalProcessor(wal.proxy, new TestRowLocker().proxy, 0, 10, 1000L,
+                metrics);
+        assertFalse(processor.isEnabled());
+        processor.stop();
+    }
+
+    @Test
+    public void testDeferredMessagesProcessedOnSubmit() throws Exception {
+        TestWal wal = new TestWal();
+        TestRowLocker rowLocker = new TestRowLocker();
+        AsyncWalProcessor processor = new AsyncWalProcessor(wal.proxy, rowLocker.proxy, 2, 10, 1000L, metrics);
+        try {
+            assertTrue(processor.isEnabled());
+            RowLock rowLock = RowLock.createRowLock(Bytes.toBytes("row1"));
+            TestMessage message1 = new TestMessage("row1");
+            TestMessage message2 = new TestMessage("row1");
+
+            // Nothing is processed as long as the row lock has not been released
+            processor.defer(rowLock, message1.proxy);
+            processor.defer(rowLock, message2.proxy);
+            Thread.sleep(200);
+            assertEquals(0, wal.processed.size());
+
+            processor.submit(rowLock);
+            wal.waitForProcessed(2);
+            assertTrue(wal.processed.contains(message1.proxy));
+            assertTrue(wal.processed.contains(message2.proxy));
+
+            // The processing took the row lock again, and let the WAL read the execution state from the row
+            assertEquals(2, rowLocker.locks.size());
+            for (RowLock lock : wal.locks) {
+                assertNotSame(rowLock, lock);
+                assertTrue(rowLocker.locks.contains(lock));
+            }
+            assertTrue(message1.executionStateReset);
+            assertTrue(message2.executionStateReset);
+            rowLocker.waitForUnlocked(2);
+            assertTrue(rowLocker.unlocked.containsAll(rowLocker.locks));
+
+            // The deferred messages are submitted only once
+            processor.submit(rowLock);
+            Thread.sleep(200);
+            assertEquals(2, wal.processed.size());
+        } finally {
+            processor.stop();
+        }
+    }
+
+    @Test
+    public void testLockTimeout() throws Exception {
+        TestWal wal = new TestWal();
+        TestRowLocker rowLocker = new TestRowLocker();
+        rowLocker.locked = true;
+        AsyncWalProcessor processor = new AsyncWalProcessor(wal.proxy, rowLocker.proxy, 1, 10, 1234L, metrics);
+        try {
+            long skipped = metrics.skipped.getCurrentIntervalValue();
+            processor.submit(new TestMessage("row2").proxy);
+
+            // The message is left to the WAL processor
+            long waitUntil = System.currentTimeMillis() + 10000;
+            while (metrics.skipped.getCurrentIntervalValue() == skipped) {
+                assertTrue("Message was not skipped in time", System.currentTimeMillis() < waitUntil);
+                Thread.sleep(20);
+            }
+            assertEquals(skipped + 1, metrics.skipped.getCurrentIntervalValue());
+            assertEquals(Collections.singletonList(1234L), rowLocker.timeouts);
+            assertEquals(0, wal.processed.size());
+            assertEquals(0, rowLocker.unlocked.size());
+        } finally {
+            processor.stop();
+        }
+    }
+
+    @Test
+    public void testQueueMetrics() throws Exception {
+        TestWal wal = new TestWal();
+        TestMessage message1 = new TestMessage("row3");
+        wal.blockedMessage = message1.proxy;
+        wal.block = new CountDownLatch(1);
+        AsyncWalProcessor processor = new AsyncWalProcessor(wal.proxy, new TestRowLocker().proxy, 1, 2, 1000L,
+                metrics);
+        try {
+            long backpressure = metrics.backpressure.getCurrentIntervalValue();
+
+            // The only thread is kept busy with the first message, the next ones fill up the queue
+            processor.submit(message1.proxy);
+            assertTrue(wal.blocked.await(10, TimeUnit.SECONDS));
+            processor.submit(new TestMessage("row4").proxy);
+            processor.submit(new TestMessage("row5").proxy);
+            assertEquals(2, metrics.queueSize.get());
+            assertEquals(backpressure, metrics.backpressure.getCurrentIntervalValue());
+
+            // The queue is full: the submitting thread processes the message itself
+            TestMessage message4 = new TestMessage("row6");
+            processor.submit(message4.proxy);
+            assertEquals(backpressure + 1, metrics.backpressure.getCurrentIntervalValue());
+            assertEquals(Collections.singletonList(message4.proxy), wal.processed);
+
+            wal.block.countDown();
+            wal.waitForProcessed(4);
+            long waitUntil = System.currentTimeMillis() + 10000;
+            while (metrics.queueSize.get() != 0) {
+                assertTrue("Queue size did not drop in time", System.currentTimeMillis() < waitUntil);
+                Thread.sleep(20);
+            }
+        } finally {
+            processor.stop();
+        }
+    }
+
+    /**
+     * Keeps track of the processed messages, optionally blocking the processing of one message until unblocked.
+     */
+    private static class TestWal implements InvocationHandler {
+        private final RowLog proxy = (RowLog)Proxy.newProxyInstance(AsyncWalProcessorTest.class.getClassLoader(),
+                new Class[] {RowLog.class}, this);
+        private final List<RowLogMessage> processed = Collections.synchronizedList(new ArrayList<RowLogMessage>());
+        private final List<RowLock> locks = Collections.synchronizedList(new ArrayList<RowLock>());
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private volatile RowLogMessage blockedMessage;
+        private volatile CountDownLatch block;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!method.getName().equals("processMessage")) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+
+            if (args[0] == blockedMessage) {
+                blocked.countDown();
+                block.await();
+            }
+            locks.add((RowLock)args[1]);
+            processed.add((RowLogMessage)args[0]);
+            return true;
+        }
+
+        void waitForProcessed(int count) throws InterruptedException {
+            long waitUntil = System.currentTimeMillis() + 10000;
+            while (processed.size() < count) {
+                assertTrue("Messages were not processed in time", System.currentTimeMillis() < waitUntil);
+                Thread.sleep(20);
+            }
+            assertEquals(count, processed.size());
+        }
+    }
+
+    /**
+     * Hands out a new lock for each row, unless all rows are locked.
+     */
+    private static class TestRowLocker implements InvocationHandler {
+        private final RowLocker proxy = (RowLocker)Proxy.newProxyInstance(
+                AsyncWalProcessorTest.class.getClassLoader(), new Class[] {RowLocker.class}, this);
+        private final List<RowLock> locks = Collections.synchronizedList(new ArrayList<RowLock>());
+        private final List<RowLock> unlocked = Collections.synchronizedList(new ArrayList<RowLock>());
+        private final List<Long> timeouts = Collections.synchronizedList(new ArrayList<Long>());
+        private volatile boolean locked;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("lockRow") && args.length == 2) {
+                timeouts.add((Long)args[1]);
+                if (locked) {
+                    return null;
+                }
+                RowLock lock = RowLock.createRowLock((byte[])args[0]);
+                locks.add(lock);
+                return lock;
+            } else if (method.getName().equals("unlockRow")) {
+                unlocked.add((RowLock)args[0]);
+                return true;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+
+        void waitForUnlocked(int count) throws InterruptedException {
+            long waitUntil = System.currentTimeMillis() + 10000;
+            while (unlocked.size() < count) {
+                assertTrue("Rows were not unlocked in time", System.currentTimeMillis() < waitUntil);
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    /**
+     * A message on the given row, which remembers whether its execution state was reset.
+     */
+    private static class TestMessage implements InvocationHandler {
+        private final RowLogMessage proxy = (RowLogMessage)Proxy.newProxyInstance(
+                AsyncWalProcessorTest.class.getClassLoader(), new Class[] {RowLogMessage.class}, this);
+        private final byte[] rowKey;
+        private volatile boolean executionStateReset;
+
+        TestMessage(String row) {
+            this.rowKey = Bytes.toBytes(row);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("getRowKey")) {
+                return rowKey;
+            } else if (name.equals("setExecutionState")) {
+                executionStateReset = args[0] == null;
+                return null;
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "TestMessage[" + Bytes.toString(rowKey) + "]";
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+}
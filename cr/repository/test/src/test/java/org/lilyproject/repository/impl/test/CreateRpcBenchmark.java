@@ -0,0 +1,219 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl.test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.lilyproject.hadooptestfw.TestHelper;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.RecordType;
+import org.lilyproject.repository.api.Repository;
+import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.impl.HBaseRepository;
+import org.lilyproject.repotestfw.RepositorySetup;
+import org.lilyproject.rowlock.HBaseRowLocker;
+import org.lilyproject.rowlog.impl.RowLogHashShardRouter;
+import org.lilyproject.rowlog.impl.RowLogShardSetup;
+import org.lilyproject.rowlog.impl.WalRowLog;
+import org.lilyproject.util.hbase.HBaseTableFactory;
+import org.lilyproject.util.hbase.LilyHBaseSchema;
+import org.lilyproject.util.hbase.LilyHBaseSchema.RecordCf;
+import org.lilyproject.util.hbase.LilyHBaseSchema.RecordColumn;
+import org.lilyproject.util.hbase.TableConfig;
+
+/**
+ * Reports the number of HBase requests needed to create a record, once with a record ID generated by the
+ * repository, which takes the fast create path, and once with a record ID supplied by the caller, which
+ * takes the lock, reads the row and unlocks it again.
+ *
+ * <p>The requests are counted by the tables of the repository and its wal, per method of HTableInterface.
+ * The wal has no subscriptions, so the requests of the wal listeners are not included.
+ *
+ * <p>This is not a unit test, run it through its main method.
+ */
+public class CreateRpcBenchmark {
+    private static final int RECORDS = 1000;
+    private static final String NS = "org.lilyproject.repository.impl.test.CreateRpcBenchmark";
+
+    public static void main(String[] args) throws Exception {
+        TestHelper.setupLogging();
+
+        RepositorySetup repoSetup = new RepositorySetup();
+        repoSetup.setupCore();
+        repoSetup.setupRepository(true);
+
+        try {
+            CountingTableFactory tableFactory = new CountingTableFactory(repoSetup.getHbaseTableFactory());
+
+            HBaseRowLocker rowLocker = new HBaseRowLocker(LilyHBaseSchema.getRecordTable(tableFactory),
+                    RecordCf.DATA.bytes, RecordColumn.LOCK.bytes, 10000);
+            WalRowLog wal = new WalRowLog("WAL", LilyHBaseSchema.getRecordTable(tableFactory),
+                    RecordCf.ROWLOG.bytes, RecordColumn.WAL_PREFIX, repoSetup.getRowLogConfManager(), rowLocker,
+                    new RowLogHashShardRouter());
+            RowLogShardSetup.setupShards(1, wal, tableFactory);
+
+            TypeManager typeManager = repoSetup.getTypeManager();
+            IdGenerator idGenerator = repoSetup.getIdGenerator();
+            Repository repository = new HBaseRepository(typeManager, idGenerator, wal, tableFactory,
+                    repoSetup.getBlobManager(), rowLocker);
+
+            FieldType fieldType = typeManager.createFieldType(typeManager.newFieldType(
+                    typeManager.getValueType("STRING"), new QName(NS, "field"), Scope.NON_VERSIONED));
+            RecordType recordType = typeManager.newRecordType(new QName(NS, "RecordType"));
+            recordType.addFieldTypeEntry(typeManager.newFieldTypeEntry(fieldType.getId(), false));
+            recordType = typeManager.createRecordType(recordType);
+
+            // Warm up, so that one-time requests (such as the creation of the tables) are not counted
+            createRecords(repository, null, recordType, fieldType, 10);
+            createRecords(repository, idGenerator, recordType, fieldType, 10);
+
+            tableFactory.reset();
+            createRecords(repository, null, recordType, fieldType, RECORDS);
+            report("Generated record IDs", tableFactory.getCounts());
+
+            tableFactory.reset();
+            createRecords(repository, idGenerator, recordType, fieldType, RECORDS);
+            report("Supplied record IDs", tableFactory.getCounts());
+
+            repository.close();
+        } finally {
+            repoSetup.stop();
+        }
+    }
+
+    private static void createRecords(Repository repository, IdGenerator idGenerator, RecordType recordType,
+            FieldType fieldType, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            Record record = idGenerator == null ? repository.newRecord() :
+                    repository.newRecord(idGenerator.newRecordId());
+            record.setRecordType(recordType.getName());
+            record.setField(fieldType.getName(), "value" + i);
+            repository.create(record);
+        }
+    }
+
+    private static void report(String title, Map<String, Long> counts) {
+        long total = 0;
+        for (long count : counts.values()) {
+            total += count;
+        }
+
+        System.out.println(title + ": " + String.format("%.2f", (double)total / RECORDS) + " requests per create");
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            System.out.println("    " + entry.getKey() + ": " +
+                    String.format("%.2f", (double)entry.getValue() / RECORDS));
+        }
+    }
+
+    /**
+     * Counts the calls done on the tables it returns, per method.
+     */
+    private static class CountingTableFactory implements HBaseTableFactory {
+        private static final Set<String> LOCAL_METHODS = new HashSet<String>(Arrays.asList("getTableName",
+                "getConfiguration", "isAutoFlush", "getWriteBufferSize", "close", "toString", "hashCode", "equals"));
+
+        private final HBaseTableFactory delegate;
+        private final Map<String, AtomicLong> counts = new TreeMap<String, AtomicLong>();
+
+        CountingTableFactory(HBaseTableFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        synchronized void reset() {
+            counts.clear();
+        }
+
+        synchronized Map<String, Long> getCounts() {
+            Map<String, Long> result = new TreeMap<String, Long>();
+            for (Map.Entry<String, AtomicLong> entry : counts.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().get());
+            }
+            return result;
+        }
+
+        private synchronized void count(String method) {
+            AtomicLong count = counts.get(method);
+            if (count == null) {
+                count = new AtomicLong();
+                counts.put(method, count);
+            }
+            count.incrementAndGet();
+        }
+
+        private HTableInterface counting(final HTableInterface table) {
+            return (HTableInterface)Proxy.newProxyInstance(HTableInterface.class.getClassLoader(),
+                    new Class[] {HTableInterface.class}, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            if (!LOCAL_METHODS.contains(method.getName())) {
+                                count(method.getName());
+                            }
+                            try {
+                                return method.invoke(table, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                    });
+        }
+
+        @Override
+        public HTableInterface getTable(HTableDescriptor tableDescriptor) throws IOException {
+            return counting(delegate.getTable(tableDescriptor));
+        }
+
+        @Override
+        public HTableInterface getTable(HTableDescriptor tableDescriptor, byte[][] splitKeys) throws IOException {
+            return counting(delegate.getTable(tableDescriptor, splitKeys));
+        }
+
+        @Override
+        public HTableInterface getTable(HTableDescriptor tableDescriptor, boolean create) throws IOException {
+            return counting(delegate.getTable(tableDescriptor, create));
+        }
+
+        @Override
+        public TableConfig getTableConfig(byte[] tableName) {
+            return delegate.getTableConfig(tableName);
+        }
+
+        @Override
+        public void configure(HTableDescriptor tableDescriptor) {
+            delegate.configure(tableDescriptor);
+        }
+
+        @Override
+        public byte[][] getSplitKeys(byte[] tableName) {
+            return delegate.getSplitKeys(tableName);
+        }
+    }
+}
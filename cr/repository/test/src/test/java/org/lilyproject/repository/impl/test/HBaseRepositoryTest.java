@@ -17,6 +17,13 @@ package org.lilyproject.repository.impl.test;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -24,6 +31,8 @@ import org.junit.Test;
 import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.TypeManager;
 import org.lilyproject.repository.impl.HBaseTypeManager;
+import org.lilyproject.rowlog.api.RowLogMessage;
+import org.lilyproject.rowlog.api.RowLogMessageListener;
 import org.lilyproject.rowlog.api.RowLogMessageListenerMapping;
 import org.lilyproject.rowlog.api.RowLogSubscription.Type;
 import org.lilyproject.hadooptestfw.TestHelper;
@@ -79,6 +88,37 @@ public class HBaseRepositoryTest extends AbstractRepositoryTest {
         repoSetup.getRowLogConfManager().removeSubscription("WAL", "TestSubscription");
         RowLogMessageListenerMapping.INSTANCE.remove("TestSubscription");
     }
+
+    @Test
+    public void testCreateProcessesWalMessageUnderRowLock() throws Exception {
+        final List<Boolean> locked = Collections.synchronizedList(new ArrayList<Boolean>());
+        RowLogMessageListenerMapping.INSTANCE.put("LockCheckSubscription", new RowLogMessageListener() {
+            @Override
+            public boolean processMessage(RowLogMessage message) throws InterruptedException {
+                try {
+                    locked.add(repoSetup.getRowLocker().isLocked(message.getRowKey()));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return true;
+            }
+        });
+        repoSetup.getRowLogConfManager().addSubscription("WAL", "LockCheckSubscription", Type.VM, 3);
+        repoSetup.waitForSubscription(repoSetup.getWal(), "LockCheckSubscription");
+
+        // A record with a generated id is put without locking its row, but the wal processor could pick up its
+        // message at the same time, so the repository should only process it under the row lock
+        Record record = repository.newRecord();
+        record.setRecordType(recordType1.getName(), recordType1.getVersion());
+        record.setField(fieldType1.getName(), "value1");
+        record = repository.create(record);
+
+        assertEquals(Arrays.asList(Boolean.TRUE), locked);
+        assertFalse(repoSetup.getRowLocker().isLocked(record.getId().toBytes()));
+
+        repoSetup.getRowLogConfManager().removeSubscription("WAL", "LockCheckSubscription");
+        RowLogMessageListenerMapping.INSTANCE.remove("LockCheckSubscription");
+    }
     
     
 }
@@ -15,12 +15,14 @@
  */
 package org.lilyproject.repository.impl.test;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 
 import org.junit.Test;
+import org.lilyproject.bytes.impl.DataInputImpl;
 import org.lilyproject.repository.api.IdGenerator;
 import org.lilyproject.repository.api.RecordId;
 import org.lilyproject.repository.impl.id.IdGeneratorImpl;
@@ -188,6 +190,29 @@ public class IdGeneratorImplTest {
         assertArrayEquals(variantIdBytes, variantId.toBytes());
     }
 
+    @Test
+    public void testFromBytesWithinLargerArray() {
+        IdGeneratorImpl idGenerator = new IdGeneratorImpl();
+        RecordId uuidId = idGenerator.newRecordId();
+        RecordId userId = idGenerator.newRecordId("marvellous");
+        Map<String, String> variantProperties = new HashMap<String, String>();
+        variantProperties.put("a", "x");
+        variantProperties.put("aa", "xx");
+
+        // The record ID factories split the input in a master and a variant part, which should stay within
+        // the part of the array that is given
+        RecordId[] recordIds = {uuidId, userId, idGenerator.newRecordId(uuidId, variantProperties),
+                idGenerator.newRecordId(userId, variantProperties)};
+        for (RecordId recordId : recordIds) {
+            byte[] idBytes = recordId.toBytes();
+            byte[] bytes = new byte[idBytes.length + 6];
+            Arrays.fill(bytes, (byte)1);
+            System.arraycopy(idBytes, 0, bytes, 3, idBytes.length);
+
+            assertEquals(recordId, idGenerator.fromBytes(new DataInputImpl(bytes, 3, idBytes.length)));
+        }
+    }
+
     @Test
     public void testNullCharacterNotAllowedInUserId() {
         IdGenerator idGenerator = new IdGeneratorImpl();
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl.test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.lilyproject.hbaseext.LilyRecordVariantFilter;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LilyRecordVariantFilterTest {
+    private IdGenerator idGenerator = new IdGeneratorImpl();
+
+    @Test
+    public void testFilterRowKey() {
+        RecordId master = idGenerator.newRecordId("master");
+        Map<String, String> props = new HashMap<String, String>();
+        props.put("lang", "en");
+        RecordId variant = idGenerator.newRecordId(master, props);
+        props.put("branch", "dev");
+        RecordId otherVariant = idGenerator.newRecordId(master, props);
+
+        LilyRecordVariantFilter filter =
+                new LilyRecordVariantFilter(Collections.<String, String>singletonMap("lang", null));
+
+        // On the region server, the row key is part of a larger buffer (the KeyValue)
+        assertTrue(filterRowKey(filter, master));
+        assertFalse(filterRowKey(filter, variant));
+        assertTrue(filterRowKey(filter, otherVariant));
+    }
+
+    private boolean filterRowKey(LilyRecordVariantFilter filter, RecordId recordId) {
+        byte[] rowKey = recordId.toBytes();
+        byte[] buffer = new byte[rowKey.length + 8];
+        System.arraycopy(rowKey, 0, buffer, 4, rowKey.length);
+        return filter.filterRowKey(buffer, 4, rowKey.length);
+    }
+}
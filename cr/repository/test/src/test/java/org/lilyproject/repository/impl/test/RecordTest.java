@@ -22,7 +22,9 @@ import static org.junit.Assert.assertTrue;
 import java.math.BigDecimal;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import org.apache.hadoop.hbase.util.Bytes;
 import org.joda.time.DateTime;
@@ -152,5 +154,98 @@ public class RecordTest {
         } catch (RecordException expected) {
         }
   }
-    
+
+  @Test
+  public void testReadRecordIsInterchangeable() throws Exception {
+      String namespace = "testReadRecordIsInterchangeable";
+      FieldType stringField = typeManager.createFieldType(typeManager.newFieldType(typeManager.getValueType("STRING"),
+              new QName(namespace, "stringField"), Scope.NON_VERSIONED));
+      FieldType longField = typeManager.createFieldType(typeManager.newFieldType(typeManager.getValueType("LONG"),
+              new QName(namespace, "longField"), Scope.VERSIONED));
+      RecordType recordType = typeManager.newRecordType(new QName(namespace, "recordType"));
+      recordType.addFieldTypeEntry(typeManager.newFieldTypeEntry(stringField.getId(), false));
+      recordType.addFieldTypeEntry(typeManager.newFieldTypeEntry(longField.getId(), false));
+      recordType = typeManager.createRecordType(recordType);
+
+      Record record = repository.newRecord();
+      record.setRecordType(recordType.getName());
+      record.setField(stringField.getName(), "abc");
+      record.setField(longField.getName(), 123L);
+      record = repository.create(record);
+
+      // The fields of a read record are decoded as they are asked for
+      Record readRecord = repository.read(record.getId());
+      assertTrue(readRecord.hasField(longField.getName()));
+      assertEquals(Long.valueOf(123L), readRecord.getField(longField.getName()));
+      assertEquals(record, readRecord);
+      assertEquals(readRecord, record);
+      assertEquals(record.hashCode(), readRecord.hashCode());
+
+      readRecord = repository.read(record.getId());
+      assertEquals("abc", readRecord.cloneRecord().getField(stringField.getName()));
+      readRecord.delete(stringField.getName(), true);
+      assertFalse(readRecord.hasField(stringField.getName()));
+      assertEquals(1, readRecord.getFields().size());
+  }
+
+  @Test
+  public void testReadRecordConcurrently() throws Exception {
+      String namespace = "testReadRecordConcurrently";
+      RecordType recordType = typeManager.newRecordType(new QName(namespace, "recordType"));
+      final List<QName> fieldNames = new ArrayList<QName>();
+      for (int i = 0; i < 50; i++) {
+          FieldType fieldType = typeManager.createFieldType(typeManager.newFieldType(
+                  typeManager.getValueType("STRING"), new QName(namespace, "field" + i), Scope.NON_VERSIONED));
+          recordType.addFieldTypeEntry(typeManager.newFieldTypeEntry(fieldType.getId(), false));
+          fieldNames.add(fieldType.getName());
+      }
+      recordType = typeManager.createRecordType(recordType);
+
+      Record record = repository.newRecord();
+      record.setRecordType(recordType.getName());
+      for (int i = 0; i < fieldNames.size(); i++) {
+          record.setField(fieldNames.get(i), "value" + i);
+      }
+      record = repository.create(record);
+
+      // A read record is handed to several threads at once, for example by the fan-out index updater, while its
+      // fields are still to be decoded
+      for (int round = 0; round < 20; round++) {
+          final Record readRecord = repository.read(record.getId());
+          final CountDownLatch start = new CountDownLatch(1);
+          final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+          List<Thread> threads = new ArrayList<Thread>();
+          for (int t = 0; t < 8; t++) {
+              final int offset = t * 7;
+              final boolean getAllFields = t == 0;
+              Thread thread = new Thread() {
+                  @Override
+                  public void run() {
+                      try {
+                          start.await();
+                          for (int i = 0; i < fieldNames.size(); i++) {
+                              int field = (i + offset) % fieldNames.size();
+                              assertEquals("value" + field, readRecord.getField(fieldNames.get(field)));
+                          }
+                          if (getAllFields) {
+                              assertEquals(fieldNames.size(), readRecord.getFields().size());
+                          }
+                      } catch (Throwable e) {
+                          errors.add(e);
+                      }
+                  }
+              };
+              thread.start();
+              threads.add(thread);
+          }
+          start.countDown();
+          for (Thread thread : threads) {
+              thread.join(60000);
+              assertFalse(thread.isAlive());
+          }
+          assertTrue("Errors reading the record concurrently: " + errors, errors.isEmpty());
+          assertEquals(record, readRecord);
+      }
+  }
+
 }
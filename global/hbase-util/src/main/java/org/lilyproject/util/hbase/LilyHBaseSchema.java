@@ -56,6 +56,13 @@ public class LilyHBaseSchema {
         blobIncubatorDescriptor.addFamily(new HColumnDescriptor(BlobIncubatorCf.REF.bytes));
     }
 
+    private static final HTableDescriptor blobTextDescriptor;
+
+    static {
+        blobTextDescriptor = new HTableDescriptor(Table.BLOBTEXT.bytes);
+        blobTextDescriptor.addFamily(new HColumnDescriptor(BlobTextCf.DATA.bytes));
+    }
+
     public static HTableInterface getRecordTable(HBaseTableFactory tableFactory) throws IOException {
         return tableFactory.getTable(recordTableDescriptor);
     }
@@ -72,10 +79,15 @@ public class LilyHBaseSchema {
         return tableFactory.getTable(blobIncubatorDescriptor, !clientMode);
     }
 
+    public static HTableInterface getBlobTextTable(HBaseTableFactory tableFactory) throws IOException {
+        return tableFactory.getTable(blobTextDescriptor);
+    }
+
     public static enum Table {
         RECORD("record"),
         TYPE("type"),
-        BLOBINCUBATOR("blobincubator");
+        BLOBINCUBATOR("blobincubator"),
+        BLOBTEXT("blobtext");
 
         public final byte[] bytes;
         public final String name;
@@ -199,4 +211,34 @@ public class LilyHBaseSchema {
             this.bytes = Bytes.toBytes(name);
         }
     }
+
+    /**
+     * Column families in the blob text table, which caches the text extracted from blobs by the indexer.
+     */
+    public static enum BlobTextCf {
+        DATA("data");
+
+        public final byte[] bytes;
+        public final String name;
+
+        BlobTextCf(String name) {
+            this.name = name;
+            this.bytes = Bytes.toBytes(name);
+        }
+    }
+
+    /**
+     * Columns in the blob text table.
+     */
+    public static enum BlobTextColumn {
+        TEXT("text");
+
+        public final byte[] bytes;
+        public final String name;
+
+        BlobTextColumn(String name) {
+            this.name = name;
+            this.bytes = Bytes.toBytes(name);
+        }
+    }
 }
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.hbaseindex.perftest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.lilyproject.cli.OptionUtil;
+import org.lilyproject.hbaseindex.Conjunction;
+import org.lilyproject.hbaseindex.Index;
+import org.lilyproject.hbaseindex.IndexDefinition;
+import org.lilyproject.hbaseindex.IndexEntry;
+import org.lilyproject.hbaseindex.IndexManager;
+import org.lilyproject.hbaseindex.Query;
+import org.lilyproject.hbaseindex.QueryResult;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+import org.lilyproject.testclientfw.BaseTestTool;
+import org.lilyproject.util.Version;
+
+/**
+ * Measures the performance of {@link Conjunction}s of a dense and a sparse query result, with the results
+ * skipping ahead through {@link QueryResult#seekTo}, and for comparison with results which can only move
+ * forward one row at a time.
+ *
+ * <p>Every entry is indexed with the tag "all", and a fraction of them (as configured by the sparsity)
+ * also with the tag "sparse" and with the tag "medium" (at a 10 times higher rate).
+ */
+public class ConjunctionPerfTest extends BaseTestTool {
+    private Index index;
+
+    private IdGenerator idGenerator = new IdGeneratorImpl();
+
+    private Option initialInsertOption;
+    private Option initialInsertBatchOption;
+    private Option sparsityOption;
+    private Option loopsOption;
+
+    private int initialInserts;
+    private int initialInsertsBatchSize;
+    private int sparsity;
+    private int loops;
+
+    public static void main(String[] args) throws Exception {
+        new ConjunctionPerfTest().start(args);
+    }
+
+    @Override
+    protected String getCmdName() {
+        return "hbaseindex-conjunction-perftest";
+    }
+
+    @Override
+    protected String getVersion() {
+        return Version.readVersion("org.lilyproject", "lily-hbaseindex-perftest");
+    }
+
+    @Override
+    public List<Option> getOptions() {
+        List<Option> options = super.getOptions();
+
+        initialInsertOption = OptionBuilder
+                .withArgName("amount")
+                .hasArg()
+                .withDescription("Initial index loading: number of entries to create")
+                .withLongOpt("initial-entries")
+                .create("e");
+        options.add(initialInsertOption);
+
+        initialInsertBatchOption = OptionBuilder
+                .withArgName("amount")
+                .hasArg()
+                .withDescription("Initial index loading: number of entries to add in one call to the index")
+                .withLongOpt("initial-entries-batch")
+                .create("b");
+        options.add(initialInsertBatchOption);
+
+        sparsityOption = OptionBuilder
+                .withArgName("amount")
+                .hasArg()
+                .withDescription("One out of this many entries is also part of the sparse result")
+                .withLongOpt("sparsity")
+                .create("s");
+        options.add(sparsityOption);
+
+        loopsOption = OptionBuilder
+                .withArgName("amount")
+                .hasArg()
+                .withDescription("Number of loops to perform (each loop does multiple queries)")
+                .withLongOpt("loops")
+                .create("l");
+        options.add(loopsOption);
+
+        return options;
+    }
+
+    @Override
+    public int run(CommandLine cmd) throws Exception {
+        int result = super.run(cmd);
+        if (result != 0)
+            return result;
+
+        IndexManager indexMgr = new IndexManager(getHBaseConf());
+
+        IndexDefinition indexDef = new IndexDefinition("perftest-conjunction");
+        indexDef.addStringField("tag");
+
+        index = indexMgr.getIndex(indexDef);
+
+        initialInserts = OptionUtil.getIntOption(cmd, initialInsertOption, 1000000);
+        initialInsertsBatchSize = OptionUtil.getIntOption(cmd, initialInsertBatchOption, 300);
+        sparsity = OptionUtil.getIntOption(cmd, sparsityOption, 10000);
+        loops = OptionUtil.getIntOption(cmd, loopsOption, 100);
+
+        System.out.println("Will insert " + initialInserts + " index entries in batches of " +
+                initialInsertsBatchSize + ", with a sparsity of 1/" + sparsity);
+        System.out.println("Will then perform " + loops + " loops of conjunction queries on it");
+
+        setupMetrics();
+
+        doBulkLoad();
+
+        doQueries();
+
+        finishMetrics();
+
+        return 0;
+    }
+
+    private void doBulkLoad() throws InterruptedException {
+        startExecutor();
+
+        int left = initialInserts;
+
+        while (left > 0) {
+            int amount = Math.min(left, initialInsertsBatchSize);
+            left -= amount;
+            executor.submit(new BulkInserter(amount));
+        }
+
+        stopExecutor();
+    }
+
+    private void doQueries() throws InterruptedException {
+        startExecutor();
+
+        for (int i = 0; i < loops; i++) {
+            executor.submit(new ConjunctionQuery("Sparse AND dense (seek)", true, "all", "sparse"));
+            executor.submit(new ConjunctionQuery("Sparse AND dense (next)", false, "all", "sparse"));
+            executor.submit(new ConjunctionQuery("Sparse AND medium AND dense (seek)", true, "all", "medium",
+                    "sparse"));
+            executor.submit(new ConjunctionQuery("Sparse AND medium AND dense (next)", false, "all", "medium",
+                    "sparse"));
+        }
+
+        stopExecutor();
+    }
+
+    private class BulkInserter implements Runnable {
+        private int amount;
+
+        public BulkInserter(int amount) {
+            this.amount = amount;
+        }
+
+        @Override
+        public void run() {
+            try {
+                List<IndexEntry> entries = new ArrayList<IndexEntry>(amount);
+
+                for (int i = 0; i < amount; i++) {
+                    byte[] identifier = idGenerator.newRecordId().toBytes();
+                    entries.add(createEntry("all", identifier));
+                    if (Math.random() * sparsity < 10) {
+                        entries.add(createEntry("medium", identifier));
+                    }
+                    if (Math.random() * sparsity < 1) {
+                        entries.add(createEntry("sparse", identifier));
+                    }
+                }
+
+                long before = System.nanoTime();
+                index.addEntries(entries);
+                double duration = System.nanoTime() - before;
+                metrics.increment("Index insert in batch of " + amount, "I", amount, duration / 1e6d);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+
+        private IndexEntry createEntry(String tag, byte[] identifier) {
+            IndexEntry entry = new IndexEntry(index.getDefinition());
+            entry.addField("tag", tag);
+            entry.setIdentifier(identifier);
+            return entry;
+        }
+    }
+
+    private class ConjunctionQuery implements Runnable {
+        private String name;
+        private boolean seek;
+        private String[] tags;
+
+        public ConjunctionQuery(String name, boolean seek, String... tags) {
+            this.name = name;
+            this.seek = seek;
+            this.tags = tags;
+        }
+
+        @Override
+        public void run() {
+            try {
+                int resultCount = 0;
+
+                long before = System.nanoTime();
+                List<QueryResult> results = new ArrayList<QueryResult>(tags.length);
+                for (String tag : tags) {
+                    Query query = new Query();
+                    query.addEqualsCondition("tag", tag);
+                    QueryResult result = index.performQuery(query);
+                    results.add(seek ? result : new NextOnlyQueryResult(result));
+                }
+
+                QueryResult result = new Conjunction(results);
+                while (result.next() != null) {
+                    resultCount++;
+                }
+                double duration = System.nanoTime() - before;
+                metrics.increment(name + " duration", "Q", duration / 1e6d);
+                metrics.increment(name + " # of results", resultCount);
+                result.close();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Seeks by calling next() until the identifier is reached, which is how a Conjunction used to intersect
+     * its results.
+     */
+    private static class NextOnlyQueryResult implements QueryResult {
+        private QueryResult delegate;
+
+        public NextOnlyQueryResult(QueryResult delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public byte[] next() throws IOException {
+            return delegate.next();
+        }
+
+        @Override
+        public byte[] seekTo(byte[] identifier) throws IOException {
+            byte[] result;
+            while ((result = delegate.next()) != null && Bytes.compareTo(result, identifier) < 0) {
+                // skip
+            }
+            return result;
+        }
+
+        @Override
+        public byte[] getData(byte[] qualifier) {
+            return delegate.getData(qualifier);
+        }
+
+        @Override
+        public byte[] getData(String qualifier) {
+            return delegate.getData(qualifier);
+        }
+
+        @Override
+        public String getDataAsString(String qualifier) {
+            return delegate.getDataAsString(qualifier);
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+}
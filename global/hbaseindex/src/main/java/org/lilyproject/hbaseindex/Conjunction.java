@@ -15,13 +15,14 @@
  */
 package org.lilyproject.hbaseindex;
 
-import org.apache.hadoop.hbase.util.Bytes;
-
 import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
 
 /**
- * Merge-joins two QueryResults into one, in other words: an AND
- * operation on two indices.
+ * Merge-joins QueryResults into one, in other words: an AND
+ * operation on multiple indices.
  *
  * <p>This only works if the individual QueryResults return their rows
  * sorted in increasing identifier order, and return each identifier at most
@@ -32,59 +33,125 @@ import java.io.IOException;
  * <p>A Conjunction itself also returns its results in increasing identifier
  * order, and can hence serve as input to other Conjunctions.
  *
- * <p>TODO the implementation is currently not optimal if lots of rows need
- * to be skipped to move to the next common result, since this is done by
- * iterating one result at a time using next() calls. It would be better to
- * directly skip to the next appropriate result. HBase scanners don't support
- * this natively, so to skip we would rather need to open a new scanner. But
- * we can't exactly know on beforehand if this will be beneficial or not. Maybe
- * we could have some heuristic for this, e.g. after 10 next() calls open a new
- * scanner to jump directly to the next relevant result.
+ * <p>The results are intersected using a leapfrog join: the results which are
+ * behind the largest current identifier are moved to it using
+ * {@link QueryResult#seekTo}, until they all agree on the same identifier. This
+ * way, the sparsest result determines how far the others skip ahead, rather
+ * than all results being iterated one row at a time.
  */
 public class Conjunction extends BaseQueryResult {
-    private QueryResult result1;
-    private QueryResult result2;
+    private QueryResult[] results;
+    private byte[][] keys;
+    private boolean init = false;
+    private boolean end = false;
 
     public Conjunction(QueryResult result1, QueryResult result2) {
-        this.result1 = result1;
-        this.result2 = result2;
+        this(new QueryResult[] {result1, result2});
+    }
+
+    public Conjunction(List<QueryResult> results) {
+        this(results.toArray(new QueryResult[results.size()]));
+    }
+
+    public Conjunction(QueryResult... results) {
+        if (results.length == 0) {
+            throw new IllegalArgumentException("A conjunction needs at least one QueryResult.");
+        }
+        this.results = results;
+        this.keys = new byte[results.length][];
     }
 
     @Override
     public byte[] next() throws IOException {
-        byte[] key1 = result1.next();
-        byte[] key2 = result2.next();
+        if (end) {
+            return null;
+        }
+
+        if (!init) {
+            init = true;
+            for (int i = 0; i < results.length; i++) {
+                keys[i] = results[i].next();
+                if (keys[i] == null) {
+                    return end();
+                }
+            }
+        } else {
+            // All results are on the previous common identifier, moving one of them suffices
+            keys[0] = results[0].next();
+            if (keys[0] == null) {
+                return end();
+            }
+        }
+
+        return leapfrog();
+    }
 
-        if (key1 == null || key2 == null)
+    @Override
+    public byte[] seekTo(byte[] identifier) throws IOException {
+        if (end) {
             return null;
+        }
 
-        int cmp = Bytes.compareTo(key1, key2);
+        init = true;
+        for (int i = 0; i < results.length; i++) {
+            keys[i] = results[i].seekTo(identifier);
+            if (keys[i] == null) {
+                return end();
+            }
+        }
 
-        while (cmp != 0) {
+        return leapfrog();
+    }
+
+    /**
+     * Moves the results forward until they are all on the same identifier.
+     */
+    private byte[] leapfrog() throws IOException {
+        byte[] target = keys[0];
+        for (int i = 1; i < keys.length; i++) {
+            if (Bytes.compareTo(keys[i], target) > 0) {
+                target = keys[i];
+            }
+        }
+
+        // Number of results found on the target in a row, visiting the results round-robin
+        int matched = 0;
+        int i = 0;
+        while (matched < results.length) {
+            int cmp = Bytes.compareTo(keys[i], target);
             if (cmp < 0) {
-                while (cmp < 0) {
-                    key1 = result1.next();
-                    if (key1 == null)
-                        return null;
-                    cmp = Bytes.compareTo(key1, key2);
-                }
-            } else if (cmp > 0) {
-                while (cmp > 0) {
-                    key2 = result2.next();
-                    if (key2 == null)
-                        return null;
-                    cmp = Bytes.compareTo(key1, key2);
+                keys[i] = results[i].seekTo(target);
+                if (keys[i] == null) {
+                    return end();
                 }
+                cmp = Bytes.compareTo(keys[i], target);
+            }
+
+            if (cmp == 0) {
+                matched++;
+            } else {
+                // Overshot the target: the others need to catch up with this one
+                target = keys[i];
+                matched = 1;
             }
+
+            i = (i + 1) % results.length;
         }
 
-        currentQResult = result1;
-        return key1;
+        currentQResult = results[0];
+        return target;
+    }
+
+    private byte[] end() {
+        end = true;
+        currentQResult = null;
+        return null;
     }
 
     @Override
     public void close() {
-        result1.close();
-        result2.close();
+        for (QueryResult result : results) {
+            result.close();
+        }
     }
 }
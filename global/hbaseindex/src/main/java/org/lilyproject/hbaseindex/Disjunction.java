@@ -80,6 +80,25 @@ public class Disjunction extends BaseQueryResult {
         }
     }
 
+    @Override
+    public byte[] seekTo(byte[] identifier) throws IOException {
+        if (!init) {
+            key1 = result1.seekTo(identifier);
+            key2 = result2.seekTo(identifier);
+            init = true;
+        } else {
+            // key1 and key2 are the results following the current one, they only need to move if they are behind
+            if (key1 != null && Bytes.compareTo(key1, identifier) < 0) {
+                key1 = result1.seekTo(identifier);
+            }
+            if (key2 != null && Bytes.compareTo(key2, identifier) < 0) {
+                key2 = result2.seekTo(identifier);
+            }
+        }
+
+        return next();
+    }
+
     @Override
     public void close() {
         result1.close();
@@ -16,9 +16,17 @@
 package org.lilyproject.hbaseindex;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import com.gotometrics.orderly.RowKey;
 import com.gotometrics.orderly.StructBuilder;
@@ -27,13 +35,9 @@ import com.gotometrics.orderly.Termination;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
-import org.apache.hadoop.hbase.filter.BinaryPrefixComparator;
-import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
-import org.apache.hadoop.hbase.filter.Filter;
-import org.apache.hadoop.hbase.filter.FilterList;
-import org.apache.hadoop.hbase.filter.RowFilter;
-import org.apache.hadoop.hbase.filter.WhileMatchFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.lilyproject.util.ArgumentValidator;
 import org.lilyproject.util.ByteArrayKey;
@@ -53,9 +57,22 @@ public class Index {
 
     private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
 
-    protected Index(HTableInterface htable, IndexDefinition definition) {
+    /**
+     * Scanner caching used for queries without a result size hint.
+     */
+    private static final int DEFAULT_CACHING = 30;
+    private static final int MAX_CACHING = 1000;
+
+    /**
+     * Runs the scans of {@link #performQueries} in parallel, owned by the IndexManager. Null to run them
+     * one after the other.
+     */
+    private final ExecutorService queryExecutor;
+
+    protected Index(HTableInterface htable, IndexDefinition definition, ExecutorService queryExecutor) {
         this.htable = htable;
         this.definition = definition;
+        this.queryExecutor = queryExecutor;
     }
 
     public IndexDefinition getDefinition() {
@@ -153,6 +170,125 @@ public class Index {
     }
 
     public QueryResult performQuery(Query query) throws IOException {
+        ScanRange range = toScanRange(query);
+        if (range == null) {
+            return new EmptyQueryResult();
+        }
+
+        return new ScannerQueryResult(htable, range.toScan(), definition);
+    }
+
+    /**
+     * Performs multiple queries at once, which is more efficient than performing them one by one.
+     *
+     * <p>The row ranges of the queries are sorted, and ranges which overlap or touch each other are read with
+     * one shared scan. The scans over disjoint ranges are run in parallel. The results of each query are read
+     * completely before this method returns, so this is meant for many queries with small results, such as one
+     * query per record. Queries with large results are better performed with {@link #performQuery}, or by
+     * limiting the number of rows read on beforehand with {@link #performQueries(List, int)}.
+     *
+     * @return the results of the queries, in the same order as the queries
+     */
+    public List<QueryResult> performQueries(List<Query> queries) throws IOException {
+        return performQueries(queries, 0);
+    }
+
+    /**
+     * Variant of {@link #performQueries(List)} which keeps at most maxPrefetchedRows rows in memory for each
+     * query. The rows of a query beyond that number are read by a scanner of its own, once the prefetched rows
+     * have been consumed, so that queries with unexpectedly large results don't need to fit in memory.
+     *
+     * @param maxPrefetchedRows 0 or less for no limit
+     */
+    public List<QueryResult> performQueries(List<Query> queries, int maxPrefetchedRows) throws IOException {
+        List<QueryResult> results = new ArrayList<QueryResult>(queries.size());
+        List<ScanRange> ranges = new ArrayList<ScanRange>(queries.size());
+        for (Query query : queries) {
+            ScanRange range = toScanRange(query);
+            if (range == null) {
+                results.add(new EmptyQueryResult());
+            } else {
+                PrefetchedQueryResult result = new PrefetchedQueryResult(htable, definition, range.startRow,
+                        range.stopRow, range.caching, maxPrefetchedRows);
+                results.add(result);
+                range.results.add(result);
+                ranges.add(range);
+            }
+        }
+
+        List<ScanRange> mergedRanges = mergeRanges(ranges);
+        if (mergedRanges.size() == 1 || (mergedRanges.size() > 1 && queryExecutor == null)) {
+            for (ScanRange range : mergedRanges) {
+                range.read(htable);
+            }
+        } else if (mergedRanges.size() > 1) {
+            readInParallel(mergedRanges);
+        }
+
+        return results;
+    }
+
+    /**
+     * Sorts the ranges on their start row and merges the ranges which overlap or touch each other.
+     */
+    private List<ScanRange> mergeRanges(List<ScanRange> ranges) {
+        Collections.sort(ranges, new Comparator<ScanRange>() {
+            @Override
+            public int compare(ScanRange range1, ScanRange range2) {
+                return Bytes.compareTo(range1.startRow, range2.startRow);
+            }
+        });
+
+        List<ScanRange> mergedRanges = new ArrayList<ScanRange>();
+        ScanRange current = null;
+        for (ScanRange range : ranges) {
+            if (current != null && (current.stopRow == null || Bytes.compareTo(range.startRow, current.stopRow) <= 0)) {
+                current.merge(range);
+            } else {
+                current = new ScanRange(range.startRow, range.stopRow, range.caching);
+                current.results.addAll(range.results);
+                mergedRanges.add(current);
+            }
+        }
+        return mergedRanges;
+    }
+
+    private void readInParallel(List<ScanRange> ranges) throws IOException {
+        List<Future<?>> futures = new ArrayList<Future<?>>(ranges.size());
+        try {
+            for (final ScanRange range : ranges) {
+                futures.add(queryExecutor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws IOException {
+                        range.read(htable);
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while performing index queries.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            } else {
+                throw new IOException("Error performing index queries.", e.getCause());
+            }
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Translates a query to the range of rows it needs to read, returns null if the query can't have any result.
+     */
+    private ScanRange toScanRange(Query query) throws IOException {
         validateQuery(query);
 
         final StructBuilder fromKeyStructBuilder = new StructBuilder();
@@ -259,33 +395,42 @@ public class Index {
             toKey = fromKey;
         }
 
-        Scan scan = new Scan(fromKey);
+        // The bounds are translated to exact start and stop rows, so that no filter needs to be evaluated on
+        // each row. A bound with a key includes (or excludes) all rows of which the key is a prefix.
+        boolean lowerBoundInclusive = !rangeCondSet || rangeCond.isLowerBoundInclusive() ||
+                rangeCond.getFromValue() == Query.MIN_VALUE;
+        byte[] startRow = lowerBoundInclusive ? fromKey : prefixSuccessor(fromKey);
+        if (startRow == null) {
+            // Nothing is larger than all rows starting with fromKey
+            return null;
+        }
 
         // Query.MAX_VALUE is a value which should be larger than anything, so cannot be an inclusive upper bound
-        // The importance of this is because for Query.MAX_VALUE, we do a prefix scan so the operator should be
-        // CompareOp.LESS_OR_EQUAL
+        // The importance of this is because for Query.MAX_VALUE, we do a prefix scan so the upper bound should
+        // include all rows starting with the toKey.
         boolean upperBoundInclusive =
-                rangeCond != null && (rangeCond.isUpperBoundInclusive() || rangeCond.getToValue() == Query.MAX_VALUE);
-        CompareOp op = rangeCondSet && !upperBoundInclusive ? CompareOp.LESS : CompareOp.LESS_OR_EQUAL;
-        Filter toFilter = new RowFilter(op, new BinaryPrefixComparator(toKey));
-
-        if (rangeCondSet && !rangeCond.isLowerBoundInclusive()) {
-            // TODO: optimize the performance hit caused by the extra filter
-            //  Once the greater filter on the fromKey returns true, it will remain true because
-            //  row keys are sorted. The RowFilter will however keep doing the check again and again
-            //  on each new row key. We need a new filter in HBase, something like the opposite of the
-            //  WhileMatchFilter.
-            FilterList filters = new FilterList(FilterList.Operator.MUST_PASS_ALL);
-            filters.addFilter(new RowFilter(CompareOp.GREATER, new BinaryPrefixComparator(fromKey)));
-            filters.addFilter(new WhileMatchFilter(toFilter));
-            scan.setFilter(filters);
-        } else {
-            scan.setFilter(new WhileMatchFilter(toFilter));
-        }
+                !rangeCondSet || rangeCond.isUpperBoundInclusive() || rangeCond.getToValue() == Query.MAX_VALUE;
+        byte[] stopRow = upperBoundInclusive ? prefixSuccessor(toKey) : toKey;
 
-        scan.setCaching(30);
+        int resultSizeHint = query.getResultSizeHint();
+        int caching = resultSizeHint > 0 ? Math.min(resultSizeHint + 1, MAX_CACHING) : DEFAULT_CACHING;
 
-        return new ScannerQueryResult(htable.getScanner(scan), definition);
+        return new ScanRange(startRow, stopRow, caching);
+    }
+
+    /**
+     * Returns the smallest row key which is larger than all row keys starting with the given prefix, or null
+     * if there is no such row key (in which case the prefix matches up to the end of the table).
+     */
+    private static byte[] prefixSuccessor(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte)0xFF) {
+                byte[] successor = Arrays.copyOf(prefix, i + 1);
+                successor[i]++;
+                return successor;
+            }
+        }
+        return null;
     }
 
     /**
@@ -321,4 +466,81 @@ public class Index {
         }
     }
 
+    private static class EmptyQueryResult extends BaseQueryResult {
+        @Override
+        public byte[] next() {
+            return null;
+        }
+
+        @Override
+        public byte[] seekTo(byte[] identifier) {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * A range of rows to scan, with the results of the queries which are read from it.
+     */
+    private static class ScanRange {
+        private final byte[] startRow;
+        /**
+         * Null to scan up to the end of the table.
+         */
+        private byte[] stopRow;
+        private int caching;
+        private final List<PrefetchedQueryResult> results = new ArrayList<PrefetchedQueryResult>();
+
+        private ScanRange(byte[] startRow, byte[] stopRow, int caching) {
+            this.startRow = startRow;
+            this.stopRow = stopRow;
+            this.caching = caching;
+        }
+
+        private void merge(ScanRange range) {
+            if (stopRow != null && (range.stopRow == null || Bytes.compareTo(range.stopRow, stopRow) > 0)) {
+                stopRow = range.stopRow;
+            }
+            caching = Math.min(caching + range.caching, MAX_CACHING);
+            results.addAll(range.results);
+        }
+
+        private Scan toScan() {
+            Scan scan = stopRow != null ? new Scan(startRow, stopRow) : new Scan(startRow);
+            scan.setCaching(caching);
+            return scan;
+        }
+
+        /**
+         * Reads the rows of this range and hands each row to the results of the queries whose range contains it.
+         * Stops as soon as none of the results takes more rows.
+         */
+        private void read(HTableInterface htable) throws IOException {
+            ResultScanner scanner = htable.getScanner(toScan());
+            try {
+                Result row;
+                while ((row = scanner.next()) != null) {
+                    boolean done = true;
+                    for (PrefetchedQueryResult result : results) {
+                        if (Bytes.compareTo(row.getRow(), result.getStartRow()) < 0) {
+                            // The results are sorted on their start row, so the next ones don't contain it either
+                            done = false;
+                            break;
+                        }
+                        result.offer(row);
+                        done &= result.isComplete(row);
+                    }
+                    if (done) {
+                        break;
+                    }
+                }
+            } finally {
+                scanner.close();
+            }
+        }
+    }
+
 }
@@ -24,13 +24,19 @@ import org.apache.hadoop.hbase.util.Bytes;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.node.ObjectNode;
 import org.lilyproject.util.ObjectUtils;
+import org.lilyproject.util.concurrent.CustomThreadFactory;
 import org.lilyproject.util.hbase.HBaseAdminFactory;
 import org.lilyproject.util.hbase.HBaseTableFactory;
 import org.lilyproject.util.hbase.HBaseTableFactoryImpl;
 import org.lilyproject.util.hbase.LocalHTable;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Starting point for all the index and query functionality.
@@ -38,13 +44,24 @@ import java.io.IOException;
  * <p>This class should be instantiated yourself. This class is threadsafe,
  * but on the other hand rather lightweight so it does not harm to have multiple
  * instances.
+ *
+ * <p>The indexes obtained from an IndexManager share a pool of at most {@link #MAX_PARALLEL_SCANS} threads,
+ * used by {@link Index#performQueries}. The threads are only started when needed and stop after a minute
+ * of inactivity. The pool is shut down by {@link #close}, after which performQueries can't be used anymore
+ * on the indexes of this manager.
  */
-public class IndexManager {
+public class IndexManager implements Closeable {
     private Configuration hbaseConf;
     private HBaseAdmin hbaseAdmin;
     private HBaseTableFactory tableFactory;
+    private ExecutorService queryExecutor;
     private static final byte[] INDEX_META_KEY = Bytes.toBytes("LILY_INDEX");
 
+    /**
+     * Maximum number of scans run in parallel by {@link Index#performQueries}, over all indexes of this manager.
+     */
+    public static final int MAX_PARALLEL_SCANS = 10;
+
     /**
      * Constructor.
      */
@@ -56,6 +73,17 @@ public class IndexManager {
         this.hbaseConf = hbaseConf;
         hbaseAdmin = HBaseAdminFactory.get(hbaseConf);
         this.tableFactory = tableFactory != null ? tableFactory : new HBaseTableFactoryImpl(hbaseConf);
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_PARALLEL_SCANS, MAX_PARALLEL_SCANS, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new CustomThreadFactory("hbaseindex-query", null, true));
+        executor.allowCoreThreadTimeOut(true);
+        this.queryExecutor = executor;
+    }
+
+    @Override
+    public void close() {
+        queryExecutor.shutdownNow();
     }
 
     /**
@@ -148,7 +176,7 @@ public class IndexManager {
 
         IndexDefinition indexDef = deserialize(name, jsonData);
 
-        Index index = new Index(table, indexDef);
+        Index index = new Index(table, indexDef, queryExecutor);
         return index;
     }
 
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.hbaseindex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * QueryResult of which the rows were read on beforehand, see {@link Index#performQueries}.
+ *
+ * <p>If a maximum number of rows to read on beforehand is given, the rows beyond it are read by a scanner,
+ * which is opened once the prefetched rows have been consumed.
+ */
+class PrefetchedQueryResult extends BaseQueryResult {
+    private final HTableInterface htable;
+    private final IndexDefinition definition;
+    private final byte[] startRow;
+    /**
+     * Null if the range goes up to the end of the table.
+     */
+    private final byte[] stopRow;
+    private final int caching;
+    private final int maxRows;
+    private final List<Result> rows = new ArrayList<Result>();
+    private int position = 0;
+    /**
+     * True if rows of this range were offered beyond maxRows, these are read by the continuation.
+     */
+    private boolean truncated = false;
+    private QueryResult continuation;
+
+    /**
+     * @param caching scanner caching for the continuation
+     * @param maxRows maximum number of rows to keep, 0 or less for no limit
+     */
+    public PrefetchedQueryResult(HTableInterface htable, IndexDefinition definition, byte[] startRow,
+            byte[] stopRow, int caching, int maxRows) {
+        this.htable = htable;
+        this.definition = definition;
+        this.startRow = startRow;
+        this.stopRow = stopRow;
+        this.caching = caching;
+        this.maxRows = maxRows;
+    }
+
+    public byte[] getStartRow() {
+        return startRow;
+    }
+
+    /**
+     * Adds the row to this result if it is in its range. The rows should be offered in increasing order.
+     */
+    public void offer(Result row) {
+        byte[] rowKey = row.getRow();
+        if (!truncated && Bytes.compareTo(rowKey, startRow) >= 0 &&
+                (stopRow == null || Bytes.compareTo(rowKey, stopRow) < 0)) {
+            if (maxRows > 0 && rows.size() >= maxRows) {
+                truncated = true;
+            } else {
+                rows.add(row);
+            }
+        }
+    }
+
+    /**
+     * Returns true if this result does not take any rows after the given one.
+     */
+    public boolean isComplete(Result row) {
+        return truncated || (stopRow != null && Bytes.compareTo(row.getRow(), stopRow) >= 0);
+    }
+
+    @Override
+    public byte[] next() throws IOException {
+        if (position < rows.size()) {
+            currentResult = rows.get(position++);
+            return ScannerQueryResult.decodeIdentifierFrom(currentResult.getRow(), definition);
+        }
+
+        currentResult = null;
+        if (!truncated) {
+            return null;
+        }
+
+        if (continuation == null) {
+            // Continue right after the last prefetched row, which is the row key followed by a zero byte
+            byte[] lastRow = rows.get(rows.size() - 1).getRow();
+            byte[] continueRow = Arrays.copyOf(lastRow, lastRow.length + 1);
+            Scan scan = stopRow != null ? new Scan(continueRow, stopRow) : new Scan(continueRow);
+            scan.setCaching(caching);
+            continuation = new ScannerQueryResult(htable, scan, definition);
+            rows.clear();
+            position = 0;
+        }
+
+        byte[] identifier = continuation.next();
+        currentQResult = identifier != null ? continuation : null;
+        return identifier;
+    }
+
+    @Override
+    public byte[] seekTo(byte[] identifier) throws IOException {
+        byte[] result;
+        while ((result = next()) != null && Bytes.compareTo(result, identifier) < 0) {
+            // skip
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        rows.clear();
+        position = 0;
+        if (continuation != null) {
+            continuation.close();
+        }
+    }
+}
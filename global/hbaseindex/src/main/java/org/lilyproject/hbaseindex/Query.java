@@ -36,6 +36,7 @@ import java.util.List;
 public class Query {
     private List<EqualsCondition> eqConditions = new ArrayList<EqualsCondition>();
     private RangeCondition rangeCondition;
+    private int resultSizeHint;
 
     public static final Object MIN_VALUE = new Object() {
         @Override
@@ -91,6 +92,20 @@ public class Query {
         rangeCondition = new RangeCondition(fieldName, fromValue, toValue, lowerBoundInclusive, upperBoundInclusive);
     }
 
+    /**
+     * Sets the number of results the caller expects to read, which is used to size the batches in which
+     * the results are fetched. This is only a hint: it does not limit the number of results.
+     *
+     * @param resultSizeHint 0 or less when not known
+     */
+    public void setResultSizeHint(int resultSizeHint) {
+        this.resultSizeHint = resultSizeHint;
+    }
+
+    public int getResultSizeHint() {
+        return resultSizeHint;
+    }
+
     public List<EqualsCondition> getEqConditions() {
         return eqConditions;
     }
@@ -30,6 +30,18 @@ public interface QueryResult extends Closeable {
      */
     byte[] next() throws IOException;
 
+    /**
+     * Move to and return the first result following the current one whose identifier is equal to
+     * or larger than the given identifier. Like {@link #next}, this always moves forward at least one result.
+     *
+     * <p>This is intended for results which return their identifiers in increasing order (see
+     * {@link Conjunction}): implementations can then skip the results in between without visiting
+     * them one by one.
+     *
+     * @return the identifier of the result moved to, or null if the end is reached.
+     */
+    byte[] seekTo(byte[] identifier) throws IOException;
+
     /**
      * Retrieves data that was stored as part of the {@link IndexEntry} from the current index
      * entry (corresponding to the last {@link #next} call).
@@ -17,35 +17,141 @@ package org.lilyproject.hbaseindex;
 
 import java.io.IOException;
 
+import com.gotometrics.orderly.Order;
 import com.gotometrics.orderly.StructIterator;
 import com.gotometrics.orderly.StructRowKey;
+import org.apache.hadoop.hbase.UnknownScannerException;
+import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.ScannerTimeoutException;
+import org.apache.hadoop.hbase.util.Bytes;
 
 /**
- * A QueryResult on top of a HBase scanner.
+ * QueryResult on top of an HBase scanner.
+ *
+ * <p>HBase scanners can't skip ahead, so {@link #seekTo} first calls next() a number of times, which is cheap
+ * as long as the rows are in the scanner cache. If the requested identifier is not reached in this way, the
+ * scanner is reopened starting from the row of the requested identifier. Since reopening a scanner costs a
+ * few RPC's, we want to try this only when the gap is likely large: when most of the recent seeks needed
+ * a reopen, only a few next() calls are tried before reopening.
+ *
+ * <p>When the caller takes longer than the scanner lease between two calls, for example because it is waiting on
+ * a rate limit, the expired scanner is replaced by one starting after the last row read.
  */
 class ScannerQueryResult extends BaseQueryResult {
+    /**
+     * Number of next() calls tried by a seek before reopening the scanner, when the recent seeks mostly
+     * needed a reopen.
+     */
+    private static final int MIN_SEEK_NEXTS = 2;
+
+    private HTableInterface htable;
+    private Scan scan;
     private ResultScanner scanner;
     private IndexDefinition definition;
+    private final boolean canReopen;
+    /**
+     * Number of next() calls tried by a seek before reopening the scanner: as many as fit in the scanner
+     * cache, since those are cheap.
+     */
+    private final int maxSeekNexts;
+    /**
+     * Moving average of the fraction of seeks which needed to reopen the scanner.
+     */
+    private double reopenRatio = 0;
+    /**
+     * The last row read, from which to continue should the scanner lease expire.
+     */
+    private byte[] lastRow;
+    private boolean exhausted;
 
-    public ScannerQueryResult(ResultScanner scanner, IndexDefinition definition) {
-        this.scanner = scanner;
+    public ScannerQueryResult(HTableInterface htable, Scan scan, IndexDefinition definition) throws IOException {
+        this.htable = htable;
+        this.scan = scan;
         this.definition = definition;
+        this.scanner = htable.getScanner(scan);
+        // The row of an identifier can only be found by seeking forward if the identifiers are ascending
+        this.canReopen = definition.getIdentifierIndexFieldDefinition().getOrder() == Order.ASCENDING;
+        this.maxSeekNexts = Math.max(scan.getCaching(), MIN_SEEK_NEXTS);
     }
 
     @Override
     public byte[] next() throws IOException {
-        currentResult = scanner.next();
+        if (exhausted) {
+            return null;
+        }
+
+        try {
+            currentResult = scanner.next();
+        } catch (ScannerTimeoutException e) {
+            reopenAfterLastRow();
+            currentResult = scanner.next();
+        } catch (UnknownScannerException e) {
+            reopenAfterLastRow();
+            currentResult = scanner.next();
+        }
+
         if (currentResult == null) {
+            exhausted = true;
             return null;
         }
 
         byte[] rowKey = currentResult.getRow();
+        lastRow = rowKey;
+
+        return decodeIdentifierFrom(rowKey, definition);
+    }
+
+    @Override
+    public byte[] seekTo(byte[] identifier) throws IOException {
+        int maxNexts = reopenRatio > 0.5 ? MIN_SEEK_NEXTS : maxSeekNexts;
+        boolean reopened = false;
 
-        return decodeIdentifierFrom(rowKey);
+        byte[] result;
+        int nexts = 0;
+        while ((result = next()) != null && Bytes.compareTo(result, identifier) < 0) {
+            nexts++;
+            if (!reopened && canReopen && nexts >= maxNexts) {
+                reopenAt(identifier);
+                reopened = true;
+            }
+        }
+
+        reopenRatio = 0.8 * reopenRatio + (reopened ? 0.2 : 0);
+
+        return result;
+    }
+
+    /**
+     * Reopens the scanner at the row with the given identifier and the same values for the other fields as
+     * the current row. The given identifier should be larger than the current one.
+     */
+    private void reopenAt(byte[] identifier) throws IOException {
+        final StructRowKey structRowKey = definition.asStructRowKey();
+        Object[] values = (Object[])structRowKey.deserialize(currentResult.getRow());
+        values[values.length - 1] = identifier;
+
+        scanner.close();
+        Scan seekScan = new Scan(scan);
+        seekScan.setStartRow(structRowKey.serialize(values));
+        scanner = htable.getScanner(seekScan);
+    }
+
+    /**
+     * Replaces the scanner, whose lease has expired, by one starting right after the last row read.
+     */
+    private void reopenAfterLastRow() throws IOException {
+        scanner.close();
+        Scan reopenScan = new Scan(scan);
+        if (lastRow != null) {
+            // The smallest row key larger than the last row
+            reopenScan.setStartRow(Bytes.add(lastRow, new byte[] {0}));
+        }
+        scanner = htable.getScanner(reopenScan);
     }
 
-    private byte[] decodeIdentifierFrom(byte[] rowKey) throws IOException {
+    static byte[] decodeIdentifierFrom(byte[] rowKey, IndexDefinition definition) throws IOException {
         final StructRowKey structRowKey = definition.asStructRowKey();
         structRowKey.iterateOver(rowKey);
 
@@ -17,7 +17,9 @@ package org.lilyproject.hbaseindex;
 
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import com.gotometrics.orderly.Order;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -675,6 +677,15 @@ public class IndexTest {
             QueryResult result = index.performQuery(query);
             assertResultIds(result, "key1", "key2", "key3");
         }
+
+        {
+            // the result size hint does not limit the results
+            Query query = new Query();
+            query.setRangeCondition("field1", 1, 4, false, false);
+            query.setResultSizeHint(1);
+            QueryResult result = index.performQuery(query);
+            assertResultIds(result, "key2", "key3");
+        }
     }
 
     @Test
@@ -708,6 +719,14 @@ public class IndexTest {
             assertResultIds(result, "key1", "key2");
         }
 
+        {
+            // nothing is smaller than MIN_VALUE, so excluding it makes no difference
+            Query query = new Query();
+            query.setRangeCondition("field1", Query.MIN_VALUE, 0, false, true);
+            QueryResult result = index.performQuery(query);
+            assertResultIds(result, "key1", "key2");
+        }
+
         {
             Query query = new Query();
             query.setRangeCondition("field1", 0, Query.MAX_VALUE);
@@ -971,6 +990,109 @@ public class IndexTest {
         assertEquals("foo", result.getDataAsString("originalValue"));
     }
 
+    @Test
+    public void testSeekTo() throws Exception {
+        final String INDEX_NAME = "seekTo";
+        IndexManager indexManager = new IndexManager(HBASE_PROXY.getConf());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME);
+        indexDef.addStringField("field1");
+        Index index = indexManager.getIndex(indexDef);
+
+        // Enough entries so that seeking far ahead reopens the scanner
+        for (String value : new String[]{"a", "b"}) {
+            for (int i = 0; i < 500; i++) {
+                IndexEntry entry = new IndexEntry(indexDef);
+                entry.addField("field1", value);
+                entry.setIdentifier(Bytes.toBytes(String.format("key%03d", i)));
+                index.addEntry(entry);
+            }
+        }
+
+        Query query = new Query();
+        query.addEqualsCondition("field1", "a");
+        QueryResult result = index.performQuery(query);
+
+        assertEquals("key000", Bytes.toString(result.next()));
+        // short seek
+        assertEquals("key005", Bytes.toString(result.seekTo(Bytes.toBytes("key005"))));
+        // seek always moves forward
+        assertEquals("key006", Bytes.toString(result.seekTo(Bytes.toBytes("key005"))));
+        // long seeks, in between an identifier which does not exist
+        assertEquals("key300", Bytes.toString(result.seekTo(Bytes.toBytes("key300"))));
+        assertEquals("key401", Bytes.toString(result.seekTo(Bytes.toBytes("key400a"))));
+        assertEquals("key402", Bytes.toString(result.next()));
+        // seeking beyond the last entry should not return entries for other field values
+        assertNull(result.seekTo(Bytes.toBytes("key999")));
+        result.close();
+
+        // Conjunction of a sparse and a dense result
+        Query sparseQuery = new Query();
+        sparseQuery.setRangeCondition("field1", "b", "b");
+        QueryResult sparseResult = new StaticQueryResult(Arrays.asList(Bytes.toBytes("key010"),
+                Bytes.toBytes("key250"), Bytes.toBytes("key499")));
+        result = new Conjunction(index.performQuery(query), sparseResult, index.performQuery(sparseQuery));
+        assertResultIds(result, "key010", "key250", "key499");
+    }
+
+    @Test
+    public void testPerformQueries() throws Exception {
+        final String INDEX_NAME = "performQueries";
+        IndexManager indexManager = new IndexManager(HBASE_PROXY.getConf());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME);
+        indexDef.addStringField("field1");
+        Index index = indexManager.getIndex(indexDef);
+
+        String[][] entries = {{"a", "key1"}, {"a", "key2"}, {"b", "key3"}, {"c", "key4"}, {"e", "key5"}};
+        for (String[] value : entries) {
+            IndexEntry entry = new IndexEntry(indexDef);
+            entry.addField("field1", value[0]);
+            entry.addData(Bytes.toBytes("originalValue"), Bytes.toBytes(value[0]));
+            entry.setIdentifier(Bytes.toBytes(value[1]));
+            index.addEntry(entry);
+        }
+
+        // A mix of queries with overlapping and disjoint ranges, not sorted
+        Query queryE = new Query();
+        queryE.addEqualsCondition("field1", "e");
+        Query queryA = new Query();
+        queryA.addEqualsCondition("field1", "a");
+        Query queryAtoB = new Query();
+        queryAtoB.setRangeCondition("field1", "a", "b");
+        Query queryD = new Query();
+        queryD.addEqualsCondition("field1", "d");
+        Query queryB = new Query();
+        queryB.addEqualsCondition("field1", "b");
+
+        List<QueryResult> results = index.performQueries(Arrays.asList(queryE, queryA, queryAtoB, queryD, queryB,
+                queryA));
+        assertEquals(6, results.size());
+        assertResultIds(results.get(0), "key5");
+        assertResultIds(results.get(1), "key1", "key2");
+        assertResultIds(results.get(2), "key1", "key2", "key3");
+        assertResultIds(results.get(3));
+        assertResultIds(results.get(4), "key3");
+
+        QueryResult result = results.get(5);
+        assertEquals("key1", Bytes.toString(result.next()));
+        assertEquals("a", result.getDataAsString("originalValue"));
+        assertEquals("key2", Bytes.toString(result.seekTo(Bytes.toBytes("key2"))));
+        assertNull(result.next());
+
+        assertEquals(0, index.performQueries(new ArrayList<Query>()).size());
+
+        // With at most one row read on beforehand per query, the other rows are read when they are needed
+        results = index.performQueries(Arrays.asList(queryAtoB, queryA, queryE), 1);
+        assertResultIds(results.get(0), "key1", "key2", "key3");
+        result = results.get(1);
+        assertEquals("key1", Bytes.toString(result.next()));
+        assertEquals("key2", Bytes.toString(result.next()));
+        assertEquals("a", result.getDataAsString("originalValue"));
+        assertNull(result.next());
+        assertResultIds(results.get(2), "key5");
+    }
+
     private void assertResultIds(QueryResult result, String... expectedIdentifiers) throws IOException {
         int resultIdx = 0;
         byte[] identifier;
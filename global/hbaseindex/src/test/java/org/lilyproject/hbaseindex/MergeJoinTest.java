@@ -38,6 +38,40 @@ public class MergeJoinTest {
         assertNull(result.next());
     }
 
+    @Test
+    public void testConjunctionOfMultipleResults() throws Exception {
+        String[] values1 = {"a", "b", "c", "f", "g", "h"};
+        String[] values2 = {"b", "c", "d", "e", "f", "h"};
+        String[] values3 = {"c", "h", "i"};
+
+        QueryResult result = new Conjunction(buildQueryResult(values1), buildQueryResult(values2),
+                buildQueryResult(values3));
+
+        assertEquals("c", Bytes.toString(result.next()));
+        assertEquals("h", Bytes.toString(result.next()));
+        assertNull(result.next());
+        assertNull(result.next());
+    }
+
+    @Test
+    public void testSeekTo() throws Exception {
+        String[] values1 = {"a", "b", "c", "f", "g"};
+        String[] values2 = {"b", "c", "d", "e", "f", "g"};
+
+        QueryResult result = new Conjunction(buildQueryResult(values1), buildQueryResult(values2));
+        assertEquals("c", Bytes.toString(result.seekTo(Bytes.toBytes("c"))));
+        assertEquals("f", Bytes.toString(result.seekTo(Bytes.toBytes("d"))));
+        assertEquals("g", Bytes.toString(result.seekTo(Bytes.toBytes("a"))));
+        assertNull(result.seekTo(Bytes.toBytes("h")));
+
+        result = new Disjunction(buildQueryResult(values1), buildQueryResult(values2));
+        assertEquals("a", Bytes.toString(result.next()));
+        assertEquals("d", Bytes.toString(result.seekTo(Bytes.toBytes("d"))));
+        assertEquals("e", Bytes.toString(result.next()));
+        assertEquals("g", Bytes.toString(result.seekTo(Bytes.toBytes("fa"))));
+        assertNull(result.next());
+    }
+
     @Test
     public void testDisjunction() throws Exception {
         String[] values1 = {"a", "b", "c", "f", "g"};
@@ -44,8 +44,7 @@ public class DataInputImpl implements DataInput {
     private static final long HALF_MASK = 0x3FFL;
 
     private final byte[] source; // The underlying byte[]
-    private int startPosition;
-    private int pos; // Position of the next value to be read
+    private int pos; // Position of the next value to be read, within the source
     private int size;
 
     // Character array build while reading a string.
@@ -73,24 +72,24 @@ public class DataInputImpl implements DataInput {
      */
     public DataInputImpl(byte[] source, int startPosition, int size) {
         this.source = source;
-        this.startPosition = startPosition;
-        this.size = size;
-        this.pos = 0;
+        // Positions (and thus the size, as returned by getSize) are within the source
+        this.pos = startPosition;
+        this.size = startPosition + size;
     }
 
     /**
      * Constructor for the {@link DataInput} based on an existing DataInputImpl.
      * Its source (the underlying byte[]) is the same as for the given dataInput.
      *
-     * @param startPosition position within the source, relative to the startPosition of the given dataInput
-     * @param size          the size of the DataInput
+     * @param startPosition position within the source, as returned by {@link #getPosition()}
+     * @param size          the end position within the source, as returned by {@link #getSize()}
      *                      The source is a sub-array of the underlying byte[] from which the data will be read,
-     *                      limited between startPosition en startPosition+length
+     *                      limited between startPosition en size
      *                      It should have been created using {@link DataOutputImpl}.
      */
     public DataInputImpl(DataInputImpl dataInput, int startPosition, int size) {
         this.source = dataInput.source;
-        this.pos = dataInput.startPosition + startPosition;
+        this.pos = startPosition;
         this.size = size;
     }
 
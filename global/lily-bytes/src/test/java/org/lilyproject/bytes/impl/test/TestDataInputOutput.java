@@ -191,4 +191,18 @@ public class TestDataInputOutput extends TestCase {
         Assert.assertEquals(Math.abs(i), dataInput.readVInt());
         Assert.assertEquals(Math.abs(l), dataInput.readVLong());
     }
+
+    public void testPartOfArray() {
+        DataOutput dataOutput = new DataOutputImpl();
+        dataOutput.writeInt(5);
+        dataOutput.writeUTF("abc");
+        dataOutput.writeLong(7L);
+        byte[] data = dataOutput.toByteArray();
+
+        DataInput dataInput = new DataInputImpl(data, 4, data.length - 12);
+        Assert.assertEquals(4, dataInput.getPosition());
+        Assert.assertEquals(data.length - 8, dataInput.getSize());
+        Assert.assertEquals("abc", dataInput.readUTF());
+        Assert.assertEquals(dataInput.getSize(), dataInput.getPosition());
+    }
 }
@@ -16,17 +16,35 @@
 package org.lilyproject.rowlock;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.hadoop.hbase.client.*;
 import org.apache.hadoop.hbase.util.Bytes;
 
+/**
+ * Row locker which keeps the locks in a column of the rows themselves.
+ *
+ * <p>Threads of the same JVM which want to lock the same row are queued in an in-JVM lock table, and are
+ * given their turn in order as soon as the row is unlocked, so that only one of them at a time tries to take
+ * the lock on HBase. When the row is locked by another JVM, the lock is retried with an exponential backoff
+ * with jitter.
+ */
 public class HBaseRowLocker implements RowLocker {
+    private static final long MIN_BACKOFF = 10;
+    private static final long MAX_BACKOFF = 500;
 
     private final HTableInterface table;
     private final byte[] family;
     private final byte[] qualifier;
     private final long timeout;
     private final RowLockerMetrics metrics;
+    private final ConcurrentMap<ByteBuffer, LocalRow> localRows = new ConcurrentHashMap<ByteBuffer, LocalRow>();
+    private final Random random = new Random();
 
     public HBaseRowLocker(HTableInterface table, byte[] family, byte[] qualifier, long timeout) {
         this(table, family, qualifier, timeout, null);
@@ -46,6 +64,33 @@ public class HBaseRowLocker implements RowLocker {
     
     @Override
     public RowLock lockRow(byte[] rowKey) throws IOException {
+        ByteBuffer key = ByteBuffer.wrap(rowKey);
+        LocalRow localRow;
+        try {
+            localRow = takeLocalRow(key, 0);
+        } catch (InterruptedException e) {
+            // Not possible, we do not wait
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (localRow == null) {
+            // Locked by another thread of this JVM
+            if (metrics != null) {
+                metrics.contentions.inc();
+            }
+            return null;
+        }
+
+        RowLock rowLock = null;
+        try {
+            rowLock = tryLockRow(rowKey);
+            return rowLock;
+        } finally {
+            localRowLocked(key, localRow, rowLock);
+        }
+    }
+
+    private RowLock tryLockRow(byte[] rowKey) throws IOException {
         RowLock rowLock = lockRow(rowKey, null);
         if (rowLock != null) {
             return rowLock;
@@ -94,15 +139,47 @@ public class HBaseRowLocker implements RowLocker {
 
     @Override
     public RowLock lockRow(byte[] rowKey, long timeout) throws IOException, InterruptedException {
-        long tryUntil = System.currentTimeMillis() + timeout;
-        while (System.currentTimeMillis() < tryUntil) {
-            RowLock rowLock = lockRow(rowKey);
-            if (rowLock != null) {
-                return rowLock;
+        long startedAt = System.currentTimeMillis();
+        long tryUntil = startedAt + timeout;
+
+        // First wait for our turn among the threads of this JVM
+        ByteBuffer key = ByteBuffer.wrap(rowKey);
+        LocalRow localRow = takeLocalRow(key, tryUntil);
+        if (localRow == null) {
+            if (metrics != null) {
+                metrics.timeouts.inc();
             }
-            Thread.sleep(200);
+            return null;
+        }
+
+        RowLock rowLock = null;
+        try {
+            long backoff = MIN_BACKOFF;
+            while (true) {
+                rowLock = tryLockRow(rowKey);
+                if (rowLock != null) {
+                    if (metrics != null) {
+                        metrics.waitTime.inc(System.currentTimeMillis() - startedAt);
+                    }
+                    return rowLock;
+                }
+
+                long remaining = tryUntil - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    if (metrics != null) {
+                        metrics.timeouts.inc();
+                    }
+                    return null;
+                }
+
+                // The row is locked by another JVM. The jitter avoids that the contenders retry in lockstep.
+                long sleep = backoff / 2 + (long)(random.nextDouble() * (backoff / 2));
+                Thread.sleep(Math.min(sleep, remaining));
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+        } finally {
+            localRowLocked(key, localRow, rowLock);
         }
-        return null;
     }
 
     @Override
@@ -110,7 +187,129 @@ public class HBaseRowLocker implements RowLocker {
         byte[] rowKey = lock.getRowKey();
         Put put = new Put(rowKey);
         put.add(family, qualifier, 1L, null);
-        return table.checkAndPut(rowKey, family, qualifier, lock.getPermit(), put); // If it fails, we already lost the lock
+        try {
+            return table.checkAndPut(rowKey, family, qualifier, lock.getPermit(), put); // If it fails, we already lost the lock
+        } finally {
+            releaseLocalRow(lock);
+        }
+    }
+
+    /**
+     * Waits until it is the turn of the current thread to lock the row, in the order in which the threads of
+     * this JVM asked for it. A row which is held longer than the lock timeout is considered to be free, as is
+     * the case for the lock on HBase.
+     *
+     * @param tryUntil the time until which to wait, with 0 to not wait at all
+     * @return the held local row, or null if the row was not released in time
+     */
+    private LocalRow takeLocalRow(ByteBuffer key, long tryUntil) throws InterruptedException {
+        Object waiter = new Object();
+        LocalRow localRow;
+        while (true) {
+            localRow = localRows.get(key);
+            if (localRow == null) {
+                LocalRow newLocalRow = new LocalRow();
+                localRow = localRows.putIfAbsent(key, newLocalRow);
+                if (localRow == null) {
+                    localRow = newLocalRow;
+                }
+            }
+            synchronized (localRow) {
+                // A removed row was released by its last user just before we could join it
+                if (!localRow.removed) {
+                    localRow.waiters.add(waiter);
+                    break;
+                }
+            }
+        }
+
+        synchronized (localRow) {
+            boolean taken = false;
+            boolean waited = false;
+            try {
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    if (localRow.waiters.getFirst() == waiter &&
+                            (!localRow.held || localRow.heldSince + timeout < now)) {
+                        localRow.held = true;
+                        localRow.heldSince = now;
+                        localRow.permit = null;
+                        taken = true;
+                        return localRow;
+                    }
+
+                    long wait = tryUntil - now;
+                    if (wait <= 0) {
+                        return null;
+                    }
+                    if (localRow.held) {
+                        // Wake up when the current holder expires
+                        wait = Math.min(wait, localRow.heldSince + timeout - now + 1);
+                    }
+                    waited = true;
+                    localRow.wait(wait);
+                }
+            } finally {
+                localRow.waiters.remove(waiter);
+                if (!taken) {
+                    // We might have been the first waiter, let the next one have a look
+                    localRow.notifyAll();
+                    removeIfUnused(key, localRow);
+                }
+                if (waited && metrics != null) {
+                    metrics.localWaits.inc();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remembers the lock taken on HBase while holding the local row, or releases the local row if no lock
+     * could be taken.
+     */
+    private void localRowLocked(ByteBuffer key, LocalRow localRow, RowLock rowLock) {
+        synchronized (localRow) {
+            if (rowLock != null) {
+                localRow.permit = rowLock.getPermit();
+            } else {
+                release(key, localRow);
+            }
+        }
+    }
+
+    private void releaseLocalRow(RowLock lock) {
+        ByteBuffer key = ByteBuffer.wrap(lock.getRowKey());
+        LocalRow localRow = localRows.get(key);
+        if (localRow == null) {
+            // Locked by another locker
+            return;
+        }
+        synchronized (localRow) {
+            // When the lock expired, the local row might be held by another thread by now
+            if (localRow.held && Arrays.equals(localRow.permit, lock.getPermit())) {
+                release(key, localRow);
+            }
+        }
+    }
+
+    /**
+     * Should be called while synchronized on the local row.
+     */
+    private void release(ByteBuffer key, LocalRow localRow) {
+        localRow.held = false;
+        localRow.permit = null;
+        localRow.notifyAll();
+        removeIfUnused(key, localRow);
+    }
+
+    /**
+     * Should be called while synchronized on the local row.
+     */
+    private void removeIfUnused(ByteBuffer key, LocalRow localRow) {
+        if (!localRow.held && localRow.waiters.isEmpty()) {
+            localRow.removed = true;
+            localRows.remove(key, localRow);
+        }
     }
     
     @Override
@@ -138,10 +337,37 @@ public class HBaseRowLocker implements RowLocker {
         return table.checkAndPut(lock.getRowKey(), family, qualifier, lock.getPermit(), put);
     }
     
+    @Override
+    public boolean putIfUnlocked(Put put) throws IOException {
+        // Same as for taking a lock, an unlocked row has either no or an empty lock column. An expired lock is
+        // not taken into account here, since that requires reading it first.
+        if (table.checkAndPut(put.getRow(), family, qualifier, null, put)) {
+            return true;
+        }
+        if (metrics != null) {
+            metrics.contentions.inc();
+        }
+        return false;
+    }
+
     @Override
     public boolean delete(Delete delete, RowLock lock) throws IOException {
         if (!Bytes.equals(delete.getRow(), lock.getRowKey()))
                 return false;
         return table.checkAndDelete(lock.getRowKey(), family, qualifier, lock.getPermit(), delete);
     }
+
+    /**
+     * The in-JVM state of a row which is locked or waited for by threads of this JVM.
+     */
+    private static final class LocalRow {
+        private final LinkedList<Object> waiters = new LinkedList<Object>();
+        private boolean held;
+        private long heldSince;
+        /**
+         * The permit of the lock on HBase, null while the holder is still taking it.
+         */
+        private byte[] permit;
+        private boolean removed;
+    }
 }
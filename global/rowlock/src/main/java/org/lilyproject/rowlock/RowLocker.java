@@ -44,5 +44,14 @@ public interface RowLocker {
 
     boolean put(Put put, RowLock lock) throws IOException;
 
+    /**
+     * Applies the put only if the row is not locked, with one request. This has the same effect as locking the
+     * row, putting and unlocking it, for a put which does not depend on the current content of the row, such as
+     * the creation of a row that is known not to exist.
+     *
+     * @return false if the row is locked, in which case nothing has been put
+     */
+    boolean putIfUnlocked(Put put) throws IOException;
+
     boolean delete(Delete delete, RowLock lock) throws IOException;
 }
@@ -22,6 +22,7 @@ import org.apache.hadoop.metrics.Updater;
 import org.apache.hadoop.metrics.util.MetricsBase;
 import org.apache.hadoop.metrics.util.MetricsRegistry;
 import org.apache.hadoop.metrics.util.MetricsTimeVaryingLong;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
 import org.lilyproject.util.hbase.metrics.MBeanUtil;
 import org.lilyproject.util.hbase.metrics.MetricsDynamicMBeanBase;
 
@@ -35,6 +36,21 @@ public class RowLockerMetrics implements Updater {
 
     public MetricsTimeVaryingLong contentions = new MetricsTimeVaryingLong("contentions", registry);
 
+    /**
+     * Number of times a thread had to wait for another thread of this JVM to unlock a row.
+     */
+    public MetricsTimeVaryingLong localWaits = new MetricsTimeVaryingLong("localWaits", registry);
+
+    /**
+     * Number of times a lock could not be taken within the requested time.
+     */
+    public MetricsTimeVaryingLong timeouts = new MetricsTimeVaryingLong("timeouts", registry);
+
+    /**
+     * Time (in ms) spent waiting for a lock, for the locks which were taken.
+     */
+    public MetricsTimeVaryingRate waitTime = new MetricsTimeVaryingRate("waitTime", registry);
+
     public RowLockerMetrics() {
         context = MetricsUtil.getContext("rowLocker");
         metricsRecord = MetricsUtil.createRecord(context, "rowLocker");
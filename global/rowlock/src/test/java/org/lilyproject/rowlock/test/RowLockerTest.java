@@ -35,6 +35,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.lilyproject.rowlock.HBaseRowLocker;
 import org.lilyproject.rowlock.RowLock;
+import org.lilyproject.rowlock.RowLockerMetrics;
 import org.lilyproject.hadooptestfw.HBaseProxy;
 import org.lilyproject.hadooptestfw.TestHelper;
 
@@ -115,6 +116,62 @@ public class RowLockerTest {
         locker.unlockRow(lock);
     }
 
+    @Test
+    public void testLocalWaiterTakesLockOnUnlock() throws Exception {
+        RowLockerMetrics metrics = new RowLockerMetrics();
+        try {
+            final HBaseRowLocker locker = new HBaseRowLocker(table, family, qualifier, 600000L, metrics);
+            final byte[] rowKey = Bytes.toBytes("testLocalWaiterTakesLockOnUnlock");
+            RowLock lock = locker.lockRow(rowKey);
+            assertNotNull(lock);
+
+            final RowLock[] waiterLock = new RowLock[1];
+            final long[] lockedAt = new long[1];
+            Thread waiter = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        waiterLock[0] = locker.lockRow(rowKey, 10000L);
+                        lockedAt[0] = System.currentTimeMillis();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            waiter.start();
+
+            Thread.sleep(100);
+            assertEquals(0, metrics.localWaits.getCurrentIntervalValue());
+            long unlockedAt = System.currentTimeMillis();
+            locker.unlockRow(lock);
+            waiter.join();
+
+            assertNotNull(waiterLock[0]);
+            // The waiter waited within this JVM and was woken up by the unlock, rather than polling HBase
+            assertEquals(1, metrics.localWaits.getCurrentIntervalValue());
+            long delay = lockedAt[0] - unlockedAt;
+            assertTrue("delay " + delay, delay < 100L);
+            assertTrue(locker.isLocked(rowKey));
+            locker.unlockRow(waiterLock[0]);
+            assertFalse(locker.isLocked(rowKey));
+        } finally {
+            metrics.shutdown();
+        }
+    }
+
+    @Test
+    public void testLockWithTimeoutTimesOut() throws Exception {
+        HBaseRowLocker locker = new HBaseRowLocker(table, family, qualifier, 600000L);
+        byte[] rowKey = Bytes.toBytes("testLockWithTimeoutTimesOut");
+        RowLock lock = locker.lockRow(rowKey);
+        assertNotNull(lock);
+        assertNull(locker.lockRow(rowKey, 100L));
+        locker.unlockRow(lock);
+        RowLock lock2 = locker.lockRow(rowKey, 100L);
+        assertNotNull(lock2);
+        locker.unlockRow(lock2);
+    }
+
     @Test
     public void testPut() throws IOException {
         HBaseRowLocker locker = new HBaseRowLocker(table, family, qualifier, 60000L);
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.api;
+
+import java.util.List;
+
+/**
+ * A {@link RowLogMessageListener} which can process several messages of the same row at once.
+ *
+ * <p>When the rowlog processor is configured to coalesce messages, it hands all the messages that are pending
+ * for a row to this method, rather than offering them one by one. This allows the listener to process the
+ * combined effect of the messages, e.g. to handle a row which was updated several times in quick succession
+ * only once. Listeners which do not implement this interface get the messages offered one by one.
+ */
+public interface CoalescingRowLogMessageListener extends RowLogMessageListener {
+    /**
+     * Request a listener to process messages of the same row, which are given in the order in which they
+     * are to be processed.
+     *
+     * <p>The same rules apply as for {@link #processMessage}, for all messages together: when false is returned,
+     * all the messages will be offered again later.
+     *
+     * @return true if the listener processed the messages and they should not be offered again for processing,
+     * false if the messages should be re-offered again later
+     */
+    boolean processMessages(List<RowLogMessage> messages) throws InterruptedException;
+}
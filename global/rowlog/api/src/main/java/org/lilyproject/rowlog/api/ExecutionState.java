@@ -31,7 +31,7 @@ public interface ExecutionState {
      * Returns the subscription Ids for which the execution state has been
      * initialized
      */
-    public String[] getSubscriptionIds();
+    public String[] getSubscriptionIds() throws RowLogException;
 
     /**
      * Converts the execution state to a byte representation to store it in
@@ -47,10 +47,10 @@ public interface ExecutionState {
     /**
      * Updates the state of a subscription
      */
-    public void setState(String subscriptionId, boolean state);
+    public void setState(String subscriptionId, boolean state) throws RowLogException;
 
     /**
      * Returns the state of the message for a subscription
      */
-    public boolean getState(String subscriptionId);
+    public boolean getState(String subscriptionId) throws RowLogException;
 }
\ No newline at end of file
@@ -111,6 +111,23 @@ public interface RowLog {
      * @throws InterruptedException 
      */
     RowLogMessage putMessage(byte[] rowKey, byte[] data, byte[] payload, Put put) throws RowLogException, InterruptedException;
+
+    /**
+     * Puts a batch of new messages on the RowLog. This is the bulk equivalent of
+     * {@link #putMessage(byte[], byte[], byte[], Put)}: the messages are put on the {@link RowLogShard}s with one
+     * call per shard, rather than one call per message.
+     *
+     * <p>The lists of row keys, payloads and puts are matched by position and should have the same size.
+     *
+     * @param puts optional (can be null), HBase {@link Put} objects to which the payload and execution state of each
+     * message will be added. The same rules apply as for {@link #putMessage(byte[], byte[], byte[], Put)}: when given,
+     * the caller should apply these puts itself. When null, the RowLog creates its own puts and applies them
+     * with a single {@link HTable#put(List)} call.
+     * @return the new messages, in the same order as the row keys, or an empty list in case there are no
+     * subscriptions (the equivalent of {@link #putMessage(byte[], byte[], byte[], Put)} returning null).
+     */
+    List<RowLogMessage> putMessages(List<byte[]> rowKeys, List<byte[]> payloads, List<Put> puts)
+            throws RowLogException, InterruptedException;
     
     /**
      * Request each registered {@link RowLogMessageListener} to process a {@link RowLogMessage} explicitly. 
@@ -153,6 +170,9 @@ public interface RowLog {
      * Return all messages that still exist for the row, or if one or more subscriptions is given, 
      * only the messages that are still open for one or more of those subscriptions.
      *
+     * <p>The messages are returned in the order in which they were put, that is on sequence number: the
+     * sequence numbers of the messages of a row increase in the order of their puts.
+     *
      * <p>If messages are put on this rowlog without using a rowlock, then there is no guarantee
      * about the messages which will be present in the returned list at a given instant in time.
      * For example, a call could return the messages with sequence number 5,6 and 8, and a later
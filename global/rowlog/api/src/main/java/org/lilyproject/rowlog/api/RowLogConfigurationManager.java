@@ -19,6 +19,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
 import org.lilyproject.rowlog.api.RowLogSubscription.Type;
 
 public interface RowLogConfigurationManager {
@@ -210,4 +211,41 @@ public interface RowLogConfigurationManager {
 	void notifyProcessor(String rowLogId)
 			throws InterruptedException, KeeperException;
 
+    /**
+     * Publishes the address (host:port) on which the processor of a rowlog accepts pushed messages. The
+     * address is removed automatically when the ZooKeeper session of the processor ends.
+     */
+    void setProcessorPushAddress(String rowLogId, String address) throws InterruptedException, KeeperException;
+
+    void removeProcessorPushAddress(String rowLogId) throws InterruptedException, KeeperException;
+
+    /**
+     * Retrieves the address on which the processor of a rowlog accepts pushed messages.
+     *
+     * @return null if no processor accepts pushed messages
+     */
+    String getProcessorPushAddress(String rowLogId) throws InterruptedException, KeeperException;
+
+    /**
+     * Returns the ordinal of a subscription, a small number which identifies the subscription within its rowlog.
+     * An ordinal is assigned the first time it is asked for, and stays assigned to the subscription, also when
+     * the subscription is removed, so that ordinals are never reused.
+     */
+    int getSubscriptionOrdinal(String rowLogId, String subscriptionId) throws InterruptedException, KeeperException;
+
+    /**
+     * Returns the ordinals which have been assigned to subscriptions of a rowlog, see
+     * {@link #getSubscriptionOrdinal}.
+     *
+     * @return map of subscription id to ordinal
+     */
+    Map<String, Integer> getSubscriptionOrdinals(String rowLogId) throws InterruptedException, KeeperException;
+
+    /**
+     * Variant of {@link #getSubscriptionOrdinals(String)} which leaves a watcher, which is triggered once when
+     * an ordinal is assigned to another subscription of the rowlog.
+     */
+    Map<String, Integer> getSubscriptionOrdinals(String rowLogId, Watcher watcher)
+            throws InterruptedException, KeeperException;
+
 }
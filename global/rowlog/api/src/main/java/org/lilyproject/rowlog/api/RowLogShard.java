@@ -44,6 +44,14 @@ public interface RowLogShard {
      */
     void putMessage(RowLogMessage message) throws RowLogException;
 
+    /**
+     * Puts a batch of RowLogMessages onto the table, for each of the given subscriptions, using one
+     * (multi-)put call.
+     *
+     * @throws RowLogException when an unexpected exception occurs
+     */
+    void putMessages(List<RowLogMessage> messages, List<String> subscriptionIds) throws RowLogException;
+
     /**
      * Removes the RowLogMessage from the table for the indicated subscription.
      * 
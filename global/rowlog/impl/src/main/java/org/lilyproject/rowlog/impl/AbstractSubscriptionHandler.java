@@ -15,6 +15,9 @@
  */
 package org.lilyproject.rowlog.impl;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.lilyproject.rowlog.api.*;
@@ -46,6 +49,11 @@ public abstract class AbstractSubscriptionHandler implements SubscriptionHandler
     protected static interface WorkerDelegate {
         boolean processMessage(RowLogMessage message) throws RowLogException, InterruptedException;
 
+        /**
+         * Processes several messages of the same row, see {@link AbstractSubscriptionHandler#processMessages}.
+         */
+        MessagesResult processMessages(List<RowLogMessage> messages) throws RowLogException, InterruptedException;
+
         /**
          * Called when the worker is stopped.
          */
@@ -82,46 +90,65 @@ public abstract class AbstractSubscriptionHandler implements SubscriptionHandler
         @Override
         public void run() {
             while(!stop && !Thread.interrupted()) {
-                RowLogMessage message;
+                List<RowLogMessage> messages;
                 try {
                 	metrics.queueSize.set(messagesWorkQueue.size());
-                    message = messagesWorkQueue.take();
-                    if (message != null) {
-                        try {
-                            // We removed taking the lock here
-                            // A rowlock should be taken by the WalListener or the HBaseRepository methods so that they don't interfere
-                            // Taking a lock in the execution state is not needed since :
-                            //   1) there is currently only one rowlog processor
-                            //   2) the messagesWorkQueue take() and done() calls make sure messages for the same row are not given to multiple listeners at the same time
+                    messages = messagesWorkQueue.takeRowMessages();
+                    try {
+                        // We removed taking the lock here
+                        // A rowlock should be taken by the WalListener or the HBaseRepository methods so that they don't interfere
+                        // Taking a lock in the execution state is not needed since :
+                        //   1) there is currently only one rowlog processor
+                        //   2) the messagesWorkQueue take() and done() calls make sure messages for the same row are not given to multiple listeners at the same time
+                        List<RowLogMessage> availableMessages = new ArrayList<RowLogMessage>(messages.size());
+                        for (RowLogMessage message : messages) {
                             if (rowLog.isMessageAvailable(message, subscriptionId)) {
-                                boolean processMessageResult = false;
-                                try {
-                                    processMessageResult = delegate.processMessage(message);
-                                } catch (RemoteListenerIOException e) {
-                                    metrics.ioExceptionRate.inc();
-                                    // Logging to info to avoid log-flooding in case of network connection problems
-                                    if (log.isInfoEnabled()) {
-                                        log.info(String.format("[%1$s - %2$s] RemoteListenerIOException occurred while processing message %3$s", rowLogId, subscriptionId, message), e);
-                                    }
-                                }
-                                if (processMessageResult) {
-                                	metrics.successRate.inc();
-                                    rowLog.messageDone(message, subscriptionId);
-                                } else {
-                                	metrics.failureRate.inc();
-                                }
+                                availableMessages.add(message);
                             } else {
                                 if (log.isDebugEnabled()) {
                                     log.debug(String.format("[%1$s - %2$s] Message is not available: %3$s", rowLogId, subscriptionId, message));
                                 }
                             }
-                        } catch (InterruptedException e) {
-                            break;
-                        } catch (Throwable e) {
-                            log.warn(String.format("[%1$s - %2$s] RowLogException occurred while processing message %3$s", rowLogId, subscriptionId, message), e);
-                        } finally {
-                            messagesWorkQueue.done(message);
                         }
+
+                        if (!availableMessages.isEmpty()) {
+                            int processed = 0;
+                            boolean coalesced = false;
+                            try {
+                                if (availableMessages.size() == 1) {
+                                    processed = delegate.processMessage(availableMessages.get(0)) ? 1 : 0;
+                                } else {
+                                    MessagesResult result = delegate.processMessages(availableMessages);
+                                    processed = result.getProcessed();
+                                    coalesced = result.isCoalesced();
+                                }
+                            } catch (RemoteListenerIOException e) {
+                                metrics.ioExceptionRate.inc();
+                                // Logging to info to avoid log-flooding in case of network connection problems
+                                if (log.isInfoEnabled()) {
+                                    log.info(String.format("[%1$s - %2$s] RemoteListenerIOException occurred while processing messages %3$s", rowLogId, subscriptionId, availableMessages), e);
+                                }
+                            }
+                            if (processed > 0) {
+                                metrics.successRate.inc(processed);
+                                if (coalesced) {
+                                    metrics.coalescedRate.inc(processed - 1);
+                                }
+                                // The messages which have not been processed are re-offered later on
+                                for (RowLogMessage message : availableMessages.subList(0, processed)) {
+                                    rowLog.messageDone(message, subscriptionId);
+                                }
+                            }
+                            if (processed < availableMessages.size()) {
+                                metrics.failureRate.inc(availableMessages.size() - processed);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        break;
+                    } catch (Throwable e) {
+                        log.warn(String.format("[%1$s - %2$s] RowLogException occurred while processing messages %3$s", rowLogId, subscriptionId, messages), e);
+                    } finally {
+                        messagesWorkQueue.done(messages);
                     }
                 } catch (InterruptedException e) {
                     break;
@@ -131,4 +158,54 @@ public abstract class AbstractSubscriptionHandler implements SubscriptionHandler
             }
         }
     }
+
+    /**
+     * Lets a listener process several messages of the same row: at once if it is a
+     * {@link CoalescingRowLogMessageListener}, otherwise one by one, stopping at the first message that is
+     * to be re-offered.
+     */
+    static MessagesResult processMessages(RowLogMessageListener listener, List<RowLogMessage> messages)
+            throws InterruptedException {
+        if (listener instanceof CoalescingRowLogMessageListener) {
+            boolean result = ((CoalescingRowLogMessageListener)listener).processMessages(messages);
+            return new MessagesResult(result ? messages.size() : 0, true);
+        }
+
+        int processed = 0;
+        for (RowLogMessage message : messages) {
+            if (!listener.processMessage(message)) {
+                break;
+            }
+            processed++;
+        }
+        return new MessagesResult(processed, false);
+    }
+
+    /**
+     * The result of processing several messages of the same row.
+     */
+    static final class MessagesResult {
+        private final int processed;
+        private final boolean coalesced;
+
+        MessagesResult(int processed, boolean coalesced) {
+            this.processed = processed;
+            this.coalesced = coalesced;
+        }
+
+        /**
+         * The number of messages which have been processed, counted from the first one. The other messages are
+         * to be re-offered.
+         */
+        int getProcessed() {
+            return processed;
+        }
+
+        /**
+         * True if the messages have been processed at once, by a {@link CoalescingRowLogMessageListener}.
+         */
+        boolean isCoalesced() {
+            return coalesced;
+        }
+    }
 }
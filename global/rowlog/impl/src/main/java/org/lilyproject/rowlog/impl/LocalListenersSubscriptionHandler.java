@@ -15,6 +15,8 @@
  */
 package org.lilyproject.rowlog.impl;
 
+import java.util.List;
+
 import org.lilyproject.rowlog.api.*;
 
 public class LocalListenersSubscriptionHandler extends AbstractListenersSubscriptionHandler {
@@ -38,6 +40,15 @@ public class LocalListenersSubscriptionHandler extends AbstractListenersSubscrip
             return listener.processMessage(message);
         }
 
+        @Override
+        public MessagesResult processMessages(List<RowLogMessage> messages) throws RowLogException,
+                InterruptedException {
+            RowLogMessageListener listener = RowLogMessageListenerMapping.INSTANCE.get(subscriptionId);
+            if (listener == null)
+                return new MessagesResult(0, false);
+            return AbstractSubscriptionHandler.processMessages(listener, messages);
+        }
+
         @Override
         public void close() {
         }
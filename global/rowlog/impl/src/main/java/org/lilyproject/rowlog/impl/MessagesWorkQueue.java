@@ -25,8 +25,20 @@ import org.lilyproject.util.ByteArrayKey;
 
 public class MessagesWorkQueue {
     private final int maxMessages;
+
+    /**
+     * The maximum number of messages of the same row returned by {@link #takeRowMessages()}.
+     */
+    private final int maxCoalescedMessages;
     
     private final List<RowLogMessage> messageList;
+
+    /**
+     * The messages in the messageList, by row. Messages can reach the queue twice, both pushed by the rowlog
+     * and scanned by the processor, this is used to drop such duplicates.
+     */
+    private final Map<ByteArrayKey, List<RowLogMessage>> queuedMessagesByRow =
+            new HashMap<ByteArrayKey, List<RowLogMessage>>();
     
     private final Set<RowLogMessage> messagesWorkingOn = new HashSet<RowLogMessage>();
 
@@ -50,7 +62,16 @@ public class MessagesWorkQueue {
     private final Object refillTrigger = new Object();
 
     public MessagesWorkQueue(int size) {
+        this(size, 1);
+    }
+
+    /**
+     * @param maxCoalescedMessages the maximum number of messages of the same row to hand out at once by
+     *                             {@link #takeRowMessages()}, 1 disables coalescing.
+     */
+    public MessagesWorkQueue(int size, int maxCoalescedMessages) {
         this.maxMessages = size;
+        this.maxCoalescedMessages = Math.max(1, maxCoalescedMessages);
         this.messageList = new LinkedList<RowLogMessage>();
     }
 
@@ -60,17 +81,66 @@ public class MessagesWorkQueue {
             while (messageList.size() >= maxMessages) {
                 notFull.await();
             }
-            messageList.add(message);
-            notEmpty.signal();
+            addMessage(message);
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Adds the message without waiting for room in the queue.
+     *
+     * @return false if the queue was full, true if the message was added or was already queued
+     */
+    public boolean tryOffer(RowLogMessage message) {
+        lock.lock();
+        try {
+            if (messageList.size() >= maxMessages) {
+                return false;
+            }
+            addMessage(message);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addMessage(RowLogMessage message) {
+        ByteArrayKey row = new ByteArrayKey(message.getRowKey());
+        List<RowLogMessage> rowMessages = queuedMessagesByRow.get(row);
+        if (rowMessages != null && rowMessages.contains(message)) {
+            return;
+        }
+        if (messagesWorkingOn.contains(message)) {
+            return;
+        }
+
+        if (rowMessages == null) {
+            rowMessages = new ArrayList<RowLogMessage>(1);
+            queuedMessagesByRow.put(row, rowMessages);
+        }
+        rowMessages.add(message);
+        messageList.add(message);
+        notEmpty.signal();
+    }
+
     /**
      * Calling take() should always be matched by corresponding done() call.
      */
     public RowLogMessage take() throws InterruptedException {
+        return take(1).get(0);
+    }
+
+    /**
+     * Takes the messages queued for one row, at most the configured number of coalesced messages, in the
+     * order in which they were queued. Calling takeRowMessages() should always be matched by corresponding
+     * done() call.
+     */
+    public List<RowLogMessage> takeRowMessages() throws InterruptedException {
+        return take(maxCoalescedMessages);
+    }
+
+    private List<RowLogMessage> take(int count) throws InterruptedException {
         lock.lock();
         try {
             while (true) {
@@ -84,13 +154,19 @@ public class MessagesWorkQueue {
                     ByteArrayKey row = new ByteArrayKey(message.getRowKey());
                     if (messagesWorkingOn.contains(message)) {
                         messages.remove();
-                        afterMessageRemoval();
+                        afterMessageRemoval(row, message);
                     } else if (!rowsWorkingOn.contains(row)) {
                         messages.remove();
-                        afterMessageRemoval();
+                        afterMessageRemoval(row, message);
                         messagesWorkingOn.add(message);
                         rowsWorkingOn.add(row);
-                        return message;
+
+                        List<RowLogMessage> taken = new ArrayList<RowLogMessage>(1);
+                        taken.add(message);
+                        if (count > 1) {
+                            takeMoreRowMessages(row, taken, count);
+                        }
+                        return taken;
                     }
                 }
 
@@ -102,7 +178,38 @@ public class MessagesWorkQueue {
         }
     }
 
-    private void afterMessageRemoval() {
+    /**
+     * Adds the other messages queued for the row to the taken messages. These all come after the message which
+     * was taken first, since messages which were queued before it for the same row are being worked on.
+     */
+    private void takeMoreRowMessages(ByteArrayKey row, List<RowLogMessage> taken, int count) {
+        List<RowLogMessage> rowMessages = queuedMessagesByRow.get(row);
+        if (rowMessages == null) {
+            return;
+        }
+
+        for (RowLogMessage message : new ArrayList<RowLogMessage>(rowMessages)) {
+            if (taken.size() >= count) {
+                break;
+            }
+            if (!messagesWorkingOn.contains(message)) {
+                messageList.remove(message);
+                afterMessageRemoval(row, message);
+                messagesWorkingOn.add(message);
+                taken.add(message);
+            }
+        }
+    }
+
+    private void afterMessageRemoval(ByteArrayKey row, RowLogMessage message) {
+        List<RowLogMessage> rowMessages = queuedMessagesByRow.get(row);
+        if (rowMessages != null) {
+            rowMessages.remove(message);
+            if (rowMessages.isEmpty()) {
+                queuedMessagesByRow.remove(row);
+            }
+        }
+
         notFull.signal();
         if (messageList.size() <= refillThreshold) {
             synchronized (refillTrigger) {
@@ -123,6 +230,18 @@ public class MessagesWorkQueue {
         }
     }
     
+    public void done(List<RowLogMessage> messages) {
+        lock.lock();
+        try {
+            messagesWorkingOn.removeAll(messages);
+            if (!messages.isEmpty() && rowsWorkingOn.remove(new ByteArrayKey(messages.get(0).getRowKey()))) {
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public int size() {
     	return messageList.size();
     }
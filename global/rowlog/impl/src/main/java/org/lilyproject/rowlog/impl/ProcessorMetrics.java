@@ -44,6 +44,10 @@ public class ProcessorMetrics implements Updater {
 
     public MetricsRate wakeups = new MetricsRate("wakeups_rate", registry);
 
+    public MetricsRate pushedMessages = new MetricsRate("pushed_messages_rate", registry);
+
+    public MetricsRate outOfOrderPushedMessages = new MetricsRate("out_of_order_pushed_messages_rate", registry);
+
     public ProcessorMetrics(String subscriptionId) {
         this.subscriptionId = subscriptionId;
         context = MetricsUtil.getContext("rowlog");
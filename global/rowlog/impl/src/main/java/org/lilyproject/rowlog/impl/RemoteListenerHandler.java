@@ -16,6 +16,8 @@
 package org.lilyproject.rowlog.impl;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
 
 import org.apache.commons.logging.Log;
@@ -67,8 +69,8 @@ public class RemoteListenerHandler {
             public ChannelPipeline getPipeline() throws Exception {
                 ChannelPipeline pipeline = Channels.pipeline();
                 pipeline.addLast("messageDecoder", new MessageDecoder()); // Read enough bytes
-                pipeline.addLast("rowLogMessageDecoder", new RowLogMessageDecoder()); // Decode the bytes into a RowLogMessage
-                pipeline.addLast("messageHandler", new MessageHandler()); // Handle the RowLogMessage
+                pipeline.addLast("rowLogMessageDecoder", new RowLogMessageDecoder()); // Decode the bytes into RowLogMessages
+                pipeline.addLast("messageHandler", new MessageHandler()); // Handle the RowLogMessages
                 pipeline.addLast("resultEncoder", new ResultEncoder()); // Encode the result
                 return pipeline;
             }
@@ -153,40 +155,53 @@ public class RemoteListenerHandler {
         @Override
         public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
             ChannelBufferInputStream inputStream = new ChannelBufferInputStream((ChannelBuffer)e.getMessage());
-            
-            long timestamp = inputStream.readLong();
-            
-            int rowKeyLength = inputStream.readInt();
-            byte[] rowKey = new byte[rowKeyLength];
-            inputStream.readFully(rowKey, 0, rowKeyLength);
-            
-            long seqnr = inputStream.readLong();
-            
-            int dataLength = inputStream.readInt();
-            byte[] data = null;
-            if (dataLength > 0) {
-                data = new byte[dataLength];
-                inputStream.readFully(data, 0, dataLength);
+
+            // A frame contains one message, or several messages of the same row when the processor coalesces them
+            List<RowLogMessage> messages = new ArrayList<RowLogMessage>(1);
+            while (inputStream.available() > 0) {
+                long timestamp = inputStream.readLong();
+
+                int rowKeyLength = inputStream.readInt();
+                byte[] rowKey = new byte[rowKeyLength];
+                inputStream.readFully(rowKey, 0, rowKeyLength);
+
+                long seqnr = inputStream.readLong();
+
+                int dataLength = inputStream.readInt();
+                byte[] data = null;
+                if (dataLength > 0) {
+                    data = new byte[dataLength];
+                    inputStream.readFully(data, 0, dataLength);
+                }
+                messages.add(new RowLogMessageImpl(timestamp, rowKey, seqnr, data, rowLog));
             }
             inputStream.close();
-            RowLogMessage rowLogMessage = new RowLogMessageImpl(timestamp, rowKey, seqnr, data, rowLog);
-            Channels.fireMessageReceived(ctx, rowLogMessage); // Give the message to the MessageHandler
+            Channels.fireMessageReceived(ctx, messages); // Give the messages to the MessageHandler
         }
     }
     
     private class MessageHandler extends SimpleChannelUpstreamHandler {
         @Override
         public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-            RowLogMessage message = (RowLogMessage)e.getMessage();
-            boolean result = rowLogMessageListener.processMessage(message);
-            writeResult(e.getChannel(), result, message);
+            @SuppressWarnings("unchecked")
+            List<RowLogMessage> messages = (List<RowLogMessage>)e.getMessage();
+            AbstractSubscriptionHandler.MessagesResult result;
+            if (messages.size() == 1) {
+                boolean processed = rowLogMessageListener.processMessage(messages.get(0));
+                result = new AbstractSubscriptionHandler.MessagesResult(processed ? 1 : 0, false);
+            } else {
+                result = AbstractSubscriptionHandler.processMessages(rowLogMessageListener, messages);
+            }
+            writeResult(e.getChannel(), result, messages);
         }
 
-        private void writeResult(Channel channel, boolean result, RowLogMessage message) throws InterruptedException {
+        private void writeResult(Channel channel, AbstractSubscriptionHandler.MessagesResult result,
+                List<RowLogMessage> messages) throws InterruptedException {
             if (channel.isOpen()) {
-                channel.write(Boolean.valueOf(result)).await();
+                channel.write(result).await();
             } else {
-                log.warn("Failed to send processing result '"+result+"' for message '"+message+"' due to closed channel.");
+                log.warn("Failed to send processing result '" + result.getProcessed() + "' for messages " + messages +
+                        " due to closed channel.");
             }
         }
         
@@ -209,9 +224,11 @@ public class RemoteListenerHandler {
     private class ResultEncoder extends SimpleChannelDownstreamHandler {
         @Override
         public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-            Boolean result = (Boolean)e.getMessage();
-            ChannelBuffer channelBuffer = ChannelBuffers.buffer(Bytes.SIZEOF_BOOLEAN);
-            channelBuffer.writeBytes(Bytes.toBytes(result));
+            AbstractSubscriptionHandler.MessagesResult result =
+                    (AbstractSubscriptionHandler.MessagesResult)e.getMessage();
+            ChannelBuffer channelBuffer = ChannelBuffers.buffer(Bytes.SIZEOF_INT + Bytes.SIZEOF_BOOLEAN);
+            channelBuffer.writeBytes(Bytes.toBytes(result.getProcessed()));
+            channelBuffer.writeBytes(Bytes.toBytes(result.isCoalesced()));
             Channels.write(ctx, e.getFuture(), channelBuffer);
         }
     }
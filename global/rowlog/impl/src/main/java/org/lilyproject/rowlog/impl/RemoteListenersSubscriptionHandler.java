@@ -16,6 +16,8 @@
 package org.lilyproject.rowlog.impl;
 
 import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
@@ -53,7 +55,7 @@ public class RemoteListenersSubscriptionHandler extends AbstractListenersSubscri
     }
 
     private class RemoteWorkerDelegate implements WorkerDelegate {
-        private Boolean remoteProcessMessageResult = null;
+        private MessagesResult remoteProcessMessageResult = null;
         private Throwable resultHandlerException = null;
         private Semaphore semaphore = new Semaphore(0);
         private Channel channel = null;
@@ -92,11 +94,21 @@ public class RemoteListenersSubscriptionHandler extends AbstractListenersSubscri
          */
         @Override
         public boolean processMessage(RowLogMessage message) throws RowLogException, InterruptedException {
-            return processMessage(message, 4);
+            return processMessages(Collections.singletonList(message), 4).getProcessed() > 0;
         }
 
-        public boolean processMessage(RowLogMessage message, int triesRemaining) throws RowLogException,
+        /**
+         * Same as {@link #processMessage}, the messages are sent together and the remote listener returns one
+         * result for all of them.
+         */
+        @Override
+        public MessagesResult processMessages(List<RowLogMessage> messages) throws RowLogException,
                 InterruptedException {
+            return processMessages(messages, 4);
+        }
+
+        public MessagesResult processMessages(List<RowLogMessage> messages, int triesRemaining)
+                throws RowLogException, InterruptedException {
 
             remoteProcessMessageResult = null;
             resultHandlerException = null;
@@ -109,20 +121,20 @@ public class RemoteListenersSubscriptionHandler extends AbstractListenersSubscri
                 // message at a time over a channel. If this ever changes, we should rather generate a per-request ID
                 workerDelegates.put(channel.getId(), this);
 
-                ChannelFuture writeFuture = channel.write(message);
+                ChannelFuture writeFuture = channel.write(messages);
                 writeFuture.await();
                 semaphore.acquire();
                 if (remoteProcessMessageResult == null || resultHandlerException != null) {
                     if (triesRemaining > 0) {
                         // Retry
                         if (log.isInfoEnabled()) {
-                            log.info("Failed to process message. Retries remaining : " + triesRemaining,
+                            log.info("Failed to process messages. Retries remaining : " + triesRemaining,
                                     resultHandlerException);
                         }
                         Thread.sleep(10);
-                        return processMessage(message, triesRemaining - 1);
+                        return processMessages(messages, triesRemaining - 1);
                     } else {
-                        throw new RemoteListenerIOException("Failure in sending message '" + message +
+                        throw new RemoteListenerIOException("Failure in sending messages " + messages +
                                 "' to remote listener on host '" + host + "'", resultHandlerException);
                     }
                 }
@@ -191,7 +203,7 @@ public class RemoteListenersSubscriptionHandler extends AbstractListenersSubscri
         @Override
         public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
             RemoteWorkerDelegate worker = getWorkerDelegate(ctx);
-            worker.remoteProcessMessageResult = (Boolean) e.getMessage();
+            worker.remoteProcessMessageResult = (MessagesResult) e.getMessage();
             worker.semaphore.release(); // We received the message, the processMessage call can continue
         }
 
@@ -218,37 +230,51 @@ public class RemoteListenersSubscriptionHandler extends AbstractListenersSubscri
 
     private class ResultDecoder extends FrameDecoder {
         @Override
-        protected Boolean decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
-            if (buffer.readableBytes() < Bytes.SIZEOF_BOOLEAN) {
+        protected MessagesResult decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer)
+                throws Exception {
+            if (buffer.readableBytes() < Bytes.SIZEOF_INT + Bytes.SIZEOF_BOOLEAN) {
                 return null;
             }
-            return Bytes.toBoolean(buffer.readBytes(Bytes.SIZEOF_BOOLEAN).array()); // Send the result to the ResultHandler
+            int processed = Bytes.toInt(buffer.readBytes(Bytes.SIZEOF_INT).array());
+            boolean coalesced = Bytes.toBoolean(buffer.readBytes(Bytes.SIZEOF_BOOLEAN).array());
+            return new MessagesResult(processed, coalesced); // Send the result to the ResultHandler
         }
     }
 
+    /**
+     * Encodes the messages one after the other in one frame. A frame with a single message is the same as
+     * before messages could be sent together.
+     */
     private class MessageEncoder extends SimpleChannelDownstreamHandler {
         @Override
         public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
             ChannelBufferOutputStream outputStream = null;
             try {
-                RowLogMessage message = (RowLogMessage) e.getMessage();
-                byte[] rowKey = message.getRowKey();
-                byte[] data = message.getData();
-                int msgLength = 8 + 4 + rowKey.length + 8 + 4; // timestamp + rowkey-length + rowkey + seqnr + data-length + data
-                if (data != null)
-                    msgLength = msgLength + data.length;
+                @SuppressWarnings("unchecked")
+                List<RowLogMessage> messages = (List<RowLogMessage>) e.getMessage();
+                int msgLength = 0;
+                for (RowLogMessage message : messages) {
+                    byte[] data = message.getData();
+                    msgLength += 8 + 4 + message.getRowKey().length + 8 + 4; // timestamp + rowkey-length + rowkey + seqnr + data-length + data
+                    if (data != null)
+                        msgLength = msgLength + data.length;
+                }
                 ChannelBuffer channelBuffer = ChannelBuffers.buffer(4 + msgLength);
                 outputStream = new ChannelBufferOutputStream(channelBuffer);
                 outputStream.writeInt(msgLength);
-                outputStream.writeLong(message.getTimestamp());
-                outputStream.writeInt(rowKey.length);
-                outputStream.write(rowKey);
-                outputStream.writeLong(message.getSeqNr());
-                if (data != null) {
-                    outputStream.writeInt(data.length);
-                    outputStream.write(data);
-                } else {
-                    outputStream.writeInt(0);
+                for (RowLogMessage message : messages) {
+                    byte[] rowKey = message.getRowKey();
+                    byte[] data = message.getData();
+                    outputStream.writeLong(message.getTimestamp());
+                    outputStream.writeInt(rowKey.length);
+                    outputStream.write(rowKey);
+                    outputStream.writeLong(message.getSeqNr());
+                    if (data != null) {
+                        outputStream.writeInt(data.length);
+                        outputStream.write(data);
+                    } else {
+                        outputStream.writeInt(0);
+                    }
                 }
                 Channels.write(ctx, e.getFuture(), channelBuffer);
             } finally {
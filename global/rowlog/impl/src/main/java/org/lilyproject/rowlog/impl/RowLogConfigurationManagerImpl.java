@@ -27,6 +27,7 @@ import javax.annotation.PreDestroy;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.NoNodeException;
@@ -53,7 +54,9 @@ import org.lilyproject.util.zookeeper.ZooKeeperOperation;
 // The paths used in zookeeper to store the data are :
 // /lily/rowlog/<rowlogid>+<data>
 // /lily/rowlog/<rowlogid>/shards/<shardid>/processorNotify+<data>
+// /lily/rowlog/<rowlogid>/processorPush+<host:port>
 // /lily/rowlog/<rowlogid>/subscriptions/<subscriptionid>/<listenerid>
+// /lily/rowlog/<rowlogid>/subscriptionordinals+<data>/<subscriptionid>+<data>
 
 public class RowLogConfigurationManagerImpl implements RowLogConfigurationManager {
     private String lilyPath = "/lily";
@@ -414,7 +417,176 @@ public class RowLogConfigurationManagerImpl implements RowLogConfigurationManage
 			// No RowLogProcessor is listening
 		}
     }
+
+    // Processor push address
+    @Override
+    public void setProcessorPushAddress(String rowLogId, String address) throws InterruptedException,
+            KeeperException {
+        final String path = processorPushPath(rowLogId);
+        final byte[] data = Bytes.toBytes(address);
+        zooKeeper.retryOperation(new ZooKeeperOperation<Object>() {
+            @Override
+            public Object execute() throws KeeperException, InterruptedException {
+                try {
+                    zooKeeper.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+                } catch (KeeperException.NodeExistsException e) {
+                    // Left behind by a previous session of this processor, or created by a retried operation
+                    zooKeeper.setData(path, data, -1);
+                }
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void removeProcessorPushAddress(String rowLogId) throws InterruptedException, KeeperException {
+        final String path = processorPushPath(rowLogId);
+        try {
+            zooKeeper.retryOperation(new ZooKeeperOperation<Object>() {
+                @Override
+                public Object execute() throws KeeperException, InterruptedException {
+                    zooKeeper.delete(path, -1);
+                    return null;
+                }
+            });
+        } catch (KeeperException.NoNodeException ignore) {
+            // Silently ignore. Might occur because we use retryOperation.
+        }
+    }
+
+    @Override
+    public String getProcessorPushAddress(String rowLogId) throws InterruptedException, KeeperException {
+        final String path = processorPushPath(rowLogId);
+        try {
+            byte[] data = zooKeeper.retryOperation(new ZooKeeperOperation<byte[]>() {
+                @Override
+                public byte[] execute() throws KeeperException, InterruptedException {
+                    return zooKeeper.getData(path, false, null);
+                }
+            });
+            return data == null ? null : Bytes.toString(data);
+        } catch (KeeperException.NoNodeException e) {
+            return null;
+        }
+    }
     
+    // Subscription ordinals
+    @Override
+    public int getSubscriptionOrdinal(String rowLogId, String subscriptionId)
+            throws InterruptedException, KeeperException {
+        final String path = subscriptionOrdinalPath(rowLogId, subscriptionId);
+        Integer ordinal = readOrdinal(path);
+        if (ordinal != null) {
+            return ordinal;
+        }
+
+        // The data of the ordinals node holds the last assigned ordinal
+        final String ordinalsPath = subscriptionOrdinalsPath(rowLogId);
+        ZkUtil.createPath(zooKeeper, ordinalsPath);
+        final int newOrdinal = (int)(reserveNumbers(ordinalsPath, 1) - 1);
+
+        try {
+            zooKeeper.retryOperation(new ZooKeeperOperation<String>() {
+                @Override
+                public String execute() throws KeeperException, InterruptedException {
+                    return zooKeeper.create(path, Bytes.toBytes(newOrdinal), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                            CreateMode.PERSISTENT);
+                }
+            });
+            return newOrdinal;
+        } catch (KeeperException.NodeExistsException e) {
+            // Someone else assigned an ordinal in the meantime (or we did, because of the use of
+            // retryOperation), the ordinal we reserved stays unused.
+            return readOrdinal(path);
+        }
+    }
+
+    @Override
+    public Map<String, Integer> getSubscriptionOrdinals(String rowLogId) throws InterruptedException, KeeperException {
+        return getSubscriptionOrdinals(rowLogId, null);
+    }
+
+    @Override
+    public Map<String, Integer> getSubscriptionOrdinals(String rowLogId, final Watcher watcher)
+            throws InterruptedException, KeeperException {
+        final String path = subscriptionOrdinalsPath(rowLogId);
+        List<String> subscriptionIds = zooKeeper.retryOperation(new ZooKeeperOperation<List<String>>() {
+            @Override
+            public List<String> execute() throws KeeperException, InterruptedException {
+                try {
+                    return zooKeeper.getChildren(path, watcher);
+                } catch (KeeperException.NoNodeException e) {
+                    // No ordinals assigned yet: watch for the creation of the ordinals node instead
+                    if (watcher != null && zooKeeper.exists(path, watcher) != null) {
+                        return zooKeeper.getChildren(path, watcher);
+                    }
+                    return null;
+                }
+            }
+        });
+        if (subscriptionIds == null) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Integer> ordinals = new HashMap<String, Integer>();
+        for (String subscriptionId : subscriptionIds) {
+            Integer ordinal = readOrdinal(path + "/" + subscriptionId);
+            if (ordinal != null) {
+                ordinals.put(subscriptionId, ordinal);
+            }
+        }
+        return ordinals;
+    }
+
+    private Integer readOrdinal(final String path) throws InterruptedException, KeeperException {
+        return zooKeeper.retryOperation(new ZooKeeperOperation<Integer>() {
+            @Override
+            public Integer execute() throws KeeperException, InterruptedException {
+                try {
+                    return Bytes.toInt(zooKeeper.getData(path, false, null));
+                } catch (KeeperException.NoNodeException e) {
+                    return null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Reserves a block of numbers using the node at the given path, which holds the last reserved number.
+     *
+     * @return the first number of the block
+     */
+    private long reserveNumbers(final String path, final int count) throws InterruptedException, KeeperException {
+        return zooKeeper.retryOperation(new ZooKeeperOperation<Long>() {
+            @Override
+            public Long execute() throws KeeperException, InterruptedException {
+                while (true) {
+                    Stat stat = new Stat();
+                    byte[] data;
+                    try {
+                        data = zooKeeper.getData(path, false, stat);
+                    } catch (KeeperException.NoNodeException e) {
+                        try {
+                            zooKeeper.create(path, Bytes.toBytes((long)count), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                                    CreateMode.PERSISTENT);
+                            return 1L;
+                        } catch (KeeperException.NodeExistsException e2) {
+                            continue;
+                        }
+                    }
+
+                    long last = data == null || data.length == 0 ? 0 : Bytes.toLong(data);
+                    try {
+                        zooKeeper.setData(path, Bytes.toBytes(last + count), stat.getVersion());
+                        return last + 1;
+                    } catch (KeeperException.BadVersionException e) {
+                        // Someone else reserved a block in the meantime, try again
+                    }
+                }
+            }
+        });
+    }
+
     // Paths
     private String rowLogPath(String rowLogId) {
         return rowLogPath + "/" + rowLogId;
@@ -428,6 +600,14 @@ public class RowLogConfigurationManagerImpl implements RowLogConfigurationManage
         return rowLogPath(rowLogId) + "/subscriptions";
     }
     
+    private String subscriptionOrdinalsPath(String rowLogId) {
+        return rowLogPath(rowLogId) + "/subscriptionordinals";
+    }
+
+    private String subscriptionOrdinalPath(String rowLogId, String subscriptionId) {
+        return subscriptionOrdinalsPath(rowLogId) + "/" + subscriptionId;
+    }
+
     private String shardPath(String rowLogId, String shardId) {
         return rowLogPath(rowLogId) + "/shards" + "/" + shardId;
     }
@@ -436,6 +616,10 @@ public class RowLogConfigurationManagerImpl implements RowLogConfigurationManage
         return rowLogPath(rowLogId) + "/" + "processorNotify";
     }
     
+    private String processorPushPath(String rowLogId) {
+        return rowLogPath(rowLogId) + "/" + "processorPush";
+    }
+
     private String listenerPath(String rowLogId, String subscriptionId, String listenerId) {
         return subscriptionPath(rowLogId, subscriptionId) + "/" + listenerId;
     }
@@ -53,8 +53,10 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
 
     protected final String id;
     private RowLogProcessorNotifier processorNotifier = null;
+    private RowLogProcessorPusher processorPusher = null;
     private Log log = LogFactory.getLog(RowLogImpl.class);
     private RowLogConfigurationManager rowLogConfigurationManager;
+    private final SubscriptionOrdinals subscriptionOrdinals;
 
     private final AtomicBoolean initialSubscriptionsLoaded = new AtomicBoolean(false);
     private final AtomicBoolean initialRowLogConfigLoaded = new AtomicBoolean(false);
@@ -62,6 +64,7 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
     private byte[] payloadPrefix;
     private byte[] executionStatePrefix;
     private byte[] seqNrQualifier;
+    private boolean compactExecutionState = false;
     private ObjectName mbeanName;
 
     /**
@@ -86,6 +89,7 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
         this.rowLogConfigurationManager = rowLogConfigurationManager;
         this.rowLocker = rowLocker;
         this.shardRouter = shardRouter;
+        this.subscriptionOrdinals = new SubscriptionOrdinals(id, rowLogConfigurationManager);
 
         rowLogConfigurationManager.addRowLogObserver(id, this);
         synchronized (initialRowLogConfigLoaded) {
@@ -94,6 +98,7 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
             }
         }
         this.processorNotifier = new RowLogProcessorNotifier(rowLogConfigurationManager, rowLogConfig.getNotifyDelay());
+        this.processorPusher = new RowLogProcessorPusher(rowLogConfigurationManager, id);
         rowLogConfigurationManager.addSubscriptionsObserver(id, this);
         synchronized (initialSubscriptionsLoaded) {
             while (!initialSubscriptionsLoaded.get()) {
@@ -131,6 +136,15 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
         }
     }
     
+    /**
+     * Sets whether the execution states of the messages are written in the compact format, see
+     * {@link SubscriptionExecutionState}. Only enable this once all nodes of the cluster run a Lily version
+     * which can read the compact format.
+     */
+    public void setCompactExecutionState(boolean compactExecutionState) {
+        this.compactExecutionState = compactExecutionState;
+    }
+
     public void stop() {
         unregisterMBean();
         rowLogConfigurationManager.removeRowLogObserver(id, this);
@@ -142,6 +156,7 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
             initialSubscriptionsLoaded.set(false);
         }
         Closer.close(processorNotifier);
+        Closer.close(processorPusher);
     }
     
     @Override
@@ -177,9 +192,6 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
             if (subscriptions.isEmpty()) 
                 return null;
 
-            // Get a sequence number for this new message
-            long seqnr = rowTable.incrementColumnValue(rowKey, rowLogColumnFamily, seqNrQualifier, 1L);
-
             // Create Put object if not supplied
             boolean ownPut = false;
             if (put == null) {
@@ -187,6 +199,10 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
                 ownPut = true;
             }
 
+            // Get a sequence number for this new message
+            byte[] lastSeqNr = getLastSeqNr(rowKey);
+            long seqnr = putSeqNr(lastSeqNr, put);
+
             long now = System.currentTimeMillis();
 
             putPayload(seqnr, payload, now, put);
@@ -219,13 +235,19 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
 
             // If the Put was not supplied by the user, apply it now
             if (ownPut) {
-                rowTable.put(put);
+                if (!rowTable.checkAndPut(rowKey, rowLogColumnFamily, seqNrQualifier, lastSeqNr, put)) {
+                    // Another message was put on the row meanwhile and took the sequence number, retry with the
+                    // next one. The message already put on the shard is cleaned up as an orphan.
+                    return putMessage(rowKey, data, payload, null);
+                }
 
                 // The notify should happen after the put on the row-local queue, so
                 // we only do it in case we did the put. Since the notifications are most/only
                 // important for the MQ case and since for the MQ currently the Put is always
                 // done here, this is sufficient.
-                if (rowLogConfig.isEnableNotify()) {
+                // When the processor accepts pushed messages, the message is handed to it directly, and
+                // there is no need to wake it up for a scan.
+                if (!processorPusher.push(message) && rowLogConfig.isEnableNotify()) {
                     processorNotifier.notifyProcessor(id);
                 }
             }
@@ -236,18 +258,161 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
         }
     }
 
+    @Override
+    public List<RowLogMessage> putMessages(List<byte[]> rowKeys, List<byte[]> payloads, List<Put> puts)
+            throws InterruptedException, RowLogException {
+        if (rowKeys.size() != payloads.size() || (puts != null && rowKeys.size() != puts.size())) {
+            throw new IllegalArgumentException("The number of row keys, payloads and puts should be equal.");
+        }
+
+        try {
+            // Take current snapshot of the subscriptions so that the shard puts and initializeSubscriptions
+            // use the exact same set of subscriptions.
+            List<RowLogSubscription> subscriptions = getSubscriptions();
+            if (subscriptions.isEmpty() || rowKeys.isEmpty())
+                return Collections.emptyList();
+
+            boolean ownPuts = false;
+            if (puts == null) {
+                puts = new ArrayList<Put>(rowKeys.size());
+                ownPuts = true;
+            }
+
+            // Read the sequence number counters of all rows in one request
+            List<Get> gets = new ArrayList<Get>(rowKeys.size());
+            for (byte[] rowKey : rowKeys) {
+                gets.add(seqNrGet(rowKey));
+            }
+            Result[] results = rowTable.get(gets);
+
+            List<RowLogMessage> messages = new ArrayList<RowLogMessage>(rowKeys.size());
+            List<byte[]> lastSeqNrs = new ArrayList<byte[]>(rowKeys.size());
+            Map<ByteBuffer, byte[]> batchSeqNrs = new HashMap<ByteBuffer, byte[]>();
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < rowKeys.size(); i++) {
+                byte[] rowKey = rowKeys.get(i);
+                byte[] payload = payloads.get(i);
+
+                Put put;
+                if (ownPuts) {
+                    put = new Put(rowKey);
+                    puts.add(put);
+                } else {
+                    put = puts.get(i);
+                }
+
+                // Get a sequence number for this new message, continuing from an earlier message of this
+                // batch on the same row
+                byte[] lastSeqNr = batchSeqNrs.get(ByteBuffer.wrap(rowKey));
+                if (lastSeqNr == null) {
+                    lastSeqNr = results[i].getValue(rowLogColumnFamily, seqNrQualifier);
+                }
+                lastSeqNrs.add(lastSeqNr);
+                long seqnr = putSeqNr(lastSeqNr, put);
+                batchSeqNrs.put(ByteBuffer.wrap(rowKey), Bytes.toBytes(seqnr));
+
+                putPayload(seqnr, payload, now, put);
+                messages.add(new RowLogMessageImpl(now, rowKey, seqnr, null, payload, this));
+            }
+
+            putMessagesOnShards(messages, subscriptions);
+
+            for (int i = 0; i < messages.size(); i++) {
+                initializeSubscriptions(messages.get(i), puts.get(i), subscriptions);
+            }
+
+            // If the Puts were not supplied by the user, apply them now. Each put needs to check the sequence
+            // number counter of its row, which HBase can only do one row at a time.
+            if (ownPuts) {
+                List<RowLogMessage> putMessages = new ArrayList<RowLogMessage>(messages.size());
+                for (int i = 0; i < puts.size(); i++) {
+                    byte[] rowKey = rowKeys.get(i);
+                    if (rowTable.checkAndPut(rowKey, rowLogColumnFamily, seqNrQualifier, lastSeqNrs.get(i),
+                            puts.get(i))) {
+                        putMessages.add(messages.get(i));
+                    } else {
+                        // Another message was put on the row meanwhile and took the sequence number, retry with
+                        // the next one. The message already put on the shard is cleaned up as an orphan.
+                        messages.set(i, putMessage(rowKey, null, payloads.get(i), null));
+                    }
+                }
+
+                if (!processorPusher.push(putMessages) && rowLogConfig.isEnableNotify()) {
+                    processorNotifier.notifyProcessor(id);
+                }
+            }
+
+            return messages;
+        } catch (IOException e) {
+            throw new RowLogException("Failed to put messages on RowLog", e);
+        }
+    }
+
+    /**
+     * Returns the last sequence number handed out for the row, as stored in the sequence number counter of the
+     * row, or null if no message was put on the row yet.
+     */
+    private byte[] getLastSeqNr(byte[] rowKey) throws IOException {
+        return rowTable.get(seqNrGet(rowKey)).getValue(rowLogColumnFamily, seqNrQualifier);
+    }
+
+    private Get seqNrGet(byte[] rowKey) {
+        Get get = new Get(rowKey);
+        get.addColumn(rowLogColumnFamily, seqNrQualifier);
+        return get;
+    }
+
+    /**
+     * Adds the sequence number following the last one of the row to the put, and returns it.
+     *
+     * <p>The counter is updated with the same put as the message itself, so sequence numbers increase in the
+     * order in which messages are put on a row, independent of the clocks of the rowlog instances putting them.
+     * This requires the put to be done under the row lock, or to be checked against the counter.
+     */
+    private long putSeqNr(byte[] lastSeqNr, Put put) {
+        long seqnr = lastSeqNr == null ? 1L : Bytes.toLong(lastSeqNr) + 1;
+        put.add(rowLogColumnFamily, seqNrQualifier, Bytes.toBytes(seqnr));
+        return seqnr;
+    }
+
     protected void putMessageOnShard(RowLogMessage message, List<RowLogSubscription> subscriptions)
             throws RowLogException {
         List<String> subscriptionIds = getSubscriptionIds();
         getShard(message).putMessage(message, subscriptionIds);
     }
 
+    protected void putMessagesOnShards(List<RowLogMessage> messages, List<RowLogSubscription> subscriptions)
+            throws RowLogException {
+        putMessagesOnShardsForSubscriptionIds(messages, getSubscriptionIds());
+    }
+
+    /**
+     * Groups the messages per shard so that each shard receives them with one call.
+     */
+    protected void putMessagesOnShardsForSubscriptionIds(List<RowLogMessage> messages,
+            List<String> subscriptionIds) throws RowLogException {
+        Map<RowLogShard, List<RowLogMessage>> messagesByShard = new LinkedHashMap<RowLogShard, List<RowLogMessage>>();
+        for (RowLogMessage message : messages) {
+            RowLogShard shard = getShard(message);
+            List<RowLogMessage> shardMessages = messagesByShard.get(shard);
+            if (shardMessages == null) {
+                shardMessages = new ArrayList<RowLogMessage>();
+                messagesByShard.put(shard, shardMessages);
+            }
+            shardMessages.add(message);
+        }
+
+        for (Entry<RowLogShard, List<RowLogMessage>> entry : messagesByShard.entrySet()) {
+            entry.getKey().putMessages(entry.getValue(), subscriptionIds);
+        }
+    }
+
     
     private void initializeSubscriptions(RowLogMessage message, Put put, List<RowLogSubscription> subscriptions)
             throws IOException {
-        String[] subscriptionIds = getSubscriptionIds().toArray(new String[0]);
-        ExecutionState executionState = new SubscriptionExecutionState(message.getTimestamp(),
-                subscriptionIds);
+        int[] ordinals = subscriptionOrdinals.assignOrdinals(getSubscriptionIds());
+        ExecutionState executionState = new SubscriptionExecutionState(message.getTimestamp(), ordinals,
+                subscriptionOrdinals, compactExecutionState);
         byte[] qualifier = executionStateQualifier(message.getSeqNr(), message.getTimestamp());
         put.add(rowLogColumnFamily, qualifier, executionState.toBytes());
         message.setExecutionState(executionState);
@@ -273,7 +438,8 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
                     return true;
                 }
                 previousValue = result.getValue(rowLogColumnFamily, executionStateQualifier);
-                executionState = SubscriptionExecutionState.fromBytes(previousValue);
+                executionState = SubscriptionExecutionState.fromBytes(previousValue, subscriptionOrdinals,
+                        compactExecutionState);
             } else {
                 previousValue = executionState.toBytes();
             }
@@ -283,7 +449,7 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
             if (allDone) {
                 return handleAllDone(message, rowKey, executionStateQualifier, previousValue, lock);
             } else {
-                if (rowLocker != null) {
+                if (rowLocker != null && lock != null) {
                     // TODO (bruno) return value is ignored, is this ok?
                     updateExecutionState(rowKey, executionStateQualifier, executionState, previousValue, lock);
                 } else {
@@ -404,7 +570,8 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
             Result result = rowTable.get(get);
             if (!result.isEmpty()) {
                 byte[] previousValue = result.getValue(rowLogColumnFamily, executionStateQualifier);
-                ExecutionState executionState = SubscriptionExecutionState.fromBytes(previousValue);
+                ExecutionState executionState = SubscriptionExecutionState.fromBytes(previousValue, subscriptionOrdinals,
+                        compactExecutionState);
                 executionState.setState(subscriptionId, true);
                 if (executionState.allDone()) {
                     handleAllDone(message, rowKey, executionStateQualifier, previousValue, rowLock);
@@ -441,7 +608,8 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
             Result result = rowTable.get(get);
             if (!result.isEmpty()) {
                 byte[] previousValue = result.getValue(rowLogColumnFamily, executionStateQualifier);
-                ExecutionState executionState = SubscriptionExecutionState.fromBytes(previousValue);
+                ExecutionState executionState = SubscriptionExecutionState.fromBytes(previousValue, subscriptionOrdinals,
+                        compactExecutionState);
                 executionState.setState(subscriptionId, true);
                 if (executionState.allDone()) {
                     handleAllDone(message, rowKey, executionStateQualifier, previousValue, null);
@@ -489,7 +657,8 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
             Result result = rowTable.get(get);
             byte[] previousValue = result.getValue(rowLogColumnFamily, executionStateQualifier);
             if (previousValue != null)
-                executionState = SubscriptionExecutionState.fromBytes(previousValue);
+                executionState = SubscriptionExecutionState.fromBytes(previousValue, subscriptionOrdinals,
+                        compactExecutionState);
         } catch (IOException e) {
             throw new RowLogException("Failed to check if message is done", e);
         }
@@ -558,7 +727,8 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
             if (!result.isEmpty()) {
                 NavigableMap<byte[], byte[]> familyMap = result.getFamilyMap(rowLogColumnFamily);
                 for (Entry<byte[], byte[]> entry : familyMap.entrySet()) {
-                    ExecutionState executionState = SubscriptionExecutionState.fromBytes(entry.getValue());
+                    ExecutionState executionState = SubscriptionExecutionState.fromBytes(entry.getValue(), subscriptionOrdinals,
+                            compactExecutionState);
                     boolean add = false;
                     if (subscriptionIds.length == 0)
                         add = true;
@@ -630,6 +800,13 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
         }
         this.subscriptionIds = Collections.unmodifiableList(subscriptionIds);
 
+        // Assign the ordinals of new subscriptions already, rather than when putting the next message
+        try {
+            subscriptionOrdinals.assignOrdinals(subscriptionIds);
+        } catch (IOException e) {
+            log.error("Error assigning ordinals to the subscriptions of rowlog " + id, e);
+        }
+
         if (!initialSubscriptionsLoaded.get()) {
             synchronized (initialSubscriptionsLoaded) {
                 initialSubscriptionsLoaded.set(true);
@@ -648,6 +825,43 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
         return shardList;
     }
 
+    @Override
+    public long getShardPutCount() {
+        long count = 0;
+        for (RowLogShardPutBuffer putBuffer : getShardPutBuffers()) {
+            count += putBuffer.getPutCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getShardPutRequestCount() {
+        long count = 0;
+        for (RowLogShardPutBuffer putBuffer : getShardPutBuffers()) {
+            count += putBuffer.getRequestCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getDroppedPushCount() {
+        return processorPusher.getDroppedCount();
+    }
+
+    /**
+     * The distinct put buffers of the shards, typically all shards share one buffer.
+     */
+    private Collection<RowLogShardPutBuffer> getShardPutBuffers() {
+        Set<RowLogShardPutBuffer> putBuffers =
+                Collections.newSetFromMap(new IdentityHashMap<RowLogShardPutBuffer, Boolean>());
+        for (RowLogShard shard : shardList.getShards()) {
+            if (shard instanceof RowLogShardImpl) {
+                putBuffers.add(((RowLogShardImpl)shard).getPutBuffer());
+            }
+        }
+        return putBuffers;
+    }
+
     @Override
     public void rowLogConfigChanged(RowLogConfig rowLogConfig) {
         this.rowLogConfig = rowLogConfig;
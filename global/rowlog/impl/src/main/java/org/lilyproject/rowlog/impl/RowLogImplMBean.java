@@ -18,9 +18,24 @@ package org.lilyproject.rowlog.impl;
 import java.util.List;
 
 /**
- * MBean exposing the subscription ids known by the rowlog.
+ * MBean exposing the subscription ids known by the rowlog, and the number of puts done on its shards.
  * 
  */
 public interface RowLogImplMBean {
     List<String> getSubscriptionIds();
+
+    /**
+     * The number of messages put on the shards, counting a message once for each subscription.
+     */
+    long getShardPutCount();
+
+    /**
+     * The number of HBase requests done to put the messages on the shards.
+     */
+    long getShardPutRequestCount();
+
+    /**
+     * The number of messages which could not be pushed to the processor while it accepts pushed messages.
+     */
+    long getDroppedPushCount();
 }
@@ -19,13 +19,16 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -35,11 +38,11 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import com.google.common.collect.ComparisonChain;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.zookeeper.KeeperException;
 import org.lilyproject.rowlog.api.ProcessorNotifyObserver;
 import org.lilyproject.rowlog.api.RowLog;
 import org.lilyproject.rowlog.api.RowLogConfig;
@@ -64,10 +67,17 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
     private Log log = LogFactory.getLog(RowLogProcessorImpl.class);
     private RowLogConfig rowLogConfig;
     private ThreadPoolExecutor globalQScanExecutor;
+    private ShardScanScheduler shardScanScheduler;
     private ScheduledExecutorService scheduledServices;
     private Configuration hbaseConf;
     private RowLogProcessorSettings settings;
     private Triggerable bufferedProcessorNotifier;
+    private RowLogProcessorPushServer pushServer;
+    private ThreadPoolExecutor pushedMessagesExecutor;
+    /**
+     * The number of threads which check and queue the pushed messages, see {@link #messagePushed}.
+     */
+    private static final int PUSHED_MESSAGES_THREADS = 4;
 
     private final AtomicBoolean initialRowLogConfigLoaded = new AtomicBoolean(false);
     
@@ -101,6 +111,7 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
             this.globalQScanExecutor = new ThreadPoolExecutor(threadCnt, threadCnt,
                     30, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
                     new CustomThreadFactory("rowlog-scan", new ThreadGroup("RowLogScan")));
+            this.shardScanScheduler = new ShardScanScheduler(hbaseConf, settings.getMaxScansPerRegionServer());
 
             // Start the service that will monitor the number of region servers and adjust number
             // of scan threads accordingly
@@ -135,12 +146,54 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
                     notifyProcessorNonDelayed();
                 }
             }, rowLogConfig.getNotifyDelay());
+
+            initializePushServer();
         }
     }
 
+    private void initializePushServer() throws InterruptedException {
+        if (settings.getPushHostName() == null)
+            return;
+
+        // Checking a pushed message involves a request on the row, this should not block the I/O threads of the
+        // push server. When the checks can't keep up, the messages are left to the scans.
+        pushedMessagesExecutor = new ThreadPoolExecutor(PUSHED_MESSAGES_THREADS, PUSHED_MESSAGES_THREADS,
+                30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(settings.getMessagesWorkQueueSize()),
+                new CustomThreadFactory("rowlog-pushed-" + rowLog.getId(), new ThreadGroup("RowLogPushed")));
+        pushedMessagesExecutor.allowCoreThreadTimeOut(true);
+
+        pushServer = new RowLogProcessorPushServer(rowLog, this, settings.getPushHostName());
+        String address = pushServer.start();
+        try {
+            rowLogConfigurationManager.setProcessorPushAddress(rowLog.getId(), address);
+            log.info("Accepting pushed messages for rowlog " + rowLog.getId() + " on " + address);
+        } catch (KeeperException e) {
+            // Not fatal, the messages will be picked up by scanning
+            log.error("Error publishing the push address of the processor for rowlog " + rowLog.getId(), e);
+        }
+    }
+
+    private void stopPushServer() {
+        if (pushServer == null)
+            return;
+
+        try {
+            rowLogConfigurationManager.removeProcessorPushAddress(rowLog.getId());
+        } catch (KeeperException e) {
+            log.warn("Error removing the push address of the processor for rowlog " + rowLog.getId(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pushServer.stop();
+        pushServer = null;
+        pushedMessagesExecutor.shutdownNow();
+        pushedMessagesExecutor = null;
+    }
+
     @Override
     public synchronized void stop() {
         stop = true;
+        stopPushServer();
         Closer.close(bufferedProcessorNotifier);
         if (scheduledServices != null)
             scheduledServices.shutdownNow();
@@ -150,6 +203,8 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
         stopSubscriptionThreads();
         if (globalQScanExecutor != null)
             globalQScanExecutor.shutdownNow();
+        if (shardScanScheduler != null)
+            shardScanScheduler.stop();
     }
 
     private int getScanThreadCount(int regionServerCnt) {
@@ -305,6 +360,92 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
         }
     }
 
+    /**
+     * Called for a message pushed by the rowlog right after it was put. The message is checked and queued for
+     * each subscription by {@link #queuePushedMessage} on a separate thread, the caller is an I/O thread of the
+     * push server.
+     *
+     * <p>The rowlog does not notify the processor of a message it pushed, so a message which is not queued
+     * wakes up the subscription threads instead, and is then picked up by their scans.
+     */
+    void messagePushed(final RowLogMessage message) {
+        ThreadPoolExecutor executor = pushedMessagesExecutor;
+        if (stop || executor == null)
+            return;
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queuePushedMessage(message);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            notifyProcessorNonDelayed();
+        }
+    }
+
+    /**
+     * Queues a pushed message for each subscription, if there is room for it. Messages which cannot be queued,
+     * or which were pushed while the processor was busy scanning, are picked up by the scans, the work queues
+     * drop the duplicates.
+     *
+     * <p>The scans return the messages of a row in the order in which they were put, but a pushed message
+     * could overtake an older message of its row which was not pushed and is not yet scanned. Therefore, the
+     * pushed message is only queued if the row has no older message which still needs to be processed by one
+     * of the subscriptions. Otherwise it is left to the scans, which find it after the older message.
+     */
+    private void queuePushedMessage(RowLogMessage message) {
+        if (stop)
+            return;
+
+        // With a minimal process delay, messages are not processed right away anyway
+        if (rowLogConfig.getMinimalProcessDelay() > 0) {
+            notifyProcessorNonDelayed();
+            return;
+        }
+
+        Collection<SubscriptionThread> threads;
+        synchronized (subscriptionThreads) {
+            threads = new ArrayList<SubscriptionThread>(subscriptionThreads.values());
+        }
+        if (threads.isEmpty())
+            return;
+
+        boolean inOrder;
+        try {
+            inOrder = !hasOlderOpenMessage(message, threads);
+        } catch (RowLogException e) {
+            log.debug("Error checking the open messages of a pushed message, leaving it to the scans", e);
+            inOrder = false;
+        }
+
+        for (SubscriptionThread subscriptionThread : threads) {
+            if (inOrder) {
+                subscriptionThread.messagePushed(message);
+            } else {
+                subscriptionThread.metrics.outOfOrderPushedMessages.inc();
+                subscriptionThread.wakeup();
+            }
+        }
+    }
+
+    private boolean hasOlderOpenMessage(RowLogMessage message, Collection<SubscriptionThread> threads)
+            throws RowLogException {
+        String[] subscriptionIds = new String[threads.size()];
+        int i = 0;
+        for (SubscriptionThread subscriptionThread : threads) {
+            subscriptionIds[i++] = subscriptionThread.getSubscription().getId();
+        }
+
+        for (RowLogMessage openMessage : rowLog.getMessages(message.getRowKey(), subscriptionIds)) {
+            if (openMessage.getSeqNr() < message.getSeqNr()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private synchronized void notifyProcessorNonDelayed() {
         Collection<SubscriptionThread> threadsToWakeup;
         synchronized (subscriptionThreads) {
@@ -324,6 +465,10 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
         private final RowLogSubscription subscription;
         private boolean firstRun = true;
         private final int scanBatchPerShard;
+        private final int minScanBatchPerShard;
+        private final int maxScanBatchPerShard;
+        // The adapted batch size of each shard, only accessed by this thread
+        private final Map<String, Integer> shardBatchSizes = new HashMap<String, Integer>();
 
         public SubscriptionThread(RowLogSubscription subscription) {
             super(new ThreadGroup("RowLogProcessor"), "Row log SubscriptionThread for " + subscription.getId());
@@ -337,8 +482,15 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
             this.scanBatchPerShard = scanBatchPerShard;
             log.info("RowLog scan batch size (on each shard/split): " + scanBatchPerShard);
 
-            messagesWorkQueue = new MessagesWorkQueue(settings.getMessagesWorkQueueSize());
+            // The batch size of each shard adapts to the number of messages its recent scans returned, within
+            // these bounds: a shard with a backlog may grow up to the batch size of the whole table.
+            this.minScanBatchPerShard = Math.max(1, scanBatchPerShard / 8);
+            this.maxScanBatchPerShard = Math.max(scanBatchPerShard, settings.getScanBatchSize());
+
+            messagesWorkQueue = new MessagesWorkQueue(settings.getMessagesWorkQueueSize(),
+                    settings.getMaxCoalescedMessages());
             log.info("RowLog messages work queue size: " + settings.getMessagesWorkQueueSize());
+            log.info("RowLog max coalesced messages: " + settings.getMaxCoalescedMessages());
 
             switch (subscription.getType()) {
                 case VM:
@@ -364,6 +516,15 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
         public RowLogSubscription getSubscription() {
             return subscription;
         }
+
+        public void messagePushed(RowLogMessage message) {
+            if (messagesWorkQueue.tryOffer(message)) {
+                metrics.pushedMessages.inc();
+            } else {
+                // The queue is full, this subscription is behind anyway: wake up the scan to catch up
+                wakeup();
+            }
+        }
         
         public synchronized void wakeup() {
             metrics.wakeups.inc();
@@ -401,67 +562,90 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
 
                         long tsBeforeGetMessages = System.currentTimeMillis();
 
-                        // Scan in parallel over the different regions
-                        // Ideally, we would figure out on what servers what regions are deployed and then do the
-                        // requests such that we touch the maximum number of different servers. For now, we keep
-                        // it simple and assume the requests will be distributed enough by chance.
-                        final int batchSize = scanFirstMessageOnly ? 1 : scanBatchPerShard;
-                        List<RowLogMessage> messages = new ArrayList<RowLogMessage>();
-                        int maxMessagesFromOneShard = 0;
-                        List<Future<List<RowLogMessage>>> scanFutures = new ArrayList<Future<List<RowLogMessage>>>();
-                        final Long currentMinimalTimestamp = minimalTimestamp;
-                        for (final RowLogShard shard : rowLog.getShards()) {
-                            try {
-                                scanFutures.add(globalQScanExecutor.submit(new Callable<List<RowLogMessage>>() {
-                                    @Override
-                                    public List<RowLogMessage> call() throws Exception {
-                                        return shard.next(subscriptionId, currentMinimalTimestamp, batchSize);
-                                    }
-                                }));
-                            } catch (RejectedExecutionException e) {
-                                // The only reason this could occur is because we're shutting down, since there
-                                // is no limit on the size of the queue
-                                log.info("Got RejectedExecutionException", e);
-                                break;
+                        // Scan in parallel over the different regions. The shards are grouped by the region server
+                        // hosting them, and only a limited number of scans is outstanding against each server at
+                        // a time: the first scans are spread over as many different servers as possible, and each
+                        // time a scan completes, the next shard of the same server is scanned.
+                        final boolean singleMessageScan = scanFirstMessageOnly;
+                        CompletionService<ShardScan> scans = new ExecutorCompletionService<ShardScan>(globalQScanExecutor);
+                        List<LinkedList<RowLogShard>> shardsByServer =
+                                shardScanScheduler.groupByServer(rowLog.getShards());
+                        int pendingScans = 0;
+                        for (int i = 0; i < shardScanScheduler.getMaxScansPerServer(); i++) {
+                            for (int server = 0; server < shardsByServer.size(); server++) {
+                                if (!shardsByServer.get(server).isEmpty()
+                                        && submitScan(scans, shardsByServer, server, minimalTimestamp, singleMessageScan)) {
+                                    pendingScans++;
+                                }
                             }
                         }
 
-                        for (Future<List<RowLogMessage>> future : scanFutures) {
-                            List<RowLogMessage> shardMessages = future.get();
-                            messages.addAll(shardMessages);
-                            if (shardMessages.size() > maxMessagesFromOneShard) {
-                                 maxMessagesFromOneShard = shardMessages.size();
+                        // The messages from the different shards are merged by timestamp, and fed to the work
+                        // queue while the scans on other shards are still running. All scans are always waited
+                        // for, since the minimal timestamp for the next scan depends on all of them.
+                        ShardMessagesMerger merger = new ShardMessagesMerger(rowLog.getShards().size());
+                        int messageCount = 0;
+                        boolean fullBatch = false;
+                        Long firstMessageTimestamp = null;
+                        boolean offering = true;
+                        while (pendingScans > 0 || (offering && merger.hasNext())) {
+                            // Only block on the scans when there is nothing to offer
+                            Future<ShardScan> completedScan =
+                                    offering && merger.hasNext() ? scans.poll() : scans.take();
+                            while (completedScan != null) {
+                                ShardScan scan = completedScan.get();
+                                pendingScans--;
+                                if (!shardsByServer.get(scan.server).isEmpty()
+                                        && submitScan(scans, shardsByServer, scan.server, minimalTimestamp,
+                                        singleMessageScan)) {
+                                    pendingScans++;
+                                }
+
+                                List<RowLogMessage> shardMessages = scan.messages;
+                                merger.add(shardMessages);
+                                messageCount += shardMessages.size();
+                                if (!singleMessageScan) {
+                                    if (shardMessages.size() >= scan.batchSize) {
+                                        fullBatch = true;
+                                    }
+                                    adaptBatchSize(scan);
+                                }
+                                if (!shardMessages.isEmpty() && (firstMessageTimestamp == null
+                                        || shardMessages.get(0).getTimestamp() < firstMessageTimestamp)) {
+                                    firstMessageTimestamp = shardMessages.get(0).getTimestamp();
+                                }
+                                if (pendingScans == 0) {
+                                    metrics.scanDuration.inc(System.currentTimeMillis() - tsBeforeGetMessages);
+                                }
+                                completedScan = pendingScans > 0 ? scans.poll() : null;
                             }
-                        }
 
-                        // Sort the messages from the different shards by timestamp
-                        // TODO this could be improved, knowing that the lists from shard.next() are already sorted
-                        Collections.sort(messages, new Comparator<RowLogMessage>() {
-                            @Override
-                            public int compare(RowLogMessage o1, RowLogMessage o2) {
-                                return ComparisonChain.start()
-                                        .compare(o1.getTimestamp(), o2.getTimestamp())
-                                        .compare(o1.getRowKey(), o2.getRowKey(), Bytes.BYTES_RAWCOMPARATOR)
-                                        .compare(o1.getSeqNr(), o2.getSeqNr())
-                                        .result();
+                            if (stopRequested) {
+                                // Check if not stopped because HBase hides thread interruptions
+                                return;
                             }
-                        });
 
-                        metrics.scanDuration.inc(System.currentTimeMillis() - tsBeforeGetMessages);
+                            if (offering && merger.hasNext()) {
+                                RowLogMessage message = merger.next();
+                                if (checkMinimalProcessDelay(message)) {
+                                    scanFirstMessageOnly = true;
+                                    // Rescan the messages since they might have been processed in the meanwhile
+                                    offering = false;
+                                } else {
+                                    scanFirstMessageOnly = false;
+                                    messagesWorkQueue.offer(message);
+                                }
+                            }
+                        }
 
                         if (log.isDebugEnabled()) {
                             log.debug(String.format("[%1$s - %2$s] Scanned with minimal timestamp of %3$s, got %4$s messages.",
-                                    rowLog.getId(), subscriptionId, minimalTimestamp, messages.size()));
-                        }
-
-                        if (stopRequested) {
-                            // Check if not stopped because HBase hides thread interruptions
-                            return;
+                                    rowLog.getId(), subscriptionId, minimalTimestamp, messageCount));
                         }
 
                         if (firstRun) {
                             firstRun = false;
-                            if (messages.isEmpty()) {
+                            if (messageCount == 0) {
                                 // If on startup of this processor, we have no messages, we initialize the
                                 // minimalTimestamp manually so that we would not always scan from the start
                                 // of the table.
@@ -474,22 +658,9 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
                             }
                         }
 
-                        metrics.messagesPerScan.inc(messages != null ? messages.size() : 0);
-						if (messages != null && !messages.isEmpty()) {
-						    minimalTimestamp = messages.get(0).getTimestamp() - settings.getMsgTimestampMargin();
-                            for (RowLogMessage message : messages) {
-                                if (stopRequested)
-                                    return;
-
-                                if (checkMinimalProcessDelay(message)) {
-                                    scanFirstMessageOnly = true;
-                                	break; // Rescan the messages since they might have been processed in the meanwhile
-                                } else {
-                                    scanFirstMessageOnly = false;
-                                }
-
-                                messagesWorkQueue.offer(message);
-                            }
+                        metrics.messagesPerScan.inc(messageCount);
+                        if (firstMessageTimestamp != null) {
+                            minimalTimestamp = firstMessageTimestamp - settings.getMsgTimestampMargin();
                         }
 
                         // If we had a full batch of messages, we will immediately request the next batch, without
@@ -497,7 +668,7 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
                         // scanning for messages.
                         // Also: the minimalProcessDelay setting is not taken into account: as it currently is,
                         // this is only relevant for the WAL, which does not make use of the wake-up signal.
-                        if (maxMessagesFromOneShard < scanBatchPerShard && lastWakeup < tsBeforeGetMessages) {
+                        if (!fullBatch && lastWakeup < tsBeforeGetMessages) {
                             synchronized (this) {
                                 // The timeout covers two cases:
                                 //   (1) a safety fallback, in case a wake-up got lost or so
@@ -519,6 +690,8 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
                         if (Thread.currentThread().isInterrupted())
                             return;
                         log.error("Error in subscription thread for " + subscriptionId, t);
+                        // A failing scan is often due to a region which moved
+                        shardScanScheduler.invalidateLocations();
                     }
                 }
             } finally {
@@ -526,6 +699,56 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
             }
         }
 
+        /**
+         * Submits the scan of the next shard hosted by the given server.
+         *
+         * @return false if the scan could not be submitted, in which case no further scans should be submitted
+         */
+        private boolean submitScan(CompletionService<ShardScan> scans, List<LinkedList<RowLogShard>> shardsByServer,
+                final int server, final Long minimalTimestamp, boolean singleMessageScan) {
+            final RowLogShard shard = shardsByServer.get(server).removeFirst();
+            final int batchSize = singleMessageScan ? 1 : getBatchSize(shard);
+            final String subscriptionId = subscription.getId();
+            try {
+                scans.submit(new Callable<ShardScan>() {
+                    @Override
+                    public ShardScan call() throws Exception {
+                        return new ShardScan(shard, server, batchSize,
+                                shard.next(subscriptionId, minimalTimestamp, batchSize));
+                    }
+                });
+                return true;
+            } catch (RejectedExecutionException e) {
+                // The only reason this could occur is because we're shutting down, since there
+                // is no limit on the size of the queue
+                log.info("Got RejectedExecutionException", e);
+                for (LinkedList<RowLogShard> serverShards : shardsByServer) {
+                    serverShards.clear();
+                }
+                return false;
+            }
+        }
+
+        private int getBatchSize(RowLogShard shard) {
+            Integer batchSize = shardBatchSizes.get(shard.getId());
+            return batchSize != null ? batchSize : scanBatchPerShard;
+        }
+
+        /**
+         * Grows the batch size of a shard which filled its batch, and shrinks it for a shard which returned
+         * only few messages, so that the scans go where the messages are.
+         */
+        private void adaptBatchSize(ShardScan scan) {
+            int batchSize = scan.batchSize;
+            int received = scan.messages.size();
+            if (received >= batchSize) {
+                batchSize = Math.min(batchSize * 2, maxScanBatchPerShard);
+            } else if (received < batchSize / 4) {
+                batchSize = Math.max(batchSize / 2, minScanBatchPerShard);
+            }
+            shardBatchSizes.put(scan.shard.getId(), batchSize);
+        }
+
         /**
          * Check if the message is old enough to be processed. If not, wait
          * until it is. Any other messages that might be in the queue to be
@@ -549,6 +772,20 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
         }
     }
     
+    private static class ShardScan {
+        private final RowLogShard shard;
+        private final int server;
+        private final int batchSize;
+        private final List<RowLogMessage> messages;
+
+        ShardScan(RowLogShard shard, int server, int batchSize, List<RowLogMessage> messages) {
+            this.shard = shard;
+            this.server = server;
+            this.batchSize = batchSize;
+            this.messages = messages;
+        }
+    }
+
     @Override
     public void rowLogConfigChanged(RowLogConfig rowLogConfig) {
         this.rowLogConfig = rowLogConfig;
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.lilyproject.rowlog.api.RowLog;
+import org.lilyproject.rowlog.api.RowLogMessage;
+import org.lilyproject.util.concurrent.CustomThreadFactory;
+import org.lilyproject.util.io.Closer;
+
+/**
+ * Accepts the messages pushed by {@link RowLogProcessorPusher}s and hands them to the {@link RowLogProcessorImpl},
+ * so that freshly put messages don't have to wait for a scan of the rowlog shards.
+ *
+ * <p>There are no responses: the messages are also on the shards, if a pushed message is lost or cannot be
+ * queued, it will still be picked up by a later scan.
+ *
+ * <p>The messages are framed the same way as those sent to remote listeners: a length-prefixed frame holding the
+ * timestamp, row key, sequence number and data of the message.
+ */
+public class RowLogProcessorPushServer {
+    private static final int MAX_FRAME_LENGTH = 10 * 1024 * 1024;
+
+    private final Log log = LogFactory.getLog(getClass());
+    private final RowLog rowLog;
+    private final RowLogProcessorImpl processor;
+    private final String hostName;
+    private ServerBootstrap bootstrap;
+    private ChannelGroup allChannels = new DefaultChannelGroup("RowLogProcessorPushServer");
+    private String address;
+
+    public RowLogProcessorPushServer(RowLog rowLog, RowLogProcessorImpl processor, String hostName) {
+        this.rowLog = rowLog;
+        this.processor = processor;
+        this.hostName = hostName;
+    }
+
+    /**
+     * @return the host:port on which the server listens
+     */
+    public String start() {
+        bootstrap = new ServerBootstrap(
+                new NioServerSocketChannelFactory(
+                        Executors.newCachedThreadPool(
+                                new CustomThreadFactory("rowlog-push-" + rowLog.getId() + "-boss",
+                                        new ThreadGroup("RowLogPushBoss"))),
+                        Executors.newCachedThreadPool(
+                                new CustomThreadFactory("rowlog-push-" + rowLog.getId() + "-worker",
+                                        new ThreadGroup("RowLogPush")))));
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = Channels.pipeline();
+                pipeline.addLast("frameDecoder", new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 4));
+                pipeline.addLast("messageHandler", new PushedMessageHandler());
+                return pipeline;
+            }
+        });
+        bootstrap.setOption("child.tcpNoDelay", true);
+        bootstrap.setOption("child.keepAlive", true);
+
+        Channel channel = bootstrap.bind(new InetSocketAddress(hostName, 0));
+        allChannels.add(channel);
+        address = hostName + ":" + ((InetSocketAddress)channel.getLocalAddress()).getPort();
+        return address;
+    }
+
+    public void stop() {
+        allChannels.close().awaitUninterruptibly();
+        if (bootstrap != null) {
+            bootstrap.releaseExternalResources();
+            bootstrap = null;
+        }
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    static ChannelBuffer encode(RowLogMessage message) throws IOException {
+        byte[] rowKey = message.getRowKey();
+        byte[] data = message.getData();
+        int msgLength = 8 + 4 + rowKey.length + 8 + 4; // timestamp + rowkey-length + rowkey + seqnr + data-length + data
+        if (data != null)
+            msgLength = msgLength + data.length;
+        ChannelBuffer channelBuffer = ChannelBuffers.buffer(4 + msgLength);
+        ChannelBufferOutputStream outputStream = new ChannelBufferOutputStream(channelBuffer);
+        try {
+            outputStream.writeInt(msgLength);
+            outputStream.writeLong(message.getTimestamp());
+            outputStream.writeInt(rowKey.length);
+            outputStream.write(rowKey);
+            outputStream.writeLong(message.getSeqNr());
+            if (data != null) {
+                outputStream.writeInt(data.length);
+                outputStream.write(data);
+            } else {
+                outputStream.writeInt(0);
+            }
+        } finally {
+            Closer.close(outputStream);
+        }
+        return channelBuffer;
+    }
+
+    private RowLogMessage decode(ChannelBuffer frame) throws IOException {
+        ChannelBufferInputStream inputStream = new ChannelBufferInputStream(frame);
+        try {
+            long timestamp = inputStream.readLong();
+
+            int rowKeyLength = inputStream.readInt();
+            byte[] rowKey = new byte[rowKeyLength];
+            inputStream.readFully(rowKey, 0, rowKeyLength);
+
+            long seqnr = inputStream.readLong();
+
+            int dataLength = inputStream.readInt();
+            byte[] data = null;
+            if (dataLength > 0) {
+                data = new byte[dataLength];
+                inputStream.readFully(data, 0, dataLength);
+            }
+            return new RowLogMessageImpl(timestamp, rowKey, seqnr, data, rowLog);
+        } finally {
+            Closer.close(inputStream);
+        }
+    }
+
+    private class PushedMessageHandler extends SimpleChannelUpstreamHandler {
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            processor.messagePushed(decode((ChannelBuffer)e.getMessage()));
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+            // The pusher will reconnect, and the messages are still picked up by the scans
+            log.debug("Exception in handler for pushed rowlog messages, closing channel", e.getCause());
+            e.getChannel().close();
+        }
+
+        @Override
+        public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            allChannels.add(e.getChannel()); // Put the channel in the channel group so that it will be closed upon shutdown
+            super.channelOpen(ctx, e);
+        }
+    }
+}
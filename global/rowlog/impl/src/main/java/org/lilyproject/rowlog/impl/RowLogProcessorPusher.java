@@ -0,0 +1,218 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.zookeeper.KeeperException;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.lilyproject.rowlog.api.RowLogConfigurationManager;
+import org.lilyproject.rowlog.api.RowLogMessage;
+import org.lilyproject.util.concurrent.CustomThreadFactory;
+
+/**
+ * Pushes freshly put messages to the processor of the rowlog, if that processor accepts pushed messages (see
+ * {@link RowLogProcessorPushServer}).
+ *
+ * <p>Pushing is best effort: the messages are also put on the rowlog shards, where the processor will find
+ * them anyway. Pushing never blocks the caller: the connection to the processor is set up in the background,
+ * until it is available {@link #push} returns false so that the caller can fall back to notifying the processor.
+ * Likewise, when the processor does not keep up and the channel is not writable, the messages are dropped
+ * rather than buffered, see {@link #getDroppedCount}.
+ *
+ * <p>The processor only queues a pushed message if no older message of the same row still needs to be
+ * processed, see {@link RowLogProcessorImpl#queuePushedMessage}, so that pushing can't change the order in which
+ * the messages of a row are processed.
+ */
+public class RowLogProcessorPusher {
+    /**
+     * Minimal delay between two lookups of the processor address, when there is no connection.
+     */
+    private static final long CONNECT_INTERVAL = 10000L;
+
+    private final RowLogConfigurationManager rowLogConfigurationManager;
+    private final String rowLogId;
+    private ClientBootstrap bootstrap;
+    private volatile Channel channel;
+    private ChannelFuture connectFuture;
+    private long lastConnectAttempt;
+    private boolean closed = false;
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private Log log = LogFactory.getLog(getClass());
+
+    public RowLogProcessorPusher(RowLogConfigurationManager rowLogConfigurationManager, String rowLogId) {
+        this.rowLogConfigurationManager = rowLogConfigurationManager;
+        this.rowLogId = rowLogId;
+    }
+
+    /**
+     * @return true if the message was sent to the processor
+     */
+    public boolean push(RowLogMessage message) throws InterruptedException {
+        Channel channel = getChannel();
+        if (channel == null)
+            return false;
+
+        if (!write(channel, message)) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the messages were sent to the processor
+     */
+    public boolean push(List<RowLogMessage> messages) throws InterruptedException {
+        Channel channel = getChannel();
+        if (channel == null)
+            return false;
+
+        for (int i = 0; i < messages.size(); i++) {
+            if (!write(channel, messages.get(i))) {
+                droppedCount.addAndGet(messages.size() - i);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The number of messages which were not pushed because the channel to the processor was not writable or
+     * failed. These are only picked up by a scan of the processor.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    private boolean write(Channel channel, RowLogMessage message) {
+        if (!channel.isWritable()) {
+            // The processor does not keep up, it will find the message on the shards
+            return false;
+        }
+        try {
+            channel.write(RowLogProcessorPushServer.encode(message)).addListener(CLOSE_ON_FAILURE);
+            return true;
+        } catch (Exception e) {
+            log.debug("Error pushing message to the processor of rowlog " + rowLogId, e);
+            channel.close();
+            return false;
+        }
+    }
+
+    private synchronized Channel getChannel() throws InterruptedException {
+        if (channel != null && channel.isConnected())
+            return channel;
+        channel = null;
+
+        if (closed || (connectFuture != null && !connectFuture.isDone()))
+            return null;
+
+        long now = System.currentTimeMillis();
+        if (now - lastConnectAttempt < CONNECT_INTERVAL)
+            return null;
+        lastConnectAttempt = now;
+
+        String address;
+        try {
+            address = rowLogConfigurationManager.getProcessorPushAddress(rowLogId);
+        } catch (KeeperException e) {
+            log.debug("Error looking up the push address of the processor of rowlog " + rowLogId, e);
+            return null;
+        }
+        if (address == null)
+            return null;
+
+        String[] hostAndPort = address.split(":");
+        connectFuture = getBootstrap().connect(new InetSocketAddress(hostAndPort[0], Integer.valueOf(hostAndPort[1])));
+        connectFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    channel = future.getChannel();
+                } else {
+                    log.debug("Failed to connect to the processor of rowlog " + rowLogId, future.getCause());
+                }
+            }
+        });
+        return null;
+    }
+
+    private ClientBootstrap getBootstrap() {
+        if (bootstrap == null) {
+            bootstrap = new ClientBootstrap(new NioClientSocketChannelFactory(
+                    Executors.newCachedThreadPool(
+                            new CustomThreadFactory("rowlog-pusher-" + rowLogId + "-boss", null, true)),
+                    Executors.newCachedThreadPool(
+                            new CustomThreadFactory("rowlog-pusher-" + rowLogId + "-worker", null, true))));
+            bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+                @Override
+                public ChannelPipeline getPipeline() throws Exception {
+                    return Channels.pipeline(new SimpleChannelUpstreamHandler() {
+                        @Override
+                        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+                            log.debug("Error on channel to the processor of rowlog " + rowLogId, e.getCause());
+                            e.getChannel().close();
+                        }
+                    });
+                }
+            });
+            bootstrap.setOption("tcpNoDelay", true);
+            bootstrap.setOption("keepAlive", true);
+        }
+        return bootstrap;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        if (connectFuture != null) {
+            connectFuture.getChannel().close().awaitUninterruptibly();
+        }
+        if (channel != null) {
+            channel.close().awaitUninterruptibly();
+            channel = null;
+        }
+        if (bootstrap != null) {
+            bootstrap.releaseExternalResources();
+            bootstrap = null;
+        }
+    }
+
+    private static final ChannelFutureListener CLOSE_ON_FAILURE = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (!future.isSuccess()) {
+                future.getChannel().close();
+            }
+        }
+    };
+}
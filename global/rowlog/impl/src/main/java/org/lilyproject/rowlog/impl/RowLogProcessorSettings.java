@@ -26,6 +26,12 @@ public class RowLogProcessorSettings {
     
     private int messagesWorkQueueSize = 1000;
 
+    private int maxScansPerRegionServer = 2;
+
+    private String pushHostName = null;
+
+    private int maxCoalescedMessages = 1;
+
     public int getScanThreadCount() {
         return scanThreadCount;
     }
@@ -79,4 +85,42 @@ public class RowLogProcessorSettings {
     public void setMessagesWorkQueueSize(int messagesWorkQueueSize) {
         this.messagesWorkQueueSize = messagesWorkQueueSize;
     }
+
+    public int getMaxScansPerRegionServer() {
+        return maxScansPerRegionServer;
+    }
+
+    /**
+     * The maximum number of concurrent scans a subscription does against one region server. The shards
+     * hosted by the same region server are scanned one after the other beyond this number, so that a round
+     * of scans touches as many different region servers as possible.
+     */
+    public void setMaxScansPerRegionServer(int maxScansPerRegionServer) {
+        this.maxScansPerRegionServer = maxScansPerRegionServer;
+    }
+
+    public String getPushHostName() {
+        return pushHostName;
+    }
+
+    /**
+     * The host name on which the processor accepts messages pushed by the rowlog right after they have been
+     * put. When null (the default), the processor only finds new messages by scanning the rowlog shards.
+     */
+    public void setPushHostName(String pushHostName) {
+        this.pushHostName = pushHostName;
+    }
+
+    public int getMaxCoalescedMessages() {
+        return maxCoalescedMessages;
+    }
+
+    /**
+     * The maximum number of pending messages of the same row which are handed to a listener at once. Listeners
+     * which implement {@link org.lilyproject.rowlog.api.CoalescingRowLogMessageListener} can then process their
+     * combined effect, other listeners still get the messages one by one. The default of 1 disables coalescing.
+     */
+    public void setMaxCoalescedMessages(int maxCoalescedMessages) {
+        this.maxCoalescedMessages = maxCoalescedMessages;
+    }
 }
@@ -17,6 +17,7 @@ package org.lilyproject.rowlog.impl;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.hadoop.hbase.client.*;
@@ -34,6 +35,7 @@ public class RowLogShardImpl implements RowLogShard {
     public static final byte[] MESSAGES_CF = Bytes.toBytes("messages");
     private static final byte[] MESSAGE_COLUMN = Bytes.toBytes("msg");
     private HTableInterface table;
+    private final RowLogShardPutBuffer putBuffer;
     private final RowLog rowLog;
     private final String id;
     private byte[] rowKeyPrefix;
@@ -45,9 +47,19 @@ public class RowLogShardImpl implements RowLogShard {
 
     public RowLogShardImpl(String id, byte[] rowKeyPrefix, HTableInterface table, RowLog rowLog, int deleteBufferSize)
             throws IOException {
+        this(id, rowKeyPrefix, table, rowLog, deleteBufferSize, new RowLogShardPutBuffer(table, 1, 0));
+    }
+
+    /**
+     * @param putBuffer the buffer through which the messages are put on the table, can be shared with the other
+     *                  shards on the same table
+     */
+    public RowLogShardImpl(String id, byte[] rowKeyPrefix, HTableInterface table, RowLog rowLog, int deleteBufferSize,
+            RowLogShardPutBuffer putBuffer) throws IOException {
         this.id = id;
         this.rowKeyPrefix = rowKeyPrefix;
         this.table = table;
+        this.putBuffer = putBuffer;
         this.rowLog = rowLog;
         this.deleteBufferSize = deleteBufferSize;
 
@@ -55,6 +67,24 @@ public class RowLogShardImpl implements RowLogShard {
         this.lastDelete = System.currentTimeMillis();
     }
 
+    /**
+     * The name of the HBase table in which this shard stores its messages.
+     */
+    public byte[] getTableName() {
+        return table.getTableName();
+    }
+
+    /**
+     * The row key prefix of this shard, which is also the start key of the table region holding it.
+     */
+    public byte[] getRowKeyPrefix() {
+        return rowKeyPrefix;
+    }
+
+    public RowLogShardPutBuffer getPutBuffer() {
+        return putBuffer;
+    }
+
     @Override
     public String getId() {
         return id;
@@ -62,29 +92,42 @@ public class RowLogShardImpl implements RowLogShard {
 
     @Override
     public void putMessage(RowLogMessage message) throws RowLogException {
+        List<String> subscriptionIds = new ArrayList<String>();
         for (RowLogSubscription subscription : rowLog.getSubscriptions()) {
-            putMessage(message, subscription.getId());
+            subscriptionIds.add(subscription.getId());
         }
+        putMessage(message, subscriptionIds);
     }
 
     @Override
     public void putMessage(RowLogMessage message, List<String> subscriptionIds) throws RowLogException {
-        for (String subscriptionId : subscriptionIds) {
-            putMessage(message, subscriptionId);
-        }
+        putMessages(Collections.singletonList(message), subscriptionIds);
     }
 
-    private void putMessage(RowLogMessage message, String subscriptionId) throws RowLogException {
-        byte[] rowKey = createRowKey(message, subscriptionId);
-        Put put = new Put(rowKey);
-        put.add(MESSAGES_CF, MESSAGE_COLUMN, encodeMessage(message));
+    @Override
+    public void putMessages(List<RowLogMessage> messages, List<String> subscriptionIds) throws RowLogException {
+        List<Put> puts = new ArrayList<Put>(messages.size() * subscriptionIds.size());
+        for (RowLogMessage message : messages) {
+            for (String subscriptionId : subscriptionIds) {
+                puts.add(createPut(message, subscriptionId));
+            }
+        }
         try {
-            table.put(put);
+            putBuffer.put(puts);
         } catch (IOException e) {
-            throw new RowLogException("Failed to put message on RowLogShard", e);
+            throw new RowLogException("Failed to put messages on RowLogShard", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RowLogException("Interrupted while putting messages on RowLogShard", e);
         }
     }
 
+    private Put createPut(RowLogMessage message, String subscriptionId) {
+        Put put = new Put(createRowKey(message, subscriptionId));
+        put.add(MESSAGES_CF, MESSAGE_COLUMN, encodeMessage(message));
+        return put;
+    }
+
     /**
      * Removing a message is batched.
      *
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+
+/**
+ * Combines the puts of messages on the rowlog shards done by concurrent threads into one multi-put on the
+ * rowlog table, so that putting a message costs less than one HBase request.
+ *
+ * <p>This works like a group commit: {@link #put} only returns once the puts have been applied on the table,
+ * hence a message is still on its shards before the put of the message on its row is done. While one thread
+ * applies a batch, the puts of other threads are collected in the next batch. A batch is applied once it holds
+ * maxSize puts, or once its oldest put has waited maxDelay ms. With a maxDelay of 0, the puts only wait for the
+ * batch before them, which gives batching under concurrent load without adding latency otherwise.
+ *
+ * <p>One buffer is shared by all shards on the same table.
+ */
+public class RowLogShardPutBuffer {
+    public static final int DEFAULT_MAX_SIZE = 1000;
+    public static final long DEFAULT_MAX_DELAY = 0;
+
+    private final HTableInterface table;
+    private final int maxSize;
+    private final long maxDelay;
+    private Batch current = new Batch();
+    private boolean flushing = false;
+
+    private final AtomicLong putCount = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /**
+     * @param maxSize the maximum number of puts in one batch, a value of 1 or less disables buffering
+     * @param maxDelay the maximum time (in ms) a put waits for more puts to join its batch
+     */
+    public RowLogShardPutBuffer(HTableInterface table, int maxSize, long maxDelay) {
+        this.table = table;
+        this.maxSize = maxSize;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Applies the puts on the table, together with the puts of other threads, and waits until this is done.
+     *
+     * <p>When interrupted while its batch is not being applied yet, the puts are taken out of the batch, so
+     * that they are not applied. Once the batch is being applied, they will be applied.
+     */
+    public void put(List<Put> puts) throws IOException, InterruptedException {
+        if (puts.isEmpty())
+            return;
+
+        if (maxSize <= 1) {
+            apply(puts);
+            return;
+        }
+
+        Batch batch;
+        synchronized (this) {
+            batch = current;
+            if (batch.puts.isEmpty()) {
+                batch.createdAt = System.currentTimeMillis();
+            }
+            batch.puts.addAll(puts);
+            if (batch.puts.size() >= maxSize) {
+                notifyAll();
+            }
+        }
+
+        waitFor(batch, puts);
+    }
+
+    private void waitFor(Batch batch, List<Put> puts) throws IOException, InterruptedException {
+        boolean flushBatch = false;
+        synchronized (this) {
+            try {
+                while (!batch.done) {
+                    if (batch == current && !flushing) {
+                        long remaining = batch.createdAt + maxDelay - System.currentTimeMillis();
+                        if (batch.puts.size() >= maxSize || remaining <= 0) {
+                            flushing = true;
+                            current = new Batch();
+                            flushBatch = true;
+                            break;
+                        }
+                        wait(remaining);
+                    } else {
+                        // Either our batch is being applied by another thread, or it waits for the previous batch
+                        wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Once a batch is being applied, it is no longer the current batch. Before that, the puts should
+                // not be left behind: with a maxDelay, there might be no other thread to apply them.
+                if (batch == current) {
+                    removePuts(batch, puts);
+                }
+                throw e;
+            }
+        }
+
+        if (flushBatch) {
+            try {
+                apply(batch.puts);
+            } catch (IOException e) {
+                batch.error = e;
+            } catch (Throwable t) {
+                batch.error = new IOException("Error applying rowlog shard puts.", t);
+            } finally {
+                synchronized (this) {
+                    batch.done = true;
+                    flushing = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        if (batch.error != null) {
+            throw batch.error;
+        }
+    }
+
+    private static void removePuts(Batch batch, List<Put> puts) {
+        Set<Put> toRemove = Collections.newSetFromMap(new IdentityHashMap<Put, Boolean>());
+        toRemove.addAll(puts);
+        Iterator<Put> it = batch.puts.iterator();
+        while (it.hasNext()) {
+            if (toRemove.contains(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    private void apply(List<Put> puts) throws IOException {
+        if (puts.size() == 1) {
+            table.put(puts.get(0));
+        } else {
+            table.put(puts);
+        }
+        putCount.addAndGet(puts.size());
+        requestCount.incrementAndGet();
+    }
+
+    /**
+     * The number of puts applied on the rowlog table.
+     */
+    public long getPutCount() {
+        return putCount.get();
+    }
+
+    /**
+     * The number of requests done to apply the puts on the rowlog table.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    private static final class Batch {
+        private final List<Put> puts = new ArrayList<Put>();
+        private long createdAt;
+        private boolean done;
+        private IOException error;
+    }
+}
@@ -26,6 +26,16 @@ import java.io.IOException;
 
 public class RowLogShardSetup {
     public static void setupShards(int shardCount, RowLog rowLog, HBaseTableFactory tableFactory) throws IOException {
+        setupShards(shardCount, rowLog, tableFactory, RowLogShardPutBuffer.DEFAULT_MAX_SIZE,
+                RowLogShardPutBuffer.DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * @param putBufferSize see {@link RowLogShardPutBuffer}
+     * @param putBufferDelay see {@link RowLogShardPutBuffer}
+     */
+    public static void setupShards(int shardCount, RowLog rowLog, HBaseTableFactory tableFactory, int putBufferSize,
+            long putBufferDelay) throws IOException {
 
         if (shardCount < 1 || shardCount > 255) {
             throw new IllegalArgumentException("Number of rowlog shards should be > 0 and < 255, but it is: "
@@ -58,11 +68,14 @@ public class RowLogShardSetup {
         //
         // Create the RowLogShard instances
         //
+        // All shards are on the same table, so their puts are combined in one buffer
+        RowLogShardPutBuffer putBuffer = new RowLogShardPutBuffer(table, putBufferSize, putBufferDelay);
+
         RowLogShardList shards = rowLog.getShardList();
         for (int i = 0; i < shardCount; i++) {
             byte[] rowKeyPrefix = new byte[] { (byte)i };
             shards.addShard(new RowLogShardImpl("shard" + i, rowKeyPrefix, table, rowLog,
-                    rowLog.getConfig().getDeleteBufferSize()));
+                    rowLog.getConfig().getDeleteBufferSize(), putBuffer));
         }
     }
 }
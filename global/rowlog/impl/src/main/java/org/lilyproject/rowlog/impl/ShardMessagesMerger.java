@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.lilyproject.rowlog.api.RowLogMessage;
+
+/**
+ * Merges the message lists returned by {@link org.lilyproject.rowlog.api.RowLogShard#next} for the different
+ * shards into one stream, ordered by timestamp, row key and sequence number.
+ *
+ * <p>Since each shard already returns its messages in this order, this is a k-way merge over a heap holding one
+ * cursor per shard, rather than a sort of all messages together.
+ *
+ * <p>Shard lists can be added while the merge is in progress, so that the messages of the shards whose scan
+ * has completed can already be consumed while other scans are still running. The messages of one row always
+ * live on the same shard, so this never changes the order of the messages within a row.
+ *
+ * <p>This class is not thread safe.
+ */
+public class ShardMessagesMerger {
+    private final PriorityQueue<Cursor> heap;
+
+    public static final Comparator<RowLogMessage> MESSAGE_COMPARATOR = new Comparator<RowLogMessage>() {
+        @Override
+        public int compare(RowLogMessage o1, RowLogMessage o2) {
+            long ts1 = o1.getTimestamp();
+            long ts2 = o2.getTimestamp();
+            if (ts1 != ts2)
+                return ts1 < ts2 ? -1 : 1;
+
+            int rowCmp = Bytes.compareTo(o1.getRowKey(), o2.getRowKey());
+            if (rowCmp != 0)
+                return rowCmp;
+
+            long seqNr1 = o1.getSeqNr();
+            long seqNr2 = o2.getSeqNr();
+            return seqNr1 < seqNr2 ? -1 : (seqNr1 == seqNr2 ? 0 : 1);
+        }
+    };
+
+    /**
+     * @param expectedShards the number of shard lists that will be added, used to size the heap
+     */
+    public ShardMessagesMerger(int expectedShards) {
+        this.heap = new PriorityQueue<Cursor>(Math.max(expectedShards, 1));
+    }
+
+    /**
+     * Adds the (sorted) messages of one shard to the merge.
+     */
+    public void add(List<RowLogMessage> shardMessages) {
+        if (!shardMessages.isEmpty()) {
+            heap.add(new Cursor(shardMessages));
+        }
+    }
+
+    public boolean hasNext() {
+        return !heap.isEmpty();
+    }
+
+    public RowLogMessage next() {
+        Cursor cursor = heap.poll();
+        if (cursor == null)
+            throw new NoSuchElementException();
+
+        RowLogMessage message = cursor.current;
+        if (cursor.advance()) {
+            heap.add(cursor);
+        }
+        return message;
+    }
+
+    private static final class Cursor implements Comparable<Cursor> {
+        private final List<RowLogMessage> messages;
+        private int position;
+        private RowLogMessage current;
+
+        Cursor(List<RowLogMessage> messages) {
+            this.messages = messages;
+            this.current = messages.get(0);
+        }
+
+        boolean advance() {
+            position++;
+            if (position < messages.size()) {
+                current = messages.get(position);
+                return true;
+            }
+            current = null;
+            return false;
+        }
+
+        @Override
+        public int compareTo(Cursor o) {
+            return MESSAGE_COMPARATOR.compare(current, o.current);
+        }
+    }
+}
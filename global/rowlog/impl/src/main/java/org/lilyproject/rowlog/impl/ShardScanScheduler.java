@@ -0,0 +1,150 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HConnectionManager;
+import org.lilyproject.rowlog.api.RowLogShard;
+
+/**
+ * Determines on which region server the region of each {@link RowLogShardImpl} is deployed, so that the
+ * RowLogProcessor can spread its scans over the region servers instead of relying on chance.
+ *
+ * <p>The region locations are cached and looked up again after {@link #LOCATION_REFRESH_INTERVAL}, or after
+ * a call to {@link #invalidateLocations()}, which should be done when a scan fails (which is typically the
+ * case when a region moved).
+ *
+ * <p>The locations are looked up through the HBase connection for the given configuration, which is the same
+ * connection as the one used by the rowlog tables when they are created with that configuration. The scheduler
+ * takes a reference to this connection on the first lookup, and releases it on {@link #stop()}.
+ *
+ * <p>This class is thread safe, it is shared by the subscription threads of a processor.
+ */
+public class ShardScanScheduler {
+    public static final long LOCATION_REFRESH_INTERVAL = 60000L;
+
+    private final Configuration hbaseConf;
+    private final int maxScansPerServer;
+    private Map<String, String> serverByShard;
+    private long locationsLoadedAt;
+    private HConnection connection;
+    private boolean stopped;
+
+    private Log log = LogFactory.getLog(getClass());
+
+    /**
+     * @param maxScansPerServer the maximum number of concurrent scans against one region server, on behalf of
+     *                          one subscription
+     */
+    public ShardScanScheduler(Configuration hbaseConf, int maxScansPerServer) {
+        this.hbaseConf = hbaseConf;
+        this.maxScansPerServer = maxScansPerServer < 1 ? 1 : maxScansPerServer;
+    }
+
+    public int getMaxScansPerServer() {
+        return maxScansPerServer;
+    }
+
+    public synchronized void invalidateLocations() {
+        locationsLoadedAt = 0;
+    }
+
+    /**
+     * Releases the HBase connection. Shards are no longer grouped by server after this.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        serverByShard = null;
+        if (connection != null) {
+            connection = null;
+            // Only drops our reference, the connection stays open as long as the rowlog tables use it
+            HConnectionManager.deleteConnection(hbaseConf, false);
+        }
+    }
+
+    /**
+     * Groups the shards by the region server hosting them. Each of the returned lists holds the shards of one
+     * server. Shards whose location is unknown are each put in a group of their own, so that they are never
+     * held back by the per-server limit.
+     */
+    public List<LinkedList<RowLogShard>> groupByServer(Collection<RowLogShard> shards) {
+        Map<String, String> serverByShard = getServerByShard(shards);
+
+        Map<String, LinkedList<RowLogShard>> groups = new LinkedHashMap<String, LinkedList<RowLogShard>>();
+        for (RowLogShard shard : shards) {
+            String server = serverByShard.get(shard.getId());
+            String groupKey = server != null ? server : "shard:" + shard.getId();
+            LinkedList<RowLogShard> group = groups.get(groupKey);
+            if (group == null) {
+                group = new LinkedList<RowLogShard>();
+                groups.put(groupKey, group);
+            }
+            group.add(shard);
+        }
+
+        return new ArrayList<LinkedList<RowLogShard>>(groups.values());
+    }
+
+    private synchronized Map<String, String> getServerByShard(Collection<RowLogShard> shards) {
+        if (stopped) {
+            return Collections.emptyMap();
+        }
+
+        long now = System.currentTimeMillis();
+        if (serverByShard != null && now - locationsLoadedAt < LOCATION_REFRESH_INTERVAL) {
+            return serverByShard;
+        }
+
+        // When refreshing, bypass the location cache of the HBase client
+        boolean reload = serverByShard != null;
+        Map<String, String> locations = new LinkedHashMap<String, String>();
+        try {
+            if (connection == null) {
+                connection = HConnectionManager.getConnection(hbaseConf);
+            }
+            for (RowLogShard shard : shards) {
+                if (shard instanceof RowLogShardImpl) {
+                    RowLogShardImpl shardImpl = (RowLogShardImpl)shard;
+                    HRegionLocation location = connection.getRegionLocation(shardImpl.getTableName(),
+                            shardImpl.getRowKeyPrefix(), reload);
+                    if (location != null && location.getServerAddress() != null) {
+                        locations.put(shard.getId(), location.getServerAddress().toString());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Not fatal: the shards for which the location is unknown are simply scanned without limit
+            log.warn("Error determining the region servers hosting the rowlog shards", e);
+        }
+
+        serverByShard = locations;
+        locationsLoadedAt = now;
+        return serverByShard;
+    }
+}
@@ -22,98 +22,255 @@ import org.lilyproject.bytes.api.DataOutput;
 import org.lilyproject.bytes.impl.DataInputImpl;
 import org.lilyproject.bytes.impl.DataOutputImpl;
 import org.lilyproject.rowlog.api.ExecutionState;
+import org.lilyproject.rowlog.api.RowLogException;
 
+/**
+ * The execution state of a message, stored for each message on the row of the message.
+ *
+ * <p>Subscriptions are referred to by their ordinal (see {@link SubscriptionOrdinals}) and the done flags
+ * are kept in a bitset. The state works directly on its serialized form: decoding it does not copy anything,
+ * and the serialized form is only copied on the first change after it has been handed out by {@link #toBytes()}
+ * or passed to {@link #fromBytes}.
+ *
+ * <p>The compact serialized form (format version 2) is: the format version byte, the timestamp, the number of
+ * subscriptions as vint, the bitset with the done flags, and the ordinals of the subscriptions as vints.
+ *
+ * <p>Lily versions from before the compact form only read the older form (format version 1), which holds the
+ * subscription ids and a done flag for each of them. Therefore the compact form is only written when asked for,
+ * see the compact argument of the constructors and {@link #fromBytes}, otherwise {@link #toBytes()} converts
+ * the state to the older form. States in either form can be read.
+ */
 public class SubscriptionExecutionState implements ExecutionState {
 
+    private static final byte FORMAT_VERSION_1 = 1;
+    private static final byte FORMAT_VERSION = 2;
+    private static final int TIMESTAMP_OFFSET = 1;
+    private static final int COUNT_OFFSET = TIMESTAMP_OFFSET + 8;
+
+    private final SubscriptionOrdinals subscriptionOrdinals;
+    private final boolean compact;
     private final long timestamp;
-    private final String[] subscriptionIds;
-    private final boolean[] doneFlags;
+    private final int count;
+    private final int flagsOffset;
+    private final int ordinalsOffset;
+    private byte[] data;
+    /**
+     * Indicates data is also referenced from outside this object, and should be copied before changing it.
+     */
+    private boolean shared;
 
-    private static final byte FORMAT_VERSION = 1;
+    /**
+     * @param compact true to write the state in the compact form, false to write it in the older form
+     */
+    public SubscriptionExecutionState(long timestamp, int[] ordinals, SubscriptionOrdinals subscriptionOrdinals,
+            boolean compact) {
+        this(timestamp, ordinals, new boolean[ordinals.length], subscriptionOrdinals, compact);
+    }
 
-    public SubscriptionExecutionState(long timestamp, String[] subscriptionIds) {
+    public SubscriptionExecutionState(long timestamp, int[] ordinals, boolean[] doneFlags,
+            SubscriptionOrdinals subscriptionOrdinals, boolean compact) {
+        DataOutput dataOutput = new DataOutputImpl(COUNT_OFFSET + 5 + (ordinals.length + 7) / 8 + 2 * ordinals.length);
+        // First write a version number to support future evolution of the serialization format
+        dataOutput.writeByte(FORMAT_VERSION);
+        dataOutput.writeLong(timestamp);
+        dataOutput.writeVInt(ordinals.length);
+
+        byte[] flags = new byte[(ordinals.length + 7) / 8];
+        for (int i = 0; i < doneFlags.length; i++) {
+            if (doneFlags[i]) {
+                flags[i >> 3] |= 1 << (i & 7);
+            }
+        }
+        dataOutput.writeBytes(flags);
+
+        for (int ordinal : ordinals) {
+            dataOutput.writeVInt(ordinal);
+        }
+
+        this.subscriptionOrdinals = subscriptionOrdinals;
+        this.compact = compact;
         this.timestamp = timestamp;
-        this.subscriptionIds = subscriptionIds;
-        this.doneFlags = new boolean[subscriptionIds.length];
+        this.count = ordinals.length;
+        this.data = dataOutput.toByteArray();
+        this.flagsOffset = vIntEnd(data, COUNT_OFFSET);
+        this.ordinalsOffset = flagsOffset + flags.length;
     }
-    
-    public SubscriptionExecutionState(long timestamp, String[] subscriptionIds, boolean[] doneFlags) {
-        this.timestamp = timestamp;
-        this.subscriptionIds = subscriptionIds;
-        this.doneFlags = doneFlags;
+
+    private SubscriptionExecutionState(byte[] data, SubscriptionOrdinals subscriptionOrdinals, boolean compact) {
+        this.subscriptionOrdinals = subscriptionOrdinals;
+        this.compact = compact;
+        this.data = data;
+        this.shared = true;
+        this.timestamp = readLong(data, TIMESTAMP_OFFSET);
+        this.count = readVInt(data, COUNT_OFFSET);
+        this.flagsOffset = vIntEnd(data, COUNT_OFFSET);
+        this.ordinalsOffset = flagsOffset + (count + 7) / 8;
     }
 
     public long getTimestamp() {
         return timestamp;
     }
 
-    public String[] getSubscriptionIds() {
+    public String[] getSubscriptionIds() throws RowLogException {
+        String[] subscriptionIds = new String[count];
+        int pos = ordinalsOffset;
+        for (int i = 0; i < count; i++) {
+            int ordinal = readVInt(data, pos);
+            pos = vIntEnd(data, pos);
+            String subscriptionId = subscriptionOrdinals.getSubscriptionId(ordinal);
+            subscriptionIds[i] = subscriptionId != null ? subscriptionId : "#" + ordinal;
+        }
         return subscriptionIds;
     }
 
-    public void setState(String subscriptionId, boolean state) {
-        for (int i = 0; i < subscriptionIds.length; i++) {
-            if (subscriptionIds[i].equals(subscriptionId)) {
-                doneFlags[i] = state;
-                return;
-            }
+    public void setState(String subscriptionId, boolean state) throws RowLogException {
+        int index = indexOf(subscriptionId);
+        if (index == -1) {
+            // We should never get here, since getState() returns true for unknown subscriptions
+            throw new RuntimeException("setState called for undefined subscription: " + subscriptionId);
+        }
+
+        if (getState(index) == state) {
+            return;
         }
-        // We should never get here, since getState() returns true for unknown subscriptions
-        throw new RuntimeException("setState called for undefined subscription: " + subscriptionId);
+
+        if (shared) {
+            data = data.clone();
+            shared = false;
+        }
+        data[flagsOffset + (index >> 3)] ^= 1 << (index & 7);
+    }
+
+    public boolean getState(String subscriptionId) throws RowLogException {
+        int index = indexOf(subscriptionId);
+        return index == -1 || getState(index);
     }
-    
-    public boolean getState(String subscriptionId) {
-        for (int i = 0; i < subscriptionIds.length; i++) {
-            if (subscriptionIds[i].equals(subscriptionId)) {
-                return doneFlags[i];
+
+    private boolean getState(int index) {
+        return (data[flagsOffset + (index >> 3)] & (1 << (index & 7))) != 0;
+    }
+
+    private int indexOf(String subscriptionId) throws RowLogException {
+        int ordinal = subscriptionOrdinals.getOrdinal(subscriptionId);
+        if (ordinal == -1) {
+            return -1;
+        }
+
+        int pos = ordinalsOffset;
+        for (int i = 0; i < count; i++) {
+            if (readVInt(data, pos) == ordinal) {
+                return i;
             }
+            pos = vIntEnd(data, pos);
         }
-        return true;
+        return -1;
     }
 
     public byte[] toBytes() {
+        if (!compact) {
+            return toVersion1Bytes();
+        }
+        shared = true;
+        return data;
+    }
+
+    private byte[] toVersion1Bytes() {
+        String[] subscriptionIds;
+        try {
+            subscriptionIds = getSubscriptionIds();
+        } catch (RowLogException e) {
+            throw new RuntimeException("Failed to look up the subscriptions of the execution state", e);
+        }
+
         DataOutput dataOutput = new DataOutputImpl();
-        // First write a version number to support future evolution of the serialization format
-        dataOutput.writeByte(FORMAT_VERSION);
+        dataOutput.writeByte(FORMAT_VERSION_1);
         dataOutput.writeLong(timestamp);
-        dataOutput.writeVInt(subscriptionIds.length);
-
-        for (int i = 0; i < subscriptionIds.length; i++) {
+        dataOutput.writeVInt(count);
+        for (int i = 0; i < count; i++) {
             dataOutput.writeUTF(subscriptionIds[i]);
-            dataOutput.writeBoolean(doneFlags[i]);
+            dataOutput.writeBoolean(getState(i));
         }
-
         return dataOutput.toByteArray();
     }
 
-    public static SubscriptionExecutionState fromBytes(byte[] bytes) throws IOException {
-        DataInput input = new DataInputImpl(bytes);
-        byte version = input.readByte();
+    /**
+     * @param compact true to write the state in the compact form once it is changed, false to write it in the
+     *                older form, whatever the form it is read from
+     */
+    public static SubscriptionExecutionState fromBytes(byte[] bytes, SubscriptionOrdinals subscriptionOrdinals,
+            boolean compact) throws IOException {
+        byte version = bytes[0];
 
-        if (version != FORMAT_VERSION) {
+        if (version == FORMAT_VERSION) {
+            return new SubscriptionExecutionState(bytes, subscriptionOrdinals, compact);
+        } else if (version == FORMAT_VERSION_1) {
+            return fromVersion1Bytes(bytes, subscriptionOrdinals, compact);
+        } else {
             throw new RuntimeException("Unsupported subscription execution state serialized format version: " +
                     (short)version);
         }
+    }
+
+    private static SubscriptionExecutionState fromVersion1Bytes(byte[] bytes, SubscriptionOrdinals subscriptionOrdinals,
+            boolean compact) throws IOException {
+        DataInput input = new DataInputImpl(bytes);
+        input.readByte();
 
         long timestamp = input.readLong();
         int size = input.readVInt();
 
-        String[] subscriptionIds = new String[size];
+        int[] ordinals = new int[size];
         boolean[] doneFlags = new boolean[size];
 
         for (int i = 0; i < size; i++) {
-            subscriptionIds[i] = input.readUTF();
+            ordinals[i] = subscriptionOrdinals.assignOrdinal(input.readUTF());
             doneFlags[i] = input.readBoolean();
         }
 
-        return new SubscriptionExecutionState(timestamp, subscriptionIds, doneFlags);
+        // The state is kept in the compact form, and only converted back to the older form by toBytes
+        return new SubscriptionExecutionState(timestamp, ordinals, doneFlags, subscriptionOrdinals, compact);
     }
 
     public boolean allDone() {
-        for (int i = 0; i < doneFlags.length; i++) {
-            if (!doneFlags[i])
+        int fullBytes = count >> 3;
+        for (int i = 0; i < fullBytes; i++) {
+            if (data[flagsOffset + i] != (byte)0xFF)
+                return false;
+        }
+        int remaining = count & 7;
+        if (remaining != 0) {
+            int mask = (1 << remaining) - 1;
+            if ((data[flagsOffset + fullBytes] & mask) != mask)
                 return false;
         }
         return true;
     }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            result = (result << 8) | (bytes[i] & 0xFF);
+        }
+        return result;
+    }
+
+    /**
+     * Reads a vint in the format of {@link DataOutput#writeVInt}.
+     */
+    private static int readVInt(byte[] bytes, int offset) {
+        byte b = bytes[offset];
+        int i = b & 0x7F;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            b = bytes[++offset];
+            i |= (b & 0x7F) << shift;
+        }
+        return i;
+    }
+
+    private static int vIntEnd(byte[] bytes, int offset) {
+        while ((bytes[offset] & 0x80) != 0) {
+            offset++;
+        }
+        return offset + 1;
+    }
 }
@@ -38,6 +38,10 @@ public class SubscriptionHandlerMetrics implements Updater {
     public MetricsTimeVaryingInt successRate = new MetricsTimeVaryingInt("success_rate", registry);
     public MetricsTimeVaryingInt failureRate = new MetricsTimeVaryingInt("failure_rate", registry);
     public MetricsTimeVaryingInt ioExceptionRate = new MetricsTimeVaryingInt("ioexception_rate", registry);
+    /**
+     * Messages which were processed together with an earlier message of the same row.
+     */
+    public MetricsTimeVaryingInt coalescedRate = new MetricsTimeVaryingInt("coalesced_rate", registry);
     public MetricsIntValue queueSize = new MetricsIntValue("queueSize", registry);
 
     public SubscriptionHandlerMetrics(String subscriptionId) {
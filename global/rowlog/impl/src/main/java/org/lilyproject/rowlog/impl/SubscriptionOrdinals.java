@@ -0,0 +1,163 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.lilyproject.rowlog.api.RowLogConfigurationManager;
+import org.lilyproject.rowlog.api.RowLogException;
+
+/**
+ * Caches the ordinals of the subscriptions of a rowlog, which the {@link SubscriptionExecutionState} uses to
+ * refer to subscriptions. See {@link RowLogConfigurationManager#getSubscriptionOrdinal}.
+ *
+ * <p>Ordinals never change once assigned, so they can be cached forever. Subscriptions or ordinals which are
+ * not known are remembered as such, so that looking them up again does not go to ZooKeeper. They are forgotten
+ * when a watcher tells that ordinals were assigned to other subscriptions, the ordinals are then reloaded on
+ * the next lookup of an unknown subscription or ordinal.
+ */
+public class SubscriptionOrdinals {
+    private final String rowLogId;
+    private final RowLogConfigurationManager rowLogConfigurationManager;
+    private final ConcurrentMap<String, Integer> ordinals = new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentMap<Integer, String> subscriptionIds = new ConcurrentHashMap<Integer, String>();
+    private final Set<String> unknownSubscriptionIds =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<Integer> unknownOrdinals = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    /**
+     * True if ordinals might have been assigned since the last reload, that is: before the first reload, and
+     * after the watcher has been triggered.
+     */
+    private volatile boolean stale = true;
+    private final Watcher ordinalsWatcher = new Watcher() {
+        @Override
+        public void process(WatchedEvent event) {
+            stale = true;
+        }
+    };
+
+    public SubscriptionOrdinals(String rowLogId, RowLogConfigurationManager rowLogConfigurationManager) {
+        this.rowLogId = rowLogId;
+        this.rowLogConfigurationManager = rowLogConfigurationManager;
+    }
+
+    /**
+     * Returns the ordinals of the given subscriptions, assigning ordinals to subscriptions which don't have one yet.
+     */
+    public int[] assignOrdinals(List<String> subscriptionIds) throws IOException {
+        int[] result = new int[subscriptionIds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = assignOrdinal(subscriptionIds.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the ordinal of the given subscription, assigning one if it doesn't have one yet.
+     */
+    public int assignOrdinal(String subscriptionId) throws IOException {
+        Integer ordinal = ordinals.get(subscriptionId);
+        if (ordinal != null) {
+            return ordinal;
+        }
+
+        try {
+            int assigned = rowLogConfigurationManager.getSubscriptionOrdinal(rowLogId, subscriptionId);
+            put(subscriptionId, assigned);
+            return assigned;
+        } catch (KeeperException e) {
+            throw new IOException("Error assigning an ordinal to subscription " + subscriptionId + " of rowlog " +
+                    rowLogId, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while assigning an ordinal to subscription " + subscriptionId +
+                    " of rowlog " + rowLogId, e);
+        }
+    }
+
+    /**
+     * Returns the ordinal of the given subscription, or -1 if it has none.
+     */
+    public int getOrdinal(String subscriptionId) throws RowLogException {
+        Integer ordinal = ordinals.get(subscriptionId);
+        if (ordinal == null) {
+            if (!stale && unknownSubscriptionIds.contains(subscriptionId)) {
+                return -1;
+            }
+            // The subscription might have been added by another rowlog instance
+            reload();
+            ordinal = ordinals.get(subscriptionId);
+            if (ordinal == null) {
+                unknownSubscriptionIds.add(subscriptionId);
+            }
+        }
+        return ordinal != null ? ordinal : -1;
+    }
+
+    /**
+     * Returns the subscription id with the given ordinal, or null if it is not known.
+     */
+    public String getSubscriptionId(int ordinal) throws RowLogException {
+        String subscriptionId = subscriptionIds.get(ordinal);
+        if (subscriptionId == null) {
+            if (!stale && unknownOrdinals.contains(ordinal)) {
+                return null;
+            }
+            reload();
+            subscriptionId = subscriptionIds.get(ordinal);
+            if (subscriptionId == null) {
+                unknownOrdinals.add(ordinal);
+            }
+        }
+        return subscriptionId;
+    }
+
+    private synchronized void reload() throws RowLogException {
+        // Reset the flag before reading, so that a change during the reload triggers another one
+        stale = false;
+        try {
+            Map<String, Integer> loaded = rowLogConfigurationManager.getSubscriptionOrdinals(rowLogId,
+                    ordinalsWatcher);
+            for (Map.Entry<String, Integer> entry : loaded.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+            unknownSubscriptionIds.clear();
+            unknownOrdinals.clear();
+        } catch (KeeperException e) {
+            stale = true;
+            throw new RowLogException("Error reading the subscription ordinals of rowlog " + rowLogId, e);
+        } catch (InterruptedException e) {
+            stale = true;
+            Thread.currentThread().interrupt();
+            throw new RowLogException("Interrupted while reading the subscription ordinals of rowlog " + rowLogId,
+                    e);
+        }
+    }
+
+    private void put(String subscriptionId, int ordinal) {
+        ordinals.put(subscriptionId, ordinal);
+        subscriptionIds.put(ordinal, subscriptionId);
+    }
+}
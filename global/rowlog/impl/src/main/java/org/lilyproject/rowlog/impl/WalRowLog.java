@@ -56,6 +56,13 @@ public class WalRowLog extends RowLogImpl {
         // Ignore subscriptions and put a message for the 'meta' wal subscription
         getShard(message).putMessage(message, Arrays.asList(WAL_SUBSCRIPTIONID));
     }
+
+    @Override
+    protected void putMessagesOnShards(List<RowLogMessage> messages, List<RowLogSubscription> subscriptions)
+            throws RowLogException {
+        // Ignore subscriptions and put the messages for the 'meta' wal subscription
+        putMessagesOnShardsForSubscriptionIds(messages, Arrays.asList(WAL_SUBSCRIPTIONID));
+    }
     
     /**
      * Requests to remove the message from the shard for individual subscriptions are ignored.
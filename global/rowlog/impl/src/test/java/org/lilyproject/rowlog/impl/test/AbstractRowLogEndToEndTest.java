@@ -186,6 +186,34 @@ public abstract class AbstractRowLogEndToEndTest {
         validationListener.validate();
     }
 
+    @Test(timeout=150000)
+    public void testMultipleMessagesSameRowOneFailing() throws Exception {
+        // With coalescing, the messages of a row are given to the listener together. A listener which is not
+        // coalescing processes them one by one: the messages before the failing one should not be offered again.
+        RowLogProcessorSettings settings = new RowLogProcessorSettings();
+        settings.setMaxCoalescedMessages(10);
+        RowLogProcessor coalescingProcessor = new RowLogProcessorImpl(rowLog, rowLogConfigurationManager,
+                configuration, settings);
+
+        byte[] rowKey = Bytes.toBytes("row4");
+        validationListener.expectMessages(6);
+        for (int i = 0; i < 5; i++) {
+            RowLogMessage message = rowLog.putMessage(rowKey, Bytes.toBytes(i), "aPayload".getBytes(), null);
+            if (i == 2) {
+                validationListener.messagesToFail.add(message);
+                validationListener.expectMessage(message, 2);
+            } else {
+                validationListener.expectMessage(message);
+            }
+        }
+        coalescingProcessor.start();
+        validationListener.waitUntilMessagesConsumed(120000);
+        // Sleep to allow processor to finish message processing (messageDone marking)
+        Thread.sleep(2000);
+        coalescingProcessor.stop();
+        validationListener.validate();
+    }
+
     @Test(timeout=150000)
     public void testMultipleMessagesMultipleRows() throws Exception {
         RowLogMessage message;
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.lilyproject.rowlog.api.RowLogMessage;
+import org.lilyproject.rowlog.impl.MessagesWorkQueue;
+import org.lilyproject.rowlog.impl.RowLogMessageImpl;
+
+public class MessagesWorkQueueTest {
+
+    @Test
+    public void testTakeRowMessages() throws Exception {
+        RowLogMessage a1 = message(1, "a", 1);
+        RowLogMessage b1 = message(2, "b", 1);
+        RowLogMessage a2 = message(3, "a", 2);
+        RowLogMessage a3 = message(4, "a", 3);
+
+        MessagesWorkQueue queue = new MessagesWorkQueue(10, 2);
+        for (RowLogMessage message : Arrays.asList(a1, b1, a2, a3)) {
+            queue.offer(message);
+        }
+
+        List<RowLogMessage> taken = queue.takeRowMessages();
+        assertEquals(Arrays.asList(a1, a2), taken);
+
+        // Row a is being worked on
+        assertEquals(Arrays.asList(b1), queue.takeRowMessages());
+
+        queue.done(taken);
+        assertEquals(Arrays.asList(a3), queue.takeRowMessages());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testNoCoalescing() throws Exception {
+        RowLogMessage a1 = message(1, "a", 1);
+        RowLogMessage a2 = message(2, "a", 2);
+
+        MessagesWorkQueue queue = new MessagesWorkQueue(10);
+        queue.offer(a1);
+        queue.offer(a2);
+
+        List<RowLogMessage> taken = queue.takeRowMessages();
+        assertEquals(Arrays.asList(a1), taken);
+        queue.done(taken);
+        assertEquals(Arrays.asList(a2), queue.takeRowMessages());
+    }
+
+    private RowLogMessage message(long timestamp, String row, long seqNr) {
+        return new RowLogMessageImpl(timestamp, Bytes.toBytes(row), seqNr, null, null);
+    }
+}
@@ -33,7 +33,13 @@ import org.lilyproject.rowlog.api.RowLogObserver;
 import org.lilyproject.rowlog.api.RowLogSubscription;
 import org.lilyproject.rowlog.api.SubscriptionsObserver;
 import org.lilyproject.rowlog.api.RowLogSubscription.Type;
+import org.lilyproject.bytes.api.DataInput;
+import org.lilyproject.bytes.api.DataOutput;
+import org.lilyproject.bytes.impl.DataInputImpl;
+import org.lilyproject.bytes.impl.DataOutputImpl;
 import org.lilyproject.rowlog.impl.RowLogConfigurationManagerImpl;
+import org.lilyproject.rowlog.impl.SubscriptionExecutionState;
+import org.lilyproject.rowlog.impl.SubscriptionOrdinals;
 import org.lilyproject.hadooptestfw.HBaseProxy;
 import org.lilyproject.hadooptestfw.TestHelper;
 import org.lilyproject.util.io.Closer;
@@ -317,6 +323,143 @@ public class RowLogConfigurationManagerTest {
         callBack2.validate();
     }
     
+    @Test
+    public void testProcessorPushAddress() throws Exception {
+        String rowLogId = "testProcessorPushAddressRowLogId";
+
+        RowLogConfigurationManagerImpl rowLogConfigurationManager = new RowLogConfigurationManagerImpl(zooKeeper);
+        rowLogConfigurationManager.addRowLog(rowLogId, new RowLogConfig(true, true, 100L, 500L, 5000L, 120000L, 10));
+
+        Assert.assertNull(rowLogConfigurationManager.getProcessorPushAddress(rowLogId));
+
+        rowLogConfigurationManager.setProcessorPushAddress(rowLogId, "host1:1234");
+        Assert.assertEquals("host1:1234", rowLogConfigurationManager.getProcessorPushAddress(rowLogId));
+
+        // A processor which is started again overwrites its address
+        rowLogConfigurationManager.setProcessorPushAddress(rowLogId, "host1:5678");
+        Assert.assertEquals("host1:5678", rowLogConfigurationManager.getProcessorPushAddress(rowLogId));
+
+        rowLogConfigurationManager.removeProcessorPushAddress(rowLogId);
+        Assert.assertNull(rowLogConfigurationManager.getProcessorPushAddress(rowLogId));
+
+        // Removing again is silently ignored
+        rowLogConfigurationManager.removeProcessorPushAddress(rowLogId);
+        rowLogConfigurationManager.removeRowLog(rowLogId);
+    }
+
+    @Test
+    public void testSubscriptionOrdinals() throws Exception {
+        String rowLogId = "testSubscriptionOrdinalsRowLogId";
+
+        RowLogConfigurationManagerImpl rowLogConfigurationManager = new RowLogConfigurationManagerImpl(zooKeeper);
+        rowLogConfigurationManager.addRowLog(rowLogId, new RowLogConfig(true, true, 100L, 500L, 5000L, 120000L, 10));
+
+        Assert.assertEquals(0, rowLogConfigurationManager.getSubscriptionOrdinal(rowLogId, "Sub1"));
+        Assert.assertEquals(1, rowLogConfigurationManager.getSubscriptionOrdinal(rowLogId, "Sub2"));
+        Assert.assertEquals(0, rowLogConfigurationManager.getSubscriptionOrdinal(rowLogId, "Sub1"));
+
+        // Another manager sees the same ordinals
+        RowLogConfigurationManagerImpl rowLogConfigurationManager2 = new RowLogConfigurationManagerImpl(zooKeeper);
+        Map<String, Integer> ordinals = rowLogConfigurationManager2.getSubscriptionOrdinals(rowLogId);
+        Assert.assertEquals(2, ordinals.size());
+        Assert.assertEquals(Integer.valueOf(1), ordinals.get("Sub2"));
+        Assert.assertEquals(2, rowLogConfigurationManager2.getSubscriptionOrdinal(rowLogId, "Sub3"));
+
+        // Execution states in the compact format refer to the subscriptions by their ordinal
+        SubscriptionOrdinals subscriptionOrdinals = new SubscriptionOrdinals(rowLogId, rowLogConfigurationManager);
+        SubscriptionExecutionState state = new SubscriptionExecutionState(5L,
+                subscriptionOrdinals.assignOrdinals(Arrays.asList("Sub1", "Sub3")), subscriptionOrdinals, true);
+        byte[] stateBytes = state.toBytes();
+        state.setState("Sub3", true);
+        Assert.assertFalse(SubscriptionExecutionState.fromBytes(stateBytes, subscriptionOrdinals, true)
+                .getState("Sub3"));
+
+        state = SubscriptionExecutionState.fromBytes(state.toBytes(), subscriptionOrdinals, true);
+        Assert.assertEquals(5L, state.getTimestamp());
+        Assert.assertArrayEquals(new String[] {"Sub1", "Sub3"}, state.getSubscriptionIds());
+        Assert.assertFalse(state.getState("Sub1"));
+        Assert.assertTrue(state.getState("Sub3"));
+        Assert.assertTrue(state.getState("Sub2"));
+        Assert.assertFalse(state.allDone());
+        state.setState("Sub1", true);
+        Assert.assertTrue(state.allDone());
+
+        // Execution states in the old format, which holds the subscription ids, can still be read
+        DataOutput oldFormat = new DataOutputImpl();
+        oldFormat.writeByte((byte)1);
+        oldFormat.writeLong(7L);
+        oldFormat.writeVInt(2);
+        oldFormat.writeUTF("Sub2");
+        oldFormat.writeBoolean(true);
+        oldFormat.writeUTF("Sub4");
+        oldFormat.writeBoolean(false);
+        state = SubscriptionExecutionState.fromBytes(oldFormat.toByteArray(), subscriptionOrdinals, true);
+        Assert.assertEquals(7L, state.getTimestamp());
+        Assert.assertArrayEquals(new String[] {"Sub2", "Sub4"}, state.getSubscriptionIds());
+        Assert.assertTrue(state.getState("Sub2"));
+        Assert.assertFalse(state.getState("Sub4"));
+        Assert.assertEquals(3, rowLogConfigurationManager.getSubscriptionOrdinal(rowLogId, "Sub4"));
+
+        // Unknown subscriptions are remembered as such, until the watcher tells another ordinal was assigned
+        Assert.assertEquals(-1, subscriptionOrdinals.getOrdinal("Sub5"));
+        Assert.assertEquals(-1, subscriptionOrdinals.getOrdinal("Sub5"));
+        int sub5Ordinal = rowLogConfigurationManager2.getSubscriptionOrdinal(rowLogId, "Sub5");
+        long waitUntil = System.currentTimeMillis() + 10000;
+        while (subscriptionOrdinals.getOrdinal("Sub5") == -1 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(sub5Ordinal, subscriptionOrdinals.getOrdinal("Sub5"));
+        Assert.assertEquals("Sub5", subscriptionOrdinals.getSubscriptionId(sub5Ordinal));
+
+        rowLogConfigurationManager2.shutdown();
+        rowLogConfigurationManager.removeRowLog(rowLogId);
+    }
+
+    @Test
+    public void testExecutionStateFormats() throws Exception {
+        String rowLogId = "testExecutionStateFormatsRowLogId";
+
+        RowLogConfigurationManagerImpl rowLogConfigurationManager = new RowLogConfigurationManagerImpl(zooKeeper);
+        rowLogConfigurationManager.addRowLog(rowLogId, new RowLogConfig(true, true, 100L, 500L, 5000L, 120000L, 10));
+        SubscriptionOrdinals subscriptionOrdinals = new SubscriptionOrdinals(rowLogId, rowLogConfigurationManager);
+        int[] ordinals = subscriptionOrdinals.assignOrdinals(Arrays.asList("Sub1", "Sub2"));
+
+        // Unless the compact format is asked for, the state is written in the old format, as older nodes read it
+        SubscriptionExecutionState state = new SubscriptionExecutionState(5L, ordinals, subscriptionOrdinals, false);
+        state.setState("Sub2", true);
+        DataInput oldFormat = new DataInputImpl(state.toBytes());
+        Assert.assertEquals(1, oldFormat.readByte());
+        Assert.assertEquals(5L, oldFormat.readLong());
+        Assert.assertEquals(2, oldFormat.readVInt());
+        Assert.assertEquals("Sub1", oldFormat.readUTF());
+        Assert.assertFalse(oldFormat.readBoolean());
+        Assert.assertEquals("Sub2", oldFormat.readUTF());
+        Assert.assertTrue(oldFormat.readBoolean());
+
+        // A state read from the old format is written in the compact format only when asked for
+        byte[] oldBytes = state.toBytes();
+        Assert.assertArrayEquals(oldBytes, SubscriptionExecutionState.fromBytes(oldBytes, subscriptionOrdinals, false)
+                .toBytes());
+        byte[] compactBytes = SubscriptionExecutionState.fromBytes(oldBytes, subscriptionOrdinals, true).toBytes();
+        Assert.assertEquals(2, compactBytes[0]);
+        Assert.assertTrue(compactBytes.length < oldBytes.length);
+
+        // Both formats are read, whatever the format that is written
+        for (boolean compact : new boolean[] {false, true}) {
+            state = SubscriptionExecutionState.fromBytes(compactBytes, subscriptionOrdinals, compact);
+            Assert.assertEquals(5L, state.getTimestamp());
+            Assert.assertArrayEquals(new String[] {"Sub1", "Sub2"}, state.getSubscriptionIds());
+            Assert.assertFalse(state.getState("Sub1"));
+            Assert.assertTrue(state.getState("Sub2"));
+        }
+
+        // A state read from the compact format goes back to the old format when the compact format is disabled
+        Assert.assertArrayEquals(oldBytes, SubscriptionExecutionState.fromBytes(compactBytes, subscriptionOrdinals,
+                false).toBytes());
+
+        rowLogConfigurationManager.removeRowLog(rowLogId);
+    }
+
     private class ProcessorNotifyCallBack implements ProcessorNotifyObserver {
         
         private Semaphore semaphore = new Semaphore(0);
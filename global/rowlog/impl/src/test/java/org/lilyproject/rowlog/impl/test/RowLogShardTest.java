@@ -20,10 +20,14 @@ import static java.util.Arrays.asList;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.classextension.EasyMock.createControl;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HTableDescriptor;
@@ -36,11 +40,13 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.lilyproject.rowlog.api.RowLog;
+import org.lilyproject.rowlog.api.RowLogException;
 import org.lilyproject.rowlog.api.RowLogMessage;
 import org.lilyproject.rowlog.api.RowLogSubscription;
 import org.lilyproject.rowlog.api.RowLogSubscription.Type;
 import org.lilyproject.rowlog.impl.RowLogMessageImpl;
 import org.lilyproject.rowlog.impl.RowLogShardImpl;
+import org.lilyproject.rowlog.impl.RowLogShardPutBuffer;
 import org.lilyproject.hadooptestfw.HBaseProxy;
 import org.lilyproject.hadooptestfw.TestHelper;
 import org.lilyproject.util.hbase.HBaseTableFactoryImpl;
@@ -231,4 +237,100 @@ public class RowLogShardTest {
         assertTrue(shard.next(subscriptionId1, batchSize).isEmpty());
         control.verify();
     }
+
+    @Test
+    public void testConcurrentPutsThroughBuffer() throws Exception {
+        final String subscriptionId1 = "Subscription1";
+        final String subscriptionId2 = "Subscription2";
+        control.replay();
+
+        HTableInterface table = createRowLogTable();
+        // The delay is large enough for all threads to join the first batch
+        RowLogShardPutBuffer putBuffer = new RowLogShardPutBuffer(table, 1000, 500);
+        shard = new RowLogShardImpl("TestShard", new byte[0], table, rowLog, batchSize, putBuffer);
+
+        final int threadCount = 10;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final long timestamp = System.currentTimeMillis();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            final RowLogMessageImpl message = new RowLogMessageImpl(timestamp + i, Bytes.toBytes("row" + i), 1L,
+                    null, rowLog);
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        shard.putMessage(message, asList(subscriptionId1, subscriptionId2));
+                    } catch (Throwable t) {
+                        error.set(t);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(error.get());
+        // Each message is put once for each subscription, with much fewer requests than messages
+        assertEquals(2 * threadCount, putBuffer.getPutCount());
+        assertTrue(putBuffer.getRequestCount() < threadCount);
+
+        for (String subscriptionId : asList(subscriptionId1, subscriptionId2)) {
+            List<RowLogMessage> messages = shard.next(subscriptionId, 2 * threadCount);
+            assertEquals(threadCount, messages.size());
+            for (RowLogMessage message : messages) {
+                shard.removeMessage(message, subscriptionId);
+            }
+            assertTrue(shard.next(subscriptionId, batchSize).isEmpty());
+        }
+        control.verify();
+    }
+
+    @Test
+    public void testInterruptedPutThroughBuffer() throws Exception {
+        final String subscriptionId = "Subscription1";
+        control.replay();
+
+        HTableInterface table = createRowLogTable();
+        RowLogShardPutBuffer putBuffer = new RowLogShardPutBuffer(table, 1000, 2000);
+        shard = new RowLogShardImpl("TestShard", new byte[0], table, rowLog, batchSize, putBuffer);
+
+        long timestamp = System.currentTimeMillis();
+        final RowLogMessageImpl message1 = new RowLogMessageImpl(timestamp, Bytes.toBytes("row1"), 1L, null, rowLog);
+        RowLogMessageImpl message2 = new RowLogMessageImpl(timestamp + 1, Bytes.toBytes("row2"), 1L, null, rowLog);
+
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    shard.putMessage(message1, asList(subscriptionId));
+                } catch (Throwable t) {
+                    error.set(t);
+                }
+            }
+        };
+        thread.start();
+        // Interrupt the put while it waits for more puts to join its batch
+        Thread.sleep(500);
+        thread.interrupt();
+        thread.join();
+        assertTrue(String.valueOf(error.get()), error.get() instanceof RowLogException);
+        assertTrue(error.get().getCause() instanceof InterruptedException);
+
+        // The put of the interrupted thread has been taken out of the batch, it is not applied with the next one
+        shard.putMessage(message2, asList(subscriptionId));
+        assertEquals(1, putBuffer.getPutCount());
+        List<RowLogMessage> messages = shard.next(subscriptionId, batchSize);
+        assertEquals(1, messages.size());
+        assertEquals(message2, messages.get(0));
+        shard.removeMessage(message2, subscriptionId);
+        control.verify();
+    }
 }
@@ -25,10 +25,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.easymock.classextension.IMocksControl;
 import org.junit.*;
+import org.lilyproject.rowlock.HBaseRowLocker;
+import org.lilyproject.rowlock.RowLock;
 import org.lilyproject.rowlog.api.*;
 import org.lilyproject.rowlog.api.RowLogSubscription.Type;
 import org.lilyproject.rowlog.impl.RowLogConfigurationManagerImpl;
@@ -145,6 +149,80 @@ public class RowLogTest {
         control.verify();
     }
     
+    @Test
+    public void testCompactExecutionState() throws Exception {
+        shard.putMessage(isA(RowLogMessage.class), eq(subscriptionIds));
+        expectLastCall().times(2);
+        shard.removeMessage(isA(RowLogMessage.class), eq(subscriptionId1));
+        control.replay();
+        rowLog.getShardList().addShard(shard);
+        byte[] rowKey = Bytes.toBytes("row5");
+
+        // By default, the execution state is written in the format older Lily versions read
+        RowLogMessage message1 = rowLog.putMessage(rowKey, null, null, null);
+        assertEquals(1, getExecutionState(message1)[0]);
+
+        ((RowLogImpl)rowLog).setCompactExecutionState(true);
+        RowLogMessage message2 = rowLog.putMessage(rowKey, null, null, null);
+        assertEquals(2, getExecutionState(message2)[0]);
+
+        // Execution states in the old format are still handled
+        assertFalse(rowLog.isMessageDone(message1, subscriptionId1));
+        assertTrue(rowLog.messageDone(message1, subscriptionId1));
+        assertEquals(Arrays.asList(message2), rowLog.getMessages(rowKey, subscriptionId1));
+        control.verify();
+    }
+
+    private byte[] getExecutionState(RowLogMessage message) throws Exception {
+        byte[] qualifier = Bytes.add(new byte[] {1, 2}, Bytes.toBytes(message.getSeqNr()),
+                Bytes.toBytes(message.getTimestamp()));
+        return rowTable.get(new Get(message.getRowKey())).getValue(rowLogColumnFamily, qualifier);
+    }
+
+    @Test
+    public void testMessagesOfDifferentInstancesInPutOrder() throws Exception {
+        // Two rowlog instances, as on two nodes, alternately put messages on the same row under the row lock.
+        // The sequence numbers are taken from the row, so the messages are returned in the order in which they
+        // were put, whatever the timestamps the instances give them.
+        shard.putMessage(isA(RowLogMessage.class), eq(subscriptionIds));
+        expectLastCall().anyTimes();
+        control.replay();
+        rowLog.getShardList().addShard(shard);
+
+        byte[] lockQualifier = Bytes.toBytes("lock");
+        HBaseRowLocker locker1 = new HBaseRowLocker(rowTable, RowLogTableUtil.DATA_COLUMN_FAMILY, lockQualifier, 60000L);
+        HBaseRowLocker locker2 = new HBaseRowLocker(rowTable, RowLogTableUtil.DATA_COLUMN_FAMILY, lockQualifier, 60000L);
+        RowLog rowLog2 = new RowLogImpl(rowLogId, rowTable, rowLogColumnFamily, (byte)1, configurationManager, locker2,
+                new RowLogHashShardRouter());
+        try {
+            rowLog2.getShardList().addShard(shard);
+            AbstractRowLogEndToEndTest.waitForSubscription(rowLog2, subscriptionId1);
+
+            byte[] rowKey = Bytes.toBytes("row4");
+            List<RowLogMessage> putMessages = new ArrayList<RowLogMessage>();
+            for (int i = 0; i < 6; i++) {
+                RowLog instance = i % 2 == 0 ? rowLog : rowLog2;
+                HBaseRowLocker locker = i % 2 == 0 ? locker1 : locker2;
+
+                RowLock lock = locker.lockRow(rowKey, 10000L);
+                assertNotNull(lock);
+                Put put = new Put(rowKey);
+                putMessages.add(instance.putMessage(rowKey, null, null, put));
+                assertTrue(locker.put(put, lock));
+                assertTrue(locker.unlockRow(lock));
+            }
+
+            for (int i = 1; i < putMessages.size(); i++) {
+                assertEquals(putMessages.get(i - 1).getSeqNr() + 1, putMessages.get(i).getSeqNr());
+            }
+            assertEquals(putMessages, rowLog.getMessages(rowKey));
+            assertEquals(putMessages, rowLog2.getMessages(rowKey, subscriptionId1));
+        } finally {
+            Closer.close(rowLog2);
+        }
+        control.verify();
+    }
+    
     @Test
     public void testNoShardsRegistered() throws Exception {
 
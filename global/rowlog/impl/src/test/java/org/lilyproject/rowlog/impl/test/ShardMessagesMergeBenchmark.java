@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ComparisonChain;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.lilyproject.rowlog.api.RowLogMessage;
+import org.lilyproject.rowlog.impl.RowLogMessageImpl;
+import org.lilyproject.rowlog.impl.ShardMessagesMerger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares merging the per-shard scan results of the RowLogProcessor with {@link ShardMessagesMerger} against
+ * sorting all of them together, which is what the processor did before.
+ *
+ * <p>This is not a unit test, run it through its main method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ShardMessagesMergeBenchmark {
+    @Param({"1", "10", "50"})
+    public int shards;
+
+    @Param({"10", "100", "1000"})
+    public int messagesPerShard;
+
+    private List<List<RowLogMessage>> shardMessages;
+
+    private static final Comparator<RowLogMessage> COMPARISON_CHAIN_COMPARATOR = new Comparator<RowLogMessage>() {
+        @Override
+        public int compare(RowLogMessage o1, RowLogMessage o2) {
+            return ComparisonChain.start()
+                    .compare(o1.getTimestamp(), o2.getTimestamp())
+                    .compare(o1.getRowKey(), o2.getRowKey(), Bytes.BYTES_RAWCOMPARATOR)
+                    .compare(o1.getSeqNr(), o2.getSeqNr())
+                    .result();
+        }
+    };
+
+    @Setup
+    public void setup() {
+        Random random = new Random(shards * 31 + messagesPerShard);
+        long now = System.currentTimeMillis();
+        shardMessages = new ArrayList<List<RowLogMessage>>(shards);
+        for (int i = 0; i < shards; i++) {
+            List<RowLogMessage> messages = new ArrayList<RowLogMessage>(messagesPerShard);
+            for (int j = 0; j < messagesPerShard; j++) {
+                byte[] rowKey = Bytes.toBytes(random.nextLong());
+                messages.add(new RowLogMessageImpl(now + random.nextInt(10000), rowKey, 1L, null, null));
+            }
+            // Like the lists returned by RowLogShard.next(), each shard list is sorted
+            Collections.sort(messages, ShardMessagesMerger.MESSAGE_COMPARATOR);
+            shardMessages.add(messages);
+        }
+    }
+
+    @Benchmark
+    public void sortAll(Blackhole blackhole) {
+        List<RowLogMessage> messages = new ArrayList<RowLogMessage>();
+        for (List<RowLogMessage> list : shardMessages) {
+            messages.addAll(list);
+        }
+        Collections.sort(messages, COMPARISON_CHAIN_COMPARATOR);
+        for (RowLogMessage message : messages) {
+            blackhole.consume(message);
+        }
+    }
+
+    @Benchmark
+    public void kWayMerge(Blackhole blackhole) {
+        ShardMessagesMerger merger = new ShardMessagesMerger(shardMessages.size());
+        for (List<RowLogMessage> list : shardMessages) {
+            merger.add(list);
+        }
+        while (merger.hasNext()) {
+            blackhole.consume(merger.next());
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ShardMessagesMergeBenchmark.class.getSimpleName())
+                .forks(1)
+                .build()).run();
+    }
+}
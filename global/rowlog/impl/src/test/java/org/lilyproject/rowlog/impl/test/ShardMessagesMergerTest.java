@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.lilyproject.rowlog.api.RowLogMessage;
+import org.lilyproject.rowlog.impl.RowLogMessageImpl;
+import org.lilyproject.rowlog.impl.ShardMessagesMerger;
+
+public class ShardMessagesMergerTest {
+
+    @Test
+    public void testMerge() {
+        RowLogMessage m1 = message(1, "a", 1);
+        RowLogMessage m2 = message(2, "a", 2);
+        RowLogMessage m3 = message(2, "b", 1);
+        RowLogMessage m4 = message(3, "c", 1);
+        RowLogMessage m5 = message(5, "d", 1);
+
+        ShardMessagesMerger merger = new ShardMessagesMerger(3);
+        merger.add(Arrays.asList(m1, m2, m5));
+        merger.add(Collections.<RowLogMessage>emptyList());
+        merger.add(Arrays.asList(m3, m4));
+
+        List<RowLogMessage> merged = new ArrayList<RowLogMessage>();
+        while (merger.hasNext()) {
+            merged.add(merger.next());
+        }
+
+        assertEquals(Arrays.asList(m1, m2, m3, m4, m5), merged);
+    }
+
+    @Test
+    public void testAddWhileMerging() {
+        RowLogMessage m1 = message(1, "a", 1);
+        RowLogMessage m2 = message(4, "a", 2);
+        RowLogMessage m3 = message(2, "b", 1);
+        RowLogMessage m4 = message(3, "c", 1);
+
+        ShardMessagesMerger merger = new ShardMessagesMerger(2);
+        merger.add(Arrays.asList(m1, m2));
+        assertSame(m1, merger.next());
+
+        // A shard which completes later joins the merge with its remaining order intact
+        merger.add(Arrays.asList(m3, m4));
+        assertSame(m3, merger.next());
+        assertSame(m4, merger.next());
+        assertSame(m2, merger.next());
+        assertFalse(merger.hasNext());
+    }
+
+    private RowLogMessage message(long timestamp, String row, long seqNr) {
+        return new RowLogMessageImpl(timestamp, Bytes.toBytes(row), seqNr, null, null);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lilyproject.hadooptestfw.HBaseProxy;
+import org.lilyproject.hadooptestfw.TestHelper;
+import org.lilyproject.rowlog.api.RowLog;
+import org.lilyproject.rowlog.api.RowLogConfig;
+import org.lilyproject.rowlog.api.RowLogException;
+import org.lilyproject.rowlog.api.RowLogMessage;
+import org.lilyproject.rowlog.api.RowLogProcessor;
+import org.lilyproject.rowlog.api.RowLogShard;
+import org.lilyproject.rowlog.api.RowLogSubscription;
+import org.lilyproject.rowlog.impl.RowLogConfigurationManagerImpl;
+import org.lilyproject.rowlog.impl.RowLogHashShardRouter;
+import org.lilyproject.rowlog.impl.RowLogImpl;
+import org.lilyproject.rowlog.impl.RowLogProcessorImpl;
+import org.lilyproject.rowlog.impl.RowLogProcessorSettings;
+import org.lilyproject.rowlog.impl.RowLogShardImpl;
+import org.lilyproject.rowlog.impl.RowLogShardSetup;
+import org.lilyproject.rowlog.impl.ShardScanScheduler;
+import org.lilyproject.util.hbase.HBaseTableFactoryImpl;
+import org.lilyproject.util.hbase.LocalHTable;
+import org.lilyproject.util.io.Closer;
+import org.lilyproject.util.zookeeper.ZkUtil;
+import org.lilyproject.util.zookeeper.ZooKeeperItf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardScanSchedulerTest {
+    private static final int SHARD_COUNT = 4;
+    private static final String SUBSCRIPTION_ID = "ScanLimitSubscription";
+
+    private static HBaseProxy HBASE_PROXY;
+    private static Configuration configuration;
+    private static ZooKeeperItf zooKeeper;
+    private static RowLogConfigurationManagerImpl rowLogConfigurationManager;
+    private static RowLog rowLog;
+
+    private static final AtomicInteger runningScans = new AtomicInteger();
+    private static final AtomicInteger maxRunningScans = new AtomicInteger();
+    private static final AtomicInteger scans = new AtomicInteger();
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestHelper.setupLogging();
+        HBASE_PROXY = new HBaseProxy();
+        HBASE_PROXY.start();
+        configuration = HBASE_PROXY.getConf();
+        zooKeeper = ZkUtil.connect(HBASE_PROXY.getZkConnectString(), 120000);
+        rowLogConfigurationManager = new RowLogConfigurationManagerImpl(zooKeeper);
+        // A small wakeup timeout, so that the shards are scanned over and over
+        rowLogConfigurationManager.addRowLog("ScanLimitRowLog", new RowLogConfig(true, false, 100L, 0L, 100L, 5000L, 100));
+        rowLog = new RowLogImpl("ScanLimitRowLog", RowLogTableUtil.getRowTable(configuration),
+                RowLogTableUtil.ROWLOG_COLUMN_FAMILY, (byte)1, rowLogConfigurationManager, null,
+                new RowLogHashShardRouter());
+
+        // Creates the pre-split rowlog table, whose shards are then replaced by shards counting the scans
+        RowLogShardSetup.setupShards(SHARD_COUNT, rowLog, new HBaseTableFactoryImpl(configuration));
+        for (RowLogShard shard : new ArrayList<RowLogShard>(rowLog.getShards())) {
+            RowLogShardImpl shardImpl = (RowLogShardImpl)shard;
+            rowLog.getShardList().removeShard(shard);
+            rowLog.getShardList().addShard(new CountingShard(shardImpl.getId(), shardImpl.getRowKeyPrefix(),
+                    new LocalHTable(configuration, shardImpl.getTableName()), rowLog));
+        }
+
+        rowLogConfigurationManager.addSubscription(rowLog.getId(), SUBSCRIPTION_ID, RowLogSubscription.Type.VM, 1);
+        AbstractRowLogEndToEndTest.waitForSubscription(rowLog, SUBSCRIPTION_ID);
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        Closer.close(rowLog);
+        Closer.close(rowLogConfigurationManager);
+        Closer.close(zooKeeper);
+        HBASE_PROXY.stop();
+    }
+
+    @Test
+    public void testGroupByServer() throws Exception {
+        ShardScanScheduler scheduler = new ShardScanScheduler(configuration, 1);
+        try {
+            // The test cluster has one region server, which hosts all shards
+            List<LinkedList<RowLogShard>> groups = scheduler.groupByServer(rowLog.getShards());
+            assertEquals(1, groups.size());
+            assertEquals(rowLog.getShards(), groups.get(0));
+        } finally {
+            scheduler.stop();
+        }
+
+        // Once stopped, the locations are no longer known: each shard is a group of its own
+        assertEquals(SHARD_COUNT, scheduler.groupByServer(rowLog.getShards()).size());
+    }
+
+    @Test(timeout = 150000)
+    public void testScanLimitPerServer() throws Exception {
+        assertMaxRunningScans(1);
+        assertMaxRunningScans(2);
+    }
+
+    private void assertMaxRunningScans(int maxScansPerServer) throws Exception {
+        runningScans.set(0);
+        maxRunningScans.set(0);
+        scans.set(0);
+
+        RowLogProcessorSettings settings = new RowLogProcessorSettings();
+        // Enough threads to scan all shards at once, if it were not for the limit
+        settings.setScanThreadCount(SHARD_COUNT);
+        settings.setMaxScansPerRegionServer(maxScansPerServer);
+        RowLogProcessor processor = new RowLogProcessorImpl(rowLog, rowLogConfigurationManager, configuration,
+                settings);
+        processor.start();
+        try {
+            long waitUntil = System.currentTimeMillis() + 60000;
+            while (scans.get() < 3 * SHARD_COUNT) {
+                assertTrue("Shards were not scanned in time", System.currentTimeMillis() < waitUntil);
+                Thread.sleep(50);
+            }
+        } finally {
+            processor.stop();
+        }
+
+        assertEquals(maxScansPerServer, maxRunningScans.get());
+    }
+
+    /**
+     * Keeps track of the number of scans running at the same time, each scan takes some time.
+     */
+    public static class CountingShard extends RowLogShardImpl {
+        public CountingShard(String id, byte[] rowKeyPrefix, HTableInterface table, RowLog rowLog)
+                throws IOException {
+            super(id, rowKeyPrefix, table, rowLog, 100);
+        }
+
+        @Override
+        public List<RowLogMessage> next(String subscription, Long minimalTimestamp, int batchSize)
+                throws RowLogException {
+            int running = runningScans.incrementAndGet();
+            try {
+                int max = maxRunningScans.get();
+                while (running > max && !maxRunningScans.compareAndSet(max, running)) {
+                    max = maxRunningScans.get();
+                }
+                Thread.sleep(100);
+                return super.next(subscription, minimalTimestamp, batchSize);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Collections.emptyList();
+            } finally {
+                runningScans.decrementAndGet();
+                scans.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.util.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which permits are handed out, by letting the callers of {@link #acquire} wait until
+ * their permits are due. The permits are spread evenly over time, no burst is allowed after a quiet period.
+ *
+ * <p>This class is thread safe, the permits are shared by all threads.
+ */
+public class RateLimiter {
+    private final long nanosPerPermit;
+    private long nextFreeAt = System.nanoTime();
+
+    /**
+     * @param permitsPerSecond a value of 0 or less means no limit
+     */
+    public RateLimiter(double permitsPerSecond) {
+        this.nanosPerPermit = permitsPerSecond > 0 ? (long)(TimeUnit.SECONDS.toNanos(1) / permitsPerSecond) : 0;
+    }
+
+    /**
+     * Waits until the given number of permits can be handed out.
+     *
+     * @return the time waited, in ms
+     */
+    public long acquire(int permits) throws InterruptedException {
+        if (nanosPerPermit == 0) {
+            return 0;
+        }
+
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (nextFreeAt < now) {
+                nextFreeAt = now;
+            }
+            wait = nextFreeAt - now;
+            nextFreeAt += permits * nanosPerPermit;
+        }
+
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(wait);
+    }
+}
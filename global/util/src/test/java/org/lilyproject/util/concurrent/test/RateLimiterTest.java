@@ -0,0 +1,197 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.util.concurrent.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lilyproject.util.concurrent.RateLimiter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+    @Test
+    public void testNoLimit() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter(0);
+        long before = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, rateLimiter.acquire(1000));
+        }
+        assertTrue(System.currentTimeMillis() - before < 100);
+    }
+
+    @Test
+    public void testPermitsSpreadOverTime() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter(100);
+
+        // The first permits are handed out right away, the next ones wait for the previous ones to be due
+        assertEquals(0, rateLimiter.acquire(10));
+        long before = System.currentTimeMillis();
+        long waited = rateLimiter.acquire(10);
+        long elapsed = System.currentTimeMillis() - before;
+
+        assertTrue("waited " + waited, waited >= 80 && waited <= 100);
+        assertTrue("elapsed " + elapsed, elapsed >= 80 && elapsed < 1000);
+    }
+
+    @Test
+    public void testPermitRate() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter(500);
+
+        // 250 single permits at 500 per second take half a second, apart from the first one
+        long before = System.currentTimeMillis();
+        long waited = 0;
+        for (int i = 0; i < 250; i++) {
+            waited += rateLimiter.acquire(1);
+        }
+        long elapsed = System.currentTimeMillis() - before;
+
+        assertTrue("elapsed " + elapsed, elapsed >= 490 && elapsed < 2000);
+        assertTrue("waited " + waited, waited <= elapsed);
+    }
+
+    @Test
+    public void testBlocksUntilPermitsDue() throws Exception {
+        final RateLimiter rateLimiter = new RateLimiter(10);
+
+        // Takes the permits of the next second
+        assertEquals(0, rateLimiter.acquire(10));
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final AtomicLong waited = new AtomicLong();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    waited.set(rateLimiter.acquire(1));
+                    acquired.countDown();
+                } catch (InterruptedException e) {
+                    // stop
+                }
+            }
+        };
+        thread.start();
+
+        // The other thread is blocked as long as the permits taken before are not due
+        assertFalse(acquired.await(500, TimeUnit.MILLISECONDS));
+        assertTrue(thread.isAlive());
+
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertTrue("waited " + waited.get(), waited.get() >= 900 && waited.get() <= 1000);
+        thread.join();
+    }
+
+    @Test
+    public void testInterrupt() throws Exception {
+        final RateLimiter rateLimiter = new RateLimiter(1);
+        rateLimiter.acquire(10);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    rateLimiter.acquire(1);
+                    failure.set(new AssertionError("acquire returned without waiting for its permits"));
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        thread.start();
+        Thread.sleep(100);
+
+        // A waiting caller gives up as soon as it is interrupted, rather than after the ten seconds it would wait
+        long before = System.currentTimeMillis();
+        thread.interrupt();
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - before < 1000);
+        thread.join();
+        assertNull(failure.get());
+
+        // A caller which is interrupted before it has to wait gives up right away as well
+        Thread.currentThread().interrupt();
+        try {
+            rateLimiter.acquire(1);
+            failure.set(new AssertionError("acquire did not throw InterruptedException"));
+        } catch (InterruptedException e) {
+            // expected
+        } finally {
+            Thread.interrupted();
+        }
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void testNoBurstAfterQuietPeriod() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter(100);
+        rateLimiter.acquire(10);
+        Thread.sleep(500);
+
+        // The quiet period does not build up permits
+        assertEquals(0, rateLimiter.acquire(10));
+        long waited = rateLimiter.acquire(10);
+        assertTrue("waited " + waited, waited >= 80 && waited <= 100);
+    }
+
+    @Test
+    public void testSharedBetweenThreads() throws Exception {
+        final RateLimiter rateLimiter = new RateLimiter(200);
+        final int threadCount = 4;
+        final int acquiresPerThread = 5;
+        final int permitsPerAcquire = 10;
+
+        List<Thread> threads = new ArrayList<Thread>(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < acquiresPerThread; j++) {
+                            rateLimiter.acquire(permitsPerAcquire);
+                        }
+                    } catch (InterruptedException e) {
+                        // stop
+                    }
+                }
+            });
+        }
+
+        long before = System.currentTimeMillis();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.currentTimeMillis() - before;
+
+        // 200 permits at 200 per second, minus the last acquire which does not need to wait for its own permits
+        assertTrue("elapsed " + elapsed, elapsed >= 900);
+        assertTrue("elapsed " + elapsed, elapsed < 5000);
+    }
+}
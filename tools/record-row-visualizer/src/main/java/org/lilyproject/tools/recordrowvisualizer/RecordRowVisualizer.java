@@ -34,7 +34,10 @@ import org.lilyproject.repository.impl.HBaseTypeManager;
 import org.lilyproject.repository.impl.id.IdGeneratorImpl;
 import org.lilyproject.repository.impl.id.SchemaIdImpl;
 import org.lilyproject.rowlog.api.ExecutionState;
+import org.lilyproject.rowlog.api.RowLogException;
+import org.lilyproject.rowlog.impl.RowLogConfigurationManagerImpl;
 import org.lilyproject.rowlog.impl.SubscriptionExecutionState;
+import org.lilyproject.rowlog.impl.SubscriptionOrdinals;
 import org.lilyproject.util.Version;
 import org.lilyproject.util.hbase.HBaseAdminFactory;
 import org.lilyproject.util.hbase.HBaseTableFactoryImpl;
@@ -59,6 +62,7 @@ public class RecordRowVisualizer extends BaseZkCliTool {
     protected RecordRow recordRow;
     protected TypeManager typeMgr;
     protected ZooKeeperItf zk;
+    protected RowLogConfigurationManagerImpl rowLogConfMgr;
 
     @Override
     protected String getCmdName() {
@@ -118,6 +122,9 @@ public class RecordRowVisualizer extends BaseZkCliTool {
         zk = new StateWatchingZooKeeper(zkConnectionString, zkSessionTimeout);
         typeMgr = new HBaseTypeManager(idGenerator, conf, zk, new HBaseTableFactoryImpl(conf));
 
+        // The execution states refer to subscriptions by their ordinal
+        rowLogConfMgr = new RowLogConfigurationManagerImpl(zk);
+
         Get get = new Get(recordId.toBytes());
         get.setMaxVersions();
         Result row = table.get(get);
@@ -148,6 +155,13 @@ public class RecordRowVisualizer extends BaseZkCliTool {
 
     @Override
     protected void cleanup() {
+        if (rowLogConfMgr != null) {
+            try {
+                rowLogConfMgr.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         Closer.close(typeMgr);
         Closer.close(zk);
         HConnectionManager.deleteAllConnections(true);
@@ -220,7 +234,10 @@ public class RecordRowVisualizer extends BaseZkCliTool {
     private void readRowLog(Map<RowLogKey, List<ExecutionData>> walStateByKey, Map<RowLogKey,
             List<String>> walPayloadByKey, Map<RowLogKey, List<ExecutionData>> mqStateByKey,
             Map<RowLogKey, List<String>> mqPayloadByKey, NavigableMap<byte[], NavigableMap<Long, byte[]>> cf)
-            throws IOException {
+            throws IOException, RowLogException {
+        SubscriptionOrdinals walOrdinals = new SubscriptionOrdinals("wal", rowLogConfMgr);
+        SubscriptionOrdinals mqOrdinals = new SubscriptionOrdinals("mq", rowLogConfMgr);
+
 
         if (cf == null)
             return;
@@ -230,9 +247,11 @@ public class RecordRowVisualizer extends BaseZkCliTool {
             // columns start with rowlow-prefix
             byte rowlogId = column[0];
             if (rowlogId == RecordColumn.WAL_PREFIX) {
-                readRowLog(walStateByKey, walPayloadByKey, rowEntry.getValue(), Arrays.copyOfRange(column, 1, column.length));
+                readRowLog(walStateByKey, walPayloadByKey, rowEntry.getValue(), Arrays.copyOfRange(column, 1, column.length),
+                        walOrdinals);
             } else if (rowlogId == RecordColumn.MQ_PREFIX) {
-                readRowLog(mqStateByKey, mqPayloadByKey, rowEntry.getValue(), Arrays.copyOfRange(column, 1, column.length));
+                readRowLog(mqStateByKey, mqPayloadByKey, rowEntry.getValue(), Arrays.copyOfRange(column, 1, column.length),
+                        mqOrdinals);
             } else {
                 // TODO : unknown rowlog
             }
@@ -244,7 +263,8 @@ public class RecordRowVisualizer extends BaseZkCliTool {
     private static final byte[] SEQ_NR = Bytes.toBytes("SEQNR");
     
     private void readRowLog(Map<RowLogKey, List<ExecutionData>> stateByKey, Map<RowLogKey,
-            List<String>> payloadByKey, NavigableMap<Long, byte[]> columnCells, byte[] key) throws IOException {
+            List<String>> payloadByKey, NavigableMap<Long, byte[]> columnCells, byte[] key,
+            SubscriptionOrdinals subscriptionOrdinals) throws IOException, RowLogException {
 
         NavigableMap<Long, byte[]> maxSeqNr = null;
         
@@ -256,7 +276,7 @@ public class RecordRowVisualizer extends BaseZkCliTool {
             if (key[0] == PL_BYTE) {
                 readPayload(payloadByKey, columnCells, seqNr, timestamp);
             } else if (key[0] == ES_BYTE) {
-                readExecutionState(stateByKey, columnCells, seqNr, timestamp);
+                readExecutionState(stateByKey, columnCells, seqNr, timestamp, subscriptionOrdinals);
             } else {
                 // TODO unexpected
             }
@@ -268,7 +288,8 @@ public class RecordRowVisualizer extends BaseZkCliTool {
     }
     
     private void readExecutionState(Map<RowLogKey, List<ExecutionData>> stateByKey,
-            NavigableMap<Long, byte[]> columnCells, long seqNr, long timestamp) throws IOException {
+            NavigableMap<Long, byte[]> columnCells, long seqNr, long timestamp, SubscriptionOrdinals subscriptionOrdinals)
+            throws IOException, RowLogException {
 
         for (Map.Entry<Long, byte[]> columnEntry : columnCells.entrySet()) {
             RowLogKey key = new RowLogKey(seqNr, timestamp, columnEntry.getKey());
@@ -279,7 +300,8 @@ public class RecordRowVisualizer extends BaseZkCliTool {
                 stateByKey.put(key, states);
             }
 
-            ExecutionState state = SubscriptionExecutionState.fromBytes(columnEntry.getValue());
+            ExecutionState state = SubscriptionExecutionState.fromBytes(columnEntry.getValue(), subscriptionOrdinals,
+                    false);
             for (CharSequence subscriptionIdCharSeq : state.getSubscriptionIds()) {
                 String subscriptionId = subscriptionIdCharSeq.toString();
 
@@ -28,10 +28,15 @@ import org.lilyproject.repository.api.IdGenerator;
 import org.lilyproject.repository.api.RecordId;
 import org.lilyproject.repository.impl.id.IdGeneratorImpl;
 import org.lilyproject.rowlog.api.ExecutionState;
+import org.lilyproject.rowlog.impl.RowLogConfigurationManagerImpl;
 import org.lilyproject.rowlog.impl.SubscriptionExecutionState;
+import org.lilyproject.rowlog.impl.SubscriptionOrdinals;
 import org.lilyproject.util.Version;
 import org.lilyproject.util.hbase.HBaseAdminFactory;
 import org.lilyproject.util.hbase.LilyHBaseSchema;
+import org.lilyproject.util.io.Closer;
+import org.lilyproject.util.zookeeper.StateWatchingZooKeeper;
+import org.lilyproject.util.zookeeper.ZooKeeperItf;
 
 import java.nio.ByteBuffer;
 import java.util.List;
@@ -51,6 +56,9 @@ public class RowLogVisualizer extends BaseZkCliTool {
 
     private Option rowlogIdOption;
 
+    private ZooKeeperItf zk;
+    private RowLogConfigurationManagerImpl rowLogConfMgr;
+
     @Override
     protected String getCmdName() {
         return "lily-show-rowlog";
@@ -103,6 +111,11 @@ public class RowLogVisualizer extends BaseZkCliTool {
 
         IdGenerator idGenerator = new IdGeneratorImpl();
 
+        // The execution states refer to subscriptions by their ordinal
+        zk = new StateWatchingZooKeeper(zkConnectionString, zkSessionTimeout);
+        rowLogConfMgr = new RowLogConfigurationManagerImpl(zk);
+        SubscriptionOrdinals subscriptionOrdinals = new SubscriptionOrdinals(rowLogId, rowLogConfMgr);
+
         // General parameters
         byte rowLogIdByte = rowLogId.equals("mq") ? RecordColumn.MQ_PREFIX : RecordColumn.WAL_PREFIX;
         this.executionStatePrefix = new byte[] {rowLogIdByte, ES_BYTE};
@@ -153,7 +166,7 @@ public class RowLogVisualizer extends BaseZkCliTool {
             ExecutionState execState = null;
             if (!esResult.isEmpty()) {
                 byte[] esData = esResult.getValue(rowLogColumnFamily, executionStateQualifier);
-                execState = SubscriptionExecutionState.fromBytes(esData);
+                execState = SubscriptionExecutionState.fromBytes(esData, subscriptionOrdinals, false);
             }
 
             // Read the payload
@@ -200,6 +213,14 @@ public class RowLogVisualizer extends BaseZkCliTool {
 
     @Override
     protected void cleanup() {
+        if (rowLogConfMgr != null) {
+            try {
+                rowLogConfMgr.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Closer.close(zk);
         HConnectionManager.deleteAllConnections(true);
         HBaseAdminFactory.closeAll();
         super.cleanup();